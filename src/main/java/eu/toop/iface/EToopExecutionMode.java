@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface;
+
+import java.util.Locale;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.id.IHasID;
+import com.helger.commons.lang.EnumHelper;
+
+/**
+ * The thread model used for asynchronous sending and callback dispatching.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+public enum EToopExecutionMode implements IHasID <String>
+{
+  /** A fixed size pool of platform threads */
+  PLATFORM ("platform"),
+  /**
+   * One virtual thread per task. Requires a Java runtime with virtual thread
+   * support (Java 21+) - otherwise {@link #PLATFORM} is used.
+   */
+  VIRTUAL ("virtual");
+
+  private final String m_sID;
+
+  EToopExecutionMode (@Nonnull @Nonempty final String sID)
+  {
+    m_sID = sID;
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return m_sID;
+  }
+
+  @Nullable
+  public static EToopExecutionMode getFromIDOrDefault (@Nullable final String sID,
+                                                       @Nullable final EToopExecutionMode eDefault)
+  {
+    return EnumHelper.getFromIDOrDefault (EToopExecutionMode.class,
+                                          sID == null ? null : sID.trim ().toLowerCase (Locale.ROOT),
+                                          eDefault);
+  }
+}
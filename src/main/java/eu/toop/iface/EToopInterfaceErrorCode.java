@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.http.CHttp;
+import com.helger.commons.id.IHasID;
+import com.helger.commons.lang.EnumHelper;
+
+/**
+ * The error classes used in the structured error responses of the servlets
+ * and in {@link ToopInterfaceClientException}. Each error code states whether
+ * a retry of the same call may succeed.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+public enum EToopInterfaceErrorCode implements IHasID <String>
+{
+  /** The received message could not be parsed */
+  INVALID_MESSAGE ("invalid-message", CHttp.HTTP_BAD_REQUEST, false),
+  /** The received message is valid but has an unexpected payload */
+  UNSUPPORTED_PAYLOAD ("unsupported-payload", CHttp.HTTP_BAD_REQUEST, false),
+  /** The message was sent to a tenant that is not hosted here */
+  UNKNOWN_TENANT ("unknown-tenant", CHttp.HTTP_NOT_FOUND, false),
+  /** The received message exceeds a size limit */
+  PAYLOAD_TOO_LARGE ("payload-too-large", 413, false),
+  /** The sender exceeded its rate limit */
+  RATE_LIMITED ("rate-limited", 429, true),
+  /** The receiver is temporarily overloaded */
+  OVERLOADED ("overloaded", CHttp.HTTP_SERVICE_UNAVAILABLE, true),
+  /** Any other 4xx error - the request itself is wrong */
+  CLIENT_ERROR ("client-error", CHttp.HTTP_BAD_REQUEST, false),
+  /** Any other 5xx error */
+  SERVER_ERROR ("server-error", CHttp.HTTP_INTERNAL_SERVER_ERROR, true),
+  /** Connecting or reading timed out */
+  TIMEOUT ("timeout", CHttp.HTTP_GATEWAY_TIMEOUT, true),
+  /** The deadline of the caller was exceeded before the work was done */
+  DEADLINE_EXCEEDED ("deadline-exceeded", CHttp.HTTP_GATEWAY_TIMEOUT, false),
+  /** A network error, e.g. connection refused */
+  NETWORK_ERROR ("network-error", CHttp.HTTP_BAD_GATEWAY, true),
+  /** The response of the remote side could not be interpreted */
+  INVALID_RESPONSE ("invalid-response", CHttp.HTTP_BAD_GATEWAY, false);
+
+  /** The HTTP response header that contains the error code ID */
+  public static final String HTTP_HEADER_ERROR_CODE = "X-Toop-Error-Code";
+
+  private final String m_sID;
+  private final int m_nHttpStatus;
+  private final boolean m_bRetryable;
+
+  EToopInterfaceErrorCode (@Nonnull @Nonempty final String sID, final int nHttpStatus, final boolean bRetryable)
+  {
+    m_sID = sID;
+    m_nHttpStatus = nHttpStatus;
+    m_bRetryable = bRetryable;
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return m_sID;
+  }
+
+  /**
+   * @return The HTTP status code to use when this error is reported by a
+   *         servlet.
+   */
+  public int getHttpStatus ()
+  {
+    return m_nHttpStatus;
+  }
+
+  /**
+   * @return <code>true</code> if repeating the same call later may succeed,
+   *         <code>false</code> if it will fail again.
+   */
+  public boolean isRetryable ()
+  {
+    return m_bRetryable;
+  }
+
+  @Nullable
+  public static EToopInterfaceErrorCode getFromIDOrNull (@Nullable final String sID)
+  {
+    return EnumHelper.getFromIDOrNull (EToopInterfaceErrorCode.class, sID);
+  }
+
+  /**
+   * Derive the error code from an HTTP status code, if the remote side did not
+   * provide an explicit error code.
+   *
+   * @param nHttpStatus
+   *        The HTTP status code. Should be &ge; 400.
+   * @return The matching error code. Never <code>null</code>.
+   */
+  @Nonnull
+  public static EToopInterfaceErrorCode getFromHttpStatus (final int nHttpStatus)
+  {
+    switch (nHttpStatus)
+    {
+      case 413:
+        return PAYLOAD_TOO_LARGE;
+      case 429:
+        return RATE_LIMITED;
+      case CHttp.HTTP_SERVICE_UNAVAILABLE:
+        return OVERLOADED;
+      case CHttp.HTTP_REQUEST_TIMEOUT:
+      case CHttp.HTTP_GATEWAY_TIMEOUT:
+        return TIMEOUT;
+      default:
+        return nHttpStatus >= CHttp.HTTP_INTERNAL_SERVER_ERROR ? SERVER_ERROR : CLIENT_ERROR;
+    }
+  }
+}
@@ -0,0 +1,469 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCounter;
+import com.helger.commons.statistics.StatisticsManager;
+import com.helger.commons.string.ToStringGenerator;
+
+import eu.toop.commons.error.ToopErrorException;
+import eu.toop.commons.exchange.AsicWriteEntry;
+import eu.toop.iface.codec.IToopMessageCodec;
+import eu.toop.iface.codec.ToopMessageBatch;
+import eu.toop.iface.trace.ToopSpan;
+import eu.toop.iface.trace.ToopTracer;
+import eu.toop.iface.util.HttpClientInvoker;
+import eu.toop.iface.util.ToopHttpResponseException;
+import eu.toop.iface.util.ToopSpoolingOutputStream;
+
+/**
+ * Accumulates outbound TOOP messages for one target URL and sends them as a
+ * {@link ToopMessageBatch} in a single HTTP request. A batch is sent as soon as
+ * it reaches the maximum number of messages or bytes - in the thread that adds
+ * the last message - or when the linger time after the first message elapsed
+ * - on the executor from {@link ToopInterfaceManager#getExecutorService()}.
+ * Messages are signed in the calling thread before they are added, so that
+ * callers don't block each other while signing. The batch only references
+ * the encoded messages and the request body is assembled when the batch is
+ * sent, so that adding a message never copies data or writes to disk while
+ * other callers wait.<br>
+ * Each message gets its own future, that completes when the batch containing
+ * it was sent. If sending fails, the futures of all messages that were not
+ * delivered complete exceptionally and only these messages may be
+ * resubmitted. If the receiver processed some messages of the batch before it
+ * failed, it reports their number in the
+ * {@link ToopMessageBatch#HTTP_HEADER_DELIVERED} header and their futures
+ * complete normally. Without that header - e.g. on network errors - the
+ * delivery state is unknown, so all futures fail, and receivers must tolerate
+ * a message being delivered twice, e.g. by its document identifier.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+@ThreadSafe
+public class ToopBatchSender implements AutoCloseable
+{
+  /** Span name for sending a batch */
+  public static final String SPAN_SEND_BATCH = "toop.send.batch";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (ToopBatchSender.class);
+  private static final IMutableStatisticsHandlerCounter s_aStatsBatches = StatisticsManager.getCounterHandler (ToopBatchSender.class.getName () +
+                                                                                                               "$batches");
+  private static final IMutableStatisticsHandlerCounter s_aStatsMessages = StatisticsManager.getCounterHandler (ToopBatchSender.class.getName () +
+                                                                                                                "$messages");
+
+  /**
+   * Shared timer for the linger time of all senders. It only hands over to the
+   * executor and never sends itself.
+   */
+  private static final class LingerScheduler
+  {
+    static final ScheduledThreadPoolExecutor INSTANCE;
+    static
+    {
+      INSTANCE = new ScheduledThreadPoolExecutor (1,
+                                                  new BasicThreadFactory.Builder ().setNamingPattern ("toop-batch-linger-%d")
+                                                                                   .setDaemon (true)
+                                                                                   .build ());
+      INSTANCE.setRemoveOnCancelPolicy (true);
+    }
+  }
+
+  private static final class Part
+  {
+    private final String m_sContentType;
+    private final ToopSpoolingOutputStream m_aEncoded;
+
+    Part (@Nonnull final String sContentType, @Nonnull final ToopSpoolingOutputStream aEncoded)
+    {
+      m_sContentType = sContentType;
+      m_aEncoded = aEncoded;
+    }
+  }
+
+  private static final class Batch
+  {
+    private final ICommonsList <Part> m_aParts = new CommonsArrayList <> ();
+    private final ICommonsList <CompletableFuture <Void>> m_aFutures = new CommonsArrayList <> ();
+    // Header and end marker
+    private long m_nBytes = 5 + 4;
+    private ScheduledFuture <?> m_aLingerTask;
+
+    void add (@Nonnull final String sContentType,
+              @Nonnull final ToopSpoolingOutputStream aEncoded,
+              @Nonnull final CompletableFuture <Void> aFuture)
+    {
+      m_aParts.add (new Part (sContentType, aEncoded));
+      m_aFutures.add (aFuture);
+      // Length, content type and the message itself
+      m_nBytes += 4 + 2 + sContentType.length () + aEncoded.size ();
+    }
+
+    void releaseParts ()
+    {
+      m_aParts.forEach (x -> x.m_aEncoded.close ());
+    }
+
+    void fail (@Nonnegative final int nDelivered, @Nonnull final Throwable t)
+    {
+      for (int i = 0; i < m_aFutures.size (); ++i)
+        if (i < nDelivered)
+          m_aFutures.get (i).complete (null);
+        else
+          m_aFutures.get (i).completeExceptionally (t);
+      releaseParts ();
+    }
+  }
+
+  private final String m_sTargetURL;
+  private final ToopTenant m_aTenant;
+  private final int m_nMaxMessages;
+  private final long m_nMaxBytes;
+  private final long m_nLingerMillis;
+  private final Lock m_aLock = new ReentrantLock ();
+  @GuardedBy ("m_aLock")
+  private Batch m_aCurrent;
+  @GuardedBy ("m_aLock")
+  private boolean m_bClosed = false;
+
+  /**
+   * Constructor
+   *
+   * @param sTargetURL
+   *        The URL to send the batches to. May neither be <code>null</code> nor
+   *        empty.
+   * @param aTenant
+   *        The tenant to send in. May be <code>null</code> for the default
+   *        configuration.
+   * @param nMaxMessages
+   *        The maximum number of messages per batch. Must be &gt; 0.
+   * @param nMaxBytes
+   *        The size in bytes from which on a batch is sent. Must be &gt; 0.
+   * @param nLingerMillis
+   *        The time a batch waits for further messages. Values &le; 0 mean to
+   *        send each message immediately.
+   */
+  public ToopBatchSender (@Nonnull @Nonempty final String sTargetURL,
+                          @Nullable final ToopTenant aTenant,
+                          @Nonnegative final int nMaxMessages,
+                          @Nonnegative final long nMaxBytes,
+                          final long nLingerMillis)
+  {
+    ValueEnforcer.notEmpty (sTargetURL, "TargetURL");
+    ValueEnforcer.isGT0 (nMaxMessages, "MaxMessages");
+    ValueEnforcer.isGT0 (nMaxBytes, "MaxBytes");
+    m_sTargetURL = sTargetURL;
+    m_aTenant = aTenant;
+    m_nMaxMessages = nMaxMessages;
+    m_nMaxBytes = nMaxBytes;
+    m_nLingerMillis = nLingerMillis;
+  }
+
+  /**
+   * @return The URL the batches are sent to. Never <code>null</code>.
+   */
+  @Nonnull
+  @Nonempty
+  public final String getTargetURL ()
+  {
+    return m_sTargetURL;
+  }
+
+  /**
+   * @return The number of messages in the batch that is currently accumulated.
+   *         Always &ge; 0.
+   */
+  @Nonnegative
+  public int getPendingCount ()
+  {
+    m_aLock.lock ();
+    try
+    {
+      return m_aCurrent == null ? 0 : m_aCurrent.m_aFutures.size ();
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  @GuardedBy ("m_aLock")
+  @Nullable
+  private Batch _takeCurrent ()
+  {
+    final Batch ret = m_aCurrent;
+    if (ret != null)
+    {
+      m_aCurrent = null;
+      if (ret.m_aLingerTask != null)
+        ret.m_aLingerTask.cancel (false);
+    }
+    return ret;
+  }
+
+  private void _onLingerExpired (@Nonnull final Batch aBatch)
+  {
+    m_aLock.lock ();
+    try
+    {
+      // Maybe already sent because it became full
+      if (m_aCurrent != aBatch)
+        return;
+      _takeCurrent ();
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+
+    try
+    {
+      ToopInterfaceManager.getExecutorService ().execute ( () -> _send (aBatch));
+    }
+    catch (final RuntimeException ex)
+    {
+      aBatch.fail (0, ex);
+    }
+  }
+
+  /**
+   * @return The number of leading messages the receiver reported as processed
+   *         in its error response. 0 if unknown.
+   */
+  @Nonnegative
+  private static int _getDeliveredCount (@Nonnull final Exception ex, @Nonnegative final int nMessages)
+  {
+    if (!(ex instanceof ToopHttpResponseException))
+      return 0;
+    final int nDelivered = ((ToopHttpResponseException) ex).getBatchDeliveredCount ();
+    return Math.max (0, Math.min (nMessages, nDelivered));
+  }
+
+  private void _send (@Nonnull final Batch aBatch)
+  {
+    final int nMessages = aBatch.m_aFutures.size ();
+    try (final ToopTenant.Scope aScope = m_aTenant == null ? null : m_aTenant.enter ();
+         final ToopSpan aSpan = ToopTracer.startSpan (SPAN_SEND_BATCH))
+    {
+      aSpan.setAttribute ("url", m_sTargetURL);
+      aSpan.setAttribute ("messages", Integer.toString (nMessages));
+      try (final ToopSpoolingOutputStream aBuffer = ToopSpoolingOutputStream.createFromConfig (aBatch.m_nBytes))
+      {
+        // Assembled outside of the lock
+        ToopMessageBatch.writeHeader (aBuffer);
+        for (final Part aPart : aBatch.m_aParts)
+          try (final InputStream aIS = aPart.m_aEncoded.openInputStream ())
+          {
+            ToopMessageBatch.writePart (aBuffer, aPart.m_sContentType, aIS, aPart.m_aEncoded.size ());
+          }
+        ToopMessageBatch.writeEnd (aBuffer);
+        aBatch.releaseParts ();
+
+        aSpan.setAttribute ("bytes", Long.toString (aBuffer.size ()));
+        HttpClientInvoker.httpClientCallNoResponse (m_sTargetURL,
+                                                    aBuffer.getAsHttpEntity (ToopMessageBatch.CONTENT_TYPE));
+      }
+      catch (final IOException | RuntimeException ex)
+      {
+        final int nDelivered = _getDeliveredCount (ex, nMessages);
+        aSpan.setError (ex);
+        LOGGER.warn ("Failed to send batch of " +
+                     nMessages +
+                     " TOOP messages to '" +
+                     m_sTargetURL +
+                     "' - " +
+                     nDelivered +
+                     " of them were delivered",
+                     ex);
+        if (nDelivered > 0)
+        {
+          s_aStatsBatches.increment ();
+          s_aStatsMessages.increment (nDelivered);
+        }
+        aBatch.fail (nDelivered, ex);
+        return;
+      }
+    }
+    s_aStatsBatches.increment ();
+    s_aStatsMessages.increment (nMessages);
+    aBatch.m_aFutures.forEach (x -> x.complete (null));
+  }
+
+  /**
+   * Encode and sign a message and add it to the current batch.
+   *
+   * @param aMessage
+   *        The TOOP request or response to send. May not be <code>null</code>.
+   * @param aAttachments
+   *        The attachments to send. May be <code>null</code> or empty.
+   * @return A future that completes when the batch containing the message was
+   *         sent. If the message was not delivered - also if this call sends
+   *         the batch because it became full - the future completes
+   *         exceptionally. Never <code>null</code>.
+   * @throws IOException
+   *         If encoding fails
+   * @throws ToopErrorException
+   *         For known TOOP errors
+   * @throws IllegalStateException
+   *         If this sender is already closed
+   */
+  @Nonnull
+  public CompletableFuture <Void> submit (@Nonnull final Serializable aMessage,
+                                          @Nullable final Iterable <? extends AsicWriteEntry> aAttachments) throws IOException,
+                                                                                                            ToopErrorException
+  {
+    ValueEnforcer.notNull (aMessage, "Message");
+
+    final CompletableFuture <Void> ret = new CompletableFuture <> ();
+    Batch aFull = null;
+    try (final ToopTenant.Scope aScope = m_aTenant == null ? null : m_aTenant.enter ())
+    {
+      // Sign before locking
+      final IToopMessageCodec aCodec = ToopInterfaceClient.getOutboundCodec (aAttachments);
+      final ToopSpoolingOutputStream aEncoded = ToopInterfaceManager.getSigningService ()
+                                                                    .encode (aCodec, aMessage, aAttachments, null);
+      boolean bAdded = false;
+      m_aLock.lock ();
+      try
+      {
+        if (m_bClosed)
+          throw new IllegalStateException ("The batch sender for '" + m_sTargetURL + "' is already closed");
+
+        if (m_aCurrent == null)
+        {
+          final Batch aBatch = new Batch ();
+          if (m_nLingerMillis > 0)
+            aBatch.m_aLingerTask = LingerScheduler.INSTANCE.schedule ( () -> _onLingerExpired (aBatch),
+                                                                       m_nLingerMillis,
+                                                                       TimeUnit.MILLISECONDS);
+          m_aCurrent = aBatch;
+        }
+
+        // The batch owns the encoded message from now on
+        m_aCurrent.add (aCodec.getContentType (), aEncoded, ret);
+        bAdded = true;
+
+        if (m_nLingerMillis <= 0 ||
+            m_aCurrent.m_aFutures.size () >= m_nMaxMessages ||
+            m_aCurrent.m_nBytes >= m_nMaxBytes)
+          aFull = _takeCurrent ();
+      }
+      finally
+      {
+        m_aLock.unlock ();
+        if (!bAdded)
+          aEncoded.close ();
+      }
+    }
+
+    if (aFull != null)
+      _send (aFull);
+    return ret;
+  }
+
+  /**
+   * Send the currently accumulated messages in the calling thread, without
+   * waiting for the linger time.
+   */
+  public void flush ()
+  {
+    final Batch aBatch;
+    m_aLock.lock ();
+    try
+    {
+      aBatch = _takeCurrent ();
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+    if (aBatch != null)
+      _send (aBatch);
+  }
+
+  /**
+   * Send the currently accumulated messages and reject all further messages.
+   */
+  public void close ()
+  {
+    final Batch aBatch;
+    m_aLock.lock ();
+    try
+    {
+      m_bClosed = true;
+      aBatch = _takeCurrent ();
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+    if (aBatch != null)
+      _send (aBatch);
+  }
+
+  /**
+   * Create a new sender for the current tenant, based on the settings in
+   * {@link ToopInterfaceConfig}.
+   *
+   * @param sTargetURL
+   *        The URL to send the batches to. May neither be <code>null</code> nor
+   *        empty.
+   * @return A new sender. Never <code>null</code>.
+   */
+  @Nonnull
+  public static ToopBatchSender createFromConfig (@Nonnull @Nonempty final String sTargetURL)
+  {
+    return new ToopBatchSender (sTargetURL,
+                                ToopTenant.getCurrent (),
+                                ToopInterfaceConfig.getBatchMaxMessages (),
+                                ToopInterfaceConfig.getBatchMaxBytes (),
+                                ToopInterfaceConfig.getBatchLingerMillis ());
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("TargetURL", m_sTargetURL)
+                                       .append ("MaxMessages", m_nMaxMessages)
+                                       .append ("MaxBytes", m_nMaxBytes)
+                                       .append ("LingerMillis", m_nLingerMillis)
+                                       .getToString ();
+  }
+}
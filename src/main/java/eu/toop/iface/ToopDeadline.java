@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForSigned;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A point in time after which the result of a call is no longer of interest.
+ * It is based on {@link System#nanoTime()} and therefore only valid inside
+ * the current JVM. When transmitted via HTTP (see
+ * {@link #HTTP_HEADER_DEADLINE}) the remaining time in milliseconds is sent,
+ * so that the clocks of sender and receiver don't need to be in sync.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+@Immutable
+public final class ToopDeadline
+{
+  /** HTTP header containing the remaining time in milliseconds */
+  public static final String HTTP_HEADER_DEADLINE = "X-Toop-Deadline";
+
+  /**
+   * The maximum timeout in milliseconds: 7 days. Larger values are clamped, so
+   * that the deadline cannot overflow the {@link System#nanoTime()} range.
+   */
+  public static final long MAX_TIMEOUT_MILLIS = TimeUnit.DAYS.toMillis (7);
+
+  private final long m_nDeadlineNanos;
+
+  private ToopDeadline (final long nDeadlineNanos)
+  {
+    m_nDeadlineNanos = nDeadlineNanos;
+  }
+
+  /**
+   * @return The remaining milliseconds. May be &le; 0 if the deadline is
+   *         already exceeded.
+   */
+  @CheckForSigned
+  public long getRemainingMillis ()
+  {
+    return TimeUnit.NANOSECONDS.toMillis (m_nDeadlineNanos - System.nanoTime ());
+  }
+
+  /**
+   * @return <code>true</code> if the deadline is exceeded.
+   */
+  public boolean isExpired ()
+  {
+    return m_nDeadlineNanos - System.nanoTime () <= 0;
+  }
+
+  /**
+   * @return The value to be used in the {@link #HTTP_HEADER_DEADLINE} header.
+   */
+  @Nonnull
+  public String getAsHeaderValue ()
+  {
+    return Long.toString (Math.max (0, getRemainingMillis ()));
+  }
+
+  /**
+   * Create a new deadline that is the provided number of milliseconds in the
+   * future.
+   *
+   * @param nTimeoutMillis
+   *        The timeout in milliseconds. Must be &ge; 0. Values larger than
+   *        {@link #MAX_TIMEOUT_MILLIS} are clamped.
+   * @return The new deadline. Never <code>null</code>.
+   */
+  @Nonnull
+  public static ToopDeadline ofTimeoutMillis (@Nonnegative final long nTimeoutMillis)
+  {
+    ValueEnforcer.isGE0 (nTimeoutMillis, "TimeoutMillis");
+    final long nMillis = Math.min (nTimeoutMillis, MAX_TIMEOUT_MILLIS);
+    return new ToopDeadline (System.nanoTime () + TimeUnit.MILLISECONDS.toNanos (nMillis));
+  }
+
+  /**
+   * Get the earlier of two deadlines.
+   *
+   * @param aDeadline1
+   *        First deadline. May be <code>null</code>.
+   * @param aDeadline2
+   *        Second deadline. May be <code>null</code>.
+   * @return <code>null</code> if both are <code>null</code>.
+   */
+  @Nullable
+  public static ToopDeadline getEarliest (@Nullable final ToopDeadline aDeadline1,
+                                          @Nullable final ToopDeadline aDeadline2)
+  {
+    if (aDeadline1 == null)
+      return aDeadline2;
+    if (aDeadline2 == null)
+      return aDeadline1;
+    return aDeadline1.m_nDeadlineNanos - aDeadline2.m_nDeadlineNanos <= 0 ? aDeadline1 : aDeadline2;
+  }
+
+  /**
+   * Parse the value of the {@link #HTTP_HEADER_DEADLINE} header, relative to
+   * the current point in time.
+   *
+   * @param sValue
+   *        The header value. May be <code>null</code>.
+   * @return <code>null</code> if the value is not present or invalid. Values
+   *         larger than {@link #MAX_TIMEOUT_MILLIS} are clamped.
+   */
+  @Nullable
+  public static ToopDeadline parseHeaderValue (@Nullable final String sValue)
+  {
+    final long nMillis = StringHelper.parseLong (StringHelper.trim (sValue), -1);
+    return nMillis < 0 ? null : ofTimeoutMillis (nMillis);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("RemainingMillis", getRemainingMillis ()).getToString ();
+  }
+}
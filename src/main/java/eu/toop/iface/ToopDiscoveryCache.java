@@ -0,0 +1,541 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.io.stream.CountingInputStream;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCache;
+import com.helger.commons.statistics.StatisticsManager;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A cache for the raw responses of data provider directory lookups, that is
+ * persisted to a compact local file. The file is loaded lazily on first
+ * access, so that the discovery results of the previous run are available
+ * right after a restart. Outdated entries are still served, but are
+ * revalidated in the background. Entries that exceed the maximum staleness,
+ * e.g. because the connector kept failing, are fetched synchronously instead.
+ * The cache is bound by the number of entries and by the total number of
+ * response bytes; the oldest entries are evicted first.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+@ThreadSafe
+public class ToopDiscoveryCache
+{
+  /**
+   * Fetches the raw response for a query URI.
+   */
+  @FunctionalInterface
+  public interface IFetcher
+  {
+    @Nonnull
+    byte [] fetch (@Nonnull String sQueryURI) throws IOException;
+  }
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (ToopDiscoveryCache.class);
+  private static final IMutableStatisticsHandlerCache s_aStatsCache = StatisticsManager.getCacheHandler (ToopDiscoveryCache.class.getName ());
+
+  private static final int FILE_MAGIC = 0x544f4450;
+  private static final int FILE_VERSION = 1;
+
+  private static final class Entry
+  {
+    private final byte [] m_aBytes;
+    private final long m_nFetchedMillis;
+
+    Entry (@Nonnull final byte [] aBytes, final long nFetchedMillis)
+    {
+      m_aBytes = aBytes;
+      m_nFetchedMillis = nFetchedMillis;
+    }
+  }
+
+  private final File m_aFile;
+  private final long m_nTTLMillis;
+  private final long m_nMaxStaleMillis;
+  private final int m_nMaxEntries;
+  private final long m_nMaxBytes;
+  private final Executor m_aExecutor;
+  private final AtomicLong m_aTotalBytes = new AtomicLong (0);
+  private final ReentrantLock m_aPutLock = new ReentrantLock ();
+  private final ConcurrentHashMap <String, Entry> m_aEntries = new ConcurrentHashMap <> ();
+  private final ConcurrentHashMap <String, Boolean> m_aRevalidating = new ConcurrentHashMap <> ();
+  private final AtomicBoolean m_aPersistScheduled = new AtomicBoolean (false);
+  private final AtomicBoolean m_aPersistDirty = new AtomicBoolean (false);
+  private final ReentrantLock m_aPersistLock = new ReentrantLock ();
+  private final ReentrantLock m_aLoadLock = new ReentrantLock ();
+  private volatile boolean m_bLoaded = false;
+
+  /**
+   * Constructor
+   *
+   * @param aFile
+   *        The file to persist to. May not be <code>null</code>.
+   * @param nTTLMillis
+   *        The time to live of an entry in milliseconds. Must be &gt; 0.
+   * @param nMaxEntries
+   *        The maximum number of entries. Must be &gt; 0.
+   * @param aExecutor
+   *        The executor for background revalidation and persisting. May not
+   *        be <code>null</code>.
+   */
+  public ToopDiscoveryCache (@Nonnull final File aFile,
+                             @Nonnegative final long nTTLMillis,
+                             @Nonnegative final int nMaxEntries,
+                             @Nonnull final Executor aExecutor)
+  {
+    this (aFile,
+          nTTLMillis,
+          Math.max (nTTLMillis, ToopInterfaceConfig.DEFAULT_DISCOVERY_CACHE_MAX_STALE_MS),
+          nMaxEntries,
+          aExecutor);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aFile
+   *        The file to persist to. May not be <code>null</code>.
+   * @param nTTLMillis
+   *        The time to live of an entry in milliseconds. Must be &gt; 0.
+   * @param nMaxStaleMillis
+   *        The maximum age of an entry in milliseconds, up to which it is
+   *        served while being revalidated. Older entries are fetched
+   *        synchronously. Must be &ge; TTL.
+   * @param nMaxEntries
+   *        The maximum number of entries. Must be &gt; 0.
+   * @param aExecutor
+   *        The executor for background revalidation and persisting. May not
+   *        be <code>null</code>.
+   */
+  public ToopDiscoveryCache (@Nonnull final File aFile,
+                             @Nonnegative final long nTTLMillis,
+                             @Nonnegative final long nMaxStaleMillis,
+                             @Nonnegative final int nMaxEntries,
+                             @Nonnull final Executor aExecutor)
+  {
+    this (aFile,
+          nTTLMillis,
+          nMaxStaleMillis,
+          nMaxEntries,
+          ToopInterfaceConfig.DEFAULT_DISCOVERY_CACHE_MAX_BYTES,
+          aExecutor);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aFile
+   *        The file to persist to. May not be <code>null</code>.
+   * @param nTTLMillis
+   *        The time to live of an entry in milliseconds. Must be &gt; 0.
+   * @param nMaxStaleMillis
+   *        The maximum age of an entry in milliseconds, up to which it is
+   *        served while being revalidated. Older entries are fetched
+   *        synchronously. Must be &ge; TTL.
+   * @param nMaxEntries
+   *        The maximum number of entries. Must be &gt; 0.
+   * @param nMaxBytes
+   *        The maximum number of response bytes of all entries. A single
+   *        response that is larger is returned but not cached. Must be &gt; 0.
+   * @param aExecutor
+   *        The executor for background revalidation and persisting. May not
+   *        be <code>null</code>.
+   */
+  public ToopDiscoveryCache (@Nonnull final File aFile,
+                             @Nonnegative final long nTTLMillis,
+                             @Nonnegative final long nMaxStaleMillis,
+                             @Nonnegative final int nMaxEntries,
+                             @Nonnegative final long nMaxBytes,
+                             @Nonnull final Executor aExecutor)
+  {
+    ValueEnforcer.notNull (aFile, "File");
+    ValueEnforcer.isGT0 (nTTLMillis, "TTLMillis");
+    ValueEnforcer.isTrue (nMaxStaleMillis >= nTTLMillis, "MaxStaleMillis must be >= TTLMillis");
+    ValueEnforcer.isGT0 (nMaxEntries, "MaxEntries");
+    ValueEnforcer.isGT0 (nMaxBytes, "MaxBytes");
+    ValueEnforcer.notNull (aExecutor, "Executor");
+    m_aFile = aFile;
+    m_nTTLMillis = nTTLMillis;
+    m_nMaxStaleMillis = nMaxStaleMillis;
+    m_nMaxEntries = nMaxEntries;
+    m_nMaxBytes = nMaxBytes;
+    m_aExecutor = aExecutor;
+  }
+
+  @Nonnull
+  public final File getFile ()
+  {
+    return m_aFile;
+  }
+
+  @Nonnegative
+  public int getEntryCount ()
+  {
+    _ensureLoaded ();
+    return m_aEntries.size ();
+  }
+
+  /**
+   * @return The number of response bytes of all entries.
+   * @since 0.10.9
+   */
+  @Nonnegative
+  public long getByteCount ()
+  {
+    _ensureLoaded ();
+    return m_aTotalBytes.get ();
+  }
+
+  private void _ensureLoaded ()
+  {
+    if (!m_bLoaded)
+    {
+      m_aLoadLock.lock ();
+      try
+      {
+        if (!m_bLoaded)
+        {
+          _load ();
+          m_bLoaded = true;
+        }
+      }
+      finally
+      {
+        m_aLoadLock.unlock ();
+      }
+    }
+  }
+
+  private void _load ()
+  {
+    if (!m_aFile.isFile ())
+      return;
+
+    try (final InputStream aIS = Files.newInputStream (m_aFile.toPath ());
+         final CountingInputStream aCIS = new CountingInputStream (new BufferedInputStream (aIS));
+         final DataInputStream aDIS = new DataInputStream (aCIS))
+    {
+      // Never trust the lengths in the file
+      final long nFileSize = Files.size (m_aFile.toPath ());
+      if (aDIS.readInt () != FILE_MAGIC || aDIS.readInt () != FILE_VERSION)
+      {
+        LOGGER.warn ("Ignoring discovery cache file '" + m_aFile.getAbsolutePath () + "' with unsupported format");
+        return;
+      }
+      final int nCount = aDIS.readInt ();
+      for (int i = 0; i < nCount && m_aEntries.size () < m_nMaxEntries; ++i)
+      {
+        final String sKey = aDIS.readUTF ();
+        final long nFetched = aDIS.readLong ();
+        final int nLength = aDIS.readInt ();
+        if (nLength < 0 || nLength > nFileSize - aCIS.getBytesRead ())
+          throw new IOException ("Invalid length " + nLength + " of discovery cache entry '" + sKey + "'");
+        if (m_aTotalBytes.get () + nLength > m_nMaxBytes)
+        {
+          // Byte budget is exhausted
+          break;
+        }
+        final byte [] aBytes = new byte [nLength];
+        aDIS.readFully (aBytes);
+        m_aEntries.put (sKey, new Entry (aBytes, nFetched));
+        m_aTotalBytes.addAndGet (nLength);
+      }
+      LOGGER.info ("Loaded " + m_aEntries.size () + " discovery cache entries from '" + m_aFile.getAbsolutePath () + "'");
+    }
+    catch (final IOException | RuntimeException ex)
+    {
+      LOGGER.warn ("Failed to read discovery cache file '" + m_aFile.getAbsolutePath () + "'", ex);
+      m_aEntries.clear ();
+      m_aTotalBytes.set (0);
+    }
+  }
+
+  /**
+   * Write all entries to the cache file. The file is written to a temporary
+   * file first and then moved, so that a crash never leaves a corrupt file.
+   * Concurrent calls are serialized.
+   *
+   * @throws IOException
+   *         In case writing fails
+   */
+  public void persist () throws IOException
+  {
+    _ensureLoaded ();
+
+    final File aParent = m_aFile.getAbsoluteFile ().getParentFile ();
+    final Path aDir = aParent != null ? aParent.toPath () : Paths.get (".");
+    Files.createDirectories (aDir);
+
+    m_aPersistLock.lock ();
+    try
+    {
+      // Unique name in the same directory, so that the move is atomic
+      final Path aTmpFile = Files.createTempFile (aDir, m_aFile.getName (), ".tmp");
+      try
+      {
+        // Take a snapshot, so that the count matches the entries
+        final Map <String, Entry> aSnapshot = new HashMap <> (m_aEntries);
+        try (final OutputStream aOS = Files.newOutputStream (aTmpFile);
+             final DataOutputStream aDOS = new DataOutputStream (new BufferedOutputStream (aOS)))
+        {
+          aDOS.writeInt (FILE_MAGIC);
+          aDOS.writeInt (FILE_VERSION);
+          aDOS.writeInt (aSnapshot.size ());
+          for (final Map.Entry <String, Entry> aEntry : aSnapshot.entrySet ())
+          {
+            aDOS.writeUTF (aEntry.getKey ());
+            aDOS.writeLong (aEntry.getValue ().m_nFetchedMillis);
+            aDOS.writeInt (aEntry.getValue ().m_aBytes.length);
+            aDOS.write (aEntry.getValue ().m_aBytes);
+          }
+        }
+        Files.move (aTmpFile, m_aFile.toPath (), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }
+      finally
+      {
+        // Only present if writing or moving failed
+        Files.deleteIfExists (aTmpFile);
+      }
+    }
+    finally
+    {
+      m_aPersistLock.unlock ();
+    }
+  }
+
+  private void _schedulePersist ()
+  {
+    m_aPersistDirty.set (true);
+
+    // Coalesce multiple updates into one write
+    if (m_aPersistScheduled.compareAndSet (false, true))
+      m_aExecutor.execute ( () -> {
+        try
+        {
+          // Write again if something changed while writing
+          while (m_aPersistDirty.getAndSet (false))
+            persist ();
+        }
+        catch (final IOException ex)
+        {
+          LOGGER.warn ("Failed to write discovery cache file '" + m_aFile.getAbsolutePath () + "'", ex);
+        }
+        finally
+        {
+          m_aPersistScheduled.set (false);
+        }
+        // Changed after the last check but before the flag was reset
+        if (m_aPersistDirty.get ())
+          _schedulePersist ();
+      });
+  }
+
+  private boolean _remove (@Nonnull final String sQueryURI, @Nonnull final Entry aEntry)
+  {
+    if (!m_aEntries.remove (sQueryURI, aEntry))
+      return false;
+    m_aTotalBytes.addAndGet (-aEntry.m_aBytes.length);
+    return true;
+  }
+
+  private void _evictOldest ()
+  {
+    String sOldest = null;
+    Entry aOldest = null;
+    for (final Map.Entry <String, Entry> aEntry : m_aEntries.entrySet ())
+      if (aOldest == null || aEntry.getValue ().m_nFetchedMillis < aOldest.m_nFetchedMillis)
+      {
+        sOldest = aEntry.getKey ();
+        aOldest = aEntry.getValue ();
+      }
+    if (aOldest != null)
+      _remove (sOldest, aOldest);
+  }
+
+  private void _put (@Nonnull final String sQueryURI, @Nonnull final byte [] aBytes)
+  {
+    if (aBytes.length > m_nMaxBytes)
+    {
+      LOGGER.warn ("Not caching discovery response of " + aBytes.length + " bytes for '" + sQueryURI + "'");
+      return;
+    }
+
+    m_aPutLock.lock ();
+    try
+    {
+      final Entry aOld = m_aEntries.get (sQueryURI);
+      if (aOld != null)
+        _remove (sQueryURI, aOld);
+
+      // Evict the oldest entries until the new one fits
+      while (!m_aEntries.isEmpty () &&
+             (m_aEntries.size () >= m_nMaxEntries || m_aTotalBytes.get () + aBytes.length > m_nMaxBytes))
+        _evictOldest ();
+
+      m_aEntries.put (sQueryURI, new Entry (aBytes, System.currentTimeMillis ()));
+      m_aTotalBytes.addAndGet (aBytes.length);
+    }
+    finally
+    {
+      m_aPutLock.unlock ();
+    }
+    _schedulePersist ();
+  }
+
+  private void _revalidateInBackground (@Nonnull final String sQueryURI, @Nonnull final IFetcher aFetcher)
+  {
+    // Only one revalidation per key at a time
+    if (m_aRevalidating.putIfAbsent (sQueryURI, Boolean.TRUE) == null)
+      m_aExecutor.execute ( () -> {
+        try
+        {
+          _put (sQueryURI, aFetcher.fetch (sQueryURI));
+        }
+        catch (final IOException | RuntimeException ex)
+        {
+          LOGGER.warn ("Failed to revalidate discovery cache entry '" + sQueryURI + "' - keeping old value", ex);
+        }
+        finally
+        {
+          m_aRevalidating.remove (sQueryURI);
+        }
+      });
+  }
+
+  /**
+   * Get the raw response for the provided query. If a current entry is
+   * present, it is returned. If an outdated entry within the maximum staleness
+   * is present, it is returned and revalidated in the background. Otherwise
+   * the response is fetched synchronously and cached. An entry that exceeds
+   * the maximum staleness is removed if fetching fails.
+   *
+   * @param sQueryURI
+   *        The query URI. May neither be <code>null</code> nor empty.
+   * @param aFetcher
+   *        The fetcher to get the current response. May not be
+   *        <code>null</code>.
+   * @return The raw response bytes. Never <code>null</code>.
+   * @throws IOException
+   *         If fetching fails and no usable cached value is present
+   */
+  @Nonnull
+  public byte [] get (@Nonnull @Nonempty final String sQueryURI, @Nonnull final IFetcher aFetcher) throws IOException
+  {
+    ValueEnforcer.notEmpty (sQueryURI, "QueryURI");
+    ValueEnforcer.notNull (aFetcher, "Fetcher");
+
+    _ensureLoaded ();
+    final Entry aEntry = m_aEntries.get (sQueryURI);
+    if (aEntry != null)
+    {
+      final long nAgeMillis = System.currentTimeMillis () - aEntry.m_nFetchedMillis;
+      if (nAgeMillis <= m_nMaxStaleMillis)
+      {
+        s_aStatsCache.cacheHit ();
+        if (nAgeMillis > m_nTTLMillis)
+          _revalidateInBackground (sQueryURI, aFetcher);
+        return aEntry.m_aBytes;
+      }
+    }
+
+    s_aStatsCache.cacheMiss ();
+    final byte [] ret;
+    try
+    {
+      ret = aFetcher.fetch (sQueryURI);
+    }
+    catch (final IOException | RuntimeException ex)
+    {
+      // Too old to be served
+      if (aEntry != null)
+      {
+        final boolean bRemoved;
+        m_aPutLock.lock ();
+        try
+        {
+          bRemoved = _remove (sQueryURI, aEntry);
+        }
+        finally
+        {
+          m_aPutLock.unlock ();
+        }
+        if (bRemoved)
+          _schedulePersist ();
+      }
+      throw ex;
+    }
+    _put (sQueryURI, ret);
+    return ret;
+  }
+
+  /**
+   * Remove the provided entry.
+   *
+   * @param sQueryURI
+   *        The query URI. May be <code>null</code>.
+   */
+  public void remove (@Nullable final String sQueryURI)
+  {
+    if (sQueryURI != null)
+    {
+      _ensureLoaded ();
+      if (m_aEntries.remove (sQueryURI) != null)
+        _schedulePersist ();
+    }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("File", m_aFile)
+                                       .append ("TTLMillis", m_nTTLMillis)
+                                       .append ("MaxStaleMillis", m_nMaxStaleMillis)
+                                       .append ("MaxEntries", m_nMaxEntries)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsLinkedHashMap;
+import com.helger.commons.collection.impl.CommonsLinkedHashSet;
+import com.helger.commons.collection.impl.ICommonsOrderedMap;
+import com.helger.commons.collection.impl.ICommonsOrderedSet;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.pd.searchapi.v1.ResultListType;
+
+/**
+ * The result of a parallel data provider discovery over multiple countries.
+ * It contains the merged matches of all queries that succeeded in time, as
+ * well as the keys of the queries that failed or timed out. The key of a query
+ * is the country code, optionally followed by a slash and the document type.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+@NotThreadSafe
+public class ToopDiscoveryResult
+{
+  private final ResultListType m_aResultList = new ResultListType ();
+  private final ICommonsOrderedSet <String> m_aSucceeded = new CommonsLinkedHashSet <> ();
+  private final ICommonsOrderedMap <String, Exception> m_aFailed = new CommonsLinkedHashMap <> ();
+  private final ICommonsOrderedSet <String> m_aTimedOut = new CommonsLinkedHashSet <> ();
+
+  void addSuccess (@Nonnull @Nonempty final String sQueryKey, @Nonnull final ResultListType aResultList)
+  {
+    m_aSucceeded.add (sQueryKey);
+    m_aResultList.getMatch ().addAll (aResultList.getMatch ());
+  }
+
+  void addFailure (@Nonnull @Nonempty final String sQueryKey, @Nonnull final Exception ex)
+  {
+    m_aFailed.put (sQueryKey, ex);
+  }
+
+  void addTimeout (@Nonnull @Nonempty final String sQueryKey)
+  {
+    m_aTimedOut.add (sQueryKey);
+  }
+
+  /**
+   * @return The merged matches of all successful queries. Only the matches are
+   *         merged - the paging attributes are not set. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public ResultListType getResultList ()
+  {
+    return m_aResultList;
+  }
+
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsOrderedSet <String> getAllSucceededQueries ()
+  {
+    return m_aSucceeded.getClone ();
+  }
+
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsOrderedMap <String, Exception> getAllFailedQueries ()
+  {
+    return m_aFailed.getClone ();
+  }
+
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsOrderedSet <String> getAllTimedOutQueries ()
+  {
+    return m_aTimedOut.getClone ();
+  }
+
+  /**
+   * @return <code>true</code> if all queries succeeded, <code>false</code> if
+   *         the result is partial.
+   */
+  public boolean isComplete ()
+  {
+    return m_aFailed.isEmpty () && m_aTimedOut.isEmpty ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Succeeded", m_aSucceeded)
+                                       .append ("Failed", m_aFailed.keySet ())
+                                       .append ("TimedOut", m_aTimedOut)
+                                       .append ("MatchCount", m_aResultList.getMatch ().size ())
+                                       .getToString ();
+  }
+}
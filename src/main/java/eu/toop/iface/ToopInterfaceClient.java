@@ -16,22 +16,38 @@
 package eu.toop.iface;
 
 import java.io.IOException;
+import java.io.Serializable;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
 
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 
-import com.helger.asic.SignatureHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.Nonempty;
-import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsLinkedHashMap;
 import com.helger.commons.collection.impl.ICommonsList;
-import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.collection.impl.ICommonsOrderedMap;
+import com.helger.commons.mutable.MutableInt;
 import com.helger.commons.string.StringHelper;
 import com.helger.commons.wrapper.Wrapper;
 import com.helger.httpclient.response.ResponseHandlerByteArray;
 import com.helger.pd.searchapi.PDSearchAPIReader;
+import com.helger.pd.searchapi.v1.MatchType;
 import com.helger.pd.searchapi.v1.ResultListType;
 
 import eu.toop.commons.codelist.EPredefinedDocumentTypeIdentifier;
@@ -43,24 +59,102 @@ import eu.toop.commons.dataexchange.v140.TDETOOPResponseType;
 import eu.toop.commons.error.ToopErrorException;
 import eu.toop.commons.exchange.AsicWriteEntry;
 import eu.toop.commons.exchange.ToopMessageBuilder140;
+import eu.toop.commons.exchange.ToopResponseWithAttachments140;
+import eu.toop.iface.codec.IToopMessageCodec;
+import eu.toop.iface.codec.ToopMessageCodecRegistry;
+import eu.toop.iface.trace.ToopSpan;
+import eu.toop.iface.trace.ToopTracer;
 import eu.toop.iface.util.HttpClientInvoker;
+import eu.toop.iface.util.ToopDeadlineExceededException;
+import eu.toop.iface.util.ToopSpoolingOutputStream;
+import eu.toop.iface.util.SearchResultStreamReader;
 import oasis.names.specification.ubl.schema.xsd.unqualifieddatatypes_21.IdentifierType;
 
 @ThreadSafe
 public final class ToopInterfaceClient
 {
+  private static final Logger LOGGER = LoggerFactory.getLogger (ToopInterfaceClient.class);
+
+  /** Span name for sending a request (step 1/4) */
+  public static final String SPAN_SEND_REQUEST = "toop.send.request";
+  /** Span name for sending a response (step 3/4) */
+  public static final String SPAN_SEND_RESPONSE = "toop.send.response";
+
+  /** Batch senders per tenant and target URL */
+  private static final ConcurrentHashMap <String, ToopBatchSender> s_aBatchSenders = new ConcurrentHashMap <> ();
+
+  /**
+   * Internal callback for asynchronous sending.
+   */
+  @FunctionalInterface
+  private interface IAsyncSender
+  {
+    void send () throws IOException, ToopErrorException;
+  }
+
   private ToopInterfaceClient ()
   {}
 
+  /**
+   * Determine the codec to use for sending. The configured codec is used,
+   * unless attachments are present that it cannot transport - than ASiC is
+   * used.
+   */
   @Nonnull
-  @ReturnsMutableCopy
-  private static SignatureHelper createSH ()
+  static IToopMessageCodec getOutboundCodec (@Nullable final Iterable <? extends AsicWriteEntry> aAttachments)
+  {
+    final ToopMessageCodecRegistry aRegistry = ToopMessageCodecRegistry.getInstance ();
+    final IToopMessageCodec aCodec = aRegistry.getCodecOfID (ToopTenant.getCurrentConfig ().getOutboundCodecID ());
+    if (aCodec == null)
+      return aRegistry.getDefaultCodec ();
+    if (!aCodec.isSupportingAttachments () && aAttachments != null && aAttachments.iterator ().hasNext ())
+      return aRegistry.getDefaultCodec ();
+    return aCodec;
+  }
+
+  private static void _encodeAndSend (@Nonnull @Nonempty final String sSpanName,
+                                      @Nonnull final Serializable aMessage,
+                                      @Nullable final Iterable <? extends AsicWriteEntry> aAttachments,
+                                      @Nonnull final String sTargetURL,
+                                      @Nullable final ToopDeadline aDeadline) throws IOException, ToopErrorException
   {
-    return new SignatureHelper (ToopInterfaceConfig.getKeystoreType (),
-                                ToopInterfaceConfig.getKeystorePath (),
-                                ToopInterfaceConfig.getKeystorePassword (),
-                                ToopInterfaceConfig.getKeystoreKeyAlias (),
-                                ToopInterfaceConfig.getKeystoreKeyPassword ());
+    try (final ToopSpan aSendSpan = ToopTracer.startSpan (sSpanName))
+    {
+      aSendSpan.setAttribute ("url", sTargetURL);
+      try
+      {
+        // Don't waste time signing if nobody waits for the result
+        if (aDeadline != null && aDeadline.isExpired ())
+          throw new ToopDeadlineExceededException ("Deadline exceeded before sending to " + sTargetURL, null);
+
+        final IToopMessageCodec aCodec = getOutboundCodec (aAttachments);
+        aSendSpan.setAttribute ("codec", aCodec.getID ());
+
+        // Marshal, sign and wrap on the signing threads into a pooled buffer
+        // or for large messages a temporary file, that is released after
+        // sending
+        final ToopSpoolingOutputStream aEncoded;
+        try (final ToopSpan aSpan = ToopTracer.startSpan (ToopTracer.SPAN_ASIC_CREATE))
+        {
+          aEncoded = ToopInterfaceManager.getSigningService ().encode (aCodec, aMessage, aAttachments, aDeadline);
+          aSpan.setAttribute ("bytes", Long.toString (aEncoded.size ()));
+          aSpan.setAttribute ("spooled", Boolean.toString (aEncoded.isSpooled ()));
+        }
+
+        try (final ToopSpoolingOutputStream aBAOS = aEncoded)
+        {
+          // Send directly from the pooled buffer or the file
+          HttpClientInvoker.httpClientCallNoResponse (sTargetURL,
+                                                      aBAOS.getAsHttpEntity (aCodec.getContentType ()),
+                                                      aDeadline);
+        }
+      }
+      catch (final IOException | ToopErrorException | RuntimeException ex)
+      {
+        aSendSpan.setError (ex);
+        throw ex;
+      }
+    }
   }
 
   /**
@@ -104,12 +198,20 @@ public final class ToopInterfaceClient
                                                                                  eDocumentTypeID,
                                                                                  eProcessID,
                                                                                  aConceptList);
-    sendRequestToToopConnector (aRequest);
+
+    // Send in the tenant of the sender, unless a tenant is explicitly active
+    final ToopTenant aTenant = ToopTenant.getCurrent () != null ? null
+                                                                : ToopInterfaceManager.getTenantRegistry ()
+                                                                                      .getTenantOfParticipantID (aSenderParticipantID.getValue ());
+    try (final ToopTenant.Scope aScope = aTenant == null ? null : aTenant.enter ())
+    {
+      sendRequestToToopConnector (aRequest);
+    }
   }
 
   /**
-   * Create a request, wrap it in an ASiC and send it to DP TOOP Connector,
-   * using the configured connector URL.
+   * Create a request, encode it with the configured outbound codec and send it
+   * to DP TOOP Connector, using the configured connector URL.
    *
    * @param aRequest
    *        Request object. May not be <code>null</code>.
@@ -122,12 +224,12 @@ public final class ToopInterfaceClient
   public static void sendRequestToToopConnector (@Nonnull final TDETOOPRequestType aRequest) throws IOException,
                                                                                              ToopErrorException
   {
-    sendRequestToToopConnector (aRequest, ToopInterfaceConfig.getToopConnectorDCUrl ());
+    sendRequestToToopConnector (aRequest, ToopTenant.getCurrentConfig ().getToopConnectorDCUrl ());
   }
 
   /**
-   * Create a request, wrap it in an ASiC and send it to DP TOOP Connector,
-   * using the provided URL.
+   * Create a request, encode it with the configured outbound codec and send it
+   * to DP TOOP Connector, using the provided URL.
    *
    * @param aRequest
    *        Request object. May not be <code>null</code>.
@@ -142,23 +244,162 @@ public final class ToopInterfaceClient
   public static void sendRequestToToopConnector (@Nonnull final TDETOOPRequestType aRequest,
                                                  @Nonnull final String sTargetURL) throws IOException,
                                                                                    ToopErrorException
+  {
+    sendRequestToToopConnector (aRequest, sTargetURL, null);
+  }
+
+  /**
+   * Create a request, encode it with the configured outbound codec and send it
+   * to DP TOOP Connector, using the provided URL and deadline. The remaining
+   * time is passed to the connector in the
+   * {@link ToopDeadline#HTTP_HEADER_DEADLINE} header.
+   *
+   * @param aRequest
+   *        Request object. May not be <code>null</code>.
+   * @param sTargetURL
+   *        Target URL. May not be <code>null</code>.
+   * @param aDeadline
+   *        The deadline for the call. May be <code>null</code> to only use
+   *        the configured request timeout.
+   * @throws ToopDeadlineExceededException
+   *         If the deadline is exceeded
+   * @throws IOException
+   *         In case sending or the like fails
+   * @throws ToopErrorException
+   *         For known TOOP errors
+   * @since 0.10.9
+   */
+  public static void sendRequestToToopConnector (@Nonnull final TDETOOPRequestType aRequest,
+                                                 @Nonnull final String sTargetURL,
+                                                 @Nullable final ToopDeadline aDeadline) throws IOException,
+                                                                                         ToopErrorException
   {
     ValueEnforcer.notNull (aRequest, "Request");
     ValueEnforcer.notNull (sTargetURL, "TargetURL");
 
-    final SignatureHelper aSH = createSH ();
-    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
-    {
-      ToopMessageBuilder140.createRequestMessageAsic (aRequest, aBAOS, aSH);
+    // Send to DC (see FromDCServlet in toop-connector-webapp)
+    _encodeAndSend (SPAN_SEND_REQUEST, aRequest, null, sTargetURL, aDeadline);
+  }
+
+  /**
+   * Create a request, encode it with the configured outbound codec and send it
+   * to DP TOOP Connector, using the configured connector URL. The returned
+   * future is completed when the matching TOOP response is received by the
+   * {@link eu.toop.iface.servlet.ToDCServlet}. Responses that are correlated
+   * this way are not passed to the {@link IToopInterfaceDC} callback.
+   *
+   * @param aRequest
+   *        Request object. May not be <code>null</code> and must contain a
+   *        document UUID.
+   * @return The future to await the response. Never <code>null</code>. It
+   *         completes exceptionally with a
+   *         {@link java.util.concurrent.TimeoutException} if no response
+   *         arrives in the configured time.
+   * @throws IOException
+   *         In case sending or the like fails
+   * @throws ToopErrorException
+   *         For known TOOP errors
+   * @throws IllegalStateException
+   *         If too many requests are already pending
+   * @since 0.10.9
+   */
+  @Nonnull
+  public static CompletableFuture <ToopResponseWithAttachments140> sendRequestToToopConnectorAsync (@Nonnull final TDETOOPRequestType aRequest) throws IOException,
+                                                                                                                                                  ToopErrorException
+  {
+    return sendRequestToToopConnectorAsync (aRequest, ToopTenant.getCurrentConfig ().getToopConnectorDCUrl ());
+  }
 
-      // Send to DC (see FromDCServlet in toop-connector-webapp)
-      HttpClientInvoker.httpClientCallNoResponse (sTargetURL, aBAOS.toByteArray ());
+  /**
+   * Create a request, encode it with the configured outbound codec and send it
+   * to DP TOOP Connector, using the provided URL. The returned future is
+   * completed when the matching TOOP response is received by the
+   * {@link eu.toop.iface.servlet.ToDCServlet}.
+   *
+   * @param aRequest
+   *        Request object. May not be <code>null</code> and must contain a
+   *        document UUID.
+   * @param sTargetURL
+   *        Target URL. May not be <code>null</code>.
+   * @return The future to await the response. Never <code>null</code>.
+   * @throws IOException
+   *         In case sending or the like fails
+   * @throws ToopErrorException
+   *         For known TOOP errors
+   * @throws IllegalStateException
+   *         If too many requests are already pending
+   * @since 0.10.9
+   */
+  @Nonnull
+  public static CompletableFuture <ToopResponseWithAttachments140> sendRequestToToopConnectorAsync (@Nonnull final TDETOOPRequestType aRequest,
+                                                                                                    @Nonnull final String sTargetURL) throws IOException,
+                                                                                                                                      ToopErrorException
+  {
+    ValueEnforcer.notNull (aRequest, "Request");
+    final String sRequestID = ToopResponseCorrelator.getRequestID (aRequest);
+    ValueEnforcer.notEmpty (sRequestID, "Request.DocumentUniversalUniqueIdentifier");
+
+    // Register before sending, as the response may arrive before sending
+    // returns
+    final ToopResponseCorrelator aCorrelator = ToopInterfaceManager.getResponseCorrelator ();
+    final CompletableFuture <ToopResponseWithAttachments140> ret = aCorrelator.register (sRequestID);
+    try
+    {
+      sendRequestToToopConnector (aRequest, sTargetURL);
+    }
+    catch (final IOException | ToopErrorException | RuntimeException ex)
+    {
+      aCorrelator.cancel (sRequestID, ex);
+      throw ex;
     }
+    return ret;
+  }
+
+  @Nonnull
+  private static CompletableFuture <Void> _submit (@Nonnull final IAsyncSender aSender)
+  {
+    final CompletableFuture <Void> ret = new CompletableFuture <> ();
+    // Send in the tenant of the caller
+    ToopInterfaceManager.getExecutorService ().execute (ToopTenant.wrapCurrent ( () -> {
+      try
+      {
+        aSender.send ();
+        ret.complete (null);
+      }
+      catch (final Exception ex)
+      {
+        ret.completeExceptionally (ex);
+      }
+    }));
+    return ret;
+  }
+
+  /**
+   * Same as {@link #sendRequestToToopConnector(TDETOOPRequestType, String)} but
+   * executed on the executor from
+   * {@link ToopInterfaceManager#getExecutorService()}, so that the calling
+   * thread is not blocked.
+   *
+   * @param aRequest
+   *        Request object. May not be <code>null</code>.
+   * @param sTargetURL
+   *        Target URL. May not be <code>null</code>.
+   * @return A future that completes when sending is done. Never
+   *         <code>null</code>.
+   * @since 0.10.9
+   */
+  @Nonnull
+  public static CompletableFuture <Void> submitRequestToToopConnector (@Nonnull final TDETOOPRequestType aRequest,
+                                                                       @Nonnull final String sTargetURL)
+  {
+    ValueEnforcer.notNull (aRequest, "Request");
+    ValueEnforcer.notNull (sTargetURL, "TargetURL");
+    return _submit ( () -> sendRequestToToopConnector (aRequest, sTargetURL));
   }
 
   /**
-   * Create a response, wrap it in an ASiC and send it to DP TOOP Connector,
-   * using the configured connector URL.
+   * Create a response, encode it with the configured outbound codec and send it
+   * to DP TOOP Connector, using the configured connector URL.
    *
    * @param aResponse
    *        Response object. May not be <code>null</code>.
@@ -173,12 +414,12 @@ public final class ToopInterfaceClient
                                                   @Nullable final ICommonsList <AsicWriteEntry> aWriteAttachments) throws IOException,
                                                                                                                    ToopErrorException
   {
-    sendResponseToToopConnector (aResponse, aWriteAttachments, ToopInterfaceConfig.getToopConnectorDPUrl ());
+    sendResponseToToopConnector (aResponse, aWriteAttachments, ToopTenant.getCurrentConfig ().getToopConnectorDPUrl ());
   }
 
   /**
-   * Create a response, wrap it in an ASiC and send it to DP TOOP Connector,
-   * using the provided URL.
+   * Create a response, encode it with the configured outbound codec and send it
+   * to DP TOOP Connector, using the provided URL.
    *
    * @param aResponse
    *        Response object. May not be <code>null</code>.
@@ -200,77 +441,524 @@ public final class ToopInterfaceClient
     ValueEnforcer.notNull (aResponse, "Response");
     ValueEnforcer.notNull (sTargetURL, "TargetURL");
 
-    final SignatureHelper aSH = createSH ();
-    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
-    {
-      ToopMessageBuilder140.createResponseMessageAsic (aResponse, aBAOS, aSH, aWriteAttachments);
-
-      // Send to DP (see FromDPServlet in toop-connector-webapp)
-      HttpClientInvoker.httpClientCallNoResponse (sTargetURL, aBAOS.toByteArray ());
-    }
+    // Send to DP (see FromDPServlet in toop-connector-webapp)
+    _encodeAndSend (SPAN_SEND_RESPONSE, aResponse, aWriteAttachments, sTargetURL, null);
   }
 
   public static void sendResponseToToopConnector (@Nonnull final TDETOOPResponseType aResponse,
                                                   @Nonnull final String sTargetURL,
                                                   @Nullable final Iterable <? extends AsicWriteEntry> aAttachments) throws IOException,
                                                                                                                     ToopErrorException
+  {
+    sendResponseToToopConnector (aResponse, sTargetURL, aAttachments, null);
+  }
+
+  /**
+   * Create a response, encode it with the configured outbound codec and send it
+   * to DP TOOP Connector, using the provided URL and deadline. The remaining
+   * time is passed to the connector in the
+   * {@link ToopDeadline#HTTP_HEADER_DEADLINE} header.
+   *
+   * @param aResponse
+   *        Response object. May not be <code>null</code>.
+   * @param sTargetURL
+   *        Target URL. May not be <code>null</code>.
+   * @param aAttachments
+   *        The attachments to be send. May be <code>null</code> or empty.
+   * @param aDeadline
+   *        The deadline for the call. May be <code>null</code> to only use
+   *        the configured request timeout.
+   * @throws ToopDeadlineExceededException
+   *         If the deadline is exceeded
+   * @throws IOException
+   *         In case sending or the like fails
+   * @throws ToopErrorException
+   *         For known TOOP errors
+   * @since 0.10.9
+   */
+  public static void sendResponseToToopConnector (@Nonnull final TDETOOPResponseType aResponse,
+                                                  @Nonnull final String sTargetURL,
+                                                  @Nullable final Iterable <? extends AsicWriteEntry> aAttachments,
+                                                  @Nullable final ToopDeadline aDeadline) throws IOException,
+                                                                                          ToopErrorException
   {
     ValueEnforcer.notNull (aResponse, "Response");
     ValueEnforcer.notNull (sTargetURL, "TargetURL");
 
-    final SignatureHelper aSH = createSH ();
-    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
-    {
-      ToopMessageBuilder140.createResponseMessageAsic (aResponse, aBAOS, aSH, aAttachments);
+    // Send to DP (see FromDPServlet in toop-connector-webapp)
+    _encodeAndSend (SPAN_SEND_RESPONSE, aResponse, aAttachments, sTargetURL, aDeadline);
+  }
 
-      // Send to DP (see FromDPServlet in toop-connector-webapp)
-      HttpClientInvoker.httpClientCallNoResponse (sTargetURL, aBAOS.toByteArray ());
+  /**
+   * Same as {@link #sendResponseToToopConnector(TDETOOPResponseType, String, Iterable)}
+   * but executed on the executor from
+   * {@link ToopInterfaceManager#getExecutorService()}, so that the calling
+   * thread is not blocked.
+   *
+   * @param aResponse
+   *        Response object. May not be <code>null</code>.
+   * @param sTargetURL
+   *        Target URL. May not be <code>null</code>.
+   * @param aAttachments
+   *        The attachments to be send. May be <code>null</code> or empty.
+   * @return A future that completes when sending is done. Never
+   *         <code>null</code>.
+   * @since 0.10.9
+   */
+  @Nonnull
+  public static CompletableFuture <Void> submitResponseToToopConnector (@Nonnull final TDETOOPResponseType aResponse,
+                                                                        @Nonnull final String sTargetURL,
+                                                                        @Nullable final Iterable <? extends AsicWriteEntry> aAttachments)
+  {
+    ValueEnforcer.notNull (aResponse, "Response");
+    ValueEnforcer.notNull (sTargetURL, "TargetURL");
+    return _submit ( () -> sendResponseToToopConnector (aResponse, sTargetURL, aAttachments));
+  }
+
+  /**
+   * Get the batch sender for the current tenant and the provided URL. It is
+   * created on first use based on the settings in {@link ToopInterfaceConfig}.
+   *
+   * @param sTargetURL
+   *        Target URL. May neither be <code>null</code> nor empty.
+   * @return The batch sender. Never <code>null</code>.
+   * @since 0.10.9
+   */
+  @Nonnull
+  public static ToopBatchSender getBatchSender (@Nonnull @Nonempty final String sTargetURL)
+  {
+    ValueEnforcer.notEmpty (sTargetURL, "TargetURL");
+    final ToopTenant aTenant = ToopTenant.getCurrent ();
+    final String sKey = (aTenant == null ? "" : aTenant.getID ()) + ' ' + sTargetURL;
+    return s_aBatchSenders.computeIfAbsent (sKey, k -> ToopBatchSender.createFromConfig (sTargetURL));
+  }
+
+  /**
+   * Create a request, encode it with the configured outbound codec and add it
+   * to the batch for the configured connector URL. Meant for bulk exchanges,
+   * where one HTTP request per message is too expensive. See
+   * {@link ToopBatchSender} for when the batch is sent.
+   *
+   * @param aRequest
+   *        Request object. May not be <code>null</code>.
+   * @return A future that completes when the batch containing the request was
+   *         sent. Never <code>null</code>.
+   * @throws IOException
+   *         In case encoding or sending a full batch fails
+   * @throws ToopErrorException
+   *         For known TOOP errors
+   * @since 0.10.9
+   */
+  @Nonnull
+  public static CompletableFuture <Void> sendRequestToToopConnectorBatched (@Nonnull final TDETOOPRequestType aRequest) throws IOException,
+                                                                                                                       ToopErrorException
+  {
+    return sendRequestToToopConnectorBatched (aRequest, ToopTenant.getCurrentConfig ().getToopConnectorDCUrl ());
+  }
+
+  /**
+   * Create a request, encode it with the configured outbound codec and add it
+   * to the batch for the provided URL.
+   *
+   * @param aRequest
+   *        Request object. May not be <code>null</code>.
+   * @param sTargetURL
+   *        Target URL. May not be <code>null</code>.
+   * @return A future that completes when the batch containing the request was
+   *         sent. Never <code>null</code>.
+   * @throws IOException
+   *         In case encoding or sending a full batch fails
+   * @throws ToopErrorException
+   *         For known TOOP errors
+   * @since 0.10.9
+   */
+  @Nonnull
+  public static CompletableFuture <Void> sendRequestToToopConnectorBatched (@Nonnull final TDETOOPRequestType aRequest,
+                                                                            @Nonnull final String sTargetURL) throws IOException,
+                                                                                                              ToopErrorException
+  {
+    ValueEnforcer.notNull (aRequest, "Request");
+    return getBatchSender (sTargetURL).submit (aRequest, null);
+  }
+
+  /**
+   * Create a response, encode it with the configured outbound codec and add it
+   * to the batch for the provided URL.
+   *
+   * @param aResponse
+   *        Response object. May not be <code>null</code>.
+   * @param sTargetURL
+   *        Target URL. May not be <code>null</code>.
+   * @param aAttachments
+   *        The attachments to be send. May be <code>null</code> or empty.
+   * @return A future that completes when the batch containing the response
+   *         was sent. Never <code>null</code>.
+   * @throws IOException
+   *         In case encoding or sending a full batch fails
+   * @throws ToopErrorException
+   *         For known TOOP errors
+   * @since 0.10.9
+   */
+  @Nonnull
+  public static CompletableFuture <Void> sendResponseToToopConnectorBatched (@Nonnull final TDETOOPResponseType aResponse,
+                                                                             @Nonnull final String sTargetURL,
+                                                                             @Nullable final Iterable <? extends AsicWriteEntry> aAttachments) throws IOException,
+                                                                                                                                               ToopErrorException
+  {
+    ValueEnforcer.notNull (aResponse, "Response");
+    return getBatchSender (sTargetURL).submit (aResponse, aAttachments);
+  }
+
+  /**
+   * Send all messages that are currently accumulated in any batch, without
+   * waiting for the linger time. Call this at the end of a bulk exchange or
+   * before shutdown.
+   *
+   * @since 0.10.9
+   */
+  public static void flushBatches ()
+  {
+    for (final ToopBatchSender aSender : s_aBatchSenders.values ())
+      aSender.flush ();
+  }
+
+  @Nonnull
+  private static byte [] _fetchBytes (@Nonnull final String sQueryURI,
+                                      @Nullable final ToopDeadline aDeadline) throws IOException
+  {
+    final Wrapper <byte []> aBytes = new Wrapper <> ();
+    HttpClientInvoker.httpClientCallGet (sQueryURI, new ResponseHandlerByteArray (), aBytes::set, aDeadline);
+    if (aBytes.isNotSet ())
+      throw new IOException ("Got no response from '" + sQueryURI + "'");
+    return aBytes.get ();
+  }
+
+  @Nullable
+  private static ResultListType _searchResultList (@Nonnull final String sQueryURI,
+                                                  @Nullable final ToopDeadline aDeadline)
+  {
+    try
+    {
+      // Searching is idempotent and can therefore be retried - if time permits
+      final ToopRetryPolicy aRetryPolicy = ToopRetryPolicy.createFromConfig ();
+      final ToopDiscoveryCache.IFetcher aFetcher = sURI -> aRetryPolicy.execute ( () -> _fetchBytes (sURI, aDeadline),
+                                                                                 aDeadline);
+      final ToopDiscoveryCache aCache = ToopInterfaceManager.getDiscoveryCache ();
+      final byte [] aBytes = aCache != null ? aCache.get (sQueryURI, aFetcher) : aFetcher.fetch (sQueryURI);
+      return PDSearchAPIReader.resultListV1 ().read (aBytes);
+    }
+    catch (final Exception e)
+    {
+      throw ToopInterfaceClientException.create (e);
     }
   }
 
+  /**
+   * Search data providers by country code. If the discovery cache is enabled
+   * (see {@link ToopInterfaceConfig#isDiscoveryCacheEnabled()}) the result
+   * may be served from the cache.
+   *
+   * @param sCountryCode
+   *        Country code to search. May neither be <code>null</code> nor empty.
+   * @param sDocTypeStr
+   *        Optional document type identifier. May be <code>null</code>.
+   * @return The result list or <code>null</code>.
+   * @throws ToopInterfaceClientException
+   *         If the search failed. Retryable errors were already retried
+   *         according to {@link ToopRetryPolicy#createFromConfig()}.
+   */
   @Nullable
   public static ResultListType searchDataProviderByCountryCode (@Nonnull @Nonempty final String sCountryCode,
                                                                 @Nullable final String sDocTypeStr)
   {
+    return _searchDataProviderByCountryCode (sCountryCode, sDocTypeStr, null);
+  }
 
+  @Nullable
+  private static ResultListType _searchDataProviderByCountryCode (@Nonnull @Nonempty final String sCountryCode,
+                                                                  @Nullable final String sDocTypeStr,
+                                                                  @Nullable final ToopDeadline aDeadline)
+  {
     ValueEnforcer.notEmpty (sCountryCode, "CountryCode");
 
-    String sQueryURI = ToopInterfaceConfig.getToopConnectorUrl () + "/search-dp-by-country/" + sCountryCode;
+    String sQueryURI = ToopTenant.getCurrentConfig ().getToopConnectorUrl () + "/search-dp-by-country/" + sCountryCode;
     if (StringHelper.hasText (sDocTypeStr))
       sQueryURI += '/' + sDocTypeStr;
 
-    try
-    {
-      final Wrapper <ResultListType> aResponse = new Wrapper <> ();
-      HttpClientInvoker.httpClientCallGet (sQueryURI,
-                                           new ResponseHandlerByteArray (),
-                                           aBytes -> aResponse.set (PDSearchAPIReader.resultListV1 ().read (aBytes)));
-      return aResponse.get ();
-    }
-    catch (final Exception e)
-    {
-      throw new IllegalStateException (e);
-    }
+    return _searchResultList (sQueryURI, aDeadline);
   }
 
+  /**
+   * Search data providers by type. If the discovery cache is enabled (see
+   * {@link ToopInterfaceConfig#isDiscoveryCacheEnabled()}) the result may be
+   * served from the cache.
+   *
+   * @param sDPType
+   *        Data provider type to search. May neither be <code>null</code> nor
+   *        empty.
+   * @return The result list or <code>null</code>.
+   * @throws ToopInterfaceClientException
+   *         If the search failed. Retryable errors were already retried
+   *         according to {@link ToopRetryPolicy#createFromConfig()}.
+   */
   @Nullable
   public static ResultListType searchDataProviderByDPType (@Nonnull @Nonempty final String sDPType)
   {
     ValueEnforcer.notEmpty (sDPType, "DPType");
 
-    final String sQueryURI = ToopInterfaceConfig.getToopConnectorUrl () + "/search-dp-by-dptype/" + sDPType;
+    final String sQueryURI = ToopTenant.getCurrentConfig ().getToopConnectorUrl () + "/search-dp-by-dptype/" + sDPType;
+
+    return _searchResultList (sQueryURI, null);
+  }
+
+  /** Query parameter for the 0-based result page index */
+  public static final String PARAM_RESULT_PAGE_INDEX = "resultPageIndex";
+  /** Query parameter for the number of results per page */
+  public static final String PARAM_RESULT_PAGE_COUNT = "resultPageCount";
+
+  @Nonnull
+  private static String _getPagedURL (@Nonnull final String sQueryURI,
+                                      final int nResultPageIndex,
+                                      final int nResultPageCount)
+  {
+    final StringBuilder aSB = new StringBuilder (sQueryURI);
+    char cSep = sQueryURI.indexOf ('?') >= 0 ? '&' : '?';
+    if (nResultPageIndex >= 0)
+    {
+      aSB.append (cSep).append (PARAM_RESULT_PAGE_INDEX).append ('=').append (nResultPageIndex);
+      cSep = '&';
+    }
+    if (nResultPageCount > 0)
+      aSB.append (cSep).append (PARAM_RESULT_PAGE_COUNT).append ('=').append (nResultPageCount);
+    return aSB.toString ();
+  }
 
+  @Nonnegative
+  private static int _searchStreaming (@Nonnull final String sQueryURI,
+                                       @Nonnull final Predicate <? super MatchType> aMatchHandler,
+                                       @Nullable final ToopDeadline aDeadline)
+  {
+    // Matches passed to the handler over all attempts
+    final MutableInt aDelivered = new MutableInt (0);
+    // Searching is idempotent and can therefore be retried - if time permits
+    ToopRetryPolicy.createFromConfig ().execute ( () -> {
+      // A retry skips the matches the handler already received
+      final int nSkip = aDelivered.intValue ();
+      final MutableInt aRead = new MutableInt (0);
+      HttpClientInvoker.httpClientCallGet (sQueryURI, SearchResultStreamReader.createResponseHandler (aMatch -> {
+        aRead.inc ();
+        if (aRead.intValue () <= nSkip)
+          return true;
+        aDelivered.inc ();
+        return aMatchHandler.test (aMatch);
+      }), x -> {}, aDeadline);
+      return null;
+    }, aDeadline);
+    return aDelivered.intValue ();
+  }
+
+  /**
+   * Search data providers by country code and stream the matches. Each match
+   * is passed to the handler as soon as it was parsed, so that the complete
+   * result list is never held in memory.
+   *
+   * @param sCountryCode
+   *        The country code to search. May neither be <code>null</code> nor
+   *        empty.
+   * @param sDocTypeStr
+   *        The document type to search. May be <code>null</code>.
+   * @param nResultPageIndex
+   *        The 0-based result page index. Values &lt; 0 use the connector
+   *        default.
+   * @param nResultPageCount
+   *        The number of results per page. Values &le; 0 use the connector
+   *        default.
+   * @param aMatchHandler
+   *        The handler for each match. If it returns <code>false</code>,
+   *        reading stops. May not be <code>null</code>.
+   * @return The number of matches passed to the handler.
+   * @throws ToopInterfaceClientException
+   *         If the search failed. Retryable errors were already retried
+   *         according to {@link ToopRetryPolicy#createFromConfig()}; a retry
+   *         skips the matches that were already passed to the handler.
+   * @since 0.10.9
+   */
+  @Nonnegative
+  public static int searchDataProviderByCountryCode (@Nonnull @Nonempty final String sCountryCode,
+                                                     @Nullable final String sDocTypeStr,
+                                                     final int nResultPageIndex,
+                                                     final int nResultPageCount,
+                                                     @Nonnull final Predicate <? super MatchType> aMatchHandler)
+  {
+    ValueEnforcer.notEmpty (sCountryCode, "CountryCode");
+    ValueEnforcer.notNull (aMatchHandler, "MatchHandler");
+
+    String sQueryURI = ToopTenant.getCurrentConfig ().getToopConnectorUrl () + "/search-dp-by-country/" + sCountryCode;
+    if (StringHelper.hasText (sDocTypeStr))
+      sQueryURI += '/' + sDocTypeStr;
+
+    return _searchStreaming (_getPagedURL (sQueryURI, nResultPageIndex, nResultPageCount), aMatchHandler, null);
+  }
+
+  /**
+   * Search data providers by DP type and stream the matches. Each match is
+   * passed to the handler as soon as it was parsed, so that the complete
+   * result list is never held in memory.
+   *
+   * @param sDPType
+   *        The DP type to search. May neither be <code>null</code> nor empty.
+   * @param nResultPageIndex
+   *        The 0-based result page index. Values &lt; 0 use the connector
+   *        default.
+   * @param nResultPageCount
+   *        The number of results per page. Values &le; 0 use the connector
+   *        default.
+   * @param aMatchHandler
+   *        The handler for each match. If it returns <code>false</code>,
+   *        reading stops. May not be <code>null</code>.
+   * @return The number of matches passed to the handler.
+   * @throws ToopInterfaceClientException
+   *         If the search failed. Retryable errors were already retried
+   *         according to {@link ToopRetryPolicy#createFromConfig()}; a retry
+   *         skips the matches that were already passed to the handler.
+   * @since 0.10.9
+   */
+  @Nonnegative
+  public static int searchDataProviderByDPType (@Nonnull @Nonempty final String sDPType,
+                                                final int nResultPageIndex,
+                                                final int nResultPageCount,
+                                                @Nonnull final Predicate <? super MatchType> aMatchHandler)
+  {
+    ValueEnforcer.notEmpty (sDPType, "DPType");
+    ValueEnforcer.notNull (aMatchHandler, "MatchHandler");
+
+    final String sQueryURI = ToopTenant.getCurrentConfig ().getToopConnectorUrl () + "/search-dp-by-dptype/" + sDPType;
+    return _searchStreaming (_getPagedURL (sQueryURI, nResultPageIndex, nResultPageCount), aMatchHandler, null);
+  }
+
+  /**
+   * Search data providers in multiple countries in parallel. For every
+   * combination of country code and document type a separate query is sent to
+   * the TOOP Connector. At most {@link ToopInterfaceConfig#getDiscoveryParallelism()}
+   * queries are executed concurrently on the executor from
+   * {@link ToopInterfaceManager#getExecutorService()}. Queries that don't
+   * finish in time are aborted and reported as timed out, so that the overall
+   * latency is bound by the timeout instead of the sum of all queries. Failed
+   * queries are only retried while the timeout permits.
+   *
+   * @param aCountryCodes
+   *        The country codes to search. May not be <code>null</code>.
+   * @param aDocTypes
+   *        The document types to search. May be <code>null</code> or empty to
+   *        search all document types.
+   * @param nTimeoutMillis
+   *        The maximum time to wait for all queries in milliseconds. Must be
+   *        &gt; 0.
+   * @return The merged, potentially partial result. Never <code>null</code>.
+   * @since 0.10.9
+   */
+  @Nonnull
+  public static ToopDiscoveryResult searchDataProvidersByCountryCodes (@Nonnull final Iterable <String> aCountryCodes,
+                                                                       @Nullable final Iterable <String> aDocTypes,
+                                                                       @Nonnegative final long nTimeoutMillis)
+  {
+    ValueEnforcer.notNull (aCountryCodes, "CountryCodes");
+    ValueEnforcer.isGT0 (nTimeoutMillis, "TimeoutMillis");
+
+    // Build all queries - key is "country[/doctype]"
+    final ICommonsOrderedMap <String, CompletableFuture <ResultListType>> aQueries = new CommonsLinkedHashMap <> ();
+    final ConcurrentLinkedQueue <String []> aOpenQueries = new ConcurrentLinkedQueue <> ();
+    for (final String sCountryCode : aCountryCodes)
+    {
+      ValueEnforcer.notEmpty (sCountryCode, "CountryCode");
+      if (aDocTypes == null || !aDocTypes.iterator ().hasNext ())
+      {
+        if (aQueries.put (sCountryCode, new CompletableFuture <> ()) == null)
+          aOpenQueries.add (new String [] { sCountryCode, sCountryCode, null });
+      }
+      else
+        for (final String sDocType : aDocTypes)
+        {
+          final String sKey = sCountryCode + '/' + sDocType;
+          if (aQueries.put (sKey, new CompletableFuture <> ()) == null)
+            aOpenQueries.add (new String [] { sKey, sCountryCode, sDocType });
+        }
+    }
+
+    // Running queries are aborted, so that they don't block the workers
+    final ToopDeadline aDeadline = ToopDeadline.ofTimeoutMillis (nTimeoutMillis);
+
+    // Start a limited number of workers that process the open queries
+    final int nWorkers = Math.min (Math.max (1, ToopInterfaceConfig.getDiscoveryParallelism ()), aQueries.size ());
+    final ExecutorService aExecutor = ToopInterfaceManager.getExecutorService ();
+    for (int i = 0; i < nWorkers; ++i)
+      aExecutor.execute (ToopTenant.wrapCurrent ( () -> {
+        String [] aQuery;
+        while ((aQuery = aOpenQueries.poll ()) != null)
+        {
+          final CompletableFuture <ResultListType> aFuture = aQueries.get (aQuery[0]);
+          // Skip queries that already timed out
+          if (!aFuture.isDone () && !aDeadline.isExpired ())
+            try
+            {
+              aFuture.complete (_searchDataProviderByCountryCode (aQuery[1], aQuery[2], aDeadline));
+            }
+            catch (final Exception ex)
+            {
+              aFuture.completeExceptionally (ex);
+            }
+        }
+      }));
+
+    // Wait for all queries or the timeout
     try
     {
-      final Wrapper <ResultListType> aResponse = new Wrapper <> ();
-      HttpClientInvoker.httpClientCallGet (sQueryURI,
-                                           new ResponseHandlerByteArray (),
-                                           aBytes -> aResponse.set (PDSearchAPIReader.resultListV1 ().read (aBytes)));
-      return aResponse.get ();
+      CompletableFuture.allOf (aQueries.values ().toArray (new CompletableFuture <?> [0]))
+                       .get (Math.max (0, aDeadline.getRemainingMillis ()), TimeUnit.MILLISECONDS);
     }
-    catch (final Exception e)
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+    catch (final ExecutionException | TimeoutException ex)
+    {
+      // Handled per query below
+    }
+
+    final ToopDiscoveryResult ret = new ToopDiscoveryResult ();
+    for (final Map.Entry <String, CompletableFuture <ResultListType>> aEntry : aQueries.entrySet ())
     {
-      throw new IllegalStateException (e);
+      final String sKey = aEntry.getKey ();
+      final CompletableFuture <ResultListType> aFuture = aEntry.getValue ();
+      if (aFuture.cancel (false))
+      {
+        // Not yet done
+        ret.addTimeout (sKey);
+      }
+      else
+        try
+        {
+          final ResultListType aResultList = aFuture.getNow (null);
+          if (aResultList != null)
+            ret.addSuccess (sKey, aResultList);
+          else
+          {
+            // The response could not be read as a result list
+            final EToopInterfaceErrorCode eCode = EToopInterfaceErrorCode.INVALID_RESPONSE;
+            ret.addFailure (sKey,
+                            new ToopInterfaceClientException (eCode,
+                                                              "[" + eCode.getID () + "] No result list for query '" + sKey + "'",
+                                                              null,
+                                                              -1));
+          }
+        }
+        catch (final CompletionException ex)
+        {
+          ret.addFailure (sKey, ex.getCause () instanceof Exception ? (Exception) ex.getCause () : ex);
+        }
     }
+    if (!ret.isComplete ())
+      LOGGER.warn ("Partial data provider discovery result: " + ret);
+    return ret;
   }
 }
@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.CheckForSigned;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.http.client.HttpResponseException;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.statistics.IMutableStatisticsHandlerKeyedCounter;
+import com.helger.commons.statistics.StatisticsManager;
+
+import eu.toop.iface.util.ToopDeadlineExceededException;
+import eu.toop.iface.util.ToopHttpResponseException;
+
+/**
+ * Exception thrown by the client calls in {@link ToopInterfaceClient}. It
+ * extends {@link IllegalStateException} for backwards compatibility, but
+ * additionally contains an error code that tells whether a retry makes sense
+ * and an optional "retry after" hint of the remote side.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+public class ToopInterfaceClientException extends IllegalStateException
+{
+  private static final IMutableStatisticsHandlerKeyedCounter s_aStatsErrors = StatisticsManager.getKeyedCounterHandler (ToopInterfaceClientException.class.getName () +
+                                                                                                                       "$errors");
+
+  private final EToopInterfaceErrorCode m_eErrorCode;
+  private final long m_nRetryAfterMillis;
+
+  public ToopInterfaceClientException (@Nonnull final EToopInterfaceErrorCode eErrorCode,
+                                       @Nullable final String sMessage,
+                                       @Nullable final Throwable aCause,
+                                       final long nRetryAfterMillis)
+  {
+    super (sMessage, aCause);
+    ValueEnforcer.notNull (eErrorCode, "ErrorCode");
+    m_eErrorCode = eErrorCode;
+    m_nRetryAfterMillis = nRetryAfterMillis;
+  }
+
+  /**
+   * @return The error code. Never <code>null</code>.
+   */
+  @Nonnull
+  public final EToopInterfaceErrorCode getErrorCode ()
+  {
+    return m_eErrorCode;
+  }
+
+  /**
+   * @return <code>true</code> if the same call may succeed when retried.
+   */
+  public final boolean isRetryable ()
+  {
+    return m_eErrorCode.isRetryable ();
+  }
+
+  /**
+   * @return The milliseconds to wait before retrying as requested by the
+   *         remote side or a negative value if not provided.
+   */
+  @CheckForSigned
+  public final long getRetryAfterMillis ()
+  {
+    return m_nRetryAfterMillis;
+  }
+
+  public final boolean hasRetryAfter ()
+  {
+    return m_nRetryAfterMillis >= 0;
+  }
+
+  @Nonnull
+  private static EToopInterfaceErrorCode _classify (@Nonnull final Throwable t)
+  {
+    if (t instanceof ToopHttpResponseException)
+    {
+      final EToopInterfaceErrorCode eCode = EToopInterfaceErrorCode.getFromIDOrNull (((ToopHttpResponseException) t).getErrorCode ());
+      if (eCode != null)
+        return eCode;
+    }
+    if (t instanceof HttpResponseException)
+      return EToopInterfaceErrorCode.getFromHttpStatus (((HttpResponseException) t).getStatusCode ());
+    if (t instanceof ToopDeadlineExceededException)
+      return EToopInterfaceErrorCode.DEADLINE_EXCEEDED;
+    if (t instanceof InterruptedIOException || t instanceof TimeoutException)
+      return EToopInterfaceErrorCode.TIMEOUT;
+    if (t instanceof IOException)
+      return EToopInterfaceErrorCode.NETWORK_ERROR;
+    return EToopInterfaceErrorCode.INVALID_RESPONSE;
+  }
+
+  /**
+   * Classify an arbitrary exception from a client call. The error is counted
+   * in the statistics by error code.
+   *
+   * @param t
+   *        The exception to classify. May not be <code>null</code>.
+   * @return The provided exception if it is already a
+   *         {@link ToopInterfaceClientException} or a new one wrapping it.
+   */
+  @Nonnull
+  public static ToopInterfaceClientException create (@Nonnull final Throwable t)
+  {
+    ValueEnforcer.notNull (t, "Throwable");
+    if (t instanceof ToopInterfaceClientException)
+      return (ToopInterfaceClientException) t;
+
+    final EToopInterfaceErrorCode eCode = _classify (t);
+    final long nRetryAfterMillis = t instanceof ToopHttpResponseException ? ((ToopHttpResponseException) t).getRetryAfterMillis ()
+                                                                          : -1;
+    s_aStatsErrors.increment (eCode.getID ());
+    return new ToopInterfaceClientException (eCode, "[" + eCode.getID () + "] " + t.getMessage (), t, nRetryAfterMillis);
+  }
+}
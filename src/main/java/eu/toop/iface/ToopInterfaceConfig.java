@@ -24,14 +24,20 @@ import javax.annotation.concurrent.Immutable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsLinkedHashSet;
+import com.helger.commons.collection.impl.ICommonsOrderedSet;
 import com.helger.commons.concurrent.SimpleReadWriteLock;
 import com.helger.commons.debug.GlobalDebug;
 import com.helger.commons.state.ESuccess;
+import com.helger.commons.string.StringHelper;
 import com.helger.security.keystore.EKeyStoreType;
 import com.helger.security.keystore.IKeyStoreType;
 import com.helger.settings.exchange.configfile.ConfigFile;
 import com.helger.settings.exchange.configfile.ConfigFileBuilder;
 
+import eu.toop.iface.codec.ToopAsicMessageCodec;
+
 /**
  * This class contains global configuration elements for the toop-interface.
  *
@@ -62,6 +68,117 @@ public final class ToopInterfaceConfig
   /** The default secondary properties file to load */
   public static final String PATH_TOOP_INTERFACE_PROPERTIES = "toop-interface.properties";
 
+  /** Default maximum number of pending requests in the response correlator */
+  public static final int DEFAULT_CORRELATOR_MAX_PENDING = 10_000;
+
+  /** Default timeout in milliseconds for a pending request: 5 minutes */
+  public static final long DEFAULT_CORRELATOR_TIMEOUT_MS = 5 * 60 * 1000L;
+
+  /** Default number of platform threads for asynchronous processing */
+  public static final int DEFAULT_EXECUTION_PLATFORM_THREADS = 64;
+
+  /** Default number of tasks queued for the platform threads */
+  public static final int DEFAULT_EXECUTION_PLATFORM_QUEUE = 10_000;
+
+  /** Default maximum number of asynchronous callbacks not yet finished */
+  public static final int DEFAULT_CALLBACK_ASYNC_MAX_PENDING = 10_000;
+
+  /** Default maximum number of bytes retained in the buffer pool: 64 MB */
+  public static final long DEFAULT_BUFFERPOOL_MAX_BYTES = 64L * 1024 * 1024;
+
+  /** Default initial buffer size for serializing a message: 64 KB */
+  public static final int DEFAULT_BUFFERPOOL_INITIAL_SIZE = 64 * 1024;
+
+  /** Default number of concurrent search queries per discovery */
+  public static final int DEFAULT_DISCOVERY_PARALLELISM = 8;
+
+  /** Default discovery cache file path */
+  public static final String DEFAULT_DISCOVERY_CACHE_PATH = "toop-discovery-cache.bin";
+
+  /** Default time to live of discovery cache entries: 1 hour */
+  public static final long DEFAULT_DISCOVERY_CACHE_TTL_MS = 60 * 60 * 1000L;
+
+  /**
+   * Default maximum age of discovery cache entries that are served while
+   * revalidating: 24 hours
+   */
+  public static final long DEFAULT_DISCOVERY_CACHE_MAX_STALE_MS = 24 * 60 * 60 * 1000L;
+
+  /** Default maximum number of discovery cache entries */
+  public static final int DEFAULT_DISCOVERY_CACHE_MAX_ENTRIES = 10_000;
+
+  /** Default maximum number of response bytes in the discovery cache: 64 MB */
+  public static final long DEFAULT_DISCOVERY_CACHE_MAX_BYTES = 64L * 1024 * 1024;
+
+  /** Default maximum number of attempts for idempotent client calls */
+  public static final int DEFAULT_RETRY_MAX_ATTEMPTS = 3;
+
+  /** Default upper bound of the first retry backoff */
+  public static final long DEFAULT_RETRY_INITIAL_BACKOFF_MS = 200;
+
+  /** Default maximum retry backoff */
+  public static final long DEFAULT_RETRY_MAX_BACKOFF_MS = 10_000;
+
+  /** Default HTTP connect timeout */
+  public static final int DEFAULT_HTTP_CONNECT_TIMEOUT_MS = 5_000;
+
+  /** Default HTTP socket (read) timeout */
+  public static final int DEFAULT_HTTP_SOCKET_TIMEOUT_MS = 10_000;
+
+  /** Default overall HTTP request timeout */
+  public static final long DEFAULT_HTTP_REQUEST_TIMEOUT_MS = 60_000;
+
+  /** Default maximum size of a received message body: 100 MB */
+  public static final long DEFAULT_INBOUND_MAX_BYTES = 100L * 1024 * 1024;
+
+  /** Default maximum decompressed size of a single received ZIP entry */
+  public static final long DEFAULT_INBOUND_MAX_ENTRY_BYTES = 100L * 1024 * 1024;
+
+  /** Default maximum number of entries in a received ZIP archive */
+  public static final int DEFAULT_INBOUND_MAX_ENTRIES = 1_000;
+
+  /** Default maximum compression ratio of a received ZIP archive */
+  public static final int DEFAULT_INBOUND_MAX_COMPRESSION_RATIO = 100;
+
+  /** Default maximum number of distinct sources tracked by the rate limiter */
+  public static final int DEFAULT_INBOUND_MAX_SOURCES = 10_000;
+
+  /** Default maximum number of messages waiting to be signed */
+  public static final int DEFAULT_SIGNING_QUEUE_SIZE = 1_000;
+
+  /**
+   * Default message size from which on messages are spooled to a temporary
+   * file instead of being kept in memory
+   */
+  public static final long DEFAULT_SPOOL_THRESHOLD_BYTES = 4L * 1024 * 1024;
+
+  /** Default directory of the inbound journal */
+  public static final String DEFAULT_JOURNAL_PATH = "toop-journal";
+
+  /** Default size after which a new inbound journal segment is started */
+  public static final long DEFAULT_JOURNAL_SEGMENT_BYTES = 64L * 1024 * 1024;
+
+  /** Default maximum number of messages in one outbound batch */
+  public static final int DEFAULT_BATCH_MAX_MESSAGES = 100;
+
+  /** Default maximum size in bytes of one outbound batch */
+  public static final long DEFAULT_BATCH_MAX_BYTES = 4L * 1024 * 1024;
+
+  /** Default time an outbound batch waits for further messages */
+  public static final long DEFAULT_BATCH_LINGER_MS = 10;
+
+  /** Default in-flight usage ratio from which a node reports as not ready */
+  public static final double DEFAULT_STATUS_OVERLOAD_INFLIGHT_RATIO = 0.9;
+
+  /** Default callback queue depth from which a node reports as not ready */
+  public static final int DEFAULT_STATUS_OVERLOAD_CALLBACK_QUEUE = 1_000;
+
+  /**
+   * Default number of requests waiting for a connection of an exhausted
+   * connection pool from which a node reports as not ready
+   */
+  public static final int DEFAULT_STATUS_OVERLOAD_POOL_PENDING = 1;
+
   /**
    * Reload the configuration file. It checks if the system property
    * {@link #SYSTEM_PROPERTY_TOOP_INTERFACE_PROPERTIES_PATH} is present and if
@@ -197,4 +314,544 @@ public final class ToopInterfaceConfig
   {
     return getConfigFile ().getAsBoolean ("toop.tls.trustall", false);
   }
+
+  /**
+   * @return The maximum number of requests that may concurrently wait for a
+   *         response in the {@link ToopResponseCorrelator}.
+   * @since 0.10.9
+   */
+  public static int getCorrelatorMaxPending ()
+  {
+    return getConfigFile ().getAsInt ("toop.correlator.maxpending", DEFAULT_CORRELATOR_MAX_PENDING);
+  }
+
+  /**
+   * @return The time in milliseconds after which a request waiting in the
+   *         {@link ToopResponseCorrelator} is considered to be timed out.
+   * @since 0.10.9
+   */
+  public static long getCorrelatorTimeoutMS ()
+  {
+    return getConfigFile ().getAsLong ("toop.correlator.timeout.ms", DEFAULT_CORRELATOR_TIMEOUT_MS);
+  }
+
+  /**
+   * @return The sustained number of messages per second that are accepted from
+   *         a single source on /to-dc and /to-dp. Values &le; 0 disable the
+   *         rate limit.
+   * @since 0.10.9
+   */
+  public static double getInboundRateLimitPerSecond ()
+  {
+    return getConfigFile ().getAsDouble ("toop.inbound.ratelimit.persecond", 0);
+  }
+
+  /**
+   * @return The burst size of the rate limiter per source. Values &le; 0 use
+   *         the rate per second.
+   * @since 0.10.9
+   */
+  public static int getInboundRateLimitBurst ()
+  {
+    return getConfigFile ().getAsInt ("toop.inbound.ratelimit.burst", 0);
+  }
+
+  /**
+   * @return The name of the HTTP header that identifies the source of a
+   *         message for rate limiting (e.g. the sender participant ID set by
+   *         the connector). If not set, the remote address is used.
+   * @since 0.10.9
+   */
+  @Nullable
+  public static String getInboundRateLimitSourceHeader ()
+  {
+    return getConfigFile ().getAsString ("toop.inbound.ratelimit.sourceheader");
+  }
+
+  /**
+   * @return The maximum number of distinct sources the rate limiter keeps
+   *         track of. If exceeded, the least recently seen source is
+   *         forgotten.
+   * @since 0.10.9
+   */
+  public static int getInboundRateLimitMaxSources ()
+  {
+    return getConfigFile ().getAsInt ("toop.inbound.ratelimit.maxsources", DEFAULT_INBOUND_MAX_SOURCES);
+  }
+
+  /**
+   * @return The maximum number of messages processed concurrently by /to-dc
+   *         and /to-dp together. Values &le; 0 disable the cap.
+   * @since 0.10.9
+   */
+  public static int getInboundMaxInFlight ()
+  {
+    return getConfigFile ().getAsInt ("toop.inbound.maxinflight", 0);
+  }
+
+  /**
+   * @return The thread model to use for asynchronous sending and callback
+   *         dispatching. Never <code>null</code>.
+   * @since 0.10.9
+   */
+  @Nonnull
+  public static EToopExecutionMode getExecutionMode ()
+  {
+    final String sMode = getConfigFile ().getAsString ("toop.execution.mode");
+    return EToopExecutionMode.getFromIDOrDefault (sMode, EToopExecutionMode.PLATFORM);
+  }
+
+  /**
+   * @return The number of threads to use if the execution mode is
+   *         {@link EToopExecutionMode#PLATFORM}.
+   * @since 0.10.9
+   */
+  public static int getExecutionPlatformThreads ()
+  {
+    return getConfigFile ().getAsInt ("toop.execution.platform.threads", DEFAULT_EXECUTION_PLATFORM_THREADS);
+  }
+
+  /**
+   * @return The maximum number of tasks queued while all platform threads are
+   *         busy. Further tasks are rejected.
+   * @since 0.10.9
+   */
+  public static int getExecutionPlatformQueue ()
+  {
+    return getConfigFile ().getAsInt ("toop.execution.platform.queue", DEFAULT_EXECUTION_PLATFORM_QUEUE);
+  }
+
+  /**
+   * @return <code>true</code> if the servlets should acknowledge a received
+   *         message immediately and invoke the DC/DP callback asynchronously,
+   *         <code>false</code> to invoke the callback in the HTTP request
+   *         thread.
+   * @since 0.10.9
+   */
+  public static boolean isCallbackAsync ()
+  {
+    return getConfigFile ().getAsBoolean ("toop.callback.async", false);
+  }
+
+  /**
+   * @return The maximum number of asynchronous callbacks that are queued or
+   *         running. If exceeded, further messages are rejected with
+   *         {@link EToopInterfaceErrorCode#OVERLOADED} until callbacks
+   *         finished. Values &le; 0 disable the limit.
+   * @since 0.10.9
+   */
+  public static int getCallbackAsyncMaxPending ()
+  {
+    return getConfigFile ().getAsInt ("toop.callback.async.maxpending", DEFAULT_CALLBACK_ASYNC_MAX_PENDING);
+  }
+
+  /**
+   * @return The maximum number of bytes the buffer pool for outgoing messages
+   *         keeps for reuse. 0 disables pooling.
+   * @since 0.10.9
+   */
+  public static long getBufferPoolMaxBytes ()
+  {
+    return getConfigFile ().getAsLong ("toop.bufferpool.maxbytes", DEFAULT_BUFFERPOOL_MAX_BYTES);
+  }
+
+  /**
+   * @return The initial buffer size in bytes to serialize an outgoing message.
+   * @since 0.10.9
+   */
+  public static int getBufferPoolInitialSize ()
+  {
+    return getConfigFile ().getAsInt ("toop.bufferpool.initialsize", DEFAULT_BUFFERPOOL_INITIAL_SIZE);
+  }
+
+  /**
+   * @return The message size in bytes from which on sent and received
+   *         messages are spooled to a temporary file instead of being kept in
+   *         memory. Received messages switch based on the
+   *         <code>Content-Length</code> or on the number of bytes read so far.
+   *         Values &le; 0 mean to always stay in memory. Defaults to 4MB.
+   * @since 0.10.9
+   */
+  public static long getSpoolThresholdBytes ()
+  {
+    return getConfigFile ().getAsLong ("toop.spool.threshold", DEFAULT_SPOOL_THRESHOLD_BYTES);
+  }
+
+  /**
+   * @return The directory for spooled messages. May be <code>null</code> to
+   *         use the default temporary directory.
+   * @since 0.10.9
+   */
+  @Nullable
+  public static String getSpoolPath ()
+  {
+    return getConfigFile ().getAsString ("toop.spool.path");
+  }
+
+  /**
+   * @return The maximum number of concurrent search queries issued by a
+   *         single multi-country discovery.
+   * @since 0.10.9
+   */
+  public static int getDiscoveryParallelism ()
+  {
+    return getConfigFile ().getAsInt ("toop.discovery.parallelism", DEFAULT_DISCOVERY_PARALLELISM);
+  }
+
+  /**
+   * @return <code>true</code> if the results of the data provider searches
+   *         should be cached persistently. Defaults to <code>false</code>.
+   * @since 0.10.9
+   */
+  public static boolean isDiscoveryCacheEnabled ()
+  {
+    return getConfigFile ().getAsBoolean ("toop.discovery.cache.enabled", false);
+  }
+
+  /**
+   * @return The path of the file to persist the discovery cache to. Never
+   *         <code>null</code>.
+   * @since 0.10.9
+   */
+  @Nonnull
+  public static String getDiscoveryCachePath ()
+  {
+    return getConfigFile ().getAsString ("toop.discovery.cache.path", DEFAULT_DISCOVERY_CACHE_PATH);
+  }
+
+  /**
+   * @return The time in milliseconds after which a cached discovery result is
+   *         revalidated in the background. Defaults to 1 hour.
+   * @since 0.10.9
+   */
+  public static long getDiscoveryCacheTTLMillis ()
+  {
+    return getConfigFile ().getAsLong ("toop.discovery.cache.ttl.ms", DEFAULT_DISCOVERY_CACHE_TTL_MS);
+  }
+
+  /**
+   * @return The maximum age in milliseconds up to which an outdated discovery
+   *         result is served while it is revalidated in the background. Older
+   *         results are fetched synchronously and dropped if fetching fails.
+   *         Defaults to 24 hours.
+   * @since 0.10.9
+   */
+  public static long getDiscoveryCacheMaxStaleMillis ()
+  {
+    return getConfigFile ().getAsLong ("toop.discovery.cache.maxstale.ms", DEFAULT_DISCOVERY_CACHE_MAX_STALE_MS);
+  }
+
+  /**
+   * @return The maximum number of cached discovery results.
+   * @since 0.10.9
+   */
+  public static int getDiscoveryCacheMaxEntries ()
+  {
+    return getConfigFile ().getAsInt ("toop.discovery.cache.maxentries", DEFAULT_DISCOVERY_CACHE_MAX_ENTRIES);
+  }
+
+  /**
+   * @return The maximum number of response bytes of all cached discovery
+   *         results.
+   * @since 0.10.9
+   */
+  public static long getDiscoveryCacheMaxBytes ()
+  {
+    return getConfigFile ().getAsLong ("toop.discovery.cache.maxbytes", DEFAULT_DISCOVERY_CACHE_MAX_BYTES);
+  }
+
+  /**
+   * @return The maximum number of attempts for idempotent client calls like the
+   *         data provider searches. 1 means no retry.
+   * @since 0.10.9
+   */
+  public static int getRetryMaxAttempts ()
+  {
+    return getConfigFile ().getAsInt ("toop.retry.maxattempts", DEFAULT_RETRY_MAX_ATTEMPTS);
+  }
+
+  /**
+   * @return The upper bound of the first retry backoff in milliseconds. It is
+   *         doubled with every further attempt.
+   * @since 0.10.9
+   */
+  public static long getRetryInitialBackoffMillis ()
+  {
+    return getConfigFile ().getAsLong ("toop.retry.initialbackoff.ms", DEFAULT_RETRY_INITIAL_BACKOFF_MS);
+  }
+
+  /**
+   * @return The maximum time to wait between two attempts in milliseconds. If
+   *         the remote side requests a longer pause, no retry happens.
+   * @since 0.10.9
+   */
+  public static long getRetryMaxBackoffMillis ()
+  {
+    return getConfigFile ().getAsLong ("toop.retry.maxbackoff.ms", DEFAULT_RETRY_MAX_BACKOFF_MS);
+  }
+
+  /**
+   * @return The timeout in milliseconds to establish an HTTP connection and to
+   *         get a connection from the pool.
+   * @since 0.10.9
+   */
+  public static int getHttpConnectTimeoutMillis ()
+  {
+    return getConfigFile ().getAsInt ("toop.http.connect.timeout.ms", DEFAULT_HTTP_CONNECT_TIMEOUT_MS);
+  }
+
+  /**
+   * @return The maximum time in milliseconds between two data packets when
+   *         reading an HTTP response.
+   * @since 0.10.9
+   */
+  public static int getHttpSocketTimeoutMillis ()
+  {
+    return getConfigFile ().getAsInt ("toop.http.socket.timeout.ms", DEFAULT_HTTP_SOCKET_TIMEOUT_MS);
+  }
+
+  /**
+   * @return The maximum time in milliseconds for a complete HTTP call,
+   *         including sending and receiving. Values &le; 0 mean no limit.
+   * @since 0.10.9
+   */
+  public static long getHttpRequestTimeoutMillis ()
+  {
+    return getConfigFile ().getAsLong ("toop.http.request.timeout.ms", DEFAULT_HTTP_REQUEST_TIMEOUT_MS);
+  }
+
+  /**
+   * @return The ID of the codec to use for sending messages to the TOOP
+   *         Connector. Defaults to ASiC. Other codecs should only be used for
+   *         trusted internal hops. If the codec does not support attachments,
+   *         messages with attachments are still sent as ASiC.
+   * @since 0.10.9
+   */
+  @Nonnull
+  public static String getOutboundCodecID ()
+  {
+    return getConfigFile ().getAsString ("toop.codec.outbound", ToopAsicMessageCodec.ID);
+  }
+
+  /**
+   * @return The comma separated IDs of the codecs that are accepted for
+   *         received messages. Defaults to ASiC only, because only ASiC
+   *         messages are signed. Messages in other codecs are rejected, no
+   *         matter which <code>Content-Type</code> the sender uses.
+   * @since 0.10.9
+   */
+  @Nonnull
+  public static String getInboundCodecIDs ()
+  {
+    return getConfigFile ().getAsString ("toop.codec.inbound", ToopAsicMessageCodec.ID);
+  }
+
+  /**
+   * @return The maximum size of a received message body in bytes. Values &le;
+   *         0 mean no limit.
+   * @since 0.10.9
+   */
+  public static long getInboundMaxBytes ()
+  {
+    return getConfigFile ().getAsLong ("toop.inbound.maxbytes", DEFAULT_INBOUND_MAX_BYTES);
+  }
+
+  /**
+   * @return The maximum decompressed size in bytes of a single entry of a
+   *         received ASiC container. Values &le; 0 mean no limit.
+   * @since 0.10.9
+   */
+  public static long getInboundMaxEntryBytes ()
+  {
+    return getConfigFile ().getAsLong ("toop.inbound.maxentrybytes", DEFAULT_INBOUND_MAX_ENTRY_BYTES);
+  }
+
+  /**
+   * @return The maximum number of entries of a received ASiC container. Values
+   *         &le; 0 mean no limit.
+   * @since 0.10.9
+   */
+  public static int getInboundMaxEntries ()
+  {
+    return getConfigFile ().getAsInt ("toop.inbound.maxentries", DEFAULT_INBOUND_MAX_ENTRIES);
+  }
+
+  /**
+   * @return The maximum ratio of the decompressed size of all entries to the
+   *         size of a received ASiC container. Values &le; 0 mean no limit.
+   * @since 0.10.9
+   */
+  public static int getInboundMaxCompressionRatio ()
+  {
+    return getConfigFile ().getAsInt ("toop.inbound.maxcompressionratio", DEFAULT_INBOUND_MAX_COMPRESSION_RATIO);
+  }
+
+  /**
+   * @return The ratio of inbound in-flight messages to
+   *         {@link #getInboundMaxInFlight()} from which the status servlet
+   *         reports the node as not ready. Values &le; 0 disable this check.
+   * @since 0.10.9
+   */
+  public static double getStatusOverloadInFlightRatio ()
+  {
+    return getConfigFile ().getAsDouble ("toop.status.overload.inflightratio", DEFAULT_STATUS_OVERLOAD_INFLIGHT_RATIO);
+  }
+
+  /**
+   * @return The number of queued callbacks from which the status servlet
+   *         reports the node as not ready. Values &le; 0 disable this check.
+   * @since 0.10.9
+   */
+  public static int getStatusOverloadCallbackQueue ()
+  {
+    return getConfigFile ().getAsInt ("toop.status.overload.callbackqueue", DEFAULT_STATUS_OVERLOAD_CALLBACK_QUEUE);
+  }
+
+  /**
+   * @return The number of concurrent outbound HTTP calls from which the status
+   *         servlet reports the node as not ready. Values &le; 0 disable this
+   *         check, which is the default.
+   * @since 0.10.9
+   */
+  public static int getStatusOverloadOutboundInFlight ()
+  {
+    return getConfigFile ().getAsInt ("toop.status.overload.outboundinflight", 0);
+  }
+
+  /**
+   * @return The number of outbound HTTP calls waiting for a connection of a
+   *         tenant from which the status servlet reports the node as not
+   *         ready, if all connections of that tenant are leased. Values &le; 0
+   *         disable this check.
+   * @since 0.10.9
+   */
+  public static int getStatusOverloadPoolPending ()
+  {
+    return getConfigFile ().getAsInt ("toop.status.overload.poolpending", DEFAULT_STATUS_OVERLOAD_POOL_PENDING);
+  }
+
+  /**
+   * @return The IDs of all additional tenants, taken from the comma separated
+   *         <code>toop.tenants</code> setting. The default tenant is always
+   *         present and must not be listed. Never <code>null</code> but maybe
+   *         empty.
+   * @see ToopTenantConfig
+   * @since 0.10.9
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public static ICommonsOrderedSet <String> getAllTenantIDs ()
+  {
+    final ICommonsOrderedSet <String> ret = new CommonsLinkedHashSet <> ();
+    for (final String sID : StringHelper.getExploded (',', getConfigFile ().getAsString ("toop.tenants")))
+      if (StringHelper.hasText (sID.trim ()))
+        ret.add (sID.trim ());
+    return ret;
+  }
+
+  /**
+   * @return The number of threads dedicated to encoding and signing outgoing
+   *         messages. Defaults to the number of available processors. 0 means
+   *         to sign in the calling thread.
+   * @since 0.10.9
+   */
+  public static int getSigningThreads ()
+  {
+    return getConfigFile ().getAsInt ("toop.signing.threads", Runtime.getRuntime ().availableProcessors ());
+  }
+
+  /**
+   * @return The maximum number of messages waiting for a signing thread. If
+   *         the queue is full, the sending thread signs itself.
+   * @since 0.10.9
+   */
+  public static int getSigningQueueSize ()
+  {
+    return getConfigFile ().getAsInt ("toop.signing.queue", DEFAULT_SIGNING_QUEUE_SIZE);
+  }
+
+  /**
+   * @return <code>true</code> if received messages are written to the inbound
+   *         journal before they are acknowledged, so that their callbacks can
+   *         be replayed after a crash. Disabled by default.
+   * @since 0.10.9
+   */
+  public static boolean isJournalEnabled ()
+  {
+    return getConfigFile ().getAsBoolean ("toop.journal.enabled", false);
+  }
+
+  /**
+   * @return The directory of the inbound journal segments. Never
+   *         <code>null</code>.
+   * @since 0.10.9
+   */
+  @Nonnull
+  public static String getJournalPath ()
+  {
+    return getConfigFile ().getAsString ("toop.journal.path", DEFAULT_JOURNAL_PATH);
+  }
+
+  /**
+   * @return The size in bytes after which a new journal segment is started.
+   *         Defaults to 64MB.
+   * @since 0.10.9
+   */
+  public static long getJournalSegmentBytes ()
+  {
+    return getConfigFile ().getAsLong ("toop.journal.segment.bytes", DEFAULT_JOURNAL_SEGMENT_BYTES);
+  }
+
+  /**
+   * @return <code>true</code> if the lazily initialized components are
+   *         initialized when the servlets start, so that the first message is
+   *         not slowed down. Enabled by default.
+   * @since 0.10.9
+   */
+  public static boolean isWarmUpEnabled ()
+  {
+    return getConfigFile ().getAsBoolean ("toop.warmup.enabled", true);
+  }
+
+  /**
+   * @return <code>true</code> if the warm-up runs in a background thread,
+   *         <code>false</code> if it blocks the servlet initialization. The
+   *         status servlet reports the node as not ready while the warm-up is
+   *         running. Defaults to <code>true</code>.
+   * @since 0.10.9
+   */
+  public static boolean isWarmUpAsync ()
+  {
+    return getConfigFile ().getAsBoolean ("toop.warmup.async", true);
+  }
+
+  /**
+   * @return The maximum number of messages that are sent in one batch to the
+   *         TOOP Connector. Defaults to 100.
+   * @since 0.10.9
+   */
+  public static int getBatchMaxMessages ()
+  {
+    return getConfigFile ().getAsInt ("toop.batch.maxmessages", DEFAULT_BATCH_MAX_MESSAGES);
+  }
+
+  /**
+   * @return The size in bytes from which on a batch is sent without waiting
+   *         for further messages. Defaults to 4MB.
+   * @since 0.10.9
+   */
+  public static long getBatchMaxBytes ()
+  {
+    return getConfigFile ().getAsLong ("toop.batch.maxbytes", DEFAULT_BATCH_MAX_BYTES);
+  }
+
+  /**
+   * @return The milliseconds a batch waits for further messages after the
+   *         first message was added, before it is sent. Defaults to 10.
+   * @since 0.10.9
+   */
+  public static long getBatchLingerMillis ()
+  {
+    return getConfigFile ().getAsLong ("toop.batch.linger.ms", DEFAULT_BATCH_LINGER_MS);
+  }
 }
@@ -15,11 +15,22 @@
  */
 package eu.toop.iface;
 
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 
 import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.io.stream.StreamHelper;
+
+import eu.toop.iface.codec.ToopSigningService;
+import eu.toop.iface.journal.ToopInboundJournal;
+import eu.toop.iface.servlet.ToopInboundLimiter;
+import eu.toop.iface.servlet.ToopPayloadLimits;
+import eu.toop.iface.util.ToopBufferPool;
+import eu.toop.iface.util.ToopExecutors;
 
 /**
  * This class only contains the callback interfaces for DC/DP. They must be
@@ -33,6 +44,15 @@ public final class ToopInterfaceManager
   private static final SimpleReadWriteLock s_aRWLock = new SimpleReadWriteLock ();
   private static IToopInterfaceDC s_aInterfaceDC;
   private static IToopInterfaceDP s_aInterfaceDP;
+  private static ToopResponseCorrelator s_aResponseCorrelator;
+  private static ToopInboundLimiter s_aInboundLimiter;
+  private static ToopPayloadLimits s_aPayloadLimits;
+  private static ExecutorService s_aExecutorService;
+  private static ToopBufferPool s_aBufferPool;
+  private static ToopDiscoveryCache s_aDiscoveryCache;
+  private static ToopTenantRegistry s_aTenantRegistry;
+  private static ToopSigningService s_aSigningService;
+  private static ToopInboundJournal s_aInboundJournal;
 
   private ToopInterfaceManager ()
   {}
@@ -46,6 +66,15 @@ public final class ToopInterfaceManager
     return ret;
   }
 
+  /**
+   * @return <code>true</code> if a global DC callback is set.
+   * @since 0.10.9
+   */
+  public static boolean hasInterfaceDC ()
+  {
+    return s_aRWLock.readLocked ( () -> s_aInterfaceDC != null);
+  }
+
   public static void setInterfaceDC (@Nullable final IToopInterfaceDC interfaceDC)
   {
     s_aRWLock.writeLocked ( () -> s_aInterfaceDC = interfaceDC);
@@ -60,8 +89,364 @@ public final class ToopInterfaceManager
     return ret;
   }
 
+  /**
+   * @return <code>true</code> if a global DP callback is set.
+   * @since 0.10.9
+   */
+  public static boolean hasInterfaceDP ()
+  {
+    return s_aRWLock.readLocked ( () -> s_aInterfaceDP != null);
+  }
+
   public static void setInterfaceDP (@Nullable final IToopInterfaceDP interfaceDP)
   {
     s_aRWLock.writeLocked ( () -> s_aInterfaceDP = interfaceDP);
   }
+
+  /**
+   * @return The response correlator used for awaitable requests. It is created
+   *         on first access based on the settings in
+   *         {@link ToopInterfaceConfig}. Never <code>null</code>.
+   * @since 0.10.9
+   */
+  @Nonnull
+  public static ToopResponseCorrelator getResponseCorrelator ()
+  {
+    ToopResponseCorrelator ret = s_aRWLock.readLocked ( () -> s_aResponseCorrelator);
+    if (ret == null)
+    {
+      ret = s_aRWLock.writeLocked ( () -> {
+        // Try again in write lock
+        if (s_aResponseCorrelator == null)
+          s_aResponseCorrelator = new ToopResponseCorrelator (ToopInterfaceConfig.getCorrelatorMaxPending (),
+                                                              ToopInterfaceConfig.getCorrelatorTimeoutMS ());
+        return s_aResponseCorrelator;
+      });
+    }
+    return ret;
+  }
+
+  /**
+   * Set a custom response correlator. The previous correlator, if any, is
+   * closed.
+   *
+   * @param aResponseCorrelator
+   *        The new correlator. May be <code>null</code> to create a default
+   *        one on next access.
+   * @since 0.10.9
+   */
+  public static void setResponseCorrelator (@Nullable final ToopResponseCorrelator aResponseCorrelator)
+  {
+    final ToopResponseCorrelator aOld = s_aRWLock.writeLocked ( () -> {
+      final ToopResponseCorrelator ret = s_aResponseCorrelator;
+      s_aResponseCorrelator = aResponseCorrelator;
+      return ret;
+    });
+    if (aOld != null && aOld != aResponseCorrelator)
+      aOld.close ();
+  }
+
+  /**
+   * @return The admission control used by the receiving servlets. It is
+   *         created on first access based on the settings in
+   *         {@link ToopInterfaceConfig}. Never <code>null</code>.
+   * @since 0.10.9
+   */
+  @Nonnull
+  public static ToopInboundLimiter getInboundLimiter ()
+  {
+    ToopInboundLimiter ret = s_aRWLock.readLocked ( () -> s_aInboundLimiter);
+    if (ret == null)
+    {
+      ret = s_aRWLock.writeLocked ( () -> {
+        // Try again in write lock
+        if (s_aInboundLimiter == null)
+          s_aInboundLimiter = new ToopInboundLimiter (ToopInterfaceConfig.getInboundRateLimitPerSecond (),
+                                                      ToopInterfaceConfig.getInboundRateLimitBurst (),
+                                                      ToopInterfaceConfig.getInboundMaxInFlight (),
+                                                      ToopInterfaceConfig.getInboundRateLimitMaxSources ());
+        return s_aInboundLimiter;
+      });
+    }
+    return ret;
+  }
+
+  /**
+   * Set a custom admission control for the receiving servlets.
+   *
+   * @param aInboundLimiter
+   *        The new limiter. May be <code>null</code> to create a default one
+   *        on next access.
+   * @since 0.10.9
+   */
+  public static void setInboundLimiter (@Nullable final ToopInboundLimiter aInboundLimiter)
+  {
+    s_aRWLock.writeLocked ( () -> s_aInboundLimiter = aInboundLimiter);
+  }
+
+  /**
+   * @return The executor used for asynchronous sending and callback
+   *         dispatching. It is created on first access based on the settings
+   *         in {@link ToopInterfaceConfig}. Never <code>null</code>.
+   * @since 0.10.9
+   */
+  @Nonnull
+  public static ExecutorService getExecutorService ()
+  {
+    ExecutorService ret = s_aRWLock.readLocked ( () -> s_aExecutorService);
+    if (ret == null)
+    {
+      ret = s_aRWLock.writeLocked ( () -> {
+        // Try again in write lock
+        if (s_aExecutorService == null)
+          s_aExecutorService = ToopExecutors.createExecutor (ToopInterfaceConfig.getExecutionMode (),
+                                                             ToopInterfaceConfig.getExecutionPlatformThreads (),
+                                                             ToopInterfaceConfig.getExecutionPlatformQueue (),
+                                                             "toop-interface");
+        return s_aExecutorService;
+      });
+    }
+    return ret;
+  }
+
+  /**
+   * Set a custom executor for asynchronous sending and callback dispatching.
+   * The previous executor is not shut down.
+   *
+   * @param aExecutorService
+   *        The new executor. May be <code>null</code> to create a default one
+   *        on next access.
+   * @since 0.10.9
+   */
+  public static void setExecutorService (@Nullable final ExecutorService aExecutorService)
+  {
+    s_aRWLock.writeLocked ( () -> s_aExecutorService = aExecutorService);
+  }
+
+  /**
+   * @return The buffer pool used to serialize outgoing messages. It is created
+   *         on first access based on the settings in
+   *         {@link ToopInterfaceConfig}. Never <code>null</code>.
+   * @since 0.10.9
+   */
+  @Nonnull
+  public static ToopBufferPool getBufferPool ()
+  {
+    ToopBufferPool ret = s_aRWLock.readLocked ( () -> s_aBufferPool);
+    if (ret == null)
+    {
+      ret = s_aRWLock.writeLocked ( () -> {
+        // Try again in write lock
+        if (s_aBufferPool == null)
+          s_aBufferPool = new ToopBufferPool (ToopInterfaceConfig.getBufferPoolMaxBytes ());
+        return s_aBufferPool;
+      });
+    }
+    return ret;
+  }
+
+  /**
+   * @return The persistent cache for data provider searches or
+   *         <code>null</code> if it is disabled (see
+   *         {@link ToopInterfaceConfig#isDiscoveryCacheEnabled()}). It is
+   *         created on first access, but the cache file is only read upon the
+   *         first lookup.
+   * @since 0.10.9
+   */
+  @Nullable
+  public static ToopDiscoveryCache getDiscoveryCache ()
+  {
+    ToopDiscoveryCache ret = s_aRWLock.readLocked ( () -> s_aDiscoveryCache);
+    if (ret == null && ToopInterfaceConfig.isDiscoveryCacheEnabled ())
+    {
+      final ExecutorService aExecutor = getExecutorService ();
+      ret = s_aRWLock.writeLocked ( () -> {
+        // Try again in write lock
+        if (s_aDiscoveryCache == null)
+          s_aDiscoveryCache = new ToopDiscoveryCache (new File (ToopInterfaceConfig.getDiscoveryCachePath ()),
+                                                      ToopInterfaceConfig.getDiscoveryCacheTTLMillis (),
+                                                      Math.max (ToopInterfaceConfig.getDiscoveryCacheTTLMillis (),
+                                                                ToopInterfaceConfig.getDiscoveryCacheMaxStaleMillis ()),
+                                                      ToopInterfaceConfig.getDiscoveryCacheMaxEntries (),
+                                                      ToopInterfaceConfig.getDiscoveryCacheMaxBytes (),
+                                                      aExecutor);
+        return s_aDiscoveryCache;
+      });
+    }
+    return ret;
+  }
+
+  /**
+   * Set a custom discovery cache. This overrides the configuration setting.
+   *
+   * @param aDiscoveryCache
+   *        The new cache. May be <code>null</code> to fall back to the
+   *        configuration on next access.
+   * @since 0.10.9
+   */
+  public static void setDiscoveryCache (@Nullable final ToopDiscoveryCache aDiscoveryCache)
+  {
+    s_aRWLock.writeLocked ( () -> s_aDiscoveryCache = aDiscoveryCache);
+  }
+
+  /**
+   * @return The size limits for messages received by the servlets. They are
+   *         created on first access based on the settings in
+   *         {@link ToopInterfaceConfig}. Never <code>null</code>.
+   * @since 0.10.9
+   */
+  @Nonnull
+  public static ToopPayloadLimits getPayloadLimits ()
+  {
+    ToopPayloadLimits ret = s_aRWLock.readLocked ( () -> s_aPayloadLimits);
+    if (ret == null)
+    {
+      ret = s_aRWLock.writeLocked ( () -> {
+        // Try again in write lock
+        if (s_aPayloadLimits == null)
+          s_aPayloadLimits = ToopPayloadLimits.createFromConfig ();
+        return s_aPayloadLimits;
+      });
+    }
+    return ret;
+  }
+
+  /**
+   * Set custom size limits for the receiving servlets.
+   *
+   * @param aPayloadLimits
+   *        The new limits. May be <code>null</code> to create the default ones
+   *        on next access.
+   * @since 0.10.9
+   */
+  public static void setPayloadLimits (@Nullable final ToopPayloadLimits aPayloadLimits)
+  {
+    s_aRWLock.writeLocked ( () -> s_aPayloadLimits = aPayloadLimits);
+  }
+
+  /**
+   * @return The registry of all tenants hosted in this JVM. It is created on
+   *         first access based on the settings in {@link ToopInterfaceConfig}.
+   *         Never <code>null</code>.
+   * @since 0.10.9
+   */
+  @Nonnull
+  public static ToopTenantRegistry getTenantRegistry ()
+  {
+    ToopTenantRegistry ret = s_aRWLock.readLocked ( () -> s_aTenantRegistry);
+    if (ret == null)
+    {
+      ret = s_aRWLock.writeLocked ( () -> {
+        // Try again in write lock
+        if (s_aTenantRegistry == null)
+          s_aTenantRegistry = ToopTenantRegistry.createFromConfig ();
+        return s_aTenantRegistry;
+      });
+    }
+    return ret;
+  }
+
+  /**
+   * Set a custom tenant registry. The previous registry, if any, is closed.
+   *
+   * @param aTenantRegistry
+   *        The new registry. May be <code>null</code> to create a default one
+   *        on next access.
+   * @since 0.10.9
+   */
+  public static void setTenantRegistry (@Nullable final ToopTenantRegistry aTenantRegistry)
+  {
+    final ToopTenantRegistry aOld = s_aRWLock.writeLocked ( () -> {
+      final ToopTenantRegistry ret = s_aTenantRegistry;
+      s_aTenantRegistry = aTenantRegistry;
+      return ret;
+    });
+    if (aOld != null && aOld != aTenantRegistry)
+      aOld.close ();
+  }
+
+  /**
+   * @return The service that encodes and signs outgoing messages on dedicated
+   *         threads. It is created on first access based on the settings in
+   *         {@link ToopInterfaceConfig}. Never <code>null</code>.
+   * @since 0.10.9
+   */
+  @Nonnull
+  public static ToopSigningService getSigningService ()
+  {
+    ToopSigningService ret = s_aRWLock.readLocked ( () -> s_aSigningService);
+    if (ret == null)
+    {
+      ret = s_aRWLock.writeLocked ( () -> {
+        // Try again in write lock
+        if (s_aSigningService == null)
+          s_aSigningService = ToopSigningService.createFromConfig ();
+        return s_aSigningService;
+      });
+    }
+    return ret;
+  }
+
+  /**
+   * Set a custom signing service. The previous service, if any, is closed.
+   *
+   * @param aSigningService
+   *        The new service. May be <code>null</code> to create a default one
+   *        on next access.
+   * @since 0.10.9
+   */
+  public static void setSigningService (@Nullable final ToopSigningService aSigningService)
+  {
+    final ToopSigningService aOld = s_aRWLock.writeLocked ( () -> {
+      final ToopSigningService ret = s_aSigningService;
+      s_aSigningService = aSigningService;
+      return ret;
+    });
+    if (aOld != null && aOld != aSigningService)
+      aOld.close ();
+  }
+
+  /**
+   * @return The journal for received messages or <code>null</code> if it is
+   *         disabled (see {@link ToopInterfaceConfig#isJournalEnabled()}). It
+   *         is opened on first access.
+   * @throws IllegalStateException
+   *         If the journal cannot be opened
+   * @since 0.10.9
+   */
+  @Nullable
+  public static ToopInboundJournal getInboundJournal ()
+  {
+    ToopInboundJournal ret = s_aRWLock.readLocked ( () -> s_aInboundJournal);
+    if (ret == null && ToopInterfaceConfig.isJournalEnabled ())
+    {
+      ret = s_aRWLock.writeLocked ( () -> {
+        // Try again in write lock
+        if (s_aInboundJournal == null)
+          s_aInboundJournal = ToopInboundJournal.createFromConfig ();
+        return s_aInboundJournal;
+      });
+    }
+    return ret;
+  }
+
+  /**
+   * Set a custom inbound journal. This overrides the configuration setting. A
+   * previously used journal is closed.
+   *
+   * @param aInboundJournal
+   *        The new journal. May be <code>null</code> to fall back to the
+   *        configuration on next access.
+   * @since 0.10.9
+   */
+  public static void setInboundJournal (@Nullable final ToopInboundJournal aInboundJournal)
+  {
+    final ToopInboundJournal aOld = s_aRWLock.writeLocked ( () -> {
+      final ToopInboundJournal ret = s_aInboundJournal;
+      s_aInboundJournal = aInboundJournal;
+      return ret;
+    });
+    if (aOld != null && aOld != aInboundJournal)
+      StreamHelper.close (aOld);
+  }
 }
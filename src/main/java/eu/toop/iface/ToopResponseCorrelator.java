@@ -0,0 +1,315 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCounter;
+import com.helger.commons.statistics.IMutableStatisticsHandlerTimer;
+import com.helger.commons.statistics.StatisticsManager;
+import com.helger.commons.string.StringHelper;
+
+import eu.toop.commons.dataexchange.v140.TDETOOPRequestType;
+import eu.toop.commons.dataexchange.v140.TDETOOPResponseType;
+import eu.toop.commons.exchange.ToopResponseWithAttachments140;
+import oasis.names.specification.ubl.schema.xsd.unqualifieddatatypes_21.IdentifierType;
+
+/**
+ * Correlates outgoing TOOP requests (step 1/4) with the TOOP responses that
+ * arrive later on the DC side (step 4/4). Each pending request is represented
+ * by a {@link CompletableFuture} that is completed by the
+ * {@link eu.toop.iface.servlet.ToDCServlet} when the matching response arrives,
+ * or completed exceptionally with a {@link TimeoutException} if no response
+ * arrives in time. The correlation key is the document UUID of the request,
+ * that is referenced by the data request identifier of the response.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+@ThreadSafe
+public class ToopResponseCorrelator implements AutoCloseable
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (ToopResponseCorrelator.class);
+
+  private static final IMutableStatisticsHandlerTimer s_aStatsRoundTrip = StatisticsManager.getTimerHandler (ToopResponseCorrelator.class.getName () +
+                                                                                                             "$roundtrip");
+  private static final IMutableStatisticsHandlerCounter s_aStatsTimeout = StatisticsManager.getCounterHandler (ToopResponseCorrelator.class.getName () +
+                                                                                                               "$timeout");
+  private static final IMutableStatisticsHandlerCounter s_aStatsRejected = StatisticsManager.getCounterHandler (ToopResponseCorrelator.class.getName () +
+                                                                                                                "$rejected");
+  private static final IMutableStatisticsHandlerCounter s_aStatsUnmatched = StatisticsManager.getCounterHandler (ToopResponseCorrelator.class.getName () +
+                                                                                                                 "$unmatched");
+
+  private static final class PendingEntry
+  {
+    private final CompletableFuture <ToopResponseWithAttachments140> m_aFuture = new CompletableFuture <> ();
+    private final long m_nStartNanos = System.nanoTime ();
+    private volatile ScheduledFuture <?> m_aTimeoutTask;
+
+    void cancelTimeout ()
+    {
+      final ScheduledFuture <?> aTask = m_aTimeoutTask;
+      if (aTask != null)
+        aTask.cancel (false);
+    }
+  }
+
+  private final ConcurrentHashMap <String, PendingEntry> m_aPending = new ConcurrentHashMap <> ();
+  private final AtomicInteger m_aPendingCount = new AtomicInteger (0);
+  private final int m_nMaxPending;
+  private final long m_nDefaultTimeoutMillis;
+  private final ScheduledThreadPoolExecutor m_aScheduler;
+
+  /**
+   * Constructor
+   *
+   * @param nMaxPending
+   *        The maximum number of concurrently pending requests. Must be &gt; 0.
+   * @param nDefaultTimeoutMillis
+   *        The default timeout in milliseconds after which a pending request is
+   *        completed exceptionally. Must be &gt; 0.
+   */
+  public ToopResponseCorrelator (@Nonnegative final int nMaxPending, @Nonnegative final long nDefaultTimeoutMillis)
+  {
+    ValueEnforcer.isGT0 (nMaxPending, "MaxPending");
+    ValueEnforcer.isGT0 (nDefaultTimeoutMillis, "DefaultTimeoutMillis");
+    m_nMaxPending = nMaxPending;
+    m_nDefaultTimeoutMillis = nDefaultTimeoutMillis;
+    m_aScheduler = new ScheduledThreadPoolExecutor (1,
+                                                    new BasicThreadFactory.Builder ().setNamingPattern ("toop-correlator-%d")
+                                                                                     .setDaemon (true)
+                                                                                     .build ());
+    // Don't keep timeout tasks of completed entries in memory
+    m_aScheduler.setRemoveOnCancelPolicy (true);
+  }
+
+  /**
+   * @return The maximum number of concurrently pending requests. Always &gt; 0.
+   */
+  @Nonnegative
+  public final int getMaxPending ()
+  {
+    return m_nMaxPending;
+  }
+
+  /**
+   * @return The default timeout in milliseconds. Always &gt; 0.
+   */
+  @Nonnegative
+  public final long getDefaultTimeoutMillis ()
+  {
+    return m_nDefaultTimeoutMillis;
+  }
+
+  /**
+   * @return The number of currently pending requests. Always &ge; 0.
+   */
+  @Nonnegative
+  public int getPendingCount ()
+  {
+    return m_aPendingCount.get ();
+  }
+
+  /**
+   * Register a new pending request with the default timeout.
+   *
+   * @param sRequestID
+   *        The ID of the request. May neither be <code>null</code> nor empty.
+   * @return The future that is completed when the response arrives. Never
+   *         <code>null</code>.
+   * @throws IllegalStateException
+   *         if the maximum number of pending requests is reached or if a
+   *         request with the same ID is already pending
+   * @see #getRequestID(TDETOOPRequestType)
+   */
+  @Nonnull
+  public CompletableFuture <ToopResponseWithAttachments140> register (@Nonnull @Nonempty final String sRequestID)
+  {
+    return register (sRequestID, m_nDefaultTimeoutMillis);
+  }
+
+  /**
+   * Register a new pending request.
+   *
+   * @param sRequestID
+   *        The ID of the request. May neither be <code>null</code> nor empty.
+   * @param nTimeoutMillis
+   *        The timeout in milliseconds. Must be &gt; 0.
+   * @return The future that is completed when the response arrives. Never
+   *         <code>null</code>.
+   * @throws IllegalStateException
+   *         if the maximum number of pending requests is reached or if a
+   *         request with the same ID is already pending
+   */
+  @Nonnull
+  public CompletableFuture <ToopResponseWithAttachments140> register (@Nonnull @Nonempty final String sRequestID,
+                                                                      @Nonnegative final long nTimeoutMillis)
+  {
+    ValueEnforcer.notEmpty (sRequestID, "RequestID");
+    ValueEnforcer.isGT0 (nTimeoutMillis, "TimeoutMillis");
+
+    if (m_aPendingCount.incrementAndGet () > m_nMaxPending)
+    {
+      m_aPendingCount.decrementAndGet ();
+      s_aStatsRejected.increment ();
+      throw new IllegalStateException ("Too many pending TOOP requests (" + m_nMaxPending + ")");
+    }
+
+    final PendingEntry aEntry = new PendingEntry ();
+    if (m_aPending.putIfAbsent (sRequestID, aEntry) != null)
+    {
+      m_aPendingCount.decrementAndGet ();
+      throw new IllegalStateException ("A TOOP request with ID '" + sRequestID + "' is already pending");
+    }
+    aEntry.m_aTimeoutTask = m_aScheduler.schedule ( () -> _onTimeout (sRequestID, aEntry),
+                                                    nTimeoutMillis,
+                                                    TimeUnit.MILLISECONDS);
+    return aEntry.m_aFuture;
+  }
+
+  private boolean _remove (@Nonnull final String sRequestID, @Nonnull final PendingEntry aEntry)
+  {
+    if (m_aPending.remove (sRequestID, aEntry))
+    {
+      m_aPendingCount.decrementAndGet ();
+      return true;
+    }
+    return false;
+  }
+
+  private void _onTimeout (@Nonnull final String sRequestID, @Nonnull final PendingEntry aEntry)
+  {
+    if (_remove (sRequestID, aEntry))
+    {
+      s_aStatsTimeout.increment ();
+      LOGGER.warn ("No TOOP response received for request '" + sRequestID + "' in time");
+      aEntry.m_aFuture.completeExceptionally (new TimeoutException ("No TOOP response received for request '" +
+                                                                    sRequestID +
+                                                                    "' in time"));
+    }
+  }
+
+  /**
+   * Complete the pending request with the provided ID.
+   *
+   * @param sRequestID
+   *        The request ID the response refers to. May be <code>null</code>.
+   * @param aResponse
+   *        The received response. May not be <code>null</code>.
+   * @return <code>true</code> if a matching pending request was found and
+   *         completed, <code>false</code> if the response is unknown.
+   * @see #getRequestID(TDETOOPResponseType)
+   */
+  public boolean complete (@Nullable final String sRequestID, @Nonnull final ToopResponseWithAttachments140 aResponse)
+  {
+    ValueEnforcer.notNull (aResponse, "Response");
+
+    final PendingEntry aEntry = StringHelper.hasText (sRequestID) ? m_aPending.get (sRequestID) : null;
+    if (aEntry == null || !_remove (sRequestID, aEntry))
+    {
+      s_aStatsUnmatched.increment ();
+      return false;
+    }
+
+    aEntry.cancelTimeout ();
+    s_aStatsRoundTrip.addTime (TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - aEntry.m_nStartNanos));
+    aEntry.m_aFuture.complete (aResponse);
+    return true;
+  }
+
+  /**
+   * Cancel the pending request with the provided ID, e.g. because sending
+   * failed.
+   *
+   * @param sRequestID
+   *        The request ID. May be <code>null</code>.
+   * @param aCause
+   *        The reason for cancellation. May not be <code>null</code>.
+   * @return <code>true</code> if a pending request was cancelled.
+   */
+  public boolean cancel (@Nullable final String sRequestID, @Nonnull final Throwable aCause)
+  {
+    ValueEnforcer.notNull (aCause, "Cause");
+
+    final PendingEntry aEntry = StringHelper.hasText (sRequestID) ? m_aPending.get (sRequestID) : null;
+    if (aEntry == null || !_remove (sRequestID, aEntry))
+      return false;
+
+    aEntry.cancelTimeout ();
+    aEntry.m_aFuture.completeExceptionally (aCause);
+    return true;
+  }
+
+  /**
+   * Stop the timeout scheduler. All pending requests are cancelled.
+   */
+  public void close ()
+  {
+    ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aScheduler);
+    final IllegalStateException ex = new IllegalStateException ("Response correlator was closed");
+    for (final String sRequestID : m_aPending.keySet ())
+      cancel (sRequestID, ex);
+  }
+
+  @Nullable
+  private static String _getValue (@Nullable final IdentifierType aID)
+  {
+    return aID == null ? null : aID.getValue ();
+  }
+
+  /**
+   * @param aRequest
+   *        The request to get the correlation ID from. May not be
+   *        <code>null</code>.
+   * @return The document UUID of the request. May be <code>null</code>.
+   */
+  @Nullable
+  public static String getRequestID (@Nonnull final TDETOOPRequestType aRequest)
+  {
+    return _getValue (aRequest.getDocumentUniversalUniqueIdentifier ());
+  }
+
+  /**
+   * @param aResponse
+   *        The response to get the correlation ID from. May not be
+   *        <code>null</code>.
+   * @return The data request identifier of the response, that references the
+   *         document UUID of the original request. May be <code>null</code>.
+   */
+  @Nullable
+  public static String getRequestID (@Nonnull final TDETOOPResponseType aResponse)
+  {
+    return _getValue (aResponse.getDataRequestIdentifier ());
+  }
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.statistics.IMutableStatisticsHandlerKeyedCounter;
+import com.helger.commons.statistics.StatisticsManager;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Retry with exponential backoff for idempotent client calls. Only errors that
+ * are classified as retryable (see {@link ToopInterfaceClientException}) are
+ * retried. The backoff uses "full jitter" so that many clients failing at the
+ * same time don't retry in lock step, and a <code>Retry-After</code> hint of
+ * the remote side is always honoured. If the remote side asks for a longer
+ * pause than the maximum backoff, the call fails immediately instead.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+@Immutable
+public class ToopRetryPolicy
+{
+  /**
+   * A call that may be retried.
+   *
+   * @param <T>
+   *        Result type
+   */
+  @FunctionalInterface
+  public interface IRetryableCall <T>
+  {
+    @Nullable
+    T call () throws Exception;
+  }
+
+  /** A policy that never retries */
+  public static final ToopRetryPolicy NO_RETRY = new ToopRetryPolicy (1, 1, 1);
+
+  private static final IMutableStatisticsHandlerKeyedCounter s_aStatsRetries = StatisticsManager.getKeyedCounterHandler (ToopRetryPolicy.class.getName () +
+                                                                                                                        "$retries");
+
+  private final int m_nMaxAttempts;
+  private final long m_nInitialBackoffMillis;
+  private final long m_nMaxBackoffMillis;
+
+  /**
+   * Constructor
+   *
+   * @param nMaxAttempts
+   *        The maximum number of attempts including the first one. Must be
+   *        &gt; 0.
+   * @param nInitialBackoffMillis
+   *        The upper bound of the first backoff in milliseconds. Must be &gt;
+   *        0.
+   * @param nMaxBackoffMillis
+   *        The maximum time to wait between two attempts in milliseconds. Must
+   *        be &ge; the initial backoff.
+   */
+  public ToopRetryPolicy (@Nonnegative final int nMaxAttempts,
+                          @Nonnegative final long nInitialBackoffMillis,
+                          @Nonnegative final long nMaxBackoffMillis)
+  {
+    ValueEnforcer.isGT0 (nMaxAttempts, "MaxAttempts");
+    ValueEnforcer.isGT0 (nInitialBackoffMillis, "InitialBackoffMillis");
+    ValueEnforcer.isTrue (nMaxBackoffMillis >= nInitialBackoffMillis, "MaxBackoffMillis must be >= InitialBackoffMillis");
+    m_nMaxAttempts = nMaxAttempts;
+    m_nInitialBackoffMillis = nInitialBackoffMillis;
+    m_nMaxBackoffMillis = nMaxBackoffMillis;
+  }
+
+  @Nonnegative
+  public final int getMaxAttempts ()
+  {
+    return m_nMaxAttempts;
+  }
+
+  @Nonnegative
+  public final long getInitialBackoffMillis ()
+  {
+    return m_nInitialBackoffMillis;
+  }
+
+  @Nonnegative
+  public final long getMaxBackoffMillis ()
+  {
+    return m_nMaxBackoffMillis;
+  }
+
+  /**
+   * Execute the provided call and retry it on retryable errors.
+   *
+   * @param aCall
+   *        The call to execute. May not be <code>null</code>.
+   * @return The result of the call.
+   * @param <T>
+   *        Result type
+   * @throws ToopInterfaceClientException
+   *         If the last attempt failed or the error is not retryable
+   */
+  @Nullable
+  public <T> T execute (@Nonnull final IRetryableCall <T> aCall)
+  {
+    return execute (aCall, null);
+  }
+
+  /**
+   * Execute the provided call and retry it on retryable errors, but only as
+   * long as the deadline permits. No retry is started if the deadline would
+   * be exceeded while waiting for it.
+   *
+   * @param aCall
+   *        The call to execute. May not be <code>null</code>.
+   * @param aDeadline
+   *        The deadline for all attempts. May be <code>null</code>.
+   * @return The result of the call.
+   * @param <T>
+   *        Result type
+   * @throws ToopInterfaceClientException
+   *         If the last attempt failed or the error is not retryable
+   */
+  @Nullable
+  public <T> T execute (@Nonnull final IRetryableCall <T> aCall, @Nullable final ToopDeadline aDeadline)
+  {
+    ValueEnforcer.notNull (aCall, "Call");
+
+    long nBackoff = m_nInitialBackoffMillis;
+    int nAttempt = 0;
+    while (true)
+    {
+      ++nAttempt;
+      try
+      {
+        return aCall.call ();
+      }
+      catch (final Exception ex)
+      {
+        final ToopInterfaceClientException aEx = ToopInterfaceClientException.create (ex);
+        if (!aEx.isRetryable () || nAttempt >= m_nMaxAttempts)
+          throw aEx;
+
+        long nWaitMillis = ThreadLocalRandom.current ().nextLong (nBackoff + 1);
+        if (aEx.hasRetryAfter ())
+          nWaitMillis = Math.max (nWaitMillis, aEx.getRetryAfterMillis ());
+        if (nWaitMillis > m_nMaxBackoffMillis)
+          throw aEx;
+        if (aDeadline != null && nWaitMillis >= aDeadline.getRemainingMillis ())
+        {
+          // No time left for another attempt
+          throw aEx;
+        }
+
+        s_aStatsRetries.increment (aEx.getErrorCode ().getID ());
+        try
+        {
+          Thread.sleep (nWaitMillis);
+        }
+        catch (final InterruptedException ex2)
+        {
+          Thread.currentThread ().interrupt ();
+          throw aEx;
+        }
+        nBackoff = Math.min (nBackoff * 2, m_nMaxBackoffMillis);
+      }
+    }
+  }
+
+  /**
+   * @return A new retry policy based on the settings in
+   *         {@link ToopInterfaceConfig}. Never <code>null</code>.
+   */
+  @Nonnull
+  public static ToopRetryPolicy createFromConfig ()
+  {
+    return new ToopRetryPolicy (ToopInterfaceConfig.getRetryMaxAttempts (),
+                                ToopInterfaceConfig.getRetryInitialBackoffMillis (),
+                                ToopInterfaceConfig.getRetryMaxBackoffMillis ());
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("MaxAttempts", m_nMaxAttempts)
+                                       .append ("InitialBackoffMillis", m_nInitialBackoffMillis)
+                                       .append ("MaxBackoffMillis", m_nMaxBackoffMillis)
+                                       .getToString ();
+  }
+}
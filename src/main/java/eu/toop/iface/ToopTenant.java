@@ -0,0 +1,345 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.http.config.Registry;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+
+import com.helger.asic.SignatureHelper;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.httpclient.HttpClientFactory;
+import com.helger.httpclient.HttpClientManager;
+
+import eu.toop.iface.codec.ToopAsicMessageCodec;
+import eu.toop.iface.codec.ToopKeyMaterial;
+import eu.toop.iface.util.TCHttpClientSettings;
+
+/**
+ * A single tenant, that is one DC or DP organisation hosted in this JVM. It
+ * combines the tenant configuration with the tenant specific callbacks, key
+ * material and a pooled HTTP client. Thread pools, buffers and limits are
+ * shared by all tenants and remain in {@link ToopInterfaceManager}.<br>
+ * Code that sends or receives on behalf of a tenant runs inside a
+ * {@link Scope} created via {@link #enter()}. Outside of any scope the
+ * default tenant configuration applies.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+@ThreadSafe
+public class ToopTenant implements AutoCloseable
+{
+  private static final ThreadLocal <ToopTenant> s_aCurrent = new ThreadLocal <> ();
+
+  /**
+   * The tenant scope of the current thread. Closing it restores the previous
+   * tenant.
+   */
+  public static final class Scope implements AutoCloseable
+  {
+    private final ToopTenant m_aPrevious;
+
+    private Scope (@Nullable final ToopTenant aPrevious)
+    {
+      m_aPrevious = aPrevious;
+    }
+
+    public void close ()
+    {
+      if (m_aPrevious == null)
+        s_aCurrent.remove ();
+      else
+        s_aCurrent.set (m_aPrevious);
+    }
+  }
+
+  private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
+  private final ToopTenantConfig m_aConfig;
+  private volatile IToopInterfaceDC m_aInterfaceDC;
+  private volatile IToopInterfaceDP m_aInterfaceDP;
+  private volatile ToopKeyMaterial m_aKeyMaterial;
+  private volatile SignatureHelper m_aSignatureHelper;
+  @GuardedBy ("m_aRWLock")
+  private HttpClientManager m_aHttpClientMgr;
+  private volatile PoolingHttpClientConnectionManager m_aConnectionMgr;
+  @GuardedBy ("m_aRWLock")
+  private boolean m_bClosed;
+
+  public ToopTenant (@Nonnull final ToopTenantConfig aConfig)
+  {
+    ValueEnforcer.notNull (aConfig, "Config");
+    m_aConfig = aConfig;
+  }
+
+  @Nonnull
+  @Nonempty
+  public final String getID ()
+  {
+    return m_aConfig.getTenantID ();
+  }
+
+  @Nonnull
+  public final ToopTenantConfig getConfig ()
+  {
+    return m_aConfig;
+  }
+
+  /**
+   * @return <code>true</code> if a DC callback is available for this tenant.
+   *         Only the default tenant may use the global one from
+   *         {@link ToopInterfaceManager#getInterfaceDC()}.
+   */
+  public boolean hasInterfaceDC ()
+  {
+    return m_aInterfaceDC != null || (m_aConfig.isDefaultTenant () && ToopInterfaceManager.hasInterfaceDC ());
+  }
+
+  /**
+   * @return The DC callback of this tenant. For the default tenant this is the
+   *         global one from {@link ToopInterfaceManager#getInterfaceDC()} if
+   *         none is set.
+   * @throws IllegalStateException
+   *         If no DC callback is available for this tenant
+   */
+  @Nonnull
+  public IToopInterfaceDC getInterfaceDC ()
+  {
+    final IToopInterfaceDC ret = m_aInterfaceDC;
+    if (ret != null)
+      return ret;
+    // Never hand out the callback of another organisation
+    if (!m_aConfig.isDefaultTenant ())
+      throw new IllegalStateException ("No DC interface present for tenant '" + getID () + "'!");
+    return ToopInterfaceManager.getInterfaceDC ();
+  }
+
+  public void setInterfaceDC (@Nullable final IToopInterfaceDC aInterfaceDC)
+  {
+    m_aInterfaceDC = aInterfaceDC;
+  }
+
+  /**
+   * @return <code>true</code> if a DP callback is available for this tenant.
+   *         Only the default tenant may use the global one from
+   *         {@link ToopInterfaceManager#getInterfaceDP()}.
+   */
+  public boolean hasInterfaceDP ()
+  {
+    return m_aInterfaceDP != null || (m_aConfig.isDefaultTenant () && ToopInterfaceManager.hasInterfaceDP ());
+  }
+
+  /**
+   * @return The DP callback of this tenant. For the default tenant this is the
+   *         global one from {@link ToopInterfaceManager#getInterfaceDP()} if
+   *         none is set.
+   * @throws IllegalStateException
+   *         If no DP callback is available for this tenant
+   */
+  @Nonnull
+  public IToopInterfaceDP getInterfaceDP ()
+  {
+    final IToopInterfaceDP ret = m_aInterfaceDP;
+    if (ret != null)
+      return ret;
+    // Never hand out the callback of another organisation
+    if (!m_aConfig.isDefaultTenant ())
+      throw new IllegalStateException ("No DP interface present for tenant '" + getID () + "'!");
+    return ToopInterfaceManager.getInterfaceDP ();
+  }
+
+  public void setInterfaceDP (@Nullable final IToopInterfaceDP aInterfaceDP)
+  {
+    m_aInterfaceDP = aInterfaceDP;
+  }
+
+  /**
+   * @return The key material of this tenant. It is loaded on first access.
+   *         Never <code>null</code>.
+   * @throws IllegalStateException
+   *         If no keystore is configured for this tenant or if the keystore or
+   *         the key cannot be loaded
+   */
+  @Nonnull
+  public ToopKeyMaterial getKeyMaterial ()
+  {
+    ToopKeyMaterial ret = m_aKeyMaterial;
+    if (ret == null)
+    {
+      // Loading twice in parallel is harmless
+      ret = ToopKeyMaterial.loadFromConfig (m_aConfig);
+      m_aKeyMaterial = ret;
+    }
+    return ret;
+  }
+
+  /**
+   * @return The ASiC signature helper of this tenant. It is created on first
+   *         access. Never <code>null</code>.
+   * @throws IllegalStateException
+   *         If no keystore is configured for this tenant
+   */
+  @Nonnull
+  public SignatureHelper getSignatureHelper ()
+  {
+    SignatureHelper ret = m_aSignatureHelper;
+    if (ret == null)
+    {
+      // Loading twice in parallel is harmless
+      ret = ToopAsicMessageCodec.createSignatureHelper (m_aConfig);
+      m_aSignatureHelper = ret;
+    }
+    return ret;
+  }
+
+  /**
+   * @return The HTTP client of this tenant. It is created on first access and
+   *         reused for all calls, so that connections are pooled per tenant.
+   *         Never <code>null</code>.
+   * @throws IllegalStateException
+   *         If the tenant is already closed
+   */
+  @Nonnull
+  public HttpClientManager getHttpClientManager ()
+  {
+    HttpClientManager ret = m_aRWLock.readLocked ( () -> m_aHttpClientMgr);
+    if (ret == null)
+    {
+      ret = m_aRWLock.writeLocked ( () -> {
+        if (m_bClosed)
+          throw new IllegalStateException ("Tenant '" + getID () + "' is already closed");
+        // Try again in write lock
+        if (m_aHttpClientMgr == null)
+          m_aHttpClientMgr = new HttpClientManager (new HttpClientFactory (new TCHttpClientSettings (m_aConfig))
+          {
+            @Override
+            public HttpClientConnectionManager createConnectionManager (@Nonnull final Registry <ConnectionSocketFactory> aSFR)
+            {
+              final HttpClientConnectionManager aConnectionMgr = super.createConnectionManager (aSFR);
+              // Remember for the pool statistics
+              if (aConnectionMgr instanceof PoolingHttpClientConnectionManager)
+                m_aConnectionMgr = (PoolingHttpClientConnectionManager) aConnectionMgr;
+              return aConnectionMgr;
+            }
+          });
+        return m_aHttpClientMgr;
+      });
+    }
+    return ret;
+  }
+
+  /**
+   * @return The usage of the HTTP connection pool of this tenant or
+   *         <code>null</code> if the HTTP client was not yet created or is not
+   *         pooled.
+   */
+  @Nullable
+  public PoolStats getConnectionPoolStats ()
+  {
+    final PoolingHttpClientConnectionManager aConnectionMgr = m_aConnectionMgr;
+    return aConnectionMgr == null ? null : aConnectionMgr.getTotalStats ();
+  }
+
+  /**
+   * Make this tenant the current tenant of the calling thread.
+   *
+   * @return The scope that must be closed to restore the previous tenant.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  public Scope enter ()
+  {
+    final Scope ret = new Scope (s_aCurrent.get ());
+    s_aCurrent.set (this);
+    return ret;
+  }
+
+  /**
+   * @return The tenant of the current thread or <code>null</code> if the
+   *         calling thread is not inside a {@link Scope}.
+   */
+  @Nullable
+  public static ToopTenant getCurrent ()
+  {
+    return s_aCurrent.get ();
+  }
+
+  /**
+   * @return The configuration of the tenant of the current thread or the
+   *         default configuration if the calling thread is not inside a
+   *         {@link Scope}. Never <code>null</code>.
+   */
+  @Nonnull
+  public static ToopTenantConfig getCurrentConfig ()
+  {
+    final ToopTenant aTenant = s_aCurrent.get ();
+    return aTenant != null ? aTenant.getConfig () : ToopTenantConfig.getDefault ();
+  }
+
+  /**
+   * Wrap a runnable so that it runs in the tenant that is current at the time
+   * of calling this method. Use this when handing work over to another
+   * thread.
+   *
+   * @param aRunnable
+   *        The runnable to wrap. May not be <code>null</code>.
+   * @return The runnable to execute. Never <code>null</code>.
+   */
+  @Nonnull
+  public static Runnable wrapCurrent (@Nonnull final Runnable aRunnable)
+  {
+    ValueEnforcer.notNull (aRunnable, "Runnable");
+
+    final ToopTenant aTenant = s_aCurrent.get ();
+    if (aTenant == null)
+      return aRunnable;
+    return () -> {
+      try (final Scope aScope = aTenant.enter ())
+      {
+        aRunnable.run ();
+      }
+    };
+  }
+
+  public void close ()
+  {
+    final HttpClientManager aHttpClientMgr = m_aRWLock.writeLocked ( () -> {
+      m_bClosed = true;
+      final HttpClientManager ret = m_aHttpClientMgr;
+      m_aHttpClientMgr = null;
+      m_aConnectionMgr = null;
+      return ret;
+    });
+    StreamHelper.close (aHttpClientMgr);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Config", m_aConfig).getToString ();
+  }
+}
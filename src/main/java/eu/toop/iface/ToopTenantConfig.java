@@ -0,0 +1,283 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface;
+
+import javax.annotation.CheckForSigned;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsLinkedHashSet;
+import com.helger.commons.collection.impl.ICommonsOrderedSet;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.security.keystore.EKeyStoreType;
+import com.helger.security.keystore.IKeyStoreType;
+import com.helger.settings.exchange.configfile.ConfigFile;
+
+/**
+ * The configuration of a single tenant. All tenants share the configuration
+ * file of {@link ToopInterfaceConfig}. A tenant specific value is stored with
+ * the prefix <code>toop.tenant.<i>tenantID</i>.</code> in front of the regular
+ * key, e.g. <code>toop.tenant.acme.toop.keystore.path</code>. If no tenant
+ * specific value is present, the global value is used. The only exception is
+ * the identity of a tenant - the keystore path, the passwords and the key
+ * alias are never taken from the global configuration, so that one tenant
+ * cannot sign with the key of another. The default tenant always uses the
+ * global values, so it behaves exactly like the static API of
+ * {@link ToopInterfaceConfig}.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+@Immutable
+public class ToopTenantConfig
+{
+  /** The ID of the default tenant */
+  public static final String DEFAULT_TENANT_ID = "default";
+
+  /** The prefix of all tenant specific configuration keys */
+  public static final String KEY_PREFIX = "toop.tenant.";
+
+  private static final ToopTenantConfig DEFAULT = new ToopTenantConfig (DEFAULT_TENANT_ID);
+
+  private final String m_sTenantID;
+  private final String m_sKeyPrefix;
+
+  /**
+   * Constructor
+   *
+   * @param sTenantID
+   *        The tenant ID. May neither be <code>null</code> nor empty and may
+   *        not contain dots or slashes.
+   */
+  public ToopTenantConfig (@Nonnull @Nonempty final String sTenantID)
+  {
+    ValueEnforcer.notEmpty (sTenantID, "TenantID");
+    ValueEnforcer.isTrue (sTenantID.indexOf ('.') < 0 && sTenantID.indexOf ('/') < 0,
+                          () -> "TenantID '" + sTenantID + "' may not contain '.' or '/'");
+    m_sTenantID = sTenantID;
+    m_sKeyPrefix = DEFAULT_TENANT_ID.equals (sTenantID) ? null : KEY_PREFIX + sTenantID + '.';
+  }
+
+  /**
+   * @return The configuration of the default tenant. Never <code>null</code>.
+   */
+  @Nonnull
+  public static ToopTenantConfig getDefault ()
+  {
+    return DEFAULT;
+  }
+
+  @Nonnull
+  @Nonempty
+  public final String getTenantID ()
+  {
+    return m_sTenantID;
+  }
+
+  public final boolean isDefaultTenant ()
+  {
+    return m_sKeyPrefix == null;
+  }
+
+  @Nonnull
+  private static ConfigFile _getConfigFile ()
+  {
+    return ToopInterfaceConfig.getConfigFile ();
+  }
+
+  @Nullable
+  private String _getAsString (@Nonnull final String sKey, @Nullable final String sGlobalValue)
+  {
+    return m_sKeyPrefix == null ? sGlobalValue : _getConfigFile ().getAsString (m_sKeyPrefix + sKey, sGlobalValue);
+  }
+
+  @Nullable
+  private String _getIdentityAsString (@Nonnull final String sKey, @Nullable final String sGlobalValue)
+  {
+    // No fallback to the global identity for other tenants
+    return m_sKeyPrefix == null ? sGlobalValue : _getConfigFile ().getAsString (m_sKeyPrefix + sKey);
+  }
+
+  private boolean _getAsBoolean (@Nonnull final String sKey, final boolean bGlobalValue)
+  {
+    return m_sKeyPrefix == null ? bGlobalValue : _getConfigFile ().getAsBoolean (m_sKeyPrefix + sKey, bGlobalValue);
+  }
+
+  private int _getAsInt (@Nonnull final String sKey, final int nGlobalValue)
+  {
+    return m_sKeyPrefix == null ? nGlobalValue : _getConfigFile ().getAsInt (m_sKeyPrefix + sKey, nGlobalValue);
+  }
+
+  private long _getAsLong (@Nonnull final String sKey, final long nGlobalValue)
+  {
+    return m_sKeyPrefix == null ? nGlobalValue : _getConfigFile ().getAsLong (m_sKeyPrefix + sKey, nGlobalValue);
+  }
+
+  /**
+   * @return The participant IDs that belong to this tenant, taken from the
+   *         comma separated <code>participantids</code> setting. Outgoing
+   *         requests of these senders are sent in the context of this tenant.
+   *         Never <code>null</code> but maybe empty.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsOrderedSet <String> getAllParticipantIDs ()
+  {
+    final ICommonsOrderedSet <String> ret = new CommonsLinkedHashSet <> ();
+    if (m_sKeyPrefix != null)
+      for (final String sID : StringHelper.getExploded (',', _getConfigFile ().getAsString (m_sKeyPrefix + "participantids")))
+        if (StringHelper.hasText (sID.trim ()))
+          ret.add (sID.trim ());
+    return ret;
+  }
+
+  @Nullable
+  public String getToopConnectorUrl ()
+  {
+    return _getAsString ("toop.connector.url", ToopInterfaceConfig.getToopConnectorUrl ());
+  }
+
+  @Nullable
+  public String getToopConnectorDCUrl ()
+  {
+    return _getAsString ("toop.connector.dc.url", ToopInterfaceConfig.getToopConnectorDCUrl ());
+  }
+
+  @Nullable
+  public String getToopConnectorDPUrl ()
+  {
+    return _getAsString ("toop.connector.dp.url", ToopInterfaceConfig.getToopConnectorDPUrl ());
+  }
+
+  @Nullable
+  public IKeyStoreType getKeystoreType ()
+  {
+    final String sType = _getAsString ("toop.keystore.type", null);
+    return sType == null ? ToopInterfaceConfig.getKeystoreType ()
+                         : EKeyStoreType.getFromIDCaseInsensitiveOrDefault (sType, EKeyStoreType.JKS);
+  }
+
+  /**
+   * @return The keystore path. For tenants other than the default tenant this
+   *         is <code>null</code> if no tenant specific path is configured.
+   */
+  @Nullable
+  public String getKeystorePath ()
+  {
+    return _getIdentityAsString ("toop.keystore.path", ToopInterfaceConfig.getKeystorePath ());
+  }
+
+  @Nullable
+  public String getKeystorePassword ()
+  {
+    return _getIdentityAsString ("toop.keystore.password", ToopInterfaceConfig.getKeystorePassword ());
+  }
+
+  @Nullable
+  public String getKeystoreKeyAlias ()
+  {
+    return _getIdentityAsString ("toop.keystore.key.alias", ToopInterfaceConfig.getKeystoreKeyAlias ());
+  }
+
+  @Nullable
+  public String getKeystoreKeyPassword ()
+  {
+    return _getIdentityAsString ("toop.keystore.key.password", ToopInterfaceConfig.getKeystoreKeyPassword ());
+  }
+
+  public boolean isUseHttpSystemProperties ()
+  {
+    return _getAsBoolean ("toop.http.usesysprops", ToopInterfaceConfig.isUseHttpSystemProperties ());
+  }
+
+  public boolean isProxyServerEnabled ()
+  {
+    return _getAsBoolean ("toop.proxy.enabled", ToopInterfaceConfig.isProxyServerEnabled ());
+  }
+
+  @Nullable
+  public String getProxyServerAddress ()
+  {
+    return _getAsString ("toop.proxy.address", ToopInterfaceConfig.getProxyServerAddress ());
+  }
+
+  @CheckForSigned
+  public int getProxyServerPort ()
+  {
+    return _getAsInt ("toop.proxy.port", ToopInterfaceConfig.getProxyServerPort ());
+  }
+
+  @Nullable
+  public String getProxyServerNonProxyHosts ()
+  {
+    return _getAsString ("toop.proxy.non-proxy", ToopInterfaceConfig.getProxyServerNonProxyHosts ());
+  }
+
+  public boolean isTLSTrustAll ()
+  {
+    return _getAsBoolean ("toop.tls.trustall", ToopInterfaceConfig.isTLSTrustAll ());
+  }
+
+  public int getHttpConnectTimeoutMillis ()
+  {
+    return _getAsInt ("toop.http.connect.timeout.ms", ToopInterfaceConfig.getHttpConnectTimeoutMillis ());
+  }
+
+  public int getHttpSocketTimeoutMillis ()
+  {
+    return _getAsInt ("toop.http.socket.timeout.ms", ToopInterfaceConfig.getHttpSocketTimeoutMillis ());
+  }
+
+  public long getHttpRequestTimeoutMillis ()
+  {
+    return _getAsLong ("toop.http.request.timeout.ms", ToopInterfaceConfig.getHttpRequestTimeoutMillis ());
+  }
+
+  @Nonnull
+  public String getOutboundCodecID ()
+  {
+    return _getAsString ("toop.codec.outbound", ToopInterfaceConfig.getOutboundCodecID ());
+  }
+
+  /**
+   * @return The IDs of the codecs that are accepted for received messages,
+   *         taken from the comma separated <code>toop.codec.inbound</code>
+   *         setting. Never <code>null</code> but maybe empty.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsOrderedSet <String> getAllInboundCodecIDs ()
+  {
+    final ICommonsOrderedSet <String> ret = new CommonsLinkedHashSet <> ();
+    for (final String sID : StringHelper.getExploded (',',
+                                                      _getAsString ("toop.codec.inbound",
+                                                                    ToopInterfaceConfig.getInboundCodecIDs ())))
+      if (StringHelper.hasText (sID.trim ()))
+        ret.add (sID.trim ());
+    return ret;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("TenantID", m_sTenantID).getToString ();
+  }
+}
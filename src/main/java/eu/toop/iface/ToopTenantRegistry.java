@@ -0,0 +1,211 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.CommonsLinkedHashMap;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.collection.impl.ICommonsOrderedMap;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.state.EChange;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Registry of all tenants hosted in this JVM. The default tenant is always
+ * present and represents the static configuration of
+ * {@link ToopInterfaceConfig} and {@link ToopInterfaceManager}.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+@ThreadSafe
+public class ToopTenantRegistry implements AutoCloseable
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (ToopTenantRegistry.class);
+
+  private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
+  private final ToopTenant m_aDefaultTenant;
+  @GuardedBy ("m_aRWLock")
+  private final ICommonsOrderedMap <String, ToopTenant> m_aTenants = new CommonsLinkedHashMap <> ();
+  @GuardedBy ("m_aRWLock")
+  private final ICommonsMap <String, ToopTenant> m_aByParticipantID = new CommonsHashMap <> ();
+
+  public ToopTenantRegistry ()
+  {
+    m_aDefaultTenant = new ToopTenant (ToopTenantConfig.getDefault ());
+    m_aTenants.put (m_aDefaultTenant.getID (), m_aDefaultTenant);
+  }
+
+  /**
+   * @return The default tenant. Never <code>null</code>.
+   */
+  @Nonnull
+  public ToopTenant getDefaultTenant ()
+  {
+    return m_aDefaultTenant;
+  }
+
+  /**
+   * Register a new tenant. Its participant IDs are read from the configuration
+   * upon registration.
+   *
+   * @param aTenant
+   *        The tenant to register. May not be <code>null</code>.
+   * @return {@link EChange#UNCHANGED} if a tenant with the same ID is already
+   *         registered.
+   */
+  @Nonnull
+  public EChange registerTenant (@Nonnull final ToopTenant aTenant)
+  {
+    ValueEnforcer.notNull (aTenant, "Tenant");
+
+    return m_aRWLock.writeLocked ( () -> {
+      if (m_aTenants.containsKey (aTenant.getID ()))
+        return EChange.UNCHANGED;
+      m_aTenants.put (aTenant.getID (), aTenant);
+      for (final String sParticipantID : aTenant.getConfig ().getAllParticipantIDs ())
+      {
+        final ToopTenant aOld = m_aByParticipantID.put (sParticipantID, aTenant);
+        if (aOld != null)
+          LOGGER.warn ("Participant ID '" +
+                       sParticipantID +
+                       "' is configured for tenants '" +
+                       aOld.getID () +
+                       "' and '" +
+                       aTenant.getID () +
+                       "' - using the latter");
+      }
+      return EChange.CHANGED;
+    });
+  }
+
+  /**
+   * Remove and close a tenant. The default tenant cannot be removed.
+   *
+   * @param sTenantID
+   *        The ID of the tenant to remove. May be <code>null</code>.
+   * @return {@link EChange}
+   */
+  @Nonnull
+  public EChange unregisterTenant (@Nullable final String sTenantID)
+  {
+    if (sTenantID == null || sTenantID.equals (m_aDefaultTenant.getID ()))
+      return EChange.UNCHANGED;
+
+    final ToopTenant aTenant = m_aRWLock.writeLocked ( () -> {
+      final ToopTenant ret = m_aTenants.remove (sTenantID);
+      if (ret != null)
+        m_aByParticipantID.entrySet ().removeIf (x -> x.getValue () == ret);
+      return ret;
+    });
+    if (aTenant == null)
+      return EChange.UNCHANGED;
+    aTenant.close ();
+    return EChange.CHANGED;
+  }
+
+  /**
+   * @param sTenantID
+   *        The tenant ID to search. May be <code>null</code>.
+   * @return <code>null</code> if no such tenant is registered.
+   */
+  @Nullable
+  public ToopTenant getTenantOfID (@Nullable final String sTenantID)
+  {
+    if (StringHelper.hasNoText (sTenantID))
+      return null;
+    return m_aRWLock.readLocked ( () -> m_aTenants.get (sTenantID));
+  }
+
+  /**
+   * @param sParticipantID
+   *        The participant ID to search. May be <code>null</code>.
+   * @return <code>null</code> if no tenant is configured for this participant
+   *         ID.
+   */
+  @Nullable
+  public ToopTenant getTenantOfParticipantID (@Nullable final String sParticipantID)
+  {
+    if (StringHelper.hasNoText (sParticipantID))
+      return null;
+    return m_aRWLock.readLocked ( () -> m_aByParticipantID.get (sParticipantID));
+  }
+
+  /**
+   * Resolve the tenant from the servlet path info, where the first path
+   * segment is the tenant ID, e.g. <code>/to-dc/acme</code>.
+   *
+   * @param sPathInfo
+   *        The path info of the request. May be <code>null</code>.
+   * @return The default tenant if the path info is empty, <code>null</code> if
+   *         the path info contains an unknown tenant.
+   */
+  @Nullable
+  public ToopTenant getTenantOfPathInfo (@Nullable final String sPathInfo)
+  {
+    final String sPath = StringHelper.trimStartAndEnd (StringHelper.getNotNull (sPathInfo), "/");
+    if (sPath.isEmpty ())
+      return m_aDefaultTenant;
+    final int nSlash = sPath.indexOf ('/');
+    return getTenantOfID (nSlash < 0 ? sPath : sPath.substring (0, nSlash));
+  }
+
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <ToopTenant> getAllTenants ()
+  {
+    return m_aRWLock.readLocked (m_aTenants::copyOfValues);
+  }
+
+  public void close ()
+  {
+    for (final ToopTenant aTenant : getAllTenants ())
+      aTenant.close ();
+  }
+
+  /**
+   * @return A new registry with the default tenant and all tenants from
+   *         {@link ToopInterfaceConfig#getAllTenantIDs()}. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static ToopTenantRegistry createFromConfig ()
+  {
+    final ToopTenantRegistry ret = new ToopTenantRegistry ();
+    for (final String sTenantID : ToopInterfaceConfig.getAllTenantIDs ())
+      if (ret.registerTenant (new ToopTenant (new ToopTenantConfig (sTenantID))).isUnchanged ())
+        LOGGER.warn ("Ignoring duplicate tenant ID '" + sTenantID + "'");
+    return ret;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Tenants", m_aTenants.keySet ()).getToString ();
+  }
+}
@@ -0,0 +1,292 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface;
+
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsLinkedHashMap;
+import com.helger.commons.collection.impl.ICommonsOrderedMap;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+
+import eu.toop.commons.codelist.EPredefinedDocumentTypeIdentifier;
+import eu.toop.commons.codelist.EPredefinedProcessIdentifier;
+import eu.toop.commons.dataexchange.v140.TDEDataRequestSubjectType;
+import eu.toop.commons.dataexchange.v140.TDELegalPersonType;
+import eu.toop.commons.dataexchange.v140.TDETOOPRequestType;
+import eu.toop.commons.exchange.ToopMessageBuilder140;
+import eu.toop.commons.jaxb.ToopXSDHelper140;
+import eu.toop.iface.codec.IToopMessageCodec;
+import eu.toop.iface.codec.ToopMessageCodecRegistry;
+import eu.toop.iface.util.ToopSpoolingOutputStream;
+import oasis.names.specification.ubl.schema.xsd.unqualifieddatatypes_21.IdentifierType;
+
+/**
+ * Initializes everything that is otherwise lazily created on the first
+ * message: the shared executors and pools, the keystores and HTTP clients of
+ * all tenants (including the TLS setup), the JAXB contexts and the XML
+ * signature providers. The latter are warmed up by signing and parsing a
+ * synthetic request with every codec. The duration of each step is recorded,
+ * so that it can be reported by the status servlet. Failing steps are logged
+ * and recorded, but don't stop the warm-up.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+@ThreadSafe
+public final class ToopWarmUp
+{
+  /**
+   * The state of the warm-up.
+   */
+  public enum EState
+  {
+    NOT_STARTED,
+    RUNNING,
+    DONE;
+  }
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (ToopWarmUp.class);
+
+  private static final AtomicReference <EState> s_aState = new AtomicReference <> (EState.NOT_STARTED);
+  private static final SimpleReadWriteLock s_aRWLock = new SimpleReadWriteLock ();
+  private static final ICommonsOrderedMap <String, Long> s_aStepMillis = new CommonsLinkedHashMap <> ();
+  private static final ICommonsOrderedMap <String, String> s_aErrors = new CommonsLinkedHashMap <> ();
+  private static volatile long s_nTotalMillis = -1;
+
+  /**
+   * A single warm-up step.
+   */
+  @FunctionalInterface
+  private interface IStep
+  {
+    void run () throws Exception;
+  }
+
+  private ToopWarmUp ()
+  {}
+
+  private static void _addError (@Nonnull @Nonempty final String sName, @Nonnull final Exception ex)
+  {
+    LOGGER.warn ("TOOP warm-up step '" + sName + "' failed", ex);
+    s_aRWLock.writeLocked ( () -> s_aErrors.put (sName, ex.getMessage () != null ? ex.getMessage ()
+                                                                                : ex.getClass ().getName ()));
+  }
+
+  private static void _step (@Nonnull @Nonempty final String sName, @Nonnull final IStep aStep)
+  {
+    final long nStart = System.nanoTime ();
+    try
+    {
+      aStep.run ();
+    }
+    catch (final Exception ex)
+    {
+      _addError (sName, ex);
+    }
+    final long nMillis = TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - nStart);
+    s_aRWLock.writeLocked ( () -> s_aStepMillis.put (sName, Long.valueOf (nMillis)));
+  }
+
+  /**
+   * @return A synthetic request that is never sent. Never <code>null</code>.
+   */
+  @Nonnull
+  static TDETOOPRequestType createSyntheticRequest ()
+  {
+    final TDEDataRequestSubjectType aSubject = new TDEDataRequestSubjectType ();
+    aSubject.setDataRequestSubjectTypeCode (ToopXSDHelper140.createCode ("LE"));
+    final TDELegalPersonType aLE = new TDELegalPersonType ();
+    aLE.setLegalPersonUniqueIdentifier (ToopXSDHelper140.createIdentifierWithLOA ("XX/XX/warmup"));
+    aLE.setLegalName (ToopXSDHelper140.createTextWithLOA ("TOOP warm-up"));
+    aSubject.setLegalPerson (aLE);
+
+    final IdentifierType aSenderID = new IdentifierType ();
+    aSenderID.setSchemeID ("iso6523-actorid-upis");
+    aSenderID.setValue ("9999:toop-warmup");
+
+    return ToopMessageBuilder140.createMockRequest (aSubject,
+                                                    "XX",
+                                                    "XX",
+                                                    aSenderID,
+                                                    EPredefinedDocumentTypeIdentifier.values ()[0],
+                                                    EPredefinedProcessIdentifier.values ()[0],
+                                                    null);
+  }
+
+  private static void _dryRun (@Nonnull final IToopMessageCodec aCodec,
+                               @Nonnull final Serializable aMessage) throws Exception
+  {
+    try (final ToopSpoolingOutputStream aEncoded = ToopInterfaceManager.getSigningService ()
+                                                                       .encode (aCodec, aMessage, null, null);
+         final InputStream aIS = aEncoded.openInputStream ())
+    {
+      if (aCodec.decode (aIS, x -> {}) == null)
+        throw new IllegalStateException ("Failed to parse the synthetic message with codec '" + aCodec.getID () + "'");
+    }
+  }
+
+  private static void _runSteps ()
+  {
+    final long nStart = System.nanoTime ();
+    LOGGER.info ("Starting TOOP warm-up");
+
+    _step ("infrastructure", () -> {
+      ToopInterfaceManager.getExecutorService ();
+      ToopInterfaceManager.getBufferPool ();
+      ToopInterfaceManager.getSigningService ();
+      ToopInterfaceManager.getInboundLimiter ();
+      ToopInterfaceManager.getPayloadLimits ();
+      ToopMessageCodecRegistry.getInstance ();
+    });
+
+    try
+    {
+      final TDETOOPRequestType aRequest = createSyntheticRequest ();
+      for (final ToopTenant aTenant : ToopInterfaceManager.getTenantRegistry ().getAllTenants ())
+      {
+        final String sPrefix = aTenant.getConfig ().isDefaultTenant () ? "" : aTenant.getID () + ":";
+        _step (sPrefix + "keystore", () -> {
+          aTenant.getKeyMaterial ();
+          aTenant.getSignatureHelper ();
+        });
+        _step (sPrefix + "http", aTenant::getHttpClientManager);
+        try (final ToopTenant.Scope aScope = aTenant.enter ())
+        {
+          for (final IToopMessageCodec aCodec : ToopMessageCodecRegistry.getInstance ().getAllCodecs ())
+            _step (sPrefix + "codec:" + aCodec.getID (), () -> _dryRun (aCodec, aRequest));
+        }
+      }
+    }
+    catch (final RuntimeException ex)
+    {
+      // E.g. an invalid tenant configuration
+      _addError ("tenants", ex);
+    }
+    finally
+    {
+      // Never stay in RUNNING, as the node would never become ready
+      s_nTotalMillis = TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - nStart);
+      s_aState.set (EState.DONE);
+      LOGGER.info ("Finished TOOP warm-up in " + s_nTotalMillis + " ms: " + getAllStepMillis ());
+    }
+  }
+
+  /**
+   * Run the warm-up in the calling thread, unless it was already started.
+   *
+   * @return <code>true</code> if the warm-up was run by this call.
+   */
+  public static boolean run ()
+  {
+    if (!s_aState.compareAndSet (EState.NOT_STARTED, EState.RUNNING))
+      return false;
+    _runSteps ();
+    return true;
+  }
+
+  /**
+   * Start the warm-up in a background thread, unless it was already started.
+   *
+   * @return <code>true</code> if the warm-up was started by this call.
+   */
+  public static boolean runAsync ()
+  {
+    if (!s_aState.compareAndSet (EState.NOT_STARTED, EState.RUNNING))
+      return false;
+    new BasicThreadFactory.Builder ().setNamingPattern ("toop-warmup-%d")
+                                     .setDaemon (true)
+                                     .build ()
+                                     .newThread (ToopWarmUp::_runSteps)
+                                     .start ();
+    return true;
+  }
+
+  /**
+   * Start the warm-up as configured in {@link ToopInterfaceConfig}. This is
+   * called by all servlets upon initialization.
+   */
+  public static void runFromConfig ()
+  {
+    if (ToopInterfaceConfig.isWarmUpEnabled ())
+    {
+      if (ToopInterfaceConfig.isWarmUpAsync ())
+        runAsync ();
+      else
+        run ();
+    }
+  }
+
+  /**
+   * @return The current state. Never <code>null</code>.
+   */
+  @Nonnull
+  public static EState getState ()
+  {
+    return s_aState.get ();
+  }
+
+  /**
+   * @return The total duration in milliseconds or -1 if the warm-up is not
+   *         done.
+   */
+  public static long getTotalMillis ()
+  {
+    return s_nTotalMillis;
+  }
+
+  /**
+   * @return The duration in milliseconds of each step run so far, in
+   *         execution order. Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public static ICommonsOrderedMap <String, Long> getAllStepMillis ()
+  {
+    return s_aRWLock.readLocked (s_aStepMillis::getClone);
+  }
+
+  /**
+   * @return The error message of each failed step. Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public static ICommonsOrderedMap <String, String> getAllErrors ()
+  {
+    return s_aRWLock.readLocked (s_aErrors::getClone);
+  }
+
+  /**
+   * @return The number of failed steps.
+   */
+  @Nonnegative
+  public static int getErrorCount ()
+  {
+    return s_aRWLock.readLocked (s_aErrors::size);
+  }
+}
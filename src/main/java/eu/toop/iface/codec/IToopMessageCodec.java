@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.function.Consumer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.annotation.IsSPIInterface;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.id.IHasID;
+
+import eu.toop.commons.error.ToopErrorException;
+import eu.toop.commons.exchange.AsicReadEntry;
+import eu.toop.commons.exchange.AsicWriteEntry;
+
+/**
+ * SPI interface for the envelope format in which TOOP requests and responses
+ * are exchanged with the TOOP Connector. The codec is negotiated via the HTTP
+ * <code>Content-Type</code>. Implementations must be thread-safe.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+@IsSPIInterface
+public interface IToopMessageCodec extends IHasID <String>
+{
+  /**
+   * @return The MIME type used as HTTP <code>Content-Type</code> for this
+   *         codec, without parameters. Neither <code>null</code> nor empty.
+   */
+  @Nonnull
+  @Nonempty
+  String getContentType ();
+
+  /**
+   * @return <code>true</code> if this codec can transport attachments.
+   */
+  boolean isSupportingAttachments ();
+
+  /**
+   * Encode and sign a TOOP message.
+   *
+   * @param aMessage
+   *        The message to encode. Must be a <code>TDETOOPRequestType</code> or
+   *        a <code>TDETOOPResponseType</code>.
+   * @param aAttachments
+   *        The attachments to add. May be <code>null</code>. Must be empty if
+   *        {@link #isSupportingAttachments()} returns <code>false</code>.
+   * @param aOS
+   *        The stream to write to. May not be <code>null</code>. Is not closed.
+   * @throws IOException
+   *         In case of an I/O error
+   * @throws ToopErrorException
+   *         For known TOOP errors
+   */
+  void encode (@Nonnull Serializable aMessage,
+               @Nullable Iterable <? extends AsicWriteEntry> aAttachments,
+               @Nonnull OutputStream aOS) throws IOException, ToopErrorException;
+
+  /**
+   * Decode a TOOP message and verify its signature.
+   *
+   * @param aIS
+   *        The stream to read from. May not be <code>null</code>.
+   * @param aAttachmentConsumer
+   *        The consumer for all attachments. May not be <code>null</code>.
+   * @return The decoded <code>TDETOOPRequestType</code> or
+   *         <code>TDETOOPResponseType</code> or <code>null</code> if the
+   *         content is invalid.
+   * @throws IOException
+   *         In case of an I/O error
+   */
+  @Nullable
+  Serializable decode (@Nonnull InputStream aIS,
+                       @Nonnull Consumer <? super AsicReadEntry> aAttachmentConsumer) throws IOException;
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.function.Consumer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.asic.SignatureHelper;
+import com.helger.commons.annotation.IsSPIImplementation;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.string.StringHelper;
+
+import eu.toop.commons.dataexchange.v140.TDETOOPRequestType;
+import eu.toop.commons.dataexchange.v140.TDETOOPResponseType;
+import eu.toop.commons.error.ToopErrorException;
+import eu.toop.commons.exchange.AsicReadEntry;
+import eu.toop.commons.exchange.AsicWriteEntry;
+import eu.toop.commons.exchange.ToopMessageBuilder140;
+import eu.toop.iface.ToopTenant;
+import eu.toop.iface.ToopTenantConfig;
+import eu.toop.iface.trace.ToopSpan;
+import eu.toop.iface.trace.ToopTracer;
+
+/**
+ * The default codec, that uses signed ASiC-E containers as created by
+ * {@link ToopMessageBuilder140}. This is the only codec to be used with
+ * external parties.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+@ThreadSafe
+@IsSPIImplementation
+public class ToopAsicMessageCodec implements IToopMessageCodec
+{
+  /** The ID of this codec */
+  public static final String ID = "asic";
+
+  /** The MIME type of ASiC-E containers */
+  public static final String CONTENT_TYPE = "application/vnd.etsi.asic-e+zip";
+
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return ID;
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getContentType ()
+  {
+    return CONTENT_TYPE;
+  }
+
+  public boolean isSupportingAttachments ()
+  {
+    return true;
+  }
+
+  private volatile SignatureHelper m_aSignatureHelper;
+
+  /**
+   * Create a new signature helper from the keystore of a tenant. This reads
+   * the keystore, so the result should be reused.
+   *
+   * @param aConfig
+   *        The tenant configuration. May not be <code>null</code>.
+   * @return The new signature helper. Never <code>null</code>.
+   * @throws IllegalStateException
+   *         If no keystore is configured for the tenant
+   * @since 0.10.9
+   */
+  @Nonnull
+  public static SignatureHelper createSignatureHelper (@Nonnull final ToopTenantConfig aConfig)
+  {
+    if (StringHelper.hasNoText (aConfig.getKeystorePath ()))
+      throw new IllegalStateException ("No keystore configured for tenant '" + aConfig.getTenantID () + "'");
+
+    try (final ToopSpan aSpan = ToopTracer.startSpan (ToopTracer.SPAN_KEYSTORE))
+    {
+      aSpan.setAttribute ("tenant", aConfig.getTenantID ());
+      return new SignatureHelper (aConfig.getKeystoreType (),
+                                  aConfig.getKeystorePath (),
+                                  aConfig.getKeystorePassword (),
+                                  aConfig.getKeystoreKeyAlias (),
+                                  aConfig.getKeystoreKeyPassword ());
+    }
+  }
+
+  @Nonnull
+  private SignatureHelper _getSH ()
+  {
+    // The keystore of the current tenant
+    final ToopTenant aTenant = ToopTenant.getCurrent ();
+    if (aTenant != null)
+      return aTenant.getSignatureHelper ();
+
+    SignatureHelper ret = m_aSignatureHelper;
+    if (ret == null)
+    {
+      // Loading twice in parallel is harmless
+      ret = createSignatureHelper (ToopTenantConfig.getDefault ());
+      m_aSignatureHelper = ret;
+    }
+    return ret;
+  }
+
+  public void encode (@Nonnull final Serializable aMessage,
+                      @Nullable final Iterable <? extends AsicWriteEntry> aAttachments,
+                      @Nonnull final OutputStream aOS) throws IOException, ToopErrorException
+  {
+    final SignatureHelper aSH = _getSH ();
+
+    // Marshal, sign and zip
+    if (aMessage instanceof TDETOOPRequestType)
+      ToopMessageBuilder140.createRequestMessageAsic ((TDETOOPRequestType) aMessage, aOS, aSH);
+    else
+      if (aMessage instanceof TDETOOPResponseType)
+        ToopMessageBuilder140.createResponseMessageAsic ((TDETOOPResponseType) aMessage, aOS, aSH, aAttachments);
+      else
+        throw new IllegalArgumentException ("Unsupported message type " + aMessage.getClass ().getName ());
+  }
+
+  @Nullable
+  public Serializable decode (@Nonnull final InputStream aIS,
+                              @Nonnull final Consumer <? super AsicReadEntry> aAttachmentConsumer) throws IOException
+  {
+    return ToopMessageBuilder140.parseRequestOrResponse (aIS, aAttachmentConsumer::accept);
+  }
+}
@@ -0,0 +1,263 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.codec;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.security.GeneralSecurityException;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.function.Consumer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.annotation.IsSPIImplementation;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+
+import eu.toop.commons.dataexchange.v140.TDETOOPRequestType;
+import eu.toop.commons.dataexchange.v140.TDETOOPResponseType;
+import eu.toop.commons.exchange.AsicReadEntry;
+import eu.toop.commons.exchange.AsicWriteEntry;
+import eu.toop.commons.jaxb.ToopReader;
+import eu.toop.commons.jaxb.ToopWriter;
+import eu.toop.iface.ToopTenant;
+
+/**
+ * A compact codec for trusted internal hops, that avoids the ZIP container and
+ * the XAdES signature of ASiC. The message is marshalled as unformatted XML
+ * and signed with a detached signature over the payload. The signer
+ * certificate is transmitted as well and must be contained in the configured
+ * keystore on the receiving side. Attachments are not supported.<br>
+ * Layout (all integers big endian):
+ *
+ * <pre>
+ * int    magic
+ * byte   version
+ * byte   message type (1 = request, 2 = response)
+ * int    payload length, payload bytes
+ * int    certificate length, DER encoded certificate
+ * int    signature length, signature bytes
+ * </pre>
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+@ThreadSafe
+@IsSPIImplementation
+public class ToopBinaryMessageCodec implements IToopMessageCodec
+{
+  /** The ID of this codec */
+  public static final String ID = "binary";
+
+  /** The MIME type of this codec */
+  public static final String CONTENT_TYPE = "application/x-toop-binary";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (ToopBinaryMessageCodec.class);
+
+  private static final int MAGIC = 0x544f4f50;
+  private static final byte VERSION = 1;
+  private static final byte TYPE_REQUEST = 1;
+  private static final byte TYPE_RESPONSE = 2;
+  /** Upper bound for a single part, to avoid huge allocations */
+  private static final int MAX_PART_LENGTH = 64 * 1024 * 1024;
+
+  private volatile ToopKeyMaterial m_aKeyMaterial;
+
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return ID;
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getContentType ()
+  {
+    return CONTENT_TYPE;
+  }
+
+  public boolean isSupportingAttachments ()
+  {
+    return false;
+  }
+
+  @Nonnull
+  private ToopKeyMaterial _getKeyMaterial ()
+  {
+    final ToopTenant aTenant = ToopTenant.getCurrent ();
+    if (aTenant != null)
+      return aTenant.getKeyMaterial ();
+
+    ToopKeyMaterial ret = m_aKeyMaterial;
+    if (ret == null)
+    {
+      // Loading twice in parallel is harmless
+      ret = ToopKeyMaterial.loadFromConfig ();
+      m_aKeyMaterial = ret;
+    }
+    return ret;
+  }
+
+  public void encode (@Nonnull final Serializable aMessage,
+                      @Nullable final Iterable <? extends AsicWriteEntry> aAttachments,
+                      @Nonnull final OutputStream aOS) throws IOException
+  {
+    if (aAttachments != null && aAttachments.iterator ().hasNext ())
+      throw new IllegalArgumentException ("The binary codec does not support attachments");
+
+    final byte nType;
+    final byte [] aPayload;
+    if (aMessage instanceof TDETOOPRequestType)
+    {
+      nType = TYPE_REQUEST;
+      aPayload = ToopWriter.request140 ().setFormattedOutput (false).getAsBytes ((TDETOOPRequestType) aMessage);
+    }
+    else
+      if (aMessage instanceof TDETOOPResponseType)
+      {
+        nType = TYPE_RESPONSE;
+        aPayload = ToopWriter.response140 ().setFormattedOutput (false).getAsBytes ((TDETOOPResponseType) aMessage);
+      }
+      else
+        throw new IllegalArgumentException ("Unsupported message type " + aMessage.getClass ().getName ());
+    if (aPayload == null)
+      throw new IllegalStateException ("Failed to marshal TOOP message");
+
+    final ToopKeyMaterial aKM = _getKeyMaterial ();
+    final byte [] aCert;
+    final byte [] aSignature;
+    try
+    {
+      aCert = aKM.getCertificate ().getEncoded ();
+      aSignature = aKM.sign (new byte [] { nType }, aPayload);
+    }
+    catch (final GeneralSecurityException ex)
+    {
+      throw new IllegalStateException ("Failed to sign TOOP message", ex);
+    }
+
+    // Don't close the provided stream
+    final DataOutputStream aDOS = new DataOutputStream (aOS);
+    aDOS.writeInt (MAGIC);
+    aDOS.writeByte (VERSION);
+    aDOS.writeByte (nType);
+    aDOS.writeInt (aPayload.length);
+    aDOS.write (aPayload);
+    aDOS.writeInt (aCert.length);
+    aDOS.write (aCert);
+    aDOS.writeInt (aSignature.length);
+    aDOS.write (aSignature);
+    aDOS.flush ();
+  }
+
+  @Nullable
+  private static byte [] _readPart (@Nonnull final DataInputStream aDIS) throws IOException
+  {
+    final int nLength = aDIS.readInt ();
+    if (nLength < 0 || nLength > MAX_PART_LENGTH)
+      return null;
+    final byte [] ret = new byte [nLength];
+    aDIS.readFully (ret);
+    return ret;
+  }
+
+  @Nullable
+  public Serializable decode (@Nonnull final InputStream aIS,
+                              @Nonnull final Consumer <? super AsicReadEntry> aAttachmentConsumer) throws IOException
+  {
+    final DataInputStream aDIS = new DataInputStream (aIS);
+    final byte nType;
+    final byte [] aPayload;
+    final byte [] aCert;
+    final byte [] aSignature;
+    try
+    {
+      if (aDIS.readInt () != MAGIC || aDIS.readByte () != VERSION)
+      {
+        LOGGER.warn ("Binary TOOP message has an invalid header");
+        return null;
+      }
+      nType = aDIS.readByte ();
+      aPayload = _readPart (aDIS);
+      aCert = aPayload == null ? null : _readPart (aDIS);
+      aSignature = aCert == null ? null : _readPart (aDIS);
+      if (aSignature == null)
+      {
+        LOGGER.warn ("Binary TOOP message contains an invalid part length");
+        return null;
+      }
+    }
+    catch (final EOFException ex)
+    {
+      LOGGER.warn ("Binary TOOP message is truncated");
+      return null;
+    }
+
+    // Verify the signature before parsing anything
+    try
+    {
+      final X509Certificate aX509 = (X509Certificate) CertificateFactory.getInstance ("X.509")
+                                                                        .generateCertificate (new NonBlockingByteArrayInputStream (aCert));
+      final ToopKeyMaterial aKM = _getKeyMaterial ();
+      if (!aKM.isTrusted (aX509))
+      {
+        LOGGER.warn ("Binary TOOP message is signed by an untrusted or expired certificate " +
+                     aX509.getSubjectX500Principal ().getName ());
+        return null;
+      }
+
+      final Signature aSig = Signature.getInstance (ToopKeyMaterial.getSignatureAlgorithm (aX509.getPublicKey ()
+                                                                                               .getAlgorithm ()));
+      aSig.initVerify (aX509);
+      aSig.update (nType);
+      aSig.update (aPayload);
+      if (!aSig.verify (aSignature))
+      {
+        LOGGER.warn ("Binary TOOP message has an invalid signature");
+        return null;
+      }
+    }
+    catch (final GeneralSecurityException | ClassCastException ex)
+    {
+      LOGGER.warn ("Failed to verify binary TOOP message", ex);
+      return null;
+    }
+
+    switch (nType)
+    {
+      case TYPE_REQUEST:
+        return ToopReader.request140 ().read (aPayload);
+      case TYPE_RESPONSE:
+        return ToopReader.response140 ().read (aPayload);
+      default:
+        LOGGER.warn ("Binary TOOP message has the unsupported type " + nType);
+        return null;
+    }
+  }
+}
@@ -0,0 +1,264 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.codec;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.security.keystore.KeyStoreHelper;
+import com.helger.security.keystore.LoadedKey;
+import com.helger.security.keystore.LoadedKeyStore;
+
+import eu.toop.iface.ToopInterfaceConfig;
+import eu.toop.iface.ToopTenantConfig;
+
+/**
+ * The configured keystore together with the signing key and certificate. The
+ * keystore also serves as the trust store for detached signatures: a
+ * certificate is trusted if it is contained in the keystore.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+@ThreadSafe
+public final class ToopKeyMaterial
+{
+  /** The maximum number of idle signature instances kept per key */
+  public static final int MAX_POOLED_SIGNATURES = Math.max (4, Runtime.getRuntime ().availableProcessors () * 2);
+
+  private final KeyStore m_aKeyStore;
+  private final PrivateKey m_aPrivateKey;
+  private final X509Certificate m_aCertificate;
+  // Signature instances that are already initialized for signing
+  private final ConcurrentLinkedQueue <Signature> m_aSignaturePool = new ConcurrentLinkedQueue <> ();
+  private final AtomicInteger m_aPooledSignatures = new AtomicInteger ();
+
+  public ToopKeyMaterial (@Nonnull final KeyStore aKeyStore,
+                          @Nonnull final PrivateKey aPrivateKey,
+                          @Nonnull final X509Certificate aCertificate)
+  {
+    ValueEnforcer.notNull (aKeyStore, "KeyStore");
+    ValueEnforcer.notNull (aPrivateKey, "PrivateKey");
+    ValueEnforcer.notNull (aCertificate, "Certificate");
+    m_aKeyStore = aKeyStore;
+    m_aPrivateKey = aPrivateKey;
+    m_aCertificate = aCertificate;
+  }
+
+  @Nonnull
+  public KeyStore getKeyStore ()
+  {
+    return m_aKeyStore;
+  }
+
+  @Nonnull
+  public PrivateKey getPrivateKey ()
+  {
+    return m_aPrivateKey;
+  }
+
+  @Nonnull
+  public X509Certificate getCertificate ()
+  {
+    return m_aCertificate;
+  }
+
+  /**
+   * @return The JCA signature algorithm matching the private key, e.g.
+   *         <code>SHA256withRSA</code>.
+   */
+  @Nonnull
+  public String getSignatureAlgorithm ()
+  {
+    return getSignatureAlgorithm (m_aPrivateKey.getAlgorithm ());
+  }
+
+  /**
+   * @param sKeyAlgorithm
+   *        The key algorithm, e.g. <code>RSA</code>. May not be
+   *        <code>null</code>.
+   * @return The JCA signature algorithm to use with keys of the provided
+   *         algorithm.
+   */
+  @Nonnull
+  public static String getSignatureAlgorithm (@Nonnull final String sKeyAlgorithm)
+  {
+    return "SHA256with" + ("EC".equals (sKeyAlgorithm) ? "ECDSA" : sKeyAlgorithm);
+  }
+
+  @Nonnull
+  private Signature _borrowSignature () throws GeneralSecurityException
+  {
+    final Signature ret = m_aSignaturePool.poll ();
+    if (ret != null)
+    {
+      m_aPooledSignatures.decrementAndGet ();
+      return ret;
+    }
+    final Signature aSig = Signature.getInstance (getSignatureAlgorithm ());
+    aSig.initSign (m_aPrivateKey);
+    return aSig;
+  }
+
+  private void _returnSignature (@Nonnull final Signature aSig)
+  {
+    if (m_aPooledSignatures.incrementAndGet () <= MAX_POOLED_SIGNATURES)
+      m_aSignaturePool.offer (aSig);
+    else
+      m_aPooledSignatures.decrementAndGet ();
+  }
+
+  /**
+   * Sign the concatenation of the provided parts with the private key. The
+   * {@link Signature} instances are kept initialized in a pool, because
+   * looking up the provider and initializing the key is expensive compared to
+   * signing small messages.
+   *
+   * @param aParts
+   *        The data to sign. May not be <code>null</code>.
+   * @return The signature bytes. Never <code>null</code>.
+   * @throws GeneralSecurityException
+   *         If signing fails
+   * @since 0.10.9
+   */
+  @Nonnull
+  public byte [] sign (@Nonnull final byte []... aParts) throws GeneralSecurityException
+  {
+    ValueEnforcer.notNull (aParts, "Parts");
+
+    final Signature aSig = _borrowSignature ();
+    for (final byte [] aPart : aParts)
+      aSig.update (aPart);
+    // Resets the instance to the state after initSign. If anything fails
+    // before, the instance is not returned, as its state is unknown.
+    final byte [] ret = aSig.sign ();
+    _returnSignature (aSig);
+    return ret;
+  }
+
+  /**
+   * @return The number of idle, initialized signature instances.
+   * @since 0.10.9
+   */
+  @Nonnegative
+  public int getPooledSignatureCount ()
+  {
+    return Math.max (m_aPooledSignatures.get (), 0);
+  }
+
+  /**
+   * Check if the provided certificate is contained in the keystore and, for
+   * X.509 certificates, is currently valid.
+   *
+   * @param aCert
+   *        The certificate to check. May be <code>null</code>.
+   * @return <code>true</code> if it is trusted, <code>false</code> if it is
+   *         unknown, expired or not yet valid.
+   */
+  public boolean isTrusted (@Nullable final Certificate aCert)
+  {
+    if (aCert == null)
+      return false;
+    try
+    {
+      // Trusting the keystore entry alone would accept expired certificates
+      if (aCert instanceof X509Certificate)
+        ((X509Certificate) aCert).checkValidity ();
+      return m_aKeyStore.getCertificateAlias (aCert) != null;
+    }
+    catch (final GeneralSecurityException ex)
+    {
+      return false;
+    }
+  }
+
+  /**
+   * Load the key material from the keystore configured in
+   * {@link ToopInterfaceConfig}.
+   *
+   * @return The loaded key material. Never <code>null</code>.
+   * @throws IllegalStateException
+   *         If the keystore or the key cannot be loaded
+   */
+  @Nonnull
+  public static ToopKeyMaterial loadFromConfig ()
+  {
+    return loadFromConfig (ToopTenantConfig.getDefault ());
+  }
+
+  /**
+   * Load the key material from the keystore configured for a tenant.
+   *
+   * @param aConfig
+   *        The tenant configuration to use. May not be <code>null</code>.
+   * @return The loaded key material. Never <code>null</code>.
+   * @throws IllegalStateException
+   *         If no keystore is configured for the tenant or if the keystore or
+   *         the key cannot be loaded
+   */
+  @Nonnull
+  public static ToopKeyMaterial loadFromConfig (@Nonnull final ToopTenantConfig aConfig)
+  {
+    ValueEnforcer.notNull (aConfig, "Config");
+    if (StringHelper.hasNoText (aConfig.getKeystorePath ()))
+      throw new IllegalStateException ("No keystore configured for tenant '" + aConfig.getTenantID () + "'");
+
+    final LoadedKeyStore aLKS = KeyStoreHelper.loadKeyStore (aConfig.getKeystoreType (),
+                                                             aConfig.getKeystorePath (),
+                                                             aConfig.getKeystorePassword ());
+    if (aLKS.isFailure ())
+      throw new IllegalStateException ("Failed to load keystore '" + aConfig.getKeystorePath () + "': " + aLKS.getError ());
+
+    final String sPassword = aConfig.getKeystoreKeyPassword ();
+    final LoadedKey <KeyStore.PrivateKeyEntry> aLK = KeyStoreHelper.loadPrivateKey (aLKS.getKeyStore (),
+                                                                                    aConfig.getKeystorePath (),
+                                                                                    aConfig.getKeystoreKeyAlias (),
+                                                                                    sPassword == null ? null
+                                                                                                      : sPassword.toCharArray ());
+    if (aLK.isFailure ())
+      throw new IllegalStateException ("Failed to load key '" +
+                                       aConfig.getKeystoreKeyAlias () +
+                                       "' from keystore: " +
+                                       aLK.getError ());
+
+    final KeyStore.PrivateKeyEntry aEntry = aLK.getKeyEntry ();
+    return new ToopKeyMaterial (aLKS.getKeyStore (),
+                                aEntry.getPrivateKey (),
+                                (X509Certificate) aEntry.getCertificate ());
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Certificate", m_aCertificate.getSubjectX500Principal ().getName ())
+                                       .append ("SignatureAlgorithm", getSignatureAlgorithm ())
+                                       .getToString ();
+  }
+}
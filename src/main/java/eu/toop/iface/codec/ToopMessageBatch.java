@@ -0,0 +1,238 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.codec;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UTFDataFormatException;
+import java.util.Locale;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.string.StringHelper;
+
+/**
+ * Wire format to transport multiple encoded TOOP messages in one HTTP request.
+ * Each part is a complete message as created by an {@link IToopMessageCodec},
+ * together with the content type of that codec, so that the receiver can
+ * decode each part independently. The parts are simply length prefixed, to
+ * avoid the boundary scanning of multipart bodies.<br>
+ * Layout (all integers big endian):
+ *
+ * <pre>
+ * int    magic
+ * byte   version
+ * per part:
+ *   int    part length (&ge; 0)
+ *   UTF    content type of the part
+ *   bytes  encoded message
+ * int    -1 as the end marker
+ * </pre>
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+@Immutable
+public final class ToopMessageBatch
+{
+  /** The MIME type of a batch */
+  public static final String CONTENT_TYPE = "application/x-toop-batch";
+  /**
+   * The HTTP response header of an error response to a batch, that contains
+   * the number of leading parts that were already delivered. Only the parts
+   * after them need to be sent again.
+   */
+  public static final String HTTP_HEADER_DELIVERED = "X-Toop-Batch-Delivered";
+
+  private static final int MAGIC = 0x544f4242;
+  private static final byte VERSION = 1;
+  private static final int END_OF_BATCH = -1;
+  private static final int COPY_BUFFER_SIZE = 16 * 1024;
+
+  /**
+   * Callback for each part of a batch.
+   */
+  @FunctionalInterface
+  public interface IPartConsumer
+  {
+    /**
+     * @param nIndex
+     *        0-based index of the part
+     * @param sContentType
+     *        The content type of the part. Never <code>null</code>.
+     * @param aPayload
+     *        The encoded message. Never <code>null</code>.
+     * @throws IOException
+     *         To abort reading
+     */
+    void accept (@Nonnegative int nIndex, @Nonnull String sContentType, @Nonnull byte [] aPayload) throws IOException;
+  }
+
+  private ToopMessageBatch ()
+  {}
+
+  /**
+   * Check if the provided HTTP <code>Content-Type</code> denotes a batch.
+   * Parameters are ignored.
+   *
+   * @param sContentType
+   *        The content type. May be <code>null</code>.
+   * @return <code>true</code> if it is {@link #CONTENT_TYPE}.
+   */
+  public static boolean isBatchContentType (@Nullable final String sContentType)
+  {
+    if (StringHelper.hasNoText (sContentType))
+      return false;
+    final int nSemicolon = sContentType.indexOf (';');
+    final String sMimeType = (nSemicolon >= 0 ? sContentType.substring (0, nSemicolon) : sContentType).trim ()
+                                                                                                       .toLowerCase (Locale.ROOT);
+    return CONTENT_TYPE.equals (sMimeType);
+  }
+
+  /**
+   * Write the batch header. Must be called once before the first part.
+   *
+   * @param aOS
+   *        The stream to write to. May not be <code>null</code>. Is not
+   *        closed.
+   * @throws IOException
+   *         On write error
+   */
+  public static void writeHeader (@Nonnull final OutputStream aOS) throws IOException
+  {
+    final DataOutputStream aDOS = new DataOutputStream (aOS);
+    aDOS.writeInt (MAGIC);
+    aDOS.writeByte (VERSION);
+    aDOS.flush ();
+  }
+
+  /**
+   * Write a single part by copying the encoded message from a stream.
+   *
+   * @param aOS
+   *        The stream to write to. May not be <code>null</code>. Is not
+   *        closed.
+   * @param sContentType
+   *        The content type of the codec that created the message. May neither
+   *        be <code>null</code> nor empty.
+   * @param aIS
+   *        The encoded message. May not be <code>null</code>. Is not closed.
+   * @param nLength
+   *        The exact number of bytes to copy from the stream.
+   * @throws IOException
+   *         On read or write error or if the stream ends prematurely
+   */
+  public static void writePart (@Nonnull final OutputStream aOS,
+                                @Nonnull @Nonempty final String sContentType,
+                                @Nonnull final InputStream aIS,
+                                @Nonnegative final long nLength) throws IOException
+  {
+    ValueEnforcer.notEmpty (sContentType, "ContentType");
+    ValueEnforcer.isBetweenInclusive (nLength, "Length", 0, Integer.MAX_VALUE);
+
+    final DataOutputStream aDOS = new DataOutputStream (aOS);
+    aDOS.writeInt ((int) nLength);
+    aDOS.writeUTF (sContentType);
+    final byte [] aBuf = new byte [(int) Math.min (COPY_BUFFER_SIZE, Math.max (nLength, 1))];
+    long nRemaining = nLength;
+    while (nRemaining > 0)
+    {
+      final int nRead = aIS.read (aBuf, 0, (int) Math.min (aBuf.length, nRemaining));
+      if (nRead < 0)
+        throw new EOFException ("Message ended after " + (nLength - nRemaining) + " of " + nLength + " bytes");
+      aDOS.write (aBuf, 0, nRead);
+      nRemaining -= nRead;
+    }
+    aDOS.flush ();
+  }
+
+  /**
+   * Write the end marker. Must be called once after the last part.
+   *
+   * @param aOS
+   *        The stream to write to. May not be <code>null</code>. Is not
+   *        closed.
+   * @throws IOException
+   *         On write error
+   */
+  public static void writeEnd (@Nonnull final OutputStream aOS) throws IOException
+  {
+    final DataOutputStream aDOS = new DataOutputStream (aOS);
+    aDOS.writeInt (END_OF_BATCH);
+    aDOS.flush ();
+  }
+
+  /**
+   * Read a complete batch and pass each part to the consumer in order.
+   *
+   * @param aIS
+   *        The stream to read from. May not be <code>null</code>. Is not
+   *        closed.
+   * @param nMaxPartBytes
+   *        The maximum length of a single part. Usually the size of the whole
+   *        body, so that a corrupt length does not lead to a huge allocation.
+   * @param aConsumer
+   *        The consumer for each part. May not be <code>null</code>.
+   * @return The number of parts read or -1 if the batch is structurally
+   *         invalid. Parts that were already passed to the consumer are not
+   *         revoked.
+   * @throws IOException
+   *         On read error or if the consumer throws it
+   */
+  public static int read (@Nonnull final InputStream aIS,
+                          @Nonnegative final long nMaxPartBytes,
+                          @Nonnull final IPartConsumer aConsumer) throws IOException
+  {
+    final DataInputStream aDIS = new DataInputStream (aIS);
+    try
+    {
+      if (aDIS.readInt () != MAGIC || aDIS.readByte () != VERSION)
+        return -1;
+
+      int nIndex = 0;
+      while (true)
+      {
+        final int nLength = aDIS.readInt ();
+        if (nLength == END_OF_BATCH)
+          return nIndex;
+        if (nLength < 0 || nLength > nMaxPartBytes)
+          return -1;
+
+        final String sContentType = aDIS.readUTF ();
+        if (sContentType.isEmpty ())
+          return -1;
+        final byte [] aPayload = new byte [nLength];
+        aDIS.readFully (aPayload);
+        aConsumer.accept (nIndex, sContentType, aPayload);
+        nIndex++;
+      }
+    }
+    catch (final EOFException | UTFDataFormatException ex)
+    {
+      // Truncated or garbage
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.codec;
+
+import java.util.Collection;
+import java.util.Locale;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsLinkedHashMap;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsOrderedMap;
+import com.helger.commons.lang.ServiceLoaderHelper;
+import com.helger.commons.string.StringHelper;
+
+/**
+ * Registry for all {@link IToopMessageCodec} implementations found via the
+ * SPI. {@link ToopAsicMessageCodec} is always present and is the default.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+@Immutable
+public final class ToopMessageCodecRegistry
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (ToopMessageCodecRegistry.class);
+
+  private static final class SingletonHolder
+  {
+    static final ToopMessageCodecRegistry INSTANCE = new ToopMessageCodecRegistry ();
+  }
+
+  private final IToopMessageCodec m_aDefaultCodec;
+  private final ICommonsOrderedMap <String, IToopMessageCodec> m_aByID = new CommonsLinkedHashMap <> ();
+  private final ICommonsOrderedMap <String, IToopMessageCodec> m_aByContentType = new CommonsLinkedHashMap <> ();
+
+  private ToopMessageCodecRegistry ()
+  {
+    IToopMessageCodec aDefaultCodec = null;
+    for (final IToopMessageCodec aCodec : ServiceLoaderHelper.getAllSPIImplementations (IToopMessageCodec.class))
+    {
+      if (m_aByID.containsKey (aCodec.getID ()))
+      {
+        LOGGER.warn ("Ignoring TOOP message codec " + aCodec + " because the ID '" + aCodec.getID () + "' is already used");
+        continue;
+      }
+      m_aByID.put (aCodec.getID (), aCodec);
+      m_aByContentType.put (aCodec.getContentType ().toLowerCase (Locale.ROOT), aCodec);
+      if (aCodec instanceof ToopAsicMessageCodec)
+        aDefaultCodec = aCodec;
+    }
+    if (aDefaultCodec == null)
+    {
+      // In case the SPI file is not visible
+      aDefaultCodec = new ToopAsicMessageCodec ();
+      m_aByID.put (aDefaultCodec.getID (), aDefaultCodec);
+      m_aByContentType.put (aDefaultCodec.getContentType (), aDefaultCodec);
+    }
+    m_aDefaultCodec = aDefaultCodec;
+  }
+
+  @Nonnull
+  public static ToopMessageCodecRegistry getInstance ()
+  {
+    return SingletonHolder.INSTANCE;
+  }
+
+  /**
+   * @return The ASiC codec. Never <code>null</code>.
+   */
+  @Nonnull
+  public IToopMessageCodec getDefaultCodec ()
+  {
+    return m_aDefaultCodec;
+  }
+
+  @Nullable
+  public IToopMessageCodec getCodecOfID (@Nullable final String sID)
+  {
+    return m_aByID.get (sID);
+  }
+
+  /**
+   * Find the codec for an HTTP <code>Content-Type</code>. Parameters like
+   * <code>charset</code> are ignored.
+   *
+   * @param sContentType
+   *        The content type. May be <code>null</code>.
+   * @return The matching codec or the default codec if no content type is
+   *         provided or it is unknown. Never <code>null</code>.
+   */
+  @Nonnull
+  public IToopMessageCodec getCodecOfContentType (@Nullable final String sContentType)
+  {
+    if (StringHelper.hasNoText (sContentType))
+      return m_aDefaultCodec;
+
+    final int nSemicolon = sContentType.indexOf (';');
+    final String sMimeType = (nSemicolon >= 0 ? sContentType.substring (0, nSemicolon) : sContentType).trim ()
+                                                                                                          .toLowerCase (Locale.ROOT);
+    final IToopMessageCodec ret = m_aByContentType.get (sMimeType);
+    return ret != null ? ret : m_aDefaultCodec;
+  }
+
+  /**
+   * Find the codec for an HTTP <code>Content-Type</code> like
+   * {@link #getCodecOfContentType(String)}, but only accept the provided
+   * codecs. This must be used for received messages, so that a sender cannot
+   * choose an unsigned codec.
+   *
+   * @param sContentType
+   *        The content type. May be <code>null</code>.
+   * @param aAllowedIDs
+   *        The IDs of the accepted codecs. May not be <code>null</code>.
+   * @return The matching codec or <code>null</code> if it is not accepted.
+   */
+  @Nullable
+  public IToopMessageCodec getCodecOfContentType (@Nullable final String sContentType,
+                                                  @Nonnull final Collection <String> aAllowedIDs)
+  {
+    ValueEnforcer.notNull (aAllowedIDs, "AllowedIDs");
+
+    final IToopMessageCodec ret = getCodecOfContentType (sContentType);
+    return aAllowedIDs.contains (ret.getID ()) ? ret : null;
+  }
+
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <IToopMessageCodec> getAllCodecs ()
+  {
+    return m_aByID.copyOfValues ();
+  }
+}
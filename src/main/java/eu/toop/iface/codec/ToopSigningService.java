@@ -0,0 +1,327 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.codec;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCounter;
+import com.helger.commons.statistics.IMutableStatisticsHandlerTimer;
+import com.helger.commons.statistics.StatisticsManager;
+import com.helger.commons.string.ToStringGenerator;
+
+import eu.toop.commons.error.ToopErrorException;
+import eu.toop.commons.exchange.AsicWriteEntry;
+import eu.toop.iface.ToopDeadline;
+import eu.toop.iface.ToopInterfaceConfig;
+import eu.toop.iface.ToopTenant;
+import eu.toop.iface.util.ToopDeadlineExceededException;
+import eu.toop.iface.util.ToopLatencyRecorder;
+import eu.toop.iface.util.ToopSpoolingOutputStream;
+
+/**
+ * Encodes outgoing messages on a dedicated, bounded thread pool. Encoding
+ * includes the private key operation for signing, which dominates the CPU
+ * usage when sending. Running it on its own pool sized to the number of cores
+ * keeps the signing throughput tunable on its own and prevents it from
+ * starving unrelated work on the shared executor. If the queue is full, the
+ * caller signs itself, which throttles the producers.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+@ThreadSafe
+public class ToopSigningService implements AutoCloseable
+{
+  private static final IMutableStatisticsHandlerTimer s_aStatsSign = StatisticsManager.getTimerHandler (ToopSigningService.class.getName () +
+                                                                                                        "$sign");
+  private static final IMutableStatisticsHandlerTimer s_aStatsWait = StatisticsManager.getTimerHandler (ToopSigningService.class.getName () +
+                                                                                                        "$wait");
+  private static final IMutableStatisticsHandlerCounter s_aStatsCallerRuns = StatisticsManager.getCounterHandler (ToopSigningService.class.getName () +
+                                                                                                                 "$callerruns");
+
+  /**
+   * A task that releases its buffer if the result is set after the caller
+   * gave up waiting.
+   */
+  private static final class EncodeTask extends FutureTask <ToopSpoolingOutputStream>
+  {
+    EncodeTask (@Nonnull final Callable <ToopSpoolingOutputStream> aCallable)
+    {
+      super (aCallable);
+    }
+
+    @Override
+    protected void set (final ToopSpoolingOutputStream aResult)
+    {
+      super.set (aResult);
+      if (isCancelled ())
+        aResult.close ();
+    }
+  }
+
+  private final int m_nThreads;
+  private final ThreadPoolExecutor m_aExecutor;
+  private final ToopLatencyRecorder m_aSignLatency = new ToopLatencyRecorder ();
+  private final ToopLatencyRecorder m_aWaitLatency = new ToopLatencyRecorder ();
+
+  /**
+   * Constructor
+   *
+   * @param nThreads
+   *        The number of signing threads. 0 means to sign in the calling
+   *        thread.
+   * @param nQueueSize
+   *        The maximum number of messages waiting to be signed. Must be &gt;
+   *        0.
+   */
+  public ToopSigningService (@Nonnegative final int nThreads, @Nonnegative final int nQueueSize)
+  {
+    ValueEnforcer.isGE0 (nThreads, "Threads");
+    ValueEnforcer.isGT0 (nQueueSize, "QueueSize");
+    m_nThreads = nThreads;
+    m_aExecutor = nThreads == 0 ? null
+                                : new ThreadPoolExecutor (nThreads,
+                                                          nThreads,
+                                                          0L,
+                                                          TimeUnit.MILLISECONDS,
+                                                          new ArrayBlockingQueue <> (nQueueSize),
+                                                          new BasicThreadFactory.Builder ().setNamingPattern ("toop-signing-%d")
+                                                                                           .setDaemon (true)
+                                                                                           .build (),
+                                                          new ThreadPoolExecutor.AbortPolicy ());
+  }
+
+  /**
+   * @return The number of signing threads. 0 if signing happens in the
+   *         calling thread.
+   */
+  @Nonnegative
+  public final int getThreadCount ()
+  {
+    return m_nThreads;
+  }
+
+  /**
+   * @return The number of messages that are currently being signed by the
+   *         signing threads.
+   */
+  @Nonnegative
+  public int getActiveCount ()
+  {
+    return m_aExecutor == null ? 0 : m_aExecutor.getActiveCount ();
+  }
+
+  /**
+   * @return The number of messages waiting for a signing thread.
+   */
+  @Nonnegative
+  public int getQueueDepth ()
+  {
+    return m_aExecutor == null ? 0 : m_aExecutor.getQueue ().size ();
+  }
+
+  /**
+   * @return The most recent encoding durations, excluding the time spent in
+   *         the queue. Never <code>null</code>.
+   */
+  @Nonnull
+  public ToopLatencyRecorder getSignLatencyRecorder ()
+  {
+    return m_aSignLatency;
+  }
+
+  /**
+   * @return The most recent times spent in the queue. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public ToopLatencyRecorder getWaitLatencyRecorder ()
+  {
+    return m_aWaitLatency;
+  }
+
+  @Nonnull
+  private ToopSpoolingOutputStream _encode (@Nonnull final IToopMessageCodec aCodec,
+                                            @Nonnull final Serializable aMessage,
+                                            @Nullable final Iterable <? extends AsicWriteEntry> aAttachments,
+                                            final long nQueuedNanos) throws IOException, ToopErrorException
+  {
+    final long nStart = System.nanoTime ();
+    final long nWaitMillis = TimeUnit.NANOSECONDS.toMillis (nStart - nQueuedNanos);
+    m_aWaitLatency.record (nWaitMillis);
+    s_aStatsWait.addTime (nWaitMillis);
+
+    // Large messages, e.g. with attachments, are spooled to disk
+    final ToopSpoolingOutputStream ret = ToopSpoolingOutputStream.createFromConfig ();
+    try
+    {
+      aCodec.encode (aMessage, aAttachments, ret);
+      return ret;
+    }
+    catch (final IOException | ToopErrorException | RuntimeException ex)
+    {
+      ret.close ();
+      throw ex;
+    }
+    finally
+    {
+      final long nSignMillis = TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - nStart);
+      m_aSignLatency.record (nSignMillis);
+      s_aStatsSign.addTime (nSignMillis);
+    }
+  }
+
+  /**
+   * Encode and sign a message on a signing thread and wait for the result.
+   *
+   * @param aCodec
+   *        The codec to use. May not be <code>null</code>.
+   * @param aMessage
+   *        The message to encode. May not be <code>null</code>.
+   * @param aAttachments
+   *        Optional attachments. May be <code>null</code>.
+   * @param aDeadline
+   *        The deadline of the caller. May be <code>null</code> to wait
+   *        without limit.
+   * @return The buffer with the encoded message, that must be closed by the
+   *         caller. Never <code>null</code>.
+   * @throws ToopDeadlineExceededException
+   *         If the deadline is exceeded while waiting
+   * @throws IOException
+   *         On encoding error or if interrupted
+   * @throws ToopErrorException
+   *         For known TOOP errors
+   */
+  @Nonnull
+  public ToopSpoolingOutputStream encode (@Nonnull final IToopMessageCodec aCodec,
+                                          @Nonnull final Serializable aMessage,
+                                          @Nullable final Iterable <? extends AsicWriteEntry> aAttachments,
+                                          @Nullable final ToopDeadline aDeadline) throws IOException,
+                                                                                  ToopErrorException
+  {
+    ValueEnforcer.notNull (aCodec, "Codec");
+    ValueEnforcer.notNull (aMessage, "Message");
+
+    final long nQueued = System.nanoTime ();
+    if (m_aExecutor == null)
+      return _encode (aCodec, aMessage, aAttachments, nQueued);
+
+    final EncodeTask aTask = new EncodeTask ( () -> _encode (aCodec, aMessage, aAttachments, nQueued));
+    try
+    {
+      // Sign with the keystore of the current tenant
+      m_aExecutor.execute (ToopTenant.wrapCurrent (aTask));
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      // Queue is full - back pressure by signing in the calling thread
+      s_aStatsCallerRuns.increment ();
+      return _encode (aCodec, aMessage, aAttachments, nQueued);
+    }
+
+    try
+    {
+      if (aDeadline == null)
+        return aTask.get ();
+      return aTask.get (aDeadline.getRemainingMillis (), TimeUnit.MILLISECONDS);
+    }
+    catch (final TimeoutException ex)
+    {
+      if (!aTask.cancel (true))
+        _releaseIfDone (aTask);
+      throw new ToopDeadlineExceededException ("Deadline exceeded while waiting for signing", ex);
+    }
+    catch (final InterruptedException ex)
+    {
+      if (!aTask.cancel (true))
+        _releaseIfDone (aTask);
+      Thread.currentThread ().interrupt ();
+      final InterruptedIOException ex2 = new InterruptedIOException ("Interrupted while waiting for signing");
+      ex2.initCause (ex);
+      throw ex2;
+    }
+    catch (final ExecutionException ex)
+    {
+      final Throwable aCause = ex.getCause ();
+      if (aCause instanceof IOException)
+        throw (IOException) aCause;
+      if (aCause instanceof ToopErrorException)
+        throw (ToopErrorException) aCause;
+      if (aCause instanceof RuntimeException)
+        throw (RuntimeException) aCause;
+      if (aCause instanceof Error)
+        throw (Error) aCause;
+      throw new IllegalStateException ("Failed to encode TOOP message", aCause);
+    }
+  }
+
+  private static void _releaseIfDone (@Nonnull final EncodeTask aTask)
+  {
+    // Finished in the meantime - nobody else will close the buffer
+    try
+    {
+      aTask.get ().close ();
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+    catch (final ExecutionException ex)
+    {
+      // Buffer was already released
+    }
+  }
+
+  public void close ()
+  {
+    if (m_aExecutor != null)
+      m_aExecutor.shutdown ();
+  }
+
+  /**
+   * @return A new signing service based on the settings in
+   *         {@link ToopInterfaceConfig}. Never <code>null</code>.
+   */
+  @Nonnull
+  public static ToopSigningService createFromConfig ()
+  {
+    return new ToopSigningService (Math.max (ToopInterfaceConfig.getSigningThreads (), 0),
+                                   ToopInterfaceConfig.getSigningQueueSize ());
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Threads", m_nThreads).getToString ();
+  }
+}
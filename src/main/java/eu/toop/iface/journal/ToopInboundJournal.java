@@ -0,0 +1,829 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.journal;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.annotation.ReturnsMutableObject;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsLinkedHashMap;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsOrderedMap;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCounter;
+import com.helger.commons.statistics.IMutableStatisticsHandlerTimer;
+import com.helger.commons.statistics.StatisticsManager;
+import com.helger.commons.string.ToStringGenerator;
+
+import eu.toop.iface.ToopInterfaceConfig;
+
+/**
+ * A write-ahead journal for received messages. The raw message bytes are
+ * appended to a local, segmented log before the receipt is acknowledged to the
+ * sender, and a completion record is appended after the callback finished.
+ * Messages without completion record are available for replay after a
+ * restart.<br>
+ * Concurrent appends share a single <code>fsync</code> (group commit): the
+ * first waiting thread forces the channel on behalf of all records written up
+ * to that point, while the others wait for it. Completion records are not
+ * forced, so that after a crash a message may be replayed although its
+ * callback already ran (at-least-once delivery).
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+@ThreadSafe
+public class ToopInboundJournal implements AutoCloseable
+{
+  /**
+   * A message read from the journal on startup, that was not completed in the
+   * previous run.
+   */
+  public static final class Entry
+  {
+    private final long m_nSequence;
+    private final String m_sTenantID;
+    private final String m_sContentType;
+    private final byte [] m_aPayload;
+
+    Entry (final long nSequence,
+           @Nonnull final String sTenantID,
+           @Nonnull final String sContentType,
+           @Nonnull final byte [] aPayload)
+    {
+      m_nSequence = nSequence;
+      m_sTenantID = sTenantID;
+      m_sContentType = sContentType;
+      m_aPayload = aPayload;
+    }
+
+    /**
+     * @return The journal sequence number, to be passed to
+     *         {@link ToopInboundJournal#complete(long)}.
+     */
+    public long getSequence ()
+    {
+      return m_nSequence;
+    }
+
+    /**
+     * @return The ID of the tenant that received the message. Never
+     *         <code>null</code>.
+     */
+    @Nonnull
+    public String getTenantID ()
+    {
+      return m_sTenantID;
+    }
+
+    /**
+     * @return The HTTP content type the message was received with. Never
+     *         <code>null</code> but maybe empty.
+     */
+    @Nonnull
+    public String getContentType ()
+    {
+      return m_sContentType;
+    }
+
+    /**
+     * @return The raw message bytes. Never <code>null</code>.
+     */
+    @Nonnull
+    @ReturnsMutableObject
+    public byte [] getPayload ()
+    {
+      return m_aPayload;
+    }
+
+    @Override
+    public String toString ()
+    {
+      return new ToStringGenerator (null).append ("Sequence", m_nSequence)
+                                         .append ("TenantID", m_sTenantID)
+                                         .append ("ContentType", m_sContentType)
+                                         .append ("PayloadLength", m_aPayload.length)
+                                         .getToString ();
+    }
+  }
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (ToopInboundJournal.class);
+  private static final IMutableStatisticsHandlerCounter s_aStatsAppend = StatisticsManager.getCounterHandler (ToopInboundJournal.class.getName () +
+                                                                                                             "$append");
+  private static final IMutableStatisticsHandlerTimer s_aStatsSync = StatisticsManager.getTimerHandler (ToopInboundJournal.class.getName () +
+                                                                                                       "$sync");
+
+  private static final int RECORD_MAGIC = 0x544f494a;
+  private static final byte RECORD_TYPE_MESSAGE = 1;
+  private static final byte RECORD_TYPE_COMPLETE = 2;
+  private static final String SEGMENT_PREFIX = "toop-journal-";
+  private static final String SEGMENT_SUFFIX = ".log";
+
+  private final File m_aDirectory;
+  private final long m_nMaxSegmentBytes;
+
+  // Guards the channel, the segment bookkeeping and the sequence counter
+  private final ReentrantLock m_aWriteLock = new ReentrantLock ();
+  private FileChannel m_aChannel;
+  private long m_nSegmentID;
+  private long m_nSegmentBytes;
+  private long m_nNextSequence;
+  private boolean m_bClosed = false;
+
+  // Guards the group commit state
+  private final ReentrantLock m_aSyncLock = new ReentrantLock ();
+  private final Condition m_aSyncDone = m_aSyncLock.newCondition ();
+  private long m_nDurableSequence;
+  private boolean m_bSyncing = false;
+
+  // Sequence number to segment ID of all messages not yet completed
+  private final ConcurrentHashMap <Long, Long> m_aPending = new ConcurrentHashMap <> ();
+  // Segment ID to number of messages not yet completed, in ascending order of
+  // the segment ID - guarded by the write lock
+  private final TreeMap <Long, AtomicInteger> m_aSegmentPending = new TreeMap <> ();
+  // Messages of the previous run, not yet handed out for replay
+  private final ICommonsOrderedMap <Long, Entry> m_aRecovered = new CommonsLinkedHashMap <> ();
+
+  private ToopInboundJournal (@Nonnull final File aDirectory, @Nonnegative final long nMaxSegmentBytes)
+  {
+    m_aDirectory = aDirectory;
+    m_nMaxSegmentBytes = nMaxSegmentBytes;
+  }
+
+  @Nonnull
+  private File _getSegmentFile (final long nSegmentID)
+  {
+    return new File (m_aDirectory, SEGMENT_PREFIX + String.format (Locale.ROOT, "%016d", nSegmentID) + SEGMENT_SUFFIX);
+  }
+
+  private static long _getSegmentID (@Nonnull final String sFilename)
+  {
+    if (!sFilename.startsWith (SEGMENT_PREFIX) || !sFilename.endsWith (SEGMENT_SUFFIX))
+      return -1;
+    try
+    {
+      return Long.parseLong (sFilename.substring (SEGMENT_PREFIX.length (),
+                                                  sFilename.length () - SEGMENT_SUFFIX.length ()));
+    }
+    catch (final NumberFormatException ex)
+    {
+      return -1;
+    }
+  }
+
+  /**
+   * Read all records of a segment. Reading stops at the first incomplete or
+   * corrupt record, which is the expected state of the last segment after a
+   * crash.
+   */
+  private void _readSegment (final long nSegmentID,
+                             @Nonnull final ICommonsOrderedMap <Long, Entry> aEntries,
+                             @Nonnull final Map <Long, Long> aEntrySegments) throws IOException
+  {
+    final File aFile = _getSegmentFile (nSegmentID);
+    final CRC32 aCRC = new CRC32 ();
+    try (final InputStream aIS = Files.newInputStream (aFile.toPath ());
+         final DataInputStream aDIS = new DataInputStream (new CheckedInputStream (new BufferedInputStream (aIS), aCRC)))
+    {
+      while (true)
+      {
+        final int nMagic;
+        try
+        {
+          nMagic = aDIS.readInt ();
+        }
+        catch (final EOFException ex)
+        {
+          // Regular end of segment
+          return;
+        }
+        if (nMagic != RECORD_MAGIC)
+        {
+          LOGGER.warn ("Invalid record in journal segment '" + aFile.getAbsolutePath () + "' - ignoring the rest");
+          return;
+        }
+
+        try
+        {
+          aCRC.reset ();
+          final byte nType = aDIS.readByte ();
+          final long nSequence = aDIS.readLong ();
+          Entry aEntry = null;
+          if (nType == RECORD_TYPE_MESSAGE)
+          {
+            final String sTenantID = aDIS.readUTF ();
+            final String sContentType = aDIS.readUTF ();
+            final int nLength = aDIS.readInt ();
+            if (nLength < 0 || nLength > aFile.length ())
+            {
+              LOGGER.warn ("Invalid record length in journal segment '" +
+                           aFile.getAbsolutePath () +
+                           "' - ignoring the rest");
+              return;
+            }
+            final byte [] aPayload = new byte [nLength];
+            aDIS.readFully (aPayload);
+            aEntry = new Entry (nSequence, sTenantID, sContentType, aPayload);
+          }
+          final int nExpectedCRC = (int) aCRC.getValue ();
+          if (aDIS.readInt () != nExpectedCRC)
+          {
+            LOGGER.warn ("Checksum mismatch in journal segment '" + aFile.getAbsolutePath () + "' - ignoring the rest");
+            return;
+          }
+
+          m_nNextSequence = Math.max (m_nNextSequence, nSequence + 1);
+          if (aEntry != null)
+          {
+            aEntries.put (Long.valueOf (nSequence), aEntry);
+            aEntrySegments.put (Long.valueOf (nSequence), Long.valueOf (nSegmentID));
+          }
+          else
+            if (nType == RECORD_TYPE_COMPLETE)
+            {
+              aEntries.remove (Long.valueOf (nSequence));
+              aEntrySegments.remove (Long.valueOf (nSequence));
+            }
+        }
+        catch (final EOFException ex)
+        {
+          // Torn write of the last record
+          LOGGER.warn ("Incomplete last record in journal segment '" + aFile.getAbsolutePath () + "' - ignoring it");
+          return;
+        }
+      }
+    }
+  }
+
+  private void _recover () throws IOException
+  {
+    final File [] aFiles = m_aDirectory.listFiles ();
+    final TreeMap <Long, File> aSegments = new TreeMap <> ();
+    if (aFiles != null)
+      for (final File aFile : aFiles)
+      {
+        final long nSegmentID = _getSegmentID (aFile.getName ());
+        if (nSegmentID >= 0 && aFile.isFile ())
+          aSegments.put (Long.valueOf (nSegmentID), aFile);
+      }
+
+    final ICommonsOrderedMap <Long, Entry> aEntries = new CommonsLinkedHashMap <> ();
+    final Map <Long, Long> aEntrySegments = new TreeMap <> ();
+    for (final Long aSegmentID : aSegments.keySet ())
+      _readSegment (aSegmentID.longValue (), aEntries, aEntrySegments);
+
+    for (final Long aSegmentID : aSegments.keySet ())
+      m_aSegmentPending.put (aSegmentID, new AtomicInteger ());
+    for (final Map.Entry <Long, Long> aEntry : aEntrySegments.entrySet ())
+    {
+      m_aPending.put (aEntry.getKey (), aEntry.getValue ());
+      m_aSegmentPending.get (aEntry.getValue ()).incrementAndGet ();
+    }
+    m_aRecovered.putAll (aEntries);
+
+    m_nDurableSequence = m_nNextSequence - 1;
+    _openSegment (aSegments.isEmpty () ? 0 : aSegments.lastKey ().longValue () + 1);
+
+    // Leading segments without open messages are not needed anymore
+    _deleteDoneSegments ();
+
+    if (!aEntries.isEmpty ())
+      LOGGER.info ("Found " + aEntries.size () + " incomplete messages in journal '" + m_aDirectory.getAbsolutePath () + "'");
+  }
+
+  private void _openSegment (final long nSegmentID) throws IOException
+  {
+    m_aChannel = FileChannel.open (_getSegmentFile (nSegmentID).toPath (),
+                                   StandardOpenOption.CREATE,
+                                   StandardOpenOption.WRITE,
+                                   StandardOpenOption.APPEND);
+    m_nSegmentID = nSegmentID;
+    m_nSegmentBytes = m_aChannel.size ();
+    m_aSegmentPending.computeIfAbsent (Long.valueOf (nSegmentID), k -> new AtomicInteger ());
+  }
+
+  /**
+   * Delete the oldest segments as long as they have no open messages. A
+   * segment may contain the completion records of messages in older segments,
+   * so it must not be deleted before all older segments are deleted - otherwise
+   * these messages would be replayed again. Must be called with the write lock
+   * held.
+   */
+  private void _deleteDoneSegments () throws IOException
+  {
+    while (!m_aSegmentPending.isEmpty ())
+    {
+      final Map.Entry <Long, AtomicInteger> aOldest = m_aSegmentPending.firstEntry ();
+      if (aOldest.getKey ().longValue () == m_nSegmentID || aOldest.getValue ().get () > 0)
+        break;
+      m_aSegmentPending.remove (aOldest.getKey ());
+      Files.deleteIfExists (_getSegmentFile (aOldest.getKey ().longValue ()).toPath ());
+    }
+  }
+
+  /**
+   * Start a new segment. Must be called with the write lock held.
+   */
+  private void _rollSegment () throws IOException
+  {
+    // Everything written so far becomes durable with the old segment
+    m_aChannel.force (false);
+    m_aChannel.close ();
+    m_aSyncLock.lock ();
+    try
+    {
+      m_nDurableSequence = Math.max (m_nDurableSequence, m_nNextSequence - 1);
+      m_aSyncDone.signalAll ();
+    }
+    finally
+    {
+      m_aSyncLock.unlock ();
+    }
+
+    _openSegment (m_nSegmentID + 1);
+    _deleteDoneSegments ();
+  }
+
+  /**
+   * Write a single record. Must be called with the write lock held.
+   */
+  private void _writeRecord (final byte nType,
+                             final long nSequence,
+                             @Nullable final String sTenantID,
+                             @Nullable final String sContentType,
+                             @Nullable final ByteBuffer aPayload) throws IOException
+  {
+    if (m_bClosed)
+      throw new IllegalStateException ("The journal is already closed");
+
+    final NonBlockingByteArrayOutputStream aHeader = new NonBlockingByteArrayOutputStream (64);
+    try (final DataOutputStream aDOS = new DataOutputStream (aHeader))
+    {
+      aDOS.writeInt (RECORD_MAGIC);
+      aDOS.writeByte (nType);
+      aDOS.writeLong (nSequence);
+      if (nType == RECORD_TYPE_MESSAGE)
+      {
+        aDOS.writeUTF (sTenantID);
+        aDOS.writeUTF (sContentType);
+        aDOS.writeInt (aPayload.remaining ());
+      }
+    }
+
+    // The magic is not part of the checksum
+    final byte [] aHeaderBytes = aHeader.toByteArray ();
+    final CRC32 aCRC = new CRC32 ();
+    aCRC.update (aHeaderBytes, 4, aHeaderBytes.length - 4);
+    if (aPayload != null)
+      aCRC.update (aPayload.duplicate ());
+    final ByteBuffer aTrailer = ByteBuffer.allocate (4).putInt (0, (int) aCRC.getValue ());
+
+    final ByteBuffer [] aBuffers = new ByteBuffer [] { ByteBuffer.wrap (aHeaderBytes),
+                                                       aPayload == null ? ByteBuffer.allocate (0)
+                                                                        : aPayload.duplicate (),
+                                                       aTrailer };
+    final long nRecordBytes = aHeaderBytes.length + (aPayload == null ? 0 : aPayload.remaining ()) + 4L;
+    if (m_nSegmentBytes > 0 && m_nSegmentBytes + nRecordBytes > m_nMaxSegmentBytes)
+      _rollSegment ();
+
+    try
+    {
+      long nWritten = 0;
+      while (nWritten < nRecordBytes)
+        nWritten += m_aChannel.write (aBuffers);
+    }
+    catch (final IOException ex)
+    {
+      // Don't leave a partial record in front of the following ones
+      m_aChannel.truncate (m_nSegmentBytes);
+      throw ex;
+    }
+    m_nSegmentBytes += nRecordBytes;
+  }
+
+  /**
+   * Wait until all records up to the provided sequence number are forced to
+   * disk. One of the waiting threads performs the <code>fsync</code> for all
+   * of them.
+   */
+  private void _awaitDurable (final long nSequence) throws IOException
+  {
+    m_aSyncLock.lock ();
+    try
+    {
+      while (m_nDurableSequence < nSequence)
+      {
+        if (m_bSyncing)
+        {
+          // Another thread is syncing - maybe including our record
+          m_aSyncDone.awaitUninterruptibly ();
+          continue;
+        }
+
+        m_bSyncing = true;
+        m_aSyncLock.unlock ();
+        long nTarget = -1;
+        try
+        {
+          final FileChannel aChannel;
+          m_aWriteLock.lock ();
+          try
+          {
+            nTarget = m_nNextSequence - 1;
+            aChannel = m_aChannel;
+          }
+          finally
+          {
+            m_aWriteLock.unlock ();
+          }
+
+          final long nStart = System.nanoTime ();
+          try
+          {
+            aChannel.force (false);
+          }
+          catch (final ClosedChannelException ex)
+          {
+            // Concurrently rolled over or closed - both force the channel
+            // before closing it
+          }
+          s_aStatsSync.addTime (TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - nStart));
+        }
+        catch (final IOException ex)
+        {
+          nTarget = -1;
+          throw ex;
+        }
+        finally
+        {
+          m_aSyncLock.lock ();
+          m_bSyncing = false;
+          m_nDurableSequence = Math.max (m_nDurableSequence, nTarget);
+          m_aSyncDone.signalAll ();
+        }
+      }
+    }
+    finally
+    {
+      m_aSyncLock.unlock ();
+    }
+  }
+
+  /**
+   * Append a received message to the journal. The method returns only after
+   * the record is forced to disk.
+   *
+   * @param sTenantID
+   *        The ID of the receiving tenant. May neither be <code>null</code> nor
+   *        empty.
+   * @param sContentType
+   *        The HTTP content type of the message. May be <code>null</code>.
+   * @param aBuf
+   *        The buffer with the raw message bytes. May not be <code>null</code>.
+   * @param nOfs
+   *        Offset into the buffer. Must be &ge; 0.
+   * @param nLen
+   *        Number of bytes. Must be &ge; 0.
+   * @return The sequence number of the record, to be passed to
+   *         {@link #complete(long)} after the message was processed.
+   * @throws IOException
+   *         If writing or forcing the record fails
+   */
+  public long append (@Nonnull @Nonempty final String sTenantID,
+                      @Nullable final String sContentType,
+                      @Nonnull final byte [] aBuf,
+                      @Nonnegative final int nOfs,
+                      @Nonnegative final int nLen) throws IOException
+  {
+    ValueEnforcer.isArrayOfsLen (aBuf, nOfs, nLen);
+    return append (sTenantID, sContentType, ByteBuffer.wrap (aBuf, nOfs, nLen));
+  }
+
+  /**
+   * Append a received message to the journal. The method returns only after
+   * the record is forced to disk.
+   *
+   * @param sTenantID
+   *        The ID of the receiving tenant. May neither be <code>null</code> nor
+   *        empty.
+   * @param sContentType
+   *        The HTTP content type of the message. May be <code>null</code>.
+   * @param aPayload
+   *        The raw message bytes from the current position to the limit. May
+   *        not be <code>null</code>. The position is not modified.
+   * @return The sequence number of the record, to be passed to
+   *         {@link #complete(long)} after the message was processed.
+   * @throws IOException
+   *         If writing or forcing the record fails
+   */
+  public long append (@Nonnull @Nonempty final String sTenantID,
+                      @Nullable final String sContentType,
+                      @Nonnull final ByteBuffer aPayload) throws IOException
+  {
+    final long nSequence = appendDeferred (sTenantID, sContentType, aPayload);
+    _awaitDurable (nSequence);
+    return nSequence;
+  }
+
+  /**
+   * Append a received message to the journal without waiting until the record
+   * is forced to disk. This is meant for multiple messages received together,
+   * that all need to be durable before the receipt is acknowledged: append all
+   * of them and call {@link #awaitDurable(long)} once with the last sequence
+   * number.
+   *
+   * @param sTenantID
+   *        The ID of the receiving tenant. May neither be <code>null</code> nor
+   *        empty.
+   * @param sContentType
+   *        The HTTP content type of the message. May be <code>null</code>.
+   * @param aPayload
+   *        The raw message bytes from the current position to the limit. May
+   *        not be <code>null</code>. The position is not modified.
+   * @return The sequence number of the record, to be passed to
+   *         {@link #complete(long)} after the message was processed.
+   * @throws IOException
+   *         If writing the record fails
+   */
+  public long appendDeferred (@Nonnull @Nonempty final String sTenantID,
+                              @Nullable final String sContentType,
+                              @Nonnull final ByteBuffer aPayload) throws IOException
+  {
+    ValueEnforcer.notEmpty (sTenantID, "TenantID");
+    ValueEnforcer.notNull (aPayload, "Payload");
+
+    final long nSequence;
+    m_aWriteLock.lock ();
+    try
+    {
+      nSequence = m_nNextSequence;
+      _writeRecord (RECORD_TYPE_MESSAGE, nSequence, sTenantID, sContentType == null ? "" : sContentType, aPayload);
+      m_nNextSequence++;
+      m_aPending.put (Long.valueOf (nSequence), Long.valueOf (m_nSegmentID));
+      m_aSegmentPending.get (Long.valueOf (m_nSegmentID)).incrementAndGet ();
+    }
+    finally
+    {
+      m_aWriteLock.unlock ();
+    }
+    s_aStatsAppend.increment ();
+    return nSequence;
+  }
+
+  /**
+   * Wait until all records up to the provided sequence number are forced to
+   * disk.
+   *
+   * @param nSequence
+   *        The sequence number as returned by
+   *        {@link #appendDeferred(String, String, ByteBuffer)}.
+   * @throws IOException
+   *         If forcing the records fails
+   */
+  public void awaitDurable (final long nSequence) throws IOException
+  {
+    _awaitDurable (nSequence);
+  }
+
+  /**
+   * Mark a message as processed, so that it is not replayed after a restart.
+   * The oldest segments are deleted as soon as they have no open messages. Completing an unknown or
+   * already completed sequence number has no effect.
+   *
+   * @param nSequence
+   *        The sequence number as returned by
+   *        {@link #append(String, String, byte[], int, int)} or
+   *        {@link Entry#getSequence()}.
+   * @throws IOException
+   *         If writing the completion record fails
+   */
+  public void complete (final long nSequence) throws IOException
+  {
+    final Long aSegmentID = m_aPending.remove (Long.valueOf (nSequence));
+    if (aSegmentID == null)
+      return;
+
+    m_aWriteLock.lock ();
+    try
+    {
+      m_aRecovered.remove (Long.valueOf (nSequence));
+      _writeRecord (RECORD_TYPE_COMPLETE, nSequence, null, null, null);
+
+      final AtomicInteger aCount = m_aSegmentPending.get (aSegmentID);
+      if (aCount != null)
+        aCount.decrementAndGet ();
+      _deleteDoneSegments ();
+    }
+    finally
+    {
+      m_aWriteLock.unlock ();
+    }
+  }
+
+  /**
+   * Take the messages of the previous run that were not completed, for replay.
+   * Each message is handed out only once, unless it is returned via
+   * {@link #deferRecoveredEntries(Collection)}.
+   *
+   * @return The messages in the order they were received. Never
+   *         <code>null</code> but maybe empty.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <Entry> takeRecoveredEntries ()
+  {
+    m_aWriteLock.lock ();
+    try
+    {
+      final ICommonsList <Entry> ret = new CommonsArrayList <> (m_aRecovered.values ());
+      m_aRecovered.clear ();
+      return ret;
+    }
+    finally
+    {
+      m_aWriteLock.unlock ();
+    }
+  }
+
+  /**
+   * Return messages taken via {@link #takeRecoveredEntries()} that could not
+   * be replayed yet, so that they are part of the next call.
+   *
+   * @param aEntries
+   *        The entries to return. May not be <code>null</code>.
+   */
+  public void deferRecoveredEntries (@Nonnull final Collection <Entry> aEntries)
+  {
+    ValueEnforcer.notNull (aEntries, "Entries");
+
+    m_aWriteLock.lock ();
+    try
+    {
+      for (final Entry aEntry : aEntries)
+        if (m_aPending.containsKey (Long.valueOf (aEntry.getSequence ())))
+          m_aRecovered.put (Long.valueOf (aEntry.getSequence ()), aEntry);
+    }
+    finally
+    {
+      m_aWriteLock.unlock ();
+    }
+  }
+
+  /**
+   * @return The directory containing the segment files. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final File getDirectory ()
+  {
+    return m_aDirectory;
+  }
+
+  /**
+   * @return The number of messages that were appended but not yet completed.
+   */
+  @Nonnegative
+  public int getPendingCount ()
+  {
+    return m_aPending.size ();
+  }
+
+  /**
+   * @return The number of segment files currently in use, including the one
+   *         written to.
+   */
+  @Nonnegative
+  public int getSegmentCount ()
+  {
+    m_aWriteLock.lock ();
+    try
+    {
+      return m_aSegmentPending.size ();
+    }
+    finally
+    {
+      m_aWriteLock.unlock ();
+    }
+  }
+
+  public void close () throws IOException
+  {
+    m_aWriteLock.lock ();
+    try
+    {
+      if (!m_bClosed)
+      {
+        m_bClosed = true;
+        m_aChannel.force (false);
+        m_aChannel.close ();
+      }
+    }
+    finally
+    {
+      m_aWriteLock.unlock ();
+    }
+  }
+
+  /**
+   * Open the journal in the provided directory and read all messages that were
+   * not completed in the previous run. New records are always written to a new
+   * segment.
+   *
+   * @param aDirectory
+   *        The directory for the segment files. Is created if it does not
+   *        exist. May not be <code>null</code>.
+   * @param nMaxSegmentBytes
+   *        The size after which a new segment is started. Must be &gt; 0.
+   * @return The opened journal. Never <code>null</code>.
+   * @throws IOException
+   *         If the directory or the segments cannot be accessed
+   */
+  @Nonnull
+  public static ToopInboundJournal open (@Nonnull final File aDirectory,
+                                         @Nonnegative final long nMaxSegmentBytes) throws IOException
+  {
+    ValueEnforcer.notNull (aDirectory, "Directory");
+    ValueEnforcer.isGT0 (nMaxSegmentBytes, "MaxSegmentBytes");
+
+    Files.createDirectories (aDirectory.toPath ());
+    final ToopInboundJournal ret = new ToopInboundJournal (aDirectory, nMaxSegmentBytes);
+    ret._recover ();
+    return ret;
+  }
+
+  /**
+   * @return A new journal based on the settings in {@link ToopInterfaceConfig}.
+   *         Never <code>null</code>.
+   * @throws IllegalStateException
+   *         If the journal cannot be opened
+   */
+  @Nonnull
+  public static ToopInboundJournal createFromConfig ()
+  {
+    final File aDirectory = new File (ToopInterfaceConfig.getJournalPath ());
+    try
+    {
+      return open (aDirectory, ToopInterfaceConfig.getJournalSegmentBytes ());
+    }
+    catch (final IOException ex)
+    {
+      throw new IllegalStateException ("Failed to open the inbound journal in '" + aDirectory.getAbsolutePath () + "'",
+                                       ex);
+    }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Directory", m_aDirectory)
+                                       .append ("MaxSegmentBytes", m_nMaxSegmentBytes)
+                                       .append ("PendingCount", m_aPending.size ())
+                                       .getToString ();
+  }
+}
@@ -16,13 +16,56 @@
 package eu.toop.iface.servlet;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.http.CHttp;
+import com.helger.commons.http.CHttpHeader;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.mime.CMimeType;
+import com.helger.commons.mutable.MutableLong;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCounter;
+import com.helger.commons.statistics.IMutableStatisticsHandlerKeyedCounter;
+import com.helger.commons.statistics.StatisticsManager;
+import com.helger.commons.string.StringHelper;
+
+import eu.toop.commons.exchange.AsicReadEntry;
+import eu.toop.iface.EToopInterfaceErrorCode;
+import eu.toop.iface.ToopDeadline;
+import eu.toop.iface.ToopInterfaceConfig;
+import eu.toop.iface.ToopInterfaceManager;
+import eu.toop.iface.ToopTenant;
+import eu.toop.iface.ToopTenantConfig;
+import eu.toop.iface.ToopWarmUp;
+import eu.toop.iface.codec.IToopMessageCodec;
+import eu.toop.iface.codec.ToopAsicMessageCodec;
+import eu.toop.iface.codec.ToopMessageBatch;
+import eu.toop.iface.codec.ToopMessageCodecRegistry;
+import eu.toop.iface.journal.ToopInboundJournal;
+import eu.toop.iface.trace.ToopSpan;
+import eu.toop.iface.trace.ToopTraceContext;
+import eu.toop.iface.trace.ToopTracer;
+import eu.toop.iface.util.ToopLatencyRecorder;
+import eu.toop.iface.util.ToopSpoolingOutputStream;
 
 /**
  * Abstract servlet class that correctly returns "method not allowed"
@@ -31,6 +74,836 @@ import com.helger.commons.http.CHttp;
  */
 public abstract class AbstractToopInterfaceServlet extends HttpServlet
 {
+  /** Span name for receiving a message on one of the servlets */
+  public static final String SPAN_RECEIVE = "toop.receive";
+
+  /** HTTP status code "Too many requests" as defined in RFC 6585 */
+  public static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+  /** Journal sequence number of a message that was not journaled */
+  public static final long NO_JOURNAL_SEQUENCE = -1;
+
+  /** Retry-After in milliseconds if an asynchronous callback is rejected */
+  public static final long OVERLOADED_RETRY_AFTER_MS = 1000;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AbstractToopInterfaceServlet.class);
+  private static final IMutableStatisticsHandlerKeyedCounter s_aStatsErrors = StatisticsManager.getKeyedCounterHandler (AbstractToopInterfaceServlet.class.getName () +
+                                                                                                                       "$errors");
+  private static final IMutableStatisticsHandlerCounter s_aStatsDeadlineSkipped = StatisticsManager.getCounterHandler (AbstractToopInterfaceServlet.class.getName () +
+                                                                                                                      "$deadlineskipped");
+  private static final IMutableStatisticsHandlerCounter s_aStatsCallbackRejected = StatisticsManager.getCounterHandler (AbstractToopInterfaceServlet.class.getName () +
+                                                                                                                       "$callbackrejected");
+  private static final ToopLatencyRecorder s_aReceiveLatency = new ToopLatencyRecorder ();
+  private static final AtomicInteger s_aPendingCallbacks = new AtomicInteger (0);
+
+  /**
+   * @return The number of asynchronous callbacks that are queued or running.
+   * @since 0.10.9
+   */
+  public static int getPendingCallbackCount ()
+  {
+    return s_aPendingCallbacks.get ();
+  }
+
+  /**
+   * @return The processing durations of the most recently received messages,
+   *         from reading the body until the response is ready. Never
+   *         <code>null</code>.
+   * @since 0.10.9
+   */
+  @Nonnull
+  public static ToopLatencyRecorder getReceiveLatencyRecorder ()
+  {
+    return s_aReceiveLatency;
+  }
+
+  /**
+   * Extract the trace context propagated by the sender, if any.
+   *
+   * @param aReq
+   *        The HTTP request. May not be <code>null</code>.
+   * @return <code>null</code> if no or an invalid trace context is present.
+   */
+  @Nullable
+  protected static ToopTraceContext getRemoteTraceContext (@Nonnull final HttpServletRequest aReq)
+  {
+    return ToopTraceContext.parseHeaderValue (aReq.getHeader (ToopTracer.HTTP_HEADER_TRACEPARENT));
+  }
+
+  @Nonnull
+  private static IToopMessageCodec _getInboundCodec (@Nullable final String sContentType) throws ToopUnsupportedCodecException
+  {
+    final IToopMessageCodec ret = ToopMessageCodecRegistry.getInstance ()
+                                                          .getCodecOfContentType (sContentType,
+                                                                                  ToopTenant.getCurrentConfig ()
+                                                                                            .getAllInboundCodecIDs ());
+    if (ret == null)
+      throw new ToopUnsupportedCodecException ("The content type '" + sContentType + "' is not accepted");
+    return ret;
+  }
+
+  /**
+   * Determine the codec to decode the request body with, based on the HTTP
+   * <code>Content-Type</code>. ASiC is used if the content type is missing or
+   * unknown. Only the codecs from
+   * {@link ToopInterfaceConfig#getInboundCodecIDs()} are accepted.
+   *
+   * @param aReq
+   *        The HTTP request. May not be <code>null</code>.
+   * @return The codec to use. Never <code>null</code>.
+   * @throws ToopUnsupportedCodecException
+   *         If the codec is not accepted
+   * @since 0.10.9
+   */
+  @Nonnull
+  protected static IToopMessageCodec getMessageCodec (@Nonnull final HttpServletRequest aReq) throws ToopUnsupportedCodecException
+  {
+    return _getInboundCodec (aReq.getContentType ());
+  }
+
+  /**
+   * Read and decode the message from the request body, while enforcing the
+   * {@link ToopPayloadLimits} from {@link ToopInterfaceManager}. Bodies up to
+   * {@link ToopInterfaceConfig#getSpoolThresholdBytes()} are read into a
+   * pooled buffer, larger ones into a temporary file. Both are released after
+   * decoding.
+   *
+   * @param aReq
+   *        The HTTP request. May not be <code>null</code>.
+   * @param aCodec
+   *        The codec to decode with. May not be <code>null</code>.
+   * @param aAttachmentConsumer
+   *        The consumer for all attachments. May not be <code>null</code>.
+   * @return The decoded message or <code>null</code> if it is invalid.
+   * @throws ToopPayloadLimitException
+   *         If a size limit is exceeded
+   * @throws IOException
+   *         On read error
+   * @since 0.10.9
+   */
+  @Nullable
+  protected static Serializable readMessage (@Nonnull final HttpServletRequest aReq,
+                                             @Nonnull final IToopMessageCodec aCodec,
+                                             @Nonnull final Consumer <? super AsicReadEntry> aAttachmentConsumer) throws IOException
+  {
+    return readMessage (aReq, aCodec, aAttachmentConsumer, null);
+  }
+
+  /**
+   * Same as {@link #readMessage(HttpServletRequest, IToopMessageCodec, Consumer)}
+   * but a successfully decoded message is additionally appended to the
+   * {@link ToopInboundJournal} (if enabled) before this method returns. The
+   * journal entry must be completed via {@link #completeJournal(long)} or
+   * {@link #invokeCallback(ICallbackInvoker, ToopDeadline, long)}.
+   *
+   * @param aReq
+   *        The HTTP request. May not be <code>null</code>.
+   * @param aCodec
+   *        The codec to decode with. May not be <code>null</code>.
+   * @param aAttachmentConsumer
+   *        The consumer for all attachments. May not be <code>null</code>.
+   * @param aJournalSequence
+   *        Takes the journal sequence number, or {@link #NO_JOURNAL_SEQUENCE}
+   *        if the message was not journaled. May be <code>null</code> to not
+   *        journal the message.
+   * @return The decoded message or <code>null</code> if it is invalid.
+   * @throws ToopPayloadLimitException
+   *         If a size limit is exceeded
+   * @throws IOException
+   *         On read error or if the journal cannot be written
+   * @since 0.10.9
+   */
+  @Nullable
+  protected static Serializable readMessage (@Nonnull final HttpServletRequest aReq,
+                                             @Nonnull final IToopMessageCodec aCodec,
+                                             @Nonnull final Consumer <? super AsicReadEntry> aAttachmentConsumer,
+                                             @Nullable final MutableLong aJournalSequence) throws IOException
+  {
+    final ToopPayloadLimits aLimits = ToopInterfaceManager.getPayloadLimits ();
+    final long nContentLength = aReq.getContentLengthLong ();
+    try (final ToopSpoolingOutputStream aBody = ToopSpoolingOutputStream.createFromConfig (nContentLength))
+    {
+      // Small bodies stay in memory, large ones are spooled to disk
+      aLimits.readBody (aReq.getInputStream (), nContentLength, aBody);
+
+      // Check the archive structure before the real parser materializes it
+      if (aCodec instanceof ToopAsicMessageCodec)
+      {
+        if (aBody.isSpooled ())
+          aLimits.checkZipArchive (aBody.openInputStream (), aBody.size ());
+        else
+          aLimits.checkZipArchive (aBody.getBufferDirect (), 0, (int) aBody.size ());
+      }
+
+      final Serializable ret;
+      try (final InputStream aIS = aBody.openInputStream ())
+      {
+        ret = aCodec.decode (aIS, aAttachmentConsumer);
+      }
+      if (aJournalSequence != null)
+      {
+        aJournalSequence.set (NO_JOURNAL_SEQUENCE);
+        final ToopInboundJournal aJournal = ToopInterfaceManager.getInboundJournal ();
+        if (ret != null && aJournal != null)
+        {
+          // Durable before the receipt is acknowledged
+          final ToopTenant aTenant = ToopTenant.getCurrent ();
+          aJournalSequence.set (aJournal.append (aTenant != null ? aTenant.getID ()
+                                                                 : ToopTenantConfig.DEFAULT_TENANT_ID,
+                                                 aReq.getContentType (),
+                                                 aBody.getAsByteBuffer ()));
+        }
+      }
+      return ret;
+    }
+  }
+
+  /**
+   * Mark a journaled message as processed. Failures are logged only.
+   *
+   * @param nJournalSequence
+   *        The journal sequence number. Nothing happens for
+   *        {@link #NO_JOURNAL_SEQUENCE}.
+   * @since 0.10.9
+   */
+  protected static void completeJournal (final long nJournalSequence)
+  {
+    if (nJournalSequence != NO_JOURNAL_SEQUENCE)
+    {
+      final ToopInboundJournal aJournal = ToopInterfaceManager.getInboundJournal ();
+      if (aJournal != null)
+        try
+        {
+          aJournal.complete (nJournalSequence);
+        }
+        catch (final IOException | RuntimeException ex)
+        {
+          LOGGER.warn ("Failed to complete journal entry " + nJournalSequence, ex);
+        }
+    }
+  }
+
+  @Nonnull
+  private static String _getJournalHint (final long nJournalSequence)
+  {
+    return nJournalSequence == NO_JOURNAL_SEQUENCE ? ""
+                                                   : " - journal entry " +
+                                                     nJournalSequence +
+                                                     " is kept for replay";
+  }
+
+  /**
+   * A single decoded message of a received batch.
+   *
+   * @since 0.10.9
+   */
+  protected static final class BatchMessage
+  {
+    private final Serializable m_aMessage;
+    private final ICommonsList <AsicReadEntry> m_aAttachments;
+    private final String m_sContentType;
+    private byte [] m_aPayload;
+    private long m_nJournalSequence = NO_JOURNAL_SEQUENCE;
+
+    BatchMessage (@Nonnull final Serializable aMessage,
+                  @Nonnull final ICommonsList <AsicReadEntry> aAttachments,
+                  @Nonnull final String sContentType,
+                  @Nullable final byte [] aPayload)
+    {
+      m_aMessage = aMessage;
+      m_aAttachments = aAttachments;
+      m_sContentType = sContentType;
+      m_aPayload = aPayload;
+    }
+
+    /**
+     * @return The decoded message. Never <code>null</code>.
+     */
+    @Nonnull
+    public Serializable getMessage ()
+    {
+      return m_aMessage;
+    }
+
+    /**
+     * @return The attachments of the message. Never <code>null</code>.
+     */
+    @Nonnull
+    public ICommonsList <AsicReadEntry> getAttachments ()
+    {
+      return m_aAttachments;
+    }
+
+    /**
+     * @return The journal sequence number or {@link #NO_JOURNAL_SEQUENCE}.
+     */
+    public long getJournalSequence ()
+    {
+      return m_nJournalSequence;
+    }
+  }
+
+  /**
+   * Read and decode all messages of a {@link ToopMessageBatch} from the request
+   * body, while enforcing the {@link ToopPayloadLimits}. The ZIP check is
+   * applied to each ASiC part individually. Either all messages are returned
+   * or none, so that the sender can retry the batch as a whole.
+   *
+   * @param aReq
+   *        The HTTP request. May not be <code>null</code>.
+   * @param bJournal
+   *        <code>true</code> to append all messages to the
+   *        {@link ToopInboundJournal} (if enabled) before this method returns.
+   *        The journal entries must be completed like for
+   *        {@link #readMessage(HttpServletRequest, IToopMessageCodec, Consumer, MutableLong)}.
+   * @return The decoded messages in order or <code>null</code> if the batch or
+   *         any of its messages is invalid.
+   * @throws ToopPayloadLimitException
+   *         If a size limit is exceeded
+   * @throws ToopUnsupportedCodecException
+   *         If a message uses a codec that is not accepted
+   * @throws IOException
+   *         On read error or if the journal cannot be written
+   * @since 0.10.9
+   */
+  @Nullable
+  protected static ICommonsList <BatchMessage> readBatch (@Nonnull final HttpServletRequest aReq,
+                                                          final boolean bJournal) throws IOException
+  {
+    final ToopPayloadLimits aLimits = ToopInterfaceManager.getPayloadLimits ();
+    final long nContentLength = aReq.getContentLengthLong ();
+    final ICommonsList <BatchMessage> ret = new CommonsArrayList <> ();
+    final int nParts;
+    try (final ToopSpoolingOutputStream aBody = ToopSpoolingOutputStream.createFromConfig (nContentLength))
+    {
+      aLimits.readBody (aReq.getInputStream (), nContentLength, aBody);
+
+      try (final InputStream aIS = aBody.openInputStream ())
+      {
+        nParts = ToopMessageBatch.read (aIS, aBody.size (), (nIndex, sContentType, aPayload) -> {
+          aLimits.checkBatchPartCount (nIndex + 1);
+          if (ret.size () < nIndex)
+          {
+            // A previous message is invalid - only check the structure
+            return;
+          }
+
+          final IToopMessageCodec aCodec = _getInboundCodec (sContentType);
+          if (aCodec instanceof ToopAsicMessageCodec)
+            aLimits.checkZipArchive (aPayload, 0, aPayload.length);
+
+          final ICommonsList <AsicReadEntry> aAttachments = new CommonsArrayList <> ();
+          final Serializable aMsg = aCodec.decode (new NonBlockingByteArrayInputStream (aPayload), aAttachments::add);
+          if (aMsg != null)
+            ret.add (new BatchMessage (aMsg, aAttachments, sContentType, bJournal ? aPayload : null));
+        });
+      }
+    }
+    if (nParts < 0 || ret.size () != nParts)
+      return null;
+
+    final ToopInboundJournal aJournal = bJournal ? ToopInterfaceManager.getInboundJournal () : null;
+    if (aJournal != null && !ret.isEmpty ())
+    {
+      final ToopTenant aTenant = ToopTenant.getCurrent ();
+      final String sTenantID = aTenant != null ? aTenant.getID () : ToopTenantConfig.DEFAULT_TENANT_ID;
+      try
+      {
+        // Write all records and force them to disk at once
+        for (final BatchMessage aMsg : ret)
+        {
+          aMsg.m_nJournalSequence = aJournal.appendDeferred (sTenantID,
+                                                             aMsg.m_sContentType,
+                                                             ByteBuffer.wrap (aMsg.m_aPayload));
+          aMsg.m_aPayload = null;
+        }
+        aJournal.awaitDurable (ret.getLast ().m_nJournalSequence);
+      }
+      catch (final IOException | RuntimeException ex)
+      {
+        // The receipt is not acknowledged - don't replay the ones written
+        for (final BatchMessage aMsg : ret)
+          completeJournal (aMsg.m_nJournalSequence);
+        throw ex;
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Dispatch of a single message of a batch.
+   *
+   * @since 0.10.9
+   */
+  @FunctionalInterface
+  protected interface IBatchDispatcher
+  {
+    /**
+     * @param aMsg
+     *        The message to dispatch. Never <code>null</code>.
+     * @return <code>true</code> if processing continues asynchronously.
+     * @throws IOException
+     *         If synchronous processing fails
+     */
+    boolean dispatch (@Nonnull BatchMessage aMsg) throws IOException;
+  }
+
+  /**
+   * Handle a request containing a {@link ToopMessageBatch}: all messages are
+   * read and checked, before any of them is dispatched in order. Each message
+   * is charged to the rate limit of the source. The response status is 202 if
+   * at least one message is processed asynchronously, 204 otherwise. If a
+   * synchronous callback fails, the messages before it are already delivered:
+   * the error response contains their number in the
+   * {@link ToopMessageBatch#HTTP_HEADER_DELIVERED} header, so that the sender
+   * only retries the remaining ones, and the journal entries of the messages
+   * not yet dispatched are completed. If a callback cannot be scheduled
+   * because of overload, the same happens with
+   * {@link EToopInterfaceErrorCode#OVERLOADED}.
+   *
+   * @param aReq
+   *        The HTTP request. May not be <code>null</code>.
+   * @param aResp
+   *        The HTTP response. May not be <code>null</code>.
+   * @param aDeadline
+   *        The deadline of the sender. May be <code>null</code>.
+   * @param aReceiveSpan
+   *        The span of the request. May not be <code>null</code>.
+   * @param aPermit
+   *        The admission of the request, that is charged for the additional
+   *        messages. May not be <code>null</code>.
+   * @param bJournal
+   *        <code>true</code> to journal the messages.
+   * @param aSupported
+   *        Checks if a message is supported by the servlet. May not be
+   *        <code>null</code>.
+   * @param aDispatcher
+   *        The dispatcher for each message. May not be <code>null</code>.
+   * @throws IOException
+   *         On read error or if the journal cannot be written
+   * @since 0.10.9
+   */
+  protected static void handleBatch (@Nonnull final HttpServletRequest aReq,
+                                     @Nonnull final HttpServletResponse aResp,
+                                     @Nullable final ToopDeadline aDeadline,
+                                     @Nonnull final ToopSpan aReceiveSpan,
+                                     @Nonnull final ToopInboundLimiter.Permit aPermit,
+                                     final boolean bJournal,
+                                     @Nonnull final Predicate <? super Serializable> aSupported,
+                                     @Nonnull final IBatchDispatcher aDispatcher) throws IOException
+  {
+    final ICommonsList <BatchMessage> aMessages;
+    try (final ToopSpan aSpan = ToopTracer.startSpan (ToopTracer.SPAN_ASIC_PARSE))
+    {
+      aSpan.setAttribute ("codec", "batch");
+      aMessages = readBatch (aReq, bJournal);
+    }
+    catch (final ToopPayloadLimitException ex)
+    {
+      // Too large or suspicious - reject before anything is dispatched
+      LOGGER.warn ("Rejecting the batch on " + aReq.getServletPath () + ": " + ex.getMessage ());
+      sendErrorResponse (aResp, EToopInterfaceErrorCode.PAYLOAD_TOO_LARGE, ex.getMessage (), 0);
+      aReceiveSpan.setAttribute ("limit", ex.getViolation ().getID ());
+      return;
+    }
+    catch (final ToopUnsupportedCodecException ex)
+    {
+      LOGGER.warn ("Rejecting the batch on " + aReq.getServletPath () + ": " + ex.getMessage ());
+      sendErrorResponse (aResp, EToopInterfaceErrorCode.UNSUPPORTED_PAYLOAD, ex.getMessage (), 0);
+      return;
+    }
+
+    if (aMessages == null)
+    {
+      LOGGER.error ("The batch on " + aReq.getServletPath () + " is invalid or contains an invalid message");
+      sendErrorResponse (aResp, EToopInterfaceErrorCode.INVALID_MESSAGE, "Invalid TOOP message batch", 0);
+      return;
+    }
+    aReceiveSpan.setAttribute ("batch", Integer.toString (aMessages.size ()));
+    // The request itself was charged with one message on admission
+    aPermit.chargeAdditional (aMessages.size () - 1);
+
+    final BatchMessage aUnsupported = aMessages.findFirst (x -> !aSupported.test (x.getMessage ()));
+    if (aUnsupported != null)
+    {
+      LOGGER.error ("The batch on " + aReq.getServletPath () + " contains an unsupported payload of type " +
+                    aUnsupported.getMessage ().getClass ().getName ());
+      aMessages.forEach (x -> completeJournal (x.getJournalSequence ()));
+      sendErrorResponse (aResp, EToopInterfaceErrorCode.UNSUPPORTED_PAYLOAD, "Unsupported message in batch", 0);
+      return;
+    }
+
+    if (checkDeadlineExceeded (aDeadline, aResp))
+    {
+      // Parsing took too long - nobody waits for the result anymore
+      aReceiveSpan.setAttribute ("deadline", "exceeded");
+      aMessages.forEach (x -> completeJournal (x.getJournalSequence ()));
+      return;
+    }
+
+    boolean bAsync = false;
+    int nDispatched = 0;
+    try
+    {
+      for (final BatchMessage aMsg : aMessages)
+      {
+        // The dispatcher is responsible for the journal entry from now on
+        nDispatched++;
+        if (aDispatcher.dispatch (aMsg))
+          bAsync = true;
+      }
+    }
+    catch (final ToopOverloadedException ex)
+    {
+      // Not accepted - the sender retries it
+      final int nDelivered = nDispatched - 1;
+      LOGGER.warn ("Rejecting message " +
+                   nDispatched +
+                   " of " +
+                   aMessages.size () +
+                   " of the batch on " +
+                   aReq.getServletPath () +
+                   ": " +
+                   ex.getMessage ());
+      completeJournal (aMessages.get (nDelivered).getJournalSequence ());
+      aResp.setHeader (ToopMessageBatch.HTTP_HEADER_DELIVERED, Integer.toString (nDelivered));
+      sendErrorResponse (aResp, EToopInterfaceErrorCode.OVERLOADED, ex.getMessage (), OVERLOADED_RETRY_AFTER_MS);
+      aReceiveSpan.setAttribute ("delivered", Integer.toString (nDelivered));
+      return;
+    }
+    catch (final IOException | RuntimeException ex)
+    {
+      // Tell the sender which messages must not be sent again
+      final int nDelivered = nDispatched - 1;
+      LOGGER.error ("Error processing message " +
+                    nDispatched +
+                    " of " +
+                    aMessages.size () +
+                    " of the batch on " +
+                    aReq.getServletPath (),
+                    ex);
+      aResp.setHeader (ToopMessageBatch.HTTP_HEADER_DELIVERED, Integer.toString (nDelivered));
+      sendErrorResponse (aResp, EToopInterfaceErrorCode.SERVER_ERROR, "Failed to process message " + nDispatched, 0);
+      aReceiveSpan.setAttribute ("delivered", Integer.toString (nDelivered));
+      return;
+    }
+    finally
+    {
+      for (int i = nDispatched; i < aMessages.size (); ++i)
+        completeJournal (aMessages.get (i).getJournalSequence ());
+    }
+
+    // Done - no content; or accepted if processing is still ongoing
+    aResp.setStatus (bAsync ? HttpServletResponse.SC_ACCEPTED : HttpServletResponse.SC_NO_CONTENT);
+  }
+
+  /**
+   * Determine the tenant of a request from the first segment of the path info,
+   * e.g. <code>/to-dc/acme</code>. Without path info the default tenant is
+   * used.
+   *
+   * @param aReq
+   *        The HTTP request. May not be <code>null</code>.
+   * @return <code>null</code> if the request addresses an unknown tenant.
+   * @since 0.10.9
+   */
+  @Nullable
+  protected static ToopTenant getTenant (@Nonnull final HttpServletRequest aReq)
+  {
+    return ToopInterfaceManager.getTenantRegistry ().getTenantOfPathInfo (aReq.getPathInfo ());
+  }
+
+  /**
+   * Determine the source of the message for rate limiting. This is either the
+   * value of the configured source header or the remote address.
+   *
+   * @param aReq
+   *        The HTTP request. May not be <code>null</code>.
+   * @return The source key. May be <code>null</code>.
+   */
+  @Nullable
+  protected static String getInboundSourceKey (@Nonnull final HttpServletRequest aReq)
+  {
+    final String sHeaderName = ToopInterfaceConfig.getInboundRateLimitSourceHeader ();
+    if (StringHelper.hasText (sHeaderName))
+    {
+      final String sValue = aReq.getHeader (sHeaderName);
+      if (StringHelper.hasText (sValue))
+        return sValue;
+    }
+    return aReq.getRemoteAddr ();
+  }
+
+  /**
+   * Send a structured error response. The error code is contained in the
+   * {@link EToopInterfaceErrorCode#HTTP_HEADER_ERROR_CODE} header and in a
+   * short plain text body, so that the sender can decide whether to retry
+   * without having to parse anything complex.
+   *
+   * @param aResp
+   *        The HTTP response. May not be <code>null</code>.
+   * @param eErrorCode
+   *        The error code. May not be <code>null</code>.
+   * @param sMessage
+   *        An optional human readable message. May be <code>null</code>.
+   * @param nRetryAfterMillis
+   *        The time after which a retry may succeed. Only used if &gt; 0.
+   * @throws IOException
+   *         If writing the response fails
+   * @since 0.10.9
+   */
+  protected static void sendErrorResponse (@Nonnull final HttpServletResponse aResp,
+                                           @Nonnull final EToopInterfaceErrorCode eErrorCode,
+                                           @Nullable final String sMessage,
+                                           final long nRetryAfterMillis) throws IOException
+  {
+    s_aStatsErrors.increment (eErrorCode.getID ());
+
+    aResp.setStatus (eErrorCode.getHttpStatus ());
+    aResp.setHeader (EToopInterfaceErrorCode.HTTP_HEADER_ERROR_CODE, eErrorCode.getID ());
+    if (nRetryAfterMillis > 0)
+    {
+      final long nRetryAfterSecs = Math.max (1, TimeUnit.MILLISECONDS.toSeconds (nRetryAfterMillis + 999));
+      aResp.setHeader (CHttpHeader.RETRY_AFTER, Long.toString (nRetryAfterSecs));
+    }
+
+    final String sBody = StringHelper.hasText (sMessage) ? eErrorCode.getID () + ": " + sMessage + "\n"
+                                                         : eErrorCode.getID () + "\n";
+    final byte [] aBytes = sBody.getBytes (StandardCharsets.UTF_8);
+    aResp.setContentType (CMimeType.TEXT_PLAIN.getAsStringWithEncoding (StandardCharsets.UTF_8));
+    aResp.setContentLength (aBytes.length);
+    aResp.getOutputStream ().write (aBytes);
+  }
+
+  /**
+   * Perform the admission check before anything else is done with the request.
+   * If the message is not admitted, an error response (429 or 503) with a
+   * <code>Retry-After</code> header is sent.
+   *
+   * @param aReq
+   *        The HTTP request. May not be <code>null</code>.
+   * @param aResp
+   *        The HTTP response. May not be <code>null</code>.
+   * @return The permit. Never <code>null</code>. Must be closed after the
+   *         request was processed.
+   * @throws IOException
+   *         If writing the error response fails
+   */
+  @Nonnull
+  protected static ToopInboundLimiter.Permit acquireInboundPermit (@Nonnull final HttpServletRequest aReq,
+                                                                   @Nonnull final HttpServletResponse aResp) throws IOException
+  {
+    final ToopInboundLimiter.Permit ret = ToopInterfaceManager.getInboundLimiter ()
+                                                              .tryAcquire (getInboundSourceKey (aReq));
+    if (!ret.isAccepted ())
+    {
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Rejecting HTTP " + aReq.getMethod () + " on " + aReq.getServletPath () + ": " + ret);
+
+      sendErrorResponse (aResp,
+                         ret.getAdmission () == ToopInboundLimiter.EAdmission.RATE_LIMITED ? EToopInterfaceErrorCode.RATE_LIMITED
+                                                                                           : EToopInterfaceErrorCode.OVERLOADED,
+                         null,
+                         Math.max (1, ret.getRetryAfterMillis ()));
+    }
+    return ret;
+  }
+
+  /**
+   * Extract the deadline propagated by the sender, if any. It is relative to
+   * the time this method is called, so call it as early as possible.
+   *
+   * @param aReq
+   *        The HTTP request. May not be <code>null</code>.
+   * @return <code>null</code> if no or an invalid deadline is present.
+   * @since 0.10.9
+   */
+  @Nullable
+  protected static ToopDeadline getRemoteDeadline (@Nonnull final HttpServletRequest aReq)
+  {
+    return ToopDeadline.parseHeaderValue (aReq.getHeader (ToopDeadline.HTTP_HEADER_DEADLINE));
+  }
+
+  /**
+   * Check if the deadline of the sender is already exceeded and if so, send an
+   * error response, so that no further work is done for the request.
+   *
+   * @param aDeadline
+   *        The deadline to check. May be <code>null</code>.
+   * @param aResp
+   *        The HTTP response. May not be <code>null</code>.
+   * @return <code>true</code> if the deadline is exceeded and the error
+   *         response was sent.
+   * @throws IOException
+   *         If writing the error response fails
+   * @since 0.10.9
+   */
+  protected static boolean checkDeadlineExceeded (@Nullable final ToopDeadline aDeadline,
+                                                  @Nonnull final HttpServletResponse aResp) throws IOException
+  {
+    if (aDeadline == null || !aDeadline.isExpired ())
+      return false;
+
+    sendErrorResponse (aResp, EToopInterfaceErrorCode.DEADLINE_EXCEEDED, null, 0);
+    return true;
+  }
+
+  /**
+   * Callback invocation that may throw an {@link IOException}.
+   */
+  @FunctionalInterface
+  protected interface ICallbackInvoker
+  {
+    void invoke () throws IOException;
+  }
+
+  /**
+   * Invoke a DC/DP callback. Depending on
+   * {@link ToopInterfaceConfig#isCallbackAsync()} this happens synchronously
+   * in the current thread or asynchronously on the executor from
+   * {@link ToopInterfaceManager#getExecutorService()}. Asynchronous failures
+   * are logged only. If too many asynchronous callbacks are pending or the
+   * executor rejects the task, a {@link ToopOverloadedException} is thrown and
+   * the message must be rejected with
+   * {@link EToopInterfaceErrorCode#OVERLOADED}.
+   *
+   * @param aInvoker
+   *        The callback invocation. May not be <code>null</code>.
+   * @return <code>true</code> if the callback was dispatched asynchronously,
+   *         <code>false</code> if it was executed synchronously.
+   * @throws IOException
+   *         If the synchronous callback fails or if the asynchronous callback
+   *         cannot be scheduled
+   */
+  protected static boolean invokeCallback (@Nonnull final ICallbackInvoker aInvoker) throws IOException
+  {
+    return invokeCallback (aInvoker, null);
+  }
+
+  /**
+   * Same as {@link #invokeCallback(ICallbackInvoker)} but an asynchronous
+   * callback is skipped if the provided deadline is exceeded when it would be
+   * started.
+   *
+   * @param aInvoker
+   *        The callback invocation. May not be <code>null</code>.
+   * @param aDeadline
+   *        The deadline of the sender. May be <code>null</code>.
+   * @return <code>true</code> if the callback was dispatched asynchronously,
+   *         <code>false</code> if it was executed synchronously.
+   * @throws IOException
+   *         If the synchronous callback fails or if the asynchronous callback
+   *         cannot be scheduled
+   * @since 0.10.9
+   */
+  protected static boolean invokeCallback (@Nonnull final ICallbackInvoker aInvoker,
+                                           @Nullable final ToopDeadline aDeadline) throws IOException
+  {
+    return invokeCallback (aInvoker, aDeadline, NO_JOURNAL_SEQUENCE);
+  }
+
+  /**
+   * Same as {@link #invokeCallback(ICallbackInvoker, ToopDeadline)} but the
+   * journal entry of the message is completed after the callback succeeded. If
+   * the callback fails or is skipped because the deadline is exceeded, the
+   * entry stays open and the message is replayed after the next restart. If
+   * the callback cannot be scheduled, the caller decides about the entry.
+   *
+   * @param aInvoker
+   *        The callback invocation. May not be <code>null</code>.
+   * @param aDeadline
+   *        The deadline of the sender. May be <code>null</code>.
+   * @param nJournalSequence
+   *        The journal sequence number of the message or
+   *        {@link #NO_JOURNAL_SEQUENCE}.
+   * @return <code>true</code> if the callback was dispatched asynchronously,
+   *         <code>false</code> if it was executed synchronously.
+   * @throws IOException
+   *         If the synchronous callback fails or if the asynchronous callback
+   *         cannot be scheduled
+   * @since 0.10.9
+   */
+  protected static boolean invokeCallback (@Nonnull final ICallbackInvoker aInvoker,
+                                           @Nullable final ToopDeadline aDeadline,
+                                           final long nJournalSequence) throws IOException
+  {
+    if (!ToopInterfaceConfig.isCallbackAsync ())
+    {
+      try (final ToopSpan aSpan = ToopTracer.startSpan (ToopTracer.SPAN_CALLBACK))
+      {
+        aInvoker.invoke ();
+      }
+      // Only if the callback succeeded
+      completeJournal (nJournalSequence);
+      return false;
+    }
+
+    // Bound the backlog - the sender already got the acknowledgement
+    final int nMaxPending = ToopInterfaceConfig.getCallbackAsyncMaxPending ();
+    final int nPending = s_aPendingCallbacks.incrementAndGet ();
+    if (nMaxPending > 0 && nPending > nMaxPending)
+    {
+      s_aPendingCallbacks.decrementAndGet ();
+      s_aStatsCallbackRejected.increment ();
+      throw new ToopOverloadedException ("Too many pending asynchronous callbacks (" + nMaxPending + ")");
+    }
+
+    // Continue the current trace and tenant in the other thread
+    final ToopTraceContext aTraceCtx = ToopTracer.getCurrentContext ();
+    try
+    {
+      ToopInterfaceManager.getExecutorService ().execute (ToopTenant.wrapCurrent ( () -> {
+        try
+        {
+          if (aDeadline != null && aDeadline.isExpired ())
+          {
+            // Waited too long in the queue
+            s_aStatsDeadlineSkipped.increment ();
+            LOGGER.warn ("Skipping asynchronous TOOP callback because the deadline of the sender is exceeded" +
+                         _getJournalHint (nJournalSequence));
+            return;
+          }
+          try (final ToopSpan aSpan = ToopTracer.startSpan (ToopTracer.SPAN_CALLBACK, aTraceCtx))
+          {
+            try
+            {
+              aInvoker.invoke ();
+              completeJournal (nJournalSequence);
+            }
+            catch (final IOException | RuntimeException ex)
+            {
+              aSpan.setError (ex);
+              LOGGER.error ("Error invoking asynchronous TOOP callback" + _getJournalHint (nJournalSequence), ex);
+            }
+          }
+        }
+        finally
+        {
+          s_aPendingCallbacks.decrementAndGet ();
+        }
+      }));
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      // Queue of the executor is full
+      s_aPendingCallbacks.decrementAndGet ();
+      s_aStatsCallbackRejected.increment ();
+      throw new ToopOverloadedException ("The executor rejected the asynchronous callback: " + ex.getMessage ());
+    }
+    return true;
+  }
+
+  /**
+   * Starts the warm-up as configured, so that the first message is not slowed
+   * down by lazy initialization.
+   */
+  @Override
+  public void init () throws ServletException
+  {
+    super.init ();
+    ToopWarmUp.runFromConfig ();
+  }
+
   protected static void methodNotSupported (final HttpServletResponse aResp) throws IOException
   {
     aResp.sendError (CHttp.HTTP_METHOD_NOT_ALLOWED);
@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.io.Serializable;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -32,21 +33,29 @@ import com.helger.commons.collection.impl.ICommonsList;
 
 import eu.toop.commons.dataexchange.v140.TDETOOPResponseType;
 import eu.toop.commons.exchange.AsicReadEntry;
-import eu.toop.commons.exchange.ToopMessageBuilder140;
 import eu.toop.commons.exchange.ToopResponseWithAttachments140;
+import eu.toop.iface.EToopInterfaceErrorCode;
 import eu.toop.iface.IToopInterfaceDC;
+import eu.toop.iface.ToopDeadline;
 import eu.toop.iface.ToopInterfaceManager;
+import eu.toop.iface.ToopTenant;
+import eu.toop.iface.ToopResponseCorrelator;
+import eu.toop.iface.codec.IToopMessageCodec;
+import eu.toop.iface.codec.ToopMessageBatch;
+import eu.toop.iface.trace.ToopSpan;
+import eu.toop.iface.trace.ToopTracer;
 
 /**
  * This servlet can be included in Java DC implementations to receive messages
  * from the MP (step 4/4). It should read the received ASiC container and
  * extract the {@link TDETOOPResponseType} object. This is than forwarded to the
  * {@link IToopInterfaceDC} implementation registered in
- * {@link ToopInterfaceManager}.
+ * {@link ToopInterfaceManager}, unless it is the answer to a request that is
+ * awaited via the {@link ToopResponseCorrelator}.
  *
  * @author Philip Helger
  */
-@WebServlet ("/to-dc")
+@WebServlet ({ "/to-dc", "/to-dc/*" })
 public class ToDCServlet extends AbstractToopInterfaceServlet
 {
   private static final Logger LOGGER = LoggerFactory.getLogger (ToDCServlet.class);
@@ -54,39 +63,175 @@ public class ToDCServlet extends AbstractToopInterfaceServlet
   @Override
   protected void doPost (@Nonnull final HttpServletRequest aHttpServletRequest,
                          @Nonnull final HttpServletResponse aHttpServletResponse) throws ServletException, IOException
+  {
+    // The remaining time of the sender starts counting now
+    final ToopDeadline aDeadline = getRemoteDeadline (aHttpServletRequest);
+
+    // The addressed tenant, if any
+    final ToopTenant aTenant = getTenant (aHttpServletRequest);
+    if (aTenant == null)
+    {
+      sendErrorResponse (aHttpServletResponse,
+                         EToopInterfaceErrorCode.UNKNOWN_TENANT,
+                         "No tenant for path '" + aHttpServletRequest.getPathInfo () + "'",
+                         0);
+      return;
+    }
+
+    try (final ToopTenant.Scope aScope = aTenant.enter ();
+         final ToopInboundLimiter.Permit aPermit = acquireInboundPermit (aHttpServletRequest, aHttpServletResponse))
+    {
+      if (aPermit.isAccepted () && !checkDeadlineExceeded (aDeadline, aHttpServletResponse))
+      {
+        final long nStart = System.nanoTime ();
+        try
+        {
+          _handlePost (aHttpServletRequest, aHttpServletResponse, aDeadline, aTenant, aPermit);
+        }
+        finally
+        {
+          getReceiveLatencyRecorder ().recordSince (nStart);
+        }
+      }
+    }
+  }
+
+  private static void _dispatchResponse (@Nonnull final TDETOOPResponseType aParsedMsg,
+                                         @Nonnull final ICommonsList <AsicReadEntry> aAttachments,
+                                         @Nonnull final ToopTenant aTenant,
+                                         @Nullable final ToopDeadline aDeadline,
+                                         @Nullable final ToopSpan aReceiveSpan) throws IOException
   {
     if (LOGGER.isDebugEnabled ())
-      LOGGER.debug ("Received new HTTP POST on /to-dc");
+      LOGGER.debug ("Successfully parsed to a TOOP response");
 
-    // Parse ASiC and also keep attachments
-    final ICommonsList <AsicReadEntry> aAttachments = new CommonsArrayList <> ();
-    final Serializable aParsedMsg = ToopMessageBuilder140.parseRequestOrResponse (aHttpServletRequest.getInputStream (),
-                                                                                  aAttachments::add);
-    if (aParsedMsg == null)
+    // Call callback
+    final ToopResponseWithAttachments140 aResponse = new ToopResponseWithAttachments140 (aParsedMsg, aAttachments);
+    // Responses to awaitable requests are not passed to the callback
+    final String sRequestID = ToopResponseCorrelator.getRequestID (aParsedMsg);
+    if (ToopInterfaceManager.getResponseCorrelator ().complete (sRequestID, aResponse))
     {
-      // The message content is invalid
-      LOGGER.error ("The /to-dc request does not contain an ASiC archive or the ASiC archive does not contain a TOOP Response Message or a TOOP Error Message!");
-      aHttpServletResponse.setStatus (HttpServletResponse.SC_BAD_REQUEST);
+      if (aReceiveSpan != null)
+        aReceiveSpan.setAttribute ("correlated", sRequestID);
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Completed pending TOOP request '" + sRequestID + "'");
     }
     else
     {
-      if (aParsedMsg instanceof TDETOOPResponseType)
+      // Resolved up front, so that a tenant without callback fails right away
+      final IToopInterfaceDC aInterfaceDC = aTenant.getInterfaceDC ();
+      invokeCallback ( () -> aInterfaceDC.onToopResponse (aResponse), aDeadline);
+    }
+  }
+
+  private void _handlePost (@Nonnull final HttpServletRequest aHttpServletRequest,
+                            @Nonnull final HttpServletResponse aHttpServletResponse,
+                            @Nullable final ToopDeadline aDeadline,
+                            @Nonnull final ToopTenant aTenant,
+                            @Nonnull final ToopInboundLimiter.Permit aPermit) throws IOException
+  {
+    if (LOGGER.isDebugEnabled ())
+      LOGGER.debug ("Received new HTTP POST on /to-dc");
+
+    try (final ToopSpan aReceiveSpan = ToopTracer.startSpan (SPAN_RECEIVE, getRemoteTraceContext (aHttpServletRequest)))
+    {
+      aReceiveSpan.setAttribute ("path", "/to-dc");
+      aReceiveSpan.setAttribute ("tenant", aTenant.getID ());
+
+      if (ToopMessageBatch.isBatchContentType (aHttpServletRequest.getContentType ()))
+      {
+        // Multiple responses in one HTTP request
+        handleBatch (aHttpServletRequest,
+                     aHttpServletResponse,
+                     aDeadline,
+                     aReceiveSpan,
+                     aPermit,
+                     false,
+                     x -> x instanceof TDETOOPResponseType,
+                     x -> {
+                       _dispatchResponse ((TDETOOPResponseType) x.getMessage (),
+                                          x.getAttachments (),
+                                          aTenant,
+                                          aDeadline,
+                                          null);
+                       return true;
+                     });
+        aReceiveSpan.setAttribute ("status", Integer.toString (aHttpServletResponse.getStatus ()));
+        return;
+      }
+
+      // Parse ASiC and also keep attachments
+      final ICommonsList <AsicReadEntry> aAttachments = new CommonsArrayList <> ();
+      final Serializable aParsedMsg;
+      try (final ToopSpan aSpan = ToopTracer.startSpan (ToopTracer.SPAN_ASIC_PARSE))
+      {
+        // Negotiated by content type
+        final IToopMessageCodec aCodec = getMessageCodec (aHttpServletRequest);
+        aSpan.setAttribute ("codec", aCodec.getID ());
+        aParsedMsg = readMessage (aHttpServletRequest, aCodec, aAttachments::add);
+      }
+      catch (final ToopPayloadLimitException ex)
+      {
+        // Too large or suspicious - reject before anything is materialized
+        LOGGER.warn ("Rejecting the /to-dc request: " + ex.getMessage ());
+        sendErrorResponse (aHttpServletResponse, EToopInterfaceErrorCode.PAYLOAD_TOO_LARGE, ex.getMessage (), 0);
+        aReceiveSpan.setAttribute ("limit", ex.getViolation ().getID ());
+        aReceiveSpan.setAttribute ("status", Integer.toString (aHttpServletResponse.getStatus ()));
+        return;
+      }
+      catch (final ToopUnsupportedCodecException ex)
+      {
+        // Only the configured inbound codecs are accepted
+        LOGGER.warn ("Rejecting the /to-dc request: " + ex.getMessage ());
+        sendErrorResponse (aHttpServletResponse, EToopInterfaceErrorCode.UNSUPPORTED_PAYLOAD, ex.getMessage (), 0);
+        aReceiveSpan.setAttribute ("status", Integer.toString (aHttpServletResponse.getStatus ()));
+        return;
+      }
+
+      if (aParsedMsg == null)
+      {
+        // The message content is invalid
+        LOGGER.error ("The /to-dc request does not contain an ASiC archive or the ASiC archive does not contain a TOOP Response Message or a TOOP Error Message!");
+        sendErrorResponse (aHttpServletResponse,
+                           EToopInterfaceErrorCode.INVALID_MESSAGE,
+                           "No TOOP Response in ASiC container",
+                           0);
+      }
+      else if (checkDeadlineExceeded (aDeadline, aHttpServletResponse))
       {
-        if (LOGGER.isDebugEnabled ())
-          LOGGER.debug ("Successfully parsed to a TOOP response");
-
-        // Call callback
-        final ToopResponseWithAttachments140 aResponse = new ToopResponseWithAttachments140 ((TDETOOPResponseType) aParsedMsg,
-                                                                                             aAttachments);
-        ToopInterfaceManager.getInterfaceDC ().onToopResponse (aResponse);
-        aHttpServletResponse.setStatus (HttpServletResponse.SC_ACCEPTED);
+        // Parsing took too long - nobody waits for the result anymore
+        aReceiveSpan.setAttribute ("deadline", "exceeded");
       }
       else
       {
-        LOGGER.error ("The /to-dc request contains an ASiC archive but with unsupported payload of type " +
-                      aParsedMsg.getClass ().getName ());
-        aHttpServletResponse.setStatus (HttpServletResponse.SC_BAD_REQUEST);
+        if (aParsedMsg instanceof TDETOOPResponseType)
+        {
+          try
+          {
+            _dispatchResponse ((TDETOOPResponseType) aParsedMsg, aAttachments, aTenant, aDeadline, aReceiveSpan);
+            aHttpServletResponse.setStatus (HttpServletResponse.SC_ACCEPTED);
+          }
+          catch (final ToopOverloadedException ex)
+          {
+            // Not accepted - the sender retries it
+            LOGGER.warn ("Rejecting the /to-dc request: " + ex.getMessage ());
+            sendErrorResponse (aHttpServletResponse,
+                               EToopInterfaceErrorCode.OVERLOADED,
+                               ex.getMessage (),
+                               OVERLOADED_RETRY_AFTER_MS);
+          }
+        }
+        else
+        {
+          LOGGER.error ("The /to-dc request contains an ASiC archive but with unsupported payload of type " +
+                        aParsedMsg.getClass ().getName ());
+          sendErrorResponse (aHttpServletResponse,
+                             EToopInterfaceErrorCode.UNSUPPORTED_PAYLOAD,
+                             "Only TOOP Responses are supported",
+                             0);
+        }
       }
+      aReceiveSpan.setAttribute ("status", Integer.toString (aHttpServletResponse.getStatus ()));
     }
   }
 }
@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.io.Serializable;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -29,65 +30,218 @@ import org.slf4j.LoggerFactory;
 
 import com.helger.commons.collection.impl.CommonsArrayList;
 import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.mutable.MutableLong;
 
 import eu.toop.commons.dataexchange.v140.TDETOOPRequestType;
 import eu.toop.commons.dataexchange.v140.TDETOOPResponseType;
 import eu.toop.commons.exchange.AsicReadEntry;
-import eu.toop.commons.exchange.ToopMessageBuilder140;
 import eu.toop.commons.exchange.ToopRequestWithAttachments140;
 import eu.toop.commons.exchange.ToopResponseWithAttachments140;
-import eu.toop.iface.ToopInterfaceManager;
+import eu.toop.iface.EToopInterfaceErrorCode;
+import eu.toop.iface.ToopDeadline;
+import eu.toop.iface.ToopTenant;
+import eu.toop.iface.codec.IToopMessageCodec;
+import eu.toop.iface.codec.ToopMessageBatch;
+import eu.toop.iface.trace.ToopSpan;
+import eu.toop.iface.trace.ToopTracer;
 
-@WebServlet ("/to-dp")
+@WebServlet ({ "/to-dp", "/to-dp/*" })
 public class ToDPServlet extends AbstractToopInterfaceServlet
 {
   private static final Logger LOGGER = LoggerFactory.getLogger (ToDPServlet.class);
 
+  @Override
+  public void init () throws ServletException
+  {
+    super.init ();
+
+    // Process the messages of a previous run that were not completed
+    ToopJournalReplay.replayPendingAsync ();
+  }
+
+  /**
+   * Create the invocation of the matching DP callback for a received message.
+   *
+   * @param aMsg
+   *        The decoded message. May not be <code>null</code>.
+   * @param aAttachments
+   *        The attachments of the message. May not be <code>null</code>.
+   * @param aTenant
+   *        The receiving tenant. May not be <code>null</code>.
+   * @return The callback invocation. Never <code>null</code>.
+   */
+  @Nonnull
+  static ICallbackInvoker createCallbackInvoker (@Nonnull final Serializable aMsg,
+                                                 @Nonnull final ICommonsList <AsicReadEntry> aAttachments,
+                                                 @Nonnull final ToopTenant aTenant)
+  {
+    if (aMsg instanceof TDETOOPResponseType)
+    {
+      // If the DP is receiving a response, it is because the TC could not
+      // handle the message from step 3/4
+
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Successfully parsed to a TOOP response");
+
+      // Call error callback
+      final ToopResponseWithAttachments140 aResponse = new ToopResponseWithAttachments140 ((TDETOOPResponseType) aMsg,
+                                                                                           aAttachments);
+      return () -> aTenant.getInterfaceDP ().onToopErrorResponse (aResponse);
+    }
+
+    if (LOGGER.isDebugEnabled ())
+      LOGGER.debug ("Successfully parsed to a TOOP request");
+
+    // Call callback
+    final ToopRequestWithAttachments140 aRequest = new ToopRequestWithAttachments140 ((TDETOOPRequestType) aMsg,
+                                                                                      aAttachments);
+    return () -> aTenant.getInterfaceDP ().onToopRequest (aRequest);
+  }
+
   @Override
   protected void doPost (@Nonnull final HttpServletRequest aHttpServletRequest,
                          @Nonnull final HttpServletResponse aHttpServletResponse) throws ServletException, IOException
   {
-    if (LOGGER.isDebugEnabled ())
-      LOGGER.debug ("Received new HTTP POST on /to-dp");
+    // The remaining time of the sender starts counting now
+    final ToopDeadline aDeadline = getRemoteDeadline (aHttpServletRequest);
+
+    // The addressed tenant, if any
+    final ToopTenant aTenant = getTenant (aHttpServletRequest);
+    if (aTenant == null)
+    {
+      sendErrorResponse (aHttpServletResponse,
+                         EToopInterfaceErrorCode.UNKNOWN_TENANT,
+                         "No tenant for path '" + aHttpServletRequest.getPathInfo () + "'",
+                         0);
+      return;
+    }
+    if (!aTenant.hasInterfaceDP ())
+    {
+      // Never deliver to the callback of another organisation
+      sendErrorResponse (aHttpServletResponse,
+                         EToopInterfaceErrorCode.UNKNOWN_TENANT,
+                         "No DP interface for tenant '" + aTenant.getID () + "'",
+                         0);
+      return;
+    }
 
-    // Parse ASiC
-    final ICommonsList <AsicReadEntry> aAttachments = new CommonsArrayList <> ();
-    final Serializable aMsg = ToopMessageBuilder140.parseRequestOrResponse (aHttpServletRequest.getInputStream (),
-                                                                            aAttachments::add);
-    if (aMsg == null)
+    try (final ToopTenant.Scope aScope = aTenant.enter ();
+         final ToopInboundLimiter.Permit aPermit = acquireInboundPermit (aHttpServletRequest, aHttpServletResponse))
     {
-      // The message content is invalid
-      LOGGER.error ("The /to-dp request does not contain an ASiC archive or the ASiC archive does not contain a TOOP Request or TOOP Response Message!");
-      aHttpServletResponse.setStatus (HttpServletResponse.SC_BAD_REQUEST);
+      if (aPermit.isAccepted () && !checkDeadlineExceeded (aDeadline, aHttpServletResponse))
+      {
+        final long nStart = System.nanoTime ();
+        try
+        {
+          _handlePost (aHttpServletRequest, aHttpServletResponse, aDeadline, aTenant, aPermit);
+        }
+        finally
+        {
+          getReceiveLatencyRecorder ().recordSince (nStart);
+        }
+      }
     }
-    else
+  }
+
+  private void _handlePost (@Nonnull final HttpServletRequest aHttpServletRequest,
+                            @Nonnull final HttpServletResponse aHttpServletResponse,
+                            @Nullable final ToopDeadline aDeadline,
+                            @Nonnull final ToopTenant aTenant,
+                            @Nonnull final ToopInboundLimiter.Permit aPermit) throws IOException
+  {
+    if (LOGGER.isDebugEnabled ())
+      LOGGER.debug ("Received new HTTP POST on /to-dp");
+
+    try (final ToopSpan aReceiveSpan = ToopTracer.startSpan (SPAN_RECEIVE, getRemoteTraceContext (aHttpServletRequest)))
     {
-      if (aMsg instanceof TDETOOPResponseType)
+      aReceiveSpan.setAttribute ("path", "/to-dp");
+      aReceiveSpan.setAttribute ("tenant", aTenant.getID ());
+
+      if (ToopMessageBatch.isBatchContentType (aHttpServletRequest.getContentType ()))
       {
-        // If the DP is receiving a response, it is because the TC could not
-        // handle the message from step 3/4
+        // Multiple requests and/or responses in one HTTP request
+        handleBatch (aHttpServletRequest,
+                     aHttpServletResponse,
+                     aDeadline,
+                     aReceiveSpan,
+                     aPermit,
+                     true,
+                     x -> true,
+                     x -> invokeCallback (createCallbackInvoker (x.getMessage (), x.getAttachments (), aTenant),
+                                          aDeadline,
+                                          x.getJournalSequence ()));
+        aReceiveSpan.setAttribute ("status", Integer.toString (aHttpServletResponse.getStatus ()));
+        return;
+      }
 
-        if (LOGGER.isDebugEnabled ())
-          LOGGER.debug ("Successfully parsed to a TOOP response");
+      // Parse ASiC
+      final ICommonsList <AsicReadEntry> aAttachments = new CommonsArrayList <> ();
+      final Serializable aMsg;
+      final MutableLong aJournalSequence = new MutableLong (NO_JOURNAL_SEQUENCE);
+      try (final ToopSpan aSpan = ToopTracer.startSpan (ToopTracer.SPAN_ASIC_PARSE))
+      {
+        // Negotiated by content type
+        final IToopMessageCodec aCodec = getMessageCodec (aHttpServletRequest);
+        aSpan.setAttribute ("codec", aCodec.getID ());
+        aMsg = readMessage (aHttpServletRequest, aCodec, aAttachments::add, aJournalSequence);
+      }
+      catch (final ToopPayloadLimitException ex)
+      {
+        // Too large or suspicious - reject before anything is materialized
+        LOGGER.warn ("Rejecting the /to-dp request: " + ex.getMessage ());
+        sendErrorResponse (aHttpServletResponse, EToopInterfaceErrorCode.PAYLOAD_TOO_LARGE, ex.getMessage (), 0);
+        aReceiveSpan.setAttribute ("limit", ex.getViolation ().getID ());
+        aReceiveSpan.setAttribute ("status", Integer.toString (aHttpServletResponse.getStatus ()));
+        return;
+      }
+      catch (final ToopUnsupportedCodecException ex)
+      {
+        // Only the configured inbound codecs are accepted
+        LOGGER.warn ("Rejecting the /to-dp request: " + ex.getMessage ());
+        sendErrorResponse (aHttpServletResponse, EToopInterfaceErrorCode.UNSUPPORTED_PAYLOAD, ex.getMessage (), 0);
+        aReceiveSpan.setAttribute ("status", Integer.toString (aHttpServletResponse.getStatus ()));
+        return;
+      }
 
-        // Call error callback
-        final ToopResponseWithAttachments140 aResponse = new ToopResponseWithAttachments140 ((TDETOOPResponseType) aMsg,
-                                                                                             aAttachments);
-        ToopInterfaceManager.getInterfaceDP ().onToopErrorResponse (aResponse);
+      if (aMsg == null)
+      {
+        // The message content is invalid
+        LOGGER.error ("The /to-dp request does not contain an ASiC archive or the ASiC archive does not contain a TOOP Request or TOOP Response Message!");
+        sendErrorResponse (aHttpServletResponse,
+                           EToopInterfaceErrorCode.INVALID_MESSAGE,
+                           "No TOOP Request or TOOP Response in ASiC container",
+                           0);
+      }
+      else if (checkDeadlineExceeded (aDeadline, aHttpServletResponse))
+      {
+        // Parsing took too long - nobody waits for the result anymore
+        aReceiveSpan.setAttribute ("deadline", "exceeded");
+        completeJournal (aJournalSequence.longValue ());
       }
       else
       {
-        if (LOGGER.isDebugEnabled ())
-          LOGGER.debug ("Successfully parsed to a TOOP request");
+        try
+        {
+          final boolean bAsync = invokeCallback (createCallbackInvoker (aMsg, aAttachments, aTenant),
+                                                 aDeadline,
+                                                 aJournalSequence.longValue ());
 
-        // Call callback
-        final ToopRequestWithAttachments140 aRequest = new ToopRequestWithAttachments140 ((TDETOOPRequestType) aMsg,
-                                                                                          aAttachments);
-        ToopInterfaceManager.getInterfaceDP ().onToopRequest (aRequest);
+          // Done - no content; or accepted if processing is still ongoing
+          aHttpServletResponse.setStatus (bAsync ? HttpServletResponse.SC_ACCEPTED
+                                                 : HttpServletResponse.SC_NO_CONTENT);
+        }
+        catch (final ToopOverloadedException ex)
+        {
+          // Not accepted - the sender retries it
+          LOGGER.warn ("Rejecting the /to-dp request: " + ex.getMessage ());
+          completeJournal (aJournalSequence.longValue ());
+          sendErrorResponse (aHttpServletResponse,
+                             EToopInterfaceErrorCode.OVERLOADED,
+                             ex.getMessage (),
+                             OVERLOADED_RETRY_AFTER_MS);
+        }
       }
-
-      // Done - no content
-      aHttpServletResponse.setStatus (HttpServletResponse.SC_NO_CONTENT);
+      aReceiveSpan.setAttribute ("status", Integer.toString (aHttpServletResponse.getStatus ()));
     }
   }
 }
@@ -0,0 +1,306 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.servlet;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCounter;
+import com.helger.commons.statistics.IMutableStatisticsHandlerKeyedCounter;
+import com.helger.commons.statistics.StatisticsManager;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+
+import eu.toop.iface.util.TokenBucket;
+
+/**
+ * Admission control for the receiving servlets. It combines a token bucket
+ * rate limit per source (e.g. remote address) with a global cap on the number
+ * of messages that are processed concurrently. It is checked before any
+ * parsing happens, so that excess load can be rejected cheaply.<br>
+ * At most <code>maxSources</code> sources are tracked. If another source
+ * arrives, the least recently seen source is forgotten in constant time. It
+ * starts with a full bucket when it returns - as it was idle for the longest
+ * time, its bucket is most likely refilled anyway. So each source always has
+ * its own bucket and unrelated sources never share a limit.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+@ThreadSafe
+public class ToopInboundLimiter
+{
+  private static final IMutableStatisticsHandlerCounter s_aStatsAccepted = StatisticsManager.getCounterHandler (ToopInboundLimiter.class.getName () +
+                                                                                                                "$accepted");
+  private static final IMutableStatisticsHandlerKeyedCounter s_aStatsRejected = StatisticsManager.getKeyedCounterHandler (ToopInboundLimiter.class.getName () +
+                                                                                                                          "$rejected");
+
+  /**
+   * The result of an admission check.
+   */
+  public enum EAdmission
+  {
+    /** The message may be processed */
+    ACCEPTED,
+    /** The source exceeded its rate limit - HTTP 429 */
+    RATE_LIMITED,
+    /** Too many messages are processed concurrently - HTTP 503 */
+    OVERLOADED;
+  }
+
+  /**
+   * A permit as the result of {@link ToopInboundLimiter#tryAcquire(String)}.
+   * If the admission was accepted it must be closed after processing, so that
+   * the in-flight slot is released.
+   */
+  public static final class Permit implements AutoCloseable
+  {
+    private final ToopInboundLimiter m_aLimiter;
+    private final EAdmission m_eAdmission;
+    private final long m_nRetryAfterMillis;
+    private final TokenBucket m_aBucket;
+    private boolean m_bReleased;
+
+    Permit (@Nonnull final ToopInboundLimiter aLimiter,
+            @Nonnull final EAdmission eAdmission,
+            final long nRetryAfterMillis,
+            @Nullable final TokenBucket aBucket)
+    {
+      m_aLimiter = aLimiter;
+      m_eAdmission = eAdmission;
+      m_nRetryAfterMillis = nRetryAfterMillis;
+      m_aBucket = aBucket;
+    }
+
+    @Nonnull
+    public EAdmission getAdmission ()
+    {
+      return m_eAdmission;
+    }
+
+    public boolean isAccepted ()
+    {
+      return m_eAdmission == EAdmission.ACCEPTED;
+    }
+
+    /**
+     * @return A hint in milliseconds when the sender should retry. Only
+     *         meaningful if the admission was not accepted.
+     */
+    @Nonnegative
+    public long getRetryAfterMillis ()
+    {
+      return m_nRetryAfterMillis;
+    }
+
+    /**
+     * Charge further messages of the admitted request to the rate limit of
+     * its source, e.g. the remaining parts of a batch. As the request is
+     * already admitted, the tokens are taken even if they are not available,
+     * so that the following requests of the source wait accordingly.
+     *
+     * @param nMessages
+     *        The number of additional messages. Must be &ge; 0.
+     * @since 0.10.9
+     */
+    public void chargeAdditional (@Nonnegative final int nMessages)
+    {
+      if (isAccepted () && m_aBucket != null && nMessages > 0)
+        m_aBucket.forceConsume (nMessages);
+    }
+
+    public void close ()
+    {
+      if (isAccepted () && !m_bReleased)
+      {
+        m_bReleased = true;
+        m_aLimiter._release ();
+      }
+    }
+
+    @Override
+    public String toString ()
+    {
+      return new ToStringGenerator (this).append ("Admission", m_eAdmission)
+                                         .append ("RetryAfterMillis", m_nRetryAfterMillis)
+                                         .getToString ();
+    }
+  }
+
+  private final double m_dPermitsPerSecond;
+  private final int m_nBurst;
+  private final int m_nMaxInFlight;
+  private final int m_nMaxSources;
+  private final Semaphore m_aInFlight;
+  private final Lock m_aBucketLock = new ReentrantLock ();
+  // In access order, so that the eldest entry is the least recently seen
+  private final Map <String, TokenBucket> m_aBuckets;
+
+  /**
+   * Constructor
+   *
+   * @param dPermitsPerSecond
+   *        Sustained messages per second per source. Values &le; 0 disable the
+   *        rate limit.
+   * @param nBurst
+   *        Maximum burst per source. Values &le; 0 mean the same as the
+   *        permits per second (but at least 1).
+   * @param nMaxInFlight
+   *        Maximum number of concurrently processed messages. Values &le; 0
+   *        disable the cap.
+   * @param nMaxSources
+   *        Maximum number of distinct sources to track. If exceeded, the least
+   *        recently seen source is forgotten. Must be &gt; 0.
+   */
+  public ToopInboundLimiter (final double dPermitsPerSecond,
+                             final int nBurst,
+                             final int nMaxInFlight,
+                             @Nonnegative final int nMaxSources)
+  {
+    ValueEnforcer.isGT0 (nMaxSources, "MaxSources");
+    m_dPermitsPerSecond = dPermitsPerSecond;
+    m_nBurst = nBurst > 0 ? nBurst : Math.max (1, (int) Math.ceil (dPermitsPerSecond));
+    m_nMaxInFlight = nMaxInFlight;
+    m_nMaxSources = nMaxSources;
+    m_aInFlight = nMaxInFlight > 0 ? new Semaphore (nMaxInFlight) : null;
+    m_aBuckets = new LinkedHashMap <String, TokenBucket> (16, 0.75f, true)
+    {
+      @Override
+      protected boolean removeEldestEntry (final Map.Entry <String, TokenBucket> aEldest)
+      {
+        return size () > m_nMaxSources;
+      }
+    };
+  }
+
+  public boolean isRateLimitEnabled ()
+  {
+    return m_dPermitsPerSecond > 0;
+  }
+
+  public boolean isInFlightCapEnabled ()
+  {
+    return m_aInFlight != null;
+  }
+
+  /**
+   * @return The maximum number of concurrently processed messages or a value
+   *         &le; 0 if there is no cap.
+   */
+  public int getMaxInFlight ()
+  {
+    return m_nMaxInFlight;
+  }
+
+  /**
+   * @return The number of messages currently in processing. Only available if
+   *         the in-flight cap is enabled, -1 otherwise.
+   */
+  public int getInFlightCount ()
+  {
+    return m_aInFlight == null ? -1 : m_nMaxInFlight - m_aInFlight.availablePermits ();
+  }
+
+  /**
+   * @return The number of distinct sources that are currently tracked.
+   */
+  @Nonnegative
+  public int getTrackedSourceCount ()
+  {
+    m_aBucketLock.lock ();
+    try
+    {
+      return m_aBuckets.size ();
+    }
+    finally
+    {
+      m_aBucketLock.unlock ();
+    }
+  }
+
+  @Nonnull
+  private TokenBucket _getBucket (@Nonnull final String sSourceKey)
+  {
+    m_aBucketLock.lock ();
+    try
+    {
+      // Evicts the least recently seen source if too many are tracked
+      return m_aBuckets.computeIfAbsent (sSourceKey, k -> new TokenBucket (m_dPermitsPerSecond, m_nBurst));
+    }
+    finally
+    {
+      m_aBucketLock.unlock ();
+    }
+  }
+
+  /**
+   * Check if a message from the provided source may be processed.
+   *
+   * @param sSourceKey
+   *        The source identifier (e.g. remote address). May be
+   *        <code>null</code>.
+   * @return The permit. Never <code>null</code>. Must be closed after
+   *         processing.
+   */
+  @Nonnull
+  public Permit tryAcquire (@Nullable final String sSourceKey)
+  {
+    TokenBucket aBucket = null;
+    if (isRateLimitEnabled ())
+    {
+      aBucket = _getBucket (StringHelper.getNotNull (sSourceKey));
+      if (!aBucket.tryConsume ())
+      {
+        s_aStatsRejected.increment (EAdmission.RATE_LIMITED.name ());
+        return new Permit (this, EAdmission.RATE_LIMITED, aBucket.getMillisUntilNextToken (), null);
+      }
+    }
+
+    if (m_aInFlight != null && !m_aInFlight.tryAcquire ())
+    {
+      s_aStatsRejected.increment (EAdmission.OVERLOADED.name ());
+      return new Permit (this, EAdmission.OVERLOADED, 1000, null);
+    }
+
+    s_aStatsAccepted.increment ();
+    return new Permit (this, EAdmission.ACCEPTED, 0, aBucket);
+  }
+
+  private void _release ()
+  {
+    if (m_aInFlight != null)
+      m_aInFlight.release ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("PermitsPerSecond", m_dPermitsPerSecond)
+                                       .append ("Burst", m_nBurst)
+                                       .append ("MaxInFlight", m_nMaxInFlight)
+                                       .append ("MaxSources", m_nMaxSources)
+                                       .getToString ();
+  }
+}
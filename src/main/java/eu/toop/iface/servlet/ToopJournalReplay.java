@@ -0,0 +1,160 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.servlet;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.concurrent.Immutable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCounter;
+import com.helger.commons.statistics.StatisticsManager;
+
+import eu.toop.commons.exchange.AsicReadEntry;
+import eu.toop.iface.ToopInterfaceManager;
+import eu.toop.iface.ToopTenant;
+import eu.toop.iface.ToopTenantRegistry;
+import eu.toop.iface.codec.IToopMessageCodec;
+import eu.toop.iface.codec.ToopMessageCodecRegistry;
+import eu.toop.iface.journal.ToopInboundJournal;
+
+/**
+ * Replays the messages from the {@link ToopInboundJournal} that were
+ * acknowledged to the sender but whose DP callback did not complete before the
+ * previous shutdown or crash.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+@Immutable
+public final class ToopJournalReplay
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (ToopJournalReplay.class);
+  private static final IMutableStatisticsHandlerCounter s_aStatsReplayed = StatisticsManager.getCounterHandler (ToopJournalReplay.class.getName () +
+                                                                                                               "$replayed");
+
+  private ToopJournalReplay ()
+  {}
+
+  /**
+   * Invoke the DP callbacks for all messages of the previous run that were not
+   * completed. Messages of unknown tenants, of tenants without DP callback and
+   * messages whose synchronous callback failed are kept for the next call, so
+   * this method should be called again after the tenants and callbacks were
+   * registered, if that happens after the servlets were started.
+   *
+   * @return The number of messages replayed.
+   */
+  @Nonnegative
+  public static int replayPending ()
+  {
+    final ToopInboundJournal aJournal = ToopInterfaceManager.getInboundJournal ();
+    if (aJournal == null)
+      return 0;
+
+    final ToopTenantRegistry aRegistry = ToopInterfaceManager.getTenantRegistry ();
+    final ICommonsList <ToopInboundJournal.Entry> aDeferred = new CommonsArrayList <> ();
+    int ret = 0;
+    for (final ToopInboundJournal.Entry aEntry : aJournal.takeRecoveredEntries ())
+    {
+      final ToopTenant aTenant = aRegistry.getTenantOfID (aEntry.getTenantID ());
+      if (aTenant == null)
+      {
+        // Never replay into the callback of another organisation
+        LOGGER.warn ("Tenant '" + aEntry.getTenantID () + "' of journal entry " + aEntry + " is unknown - deferring it");
+        aDeferred.add (aEntry);
+        continue;
+      }
+
+      try (final ToopTenant.Scope aScope = aTenant.enter ())
+      {
+        if (!aTenant.hasInterfaceDP ())
+        {
+          // Not yet registered by the application
+          aDeferred.add (aEntry);
+          continue;
+        }
+
+        final IToopMessageCodec aCodec = ToopMessageCodecRegistry.getInstance ()
+                                                                 .getCodecOfContentType (aEntry.getContentType ());
+        final ICommonsList <AsicReadEntry> aAttachments = new CommonsArrayList <> ();
+        final Serializable aMsg;
+        try
+        {
+          aMsg = aCodec.decode (new NonBlockingByteArrayInputStream (aEntry.getPayload ()), aAttachments::add);
+        }
+        catch (final IOException | RuntimeException ex)
+        {
+          // Will not get better with the next attempt
+          LOGGER.error ("Failed to decode journal entry " + aEntry + " - dropping it", ex);
+          AbstractToopInterfaceServlet.completeJournal (aEntry.getSequence ());
+          continue;
+        }
+        if (aMsg == null)
+        {
+          LOGGER.error ("Journal entry " + aEntry + " does not contain a TOOP message - dropping it");
+          AbstractToopInterfaceServlet.completeJournal (aEntry.getSequence ());
+          continue;
+        }
+
+        try
+        {
+          AbstractToopInterfaceServlet.invokeCallback (ToDPServlet.createCallbackInvoker (aMsg, aAttachments, aTenant),
+                                                       null,
+                                                       aEntry.getSequence ());
+        }
+        catch (final IOException | RuntimeException ex)
+        {
+          // Kept for the next call
+          LOGGER.error ("Error replaying journal entry " + aEntry, ex);
+          aDeferred.add (aEntry);
+          continue;
+        }
+        s_aStatsReplayed.increment ();
+        ret++;
+      }
+    }
+
+    if (!aDeferred.isEmpty ())
+    {
+      LOGGER.warn (aDeferred.size () +
+                   " journal entries cannot be replayed yet because their tenant or DP callback is not registered or the callback failed - call replayPending again later");
+      aJournal.deferRecoveredEntries (aDeferred);
+    }
+    if (ret > 0)
+      LOGGER.info ("Replayed " + ret + " journal entries");
+    return ret;
+  }
+
+  /**
+   * Call {@link #replayPending()} on the executor from
+   * {@link ToopInterfaceManager#getExecutorService()}, if the journal is
+   * enabled. The journal is opened in the calling thread, so that a
+   * configuration problem shows up immediately.
+   */
+  public static void replayPendingAsync ()
+  {
+    if (ToopInterfaceManager.getInboundJournal () != null)
+      ToopInterfaceManager.getExecutorService ().execute (ToopJournalReplay::replayPending);
+  }
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.servlet;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.ValueEnforcer;
+
+/**
+ * Thrown if a received message violates one of the {@link ToopPayloadLimits}.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+public class ToopPayloadLimitException extends IOException
+{
+  private final ToopPayloadLimits.EViolation m_eViolation;
+
+  public ToopPayloadLimitException (@Nonnull final ToopPayloadLimits.EViolation eViolation,
+                                    @Nullable final String sMessage)
+  {
+    super (sMessage);
+    ValueEnforcer.notNull (eViolation, "Violation");
+    m_eViolation = eViolation;
+  }
+
+  /**
+   * @return The violated limit. Never <code>null</code>.
+   */
+  @Nonnull
+  public final ToopPayloadLimits.EViolation getViolation ()
+  {
+    return m_eViolation;
+  }
+}
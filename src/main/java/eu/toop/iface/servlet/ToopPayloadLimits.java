@@ -0,0 +1,372 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.servlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.annotation.CheckForSigned;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.id.IHasID;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.statistics.IMutableStatisticsHandlerKeyedCounter;
+import com.helger.commons.statistics.StatisticsManager;
+import com.helger.commons.string.ToStringGenerator;
+
+import eu.toop.iface.ToopInterfaceConfig;
+import eu.toop.iface.util.PooledByteArrayOutputStream;
+import eu.toop.iface.util.ToopBufferPool;
+import eu.toop.iface.util.ToopSpoolingOutputStream;
+
+/**
+ * Size limits for received messages. The request body is read into a buffer
+ * of at most {@link #getMaxTotalBytes()} bytes, so the memory used per request
+ * is bounded even if the sender lies about the content length. ZIP based
+ * envelopes (ASiC) are additionally scanned entry by entry before they are
+ * parsed, without keeping the decompressed data, so that zip bombs are
+ * detected before any attachment is materialized. All limits are disabled if
+ * &le; 0.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+@Immutable
+public class ToopPayloadLimits
+{
+  /**
+   * The different limits that may be violated.
+   */
+  public enum EViolation implements IHasID <String>
+  {
+    TOTAL_BYTES ("total-bytes"),
+    ENTRY_BYTES ("entry-bytes"),
+    ENTRY_COUNT ("entry-count"),
+    COMPRESSION_RATIO ("compression-ratio");
+
+    private final String m_sID;
+
+    EViolation (@Nonnull @Nonempty final String sID)
+    {
+      m_sID = sID;
+    }
+
+    @Nonnull
+    @Nonempty
+    public String getID ()
+    {
+      return m_sID;
+    }
+  }
+
+  private static final IMutableStatisticsHandlerKeyedCounter s_aStatsRejected = StatisticsManager.getKeyedCounterHandler (ToopPayloadLimits.class.getName () +
+                                                                                                                          "$rejected");
+
+  private static final int SCAN_BUFFER_SIZE = 16 * 1024;
+  /** Don't trust the content length for more than this initial buffer size */
+  private static final int MAX_PREALLOCATE = 4 * 1024 * 1024;
+
+  private final long m_nMaxTotalBytes;
+  private final long m_nMaxEntryBytes;
+  private final int m_nMaxEntryCount;
+  private final int m_nMaxCompressionRatio;
+
+  /**
+   * Constructor
+   *
+   * @param nMaxTotalBytes
+   *        Maximum size of the request body in bytes.
+   * @param nMaxEntryBytes
+   *        Maximum decompressed size of a single ZIP entry in bytes.
+   * @param nMaxEntryCount
+   *        Maximum number of ZIP entries.
+   * @param nMaxCompressionRatio
+   *        Maximum ratio of all decompressed bytes to the body size.
+   */
+  public ToopPayloadLimits (final long nMaxTotalBytes,
+                            final long nMaxEntryBytes,
+                            final int nMaxEntryCount,
+                            final int nMaxCompressionRatio)
+  {
+    m_nMaxTotalBytes = nMaxTotalBytes;
+    m_nMaxEntryBytes = nMaxEntryBytes;
+    m_nMaxEntryCount = nMaxEntryCount;
+    m_nMaxCompressionRatio = nMaxCompressionRatio;
+  }
+
+  @CheckForSigned
+  public final long getMaxTotalBytes ()
+  {
+    return m_nMaxTotalBytes;
+  }
+
+  @CheckForSigned
+  public final long getMaxEntryBytes ()
+  {
+    return m_nMaxEntryBytes;
+  }
+
+  @CheckForSigned
+  public final int getMaxEntryCount ()
+  {
+    return m_nMaxEntryCount;
+  }
+
+  @CheckForSigned
+  public final int getMaxCompressionRatio ()
+  {
+    return m_nMaxCompressionRatio;
+  }
+
+  @Nonnull
+  private static ToopPayloadLimitException _reject (@Nonnull final EViolation eViolation, @Nonnull final String sMessage)
+  {
+    s_aStatsRejected.increment (eViolation.getID ());
+    return new ToopPayloadLimitException (eViolation, sMessage);
+  }
+
+  /**
+   * Read the complete body into a pooled buffer, failing as soon as the
+   * maximum total size is exceeded.
+   *
+   * @param aIS
+   *        The stream to read. May not be <code>null</code>.
+   * @param nContentLength
+   *        The declared content length or a negative value if unknown. Used to
+   *        reject too large bodies without reading them.
+   * @param aPool
+   *        The buffer pool to use. May not be <code>null</code>.
+   * @param nInitialSize
+   *        The initial buffer size, if the content length is unknown.
+   * @return The filled buffer, that must be closed by the caller. Never
+   *         <code>null</code>.
+   * @throws ToopPayloadLimitException
+   *         If the body is too large
+   * @throws IOException
+   *         On read error
+   */
+  @Nonnull
+  public PooledByteArrayOutputStream readBody (@Nonnull final InputStream aIS,
+                                               final long nContentLength,
+                                               @Nonnull final ToopBufferPool aPool,
+                                               @Nonnegative final int nInitialSize) throws IOException
+  {
+    if (m_nMaxTotalBytes > 0 && nContentLength > m_nMaxTotalBytes)
+      throw _reject (EViolation.TOTAL_BYTES,
+                     "Content length " + nContentLength + " exceeds the limit of " + m_nMaxTotalBytes + " bytes");
+
+    final int nSize = nContentLength >= 0 ? (int) Math.min (nContentLength, MAX_PREALLOCATE) : nInitialSize;
+    final PooledByteArrayOutputStream ret = new PooledByteArrayOutputStream (aPool, nSize);
+    try
+    {
+      _copyBody (aIS, ret);
+      return ret;
+    }
+    catch (final IOException | RuntimeException ex)
+    {
+      ret.close ();
+      throw ex;
+    }
+  }
+
+  /**
+   * Read the complete body into the provided target, failing as soon as the
+   * maximum total size is exceeded. Small bodies stay in memory. If the
+   * content length already exceeds the spool threshold of the target, the body
+   * is directly written to a temporary file, otherwise the target switches
+   * when the threshold is reached while reading.
+   *
+   * @param aIS
+   *        The stream to read. May not be <code>null</code>.
+   * @param nContentLength
+   *        The declared content length or a negative value if unknown. Used to
+   *        reject too large bodies without reading them.
+   * @param aTarget
+   *        The target to write to. May not be <code>null</code>. Must be
+   *        closed by the caller.
+   * @throws ToopPayloadLimitException
+   *         If the body is too large
+   * @throws IOException
+   *         On read error
+   */
+  public void readBody (@Nonnull final InputStream aIS,
+                        final long nContentLength,
+                        @Nonnull final ToopSpoolingOutputStream aTarget) throws IOException
+  {
+    if (m_nMaxTotalBytes > 0 && nContentLength > m_nMaxTotalBytes)
+      throw _reject (EViolation.TOTAL_BYTES,
+                     "Content length " + nContentLength + " exceeds the limit of " + m_nMaxTotalBytes + " bytes");
+
+    if (aTarget.getThreshold () > 0 && nContentLength > aTarget.getThreshold ())
+      aTarget.spool ();
+    _copyBody (aIS, aTarget);
+  }
+
+  private void _copyBody (@Nonnull final InputStream aIS, @Nonnull final OutputStream aOS) throws IOException
+  {
+    final byte [] aBuf = new byte [SCAN_BUFFER_SIZE];
+    long nTotal = 0;
+    int nRead;
+    while ((nRead = aIS.read (aBuf, 0, aBuf.length)) > 0)
+    {
+      nTotal += nRead;
+      if (m_nMaxTotalBytes > 0 && nTotal > m_nMaxTotalBytes)
+        throw _reject (EViolation.TOTAL_BYTES, "Body exceeds the limit of " + m_nMaxTotalBytes + " bytes");
+      aOS.write (aBuf, 0, nRead);
+    }
+  }
+
+  /**
+   * Scan a ZIP archive entry by entry and check the entry count, the
+   * decompressed size of each entry and the overall compression ratio. The
+   * decompressed data is discarded. Content that is not a valid ZIP archive is
+   * not rejected here but left to the parser.
+   *
+   * @param aBuf
+   *        The buffer containing the ZIP archive. May not be <code>null</code>.
+   * @param nOfs
+   *        Offset into the buffer
+   * @param nLen
+   *        Number of bytes
+   * @throws ToopPayloadLimitException
+   *         If a limit is exceeded
+   */
+  public void checkZipArchive (@Nonnull final byte [] aBuf,
+                               @Nonnegative final int nOfs,
+                               @Nonnegative final int nLen) throws ToopPayloadLimitException
+  {
+    try
+    {
+      checkZipArchive (new NonBlockingByteArrayInputStream (aBuf, nOfs, nLen), nLen);
+    }
+    catch (final ToopPayloadLimitException ex)
+    {
+      throw ex;
+    }
+    catch (final IOException ex)
+    {
+      // Cannot happen for a byte array
+      throw new IllegalStateException (ex);
+    }
+  }
+
+  /**
+   * Scan a ZIP archive like {@link #checkZipArchive(byte[], int, int)}, but
+   * read it from a stream, e.g. if it was spooled to a temporary file.
+   *
+   * @param aIS
+   *        The stream containing the ZIP archive. May not be
+   *        <code>null</code>. Is closed.
+   * @param nLen
+   *        The size of the ZIP archive in bytes
+   * @throws ToopPayloadLimitException
+   *         If a limit is exceeded
+   * @throws IOException
+   *         Never for invalid ZIP content, which is left to the parser
+   */
+  public void checkZipArchive (@Nonnull final InputStream aIS,
+                               @Nonnegative final long nLen) throws IOException
+  {
+    if (m_nMaxEntryBytes <= 0 && m_nMaxEntryCount <= 0 && m_nMaxCompressionRatio <= 0)
+    {
+      aIS.close ();
+      return;
+    }
+
+    final long nMaxTotalDecompressed = m_nMaxCompressionRatio > 0 ? (long) m_nMaxCompressionRatio * Math.max (nLen, 1)
+                                                                  : Long.MAX_VALUE;
+    final byte [] aScanBuf = new byte [SCAN_BUFFER_SIZE];
+    try (final ZipInputStream aZIS = new ZipInputStream (aIS))
+    {
+      int nEntries = 0;
+      long nTotalDecompressed = 0;
+      ZipEntry aEntry;
+      while ((aEntry = aZIS.getNextEntry ()) != null)
+      {
+        ++nEntries;
+        if (m_nMaxEntryCount > 0 && nEntries > m_nMaxEntryCount)
+          throw _reject (EViolation.ENTRY_COUNT, "More than " + m_nMaxEntryCount + " ZIP entries");
+
+        long nEntryBytes = 0;
+        int nRead;
+        while ((nRead = aZIS.read (aScanBuf, 0, aScanBuf.length)) > 0)
+        {
+          nEntryBytes += nRead;
+          nTotalDecompressed += nRead;
+          if (m_nMaxEntryBytes > 0 && nEntryBytes > m_nMaxEntryBytes)
+            throw _reject (EViolation.ENTRY_BYTES,
+                           "ZIP entry '" + aEntry.getName () + "' exceeds the limit of " + m_nMaxEntryBytes + " bytes");
+          if (nTotalDecompressed > nMaxTotalDecompressed)
+            throw _reject (EViolation.COMPRESSION_RATIO,
+                           "ZIP archive exceeds the compression ratio limit of " + m_nMaxCompressionRatio);
+        }
+      }
+    }
+    catch (final ToopPayloadLimitException ex)
+    {
+      throw ex;
+    }
+    catch (final IOException ex)
+    {
+      // Not a valid ZIP - the parser will report it
+    }
+  }
+
+  /**
+   * Check the number of messages in a received batch. The maximum number of
+   * ZIP entries is used as the limit, as each message is at least one entry.
+   *
+   * @param nParts
+   *        The number of parts read so far.
+   * @throws ToopPayloadLimitException
+   *         If the limit is exceeded
+   * @since 0.10.9
+   */
+  public void checkBatchPartCount (@Nonnegative final int nParts) throws ToopPayloadLimitException
+  {
+    if (m_nMaxEntryCount > 0 && nParts > m_nMaxEntryCount)
+      throw _reject (EViolation.ENTRY_COUNT, "More than " + m_nMaxEntryCount + " messages in batch");
+  }
+
+  /**
+   * @return New limits based on the settings in {@link ToopInterfaceConfig}.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  public static ToopPayloadLimits createFromConfig ()
+  {
+    return new ToopPayloadLimits (ToopInterfaceConfig.getInboundMaxBytes (),
+                                  ToopInterfaceConfig.getInboundMaxEntryBytes (),
+                                  ToopInterfaceConfig.getInboundMaxEntries (),
+                                  ToopInterfaceConfig.getInboundMaxCompressionRatio ());
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("MaxTotalBytes", m_nMaxTotalBytes)
+                                       .append ("MaxEntryBytes", m_nMaxEntryBytes)
+                                       .append ("MaxEntryCount", m_nMaxEntryCount)
+                                       .append ("MaxCompressionRatio", m_nMaxCompressionRatio)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,332 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.servlet;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.pool.PoolStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.CommonsTreeSet;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.collection.impl.ICommonsOrderedMap;
+import com.helger.commons.collection.impl.ICommonsSortedSet;
+import com.helger.commons.http.CHttp;
+import com.helger.commons.http.CHttpHeader;
+import com.helger.commons.mime.CMimeType;
+import com.helger.json.IJsonArray;
+import com.helger.json.IJsonObject;
+import com.helger.json.JsonArray;
+import com.helger.json.JsonObject;
+
+import eu.toop.iface.ToopInterfaceConfig;
+import eu.toop.iface.ToopInterfaceManager;
+import eu.toop.iface.ToopTenant;
+import eu.toop.iface.ToopWarmUp;
+import eu.toop.iface.codec.ToopSigningService;
+import eu.toop.iface.journal.ToopInboundJournal;
+import eu.toop.iface.util.HttpClientInvoker;
+import eu.toop.iface.util.ToopBufferPool;
+import eu.toop.iface.util.ToopLatencyRecorder;
+
+/**
+ * Servlet that reports the internal state of this node as JSON, so that an
+ * orchestrator or load balancer can decide whether to route traffic to it. The
+ * response status is 200 if the node is ready and 503 if it is not ready,
+ * because the keystore of a tenant cannot be loaded or because it is
+ * overloaded, e.g. because the HTTP connection pool of a tenant is exhausted.
+ * The overload thresholds are configured in {@link ToopInterfaceConfig}.<br>
+ * The status reveals internals of the node and is therefore not registered
+ * automatically. Map it explicitly in the <code>web.xml</code> and protect it
+ * like other management endpoints:
+ *
+ * <pre>
+ * &lt;servlet&gt;
+ *   &lt;servlet-name&gt;ToopStatusServlet&lt;/servlet-name&gt;
+ *   &lt;servlet-class&gt;eu.toop.iface.servlet.ToopStatusServlet&lt;/servlet-class&gt;
+ * &lt;/servlet&gt;
+ * &lt;servlet-mapping&gt;
+ *   &lt;servlet-name&gt;ToopStatusServlet&lt;/servlet-name&gt;
+ *   &lt;url-pattern&gt;/toop-status&lt;/url-pattern&gt;
+ * &lt;/servlet-mapping&gt;
+ * </pre>
+ *
+ * Error details are only logged, never returned.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+public class ToopStatusServlet extends AbstractToopInterfaceServlet
+{
+  /** The minimum time between two attempts to load a broken keystore */
+  public static final long KEYSTORE_RETRY_MILLIS = 30_000;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (ToopStatusServlet.class);
+  private static final double [] PERCENTILES = { 50, 90, 99 };
+
+  // Tenant ID to the time of the last failed attempt
+  private final ICommonsMap <String, Long> m_aKeyStoreFailures = new CommonsHashMap <> ();
+
+  /**
+   * Check if the keystores of all registered tenants can be loaded. A
+   * successfully loaded keystore is kept by the tenant, a failure is retried at
+   * most every {@link #KEYSTORE_RETRY_MILLIS} milliseconds to keep the status
+   * cheap.
+   *
+   * @return The IDs of all tenants whose keystore cannot be loaded. Never
+   *         <code>null</code> but maybe empty.
+   */
+  @Nonnull
+  private synchronized ICommonsSortedSet <String> _getKeyStoreFailedTenants ()
+  {
+    final ICommonsSortedSet <String> ret = new CommonsTreeSet <> ();
+    final long nNow = System.nanoTime ();
+    for (final ToopTenant aTenant : ToopInterfaceManager.getTenantRegistry ().getAllTenants ())
+    {
+      final String sTenantID = aTenant.getID ();
+      final Long aLastFailure = m_aKeyStoreFailures.get (sTenantID);
+      if (aLastFailure != null &&
+          TimeUnit.NANOSECONDS.toMillis (nNow - aLastFailure.longValue ()) < KEYSTORE_RETRY_MILLIS)
+      {
+        // Failed recently - don't try again yet
+        ret.add (sTenantID);
+        continue;
+      }
+      try
+      {
+        aTenant.getKeyMaterial ();
+        m_aKeyStoreFailures.remove (sTenantID);
+      }
+      catch (final IllegalStateException ex)
+      {
+        LOGGER.warn ("Status check of tenant '" + sTenantID + "': " + ex.getMessage ());
+        m_aKeyStoreFailures.put (sTenantID, Long.valueOf (nNow));
+        ret.add (sTenantID);
+      }
+    }
+    return ret;
+  }
+
+  @Nonnull
+  private static IJsonObject _getLatency (@Nonnull final ToopLatencyRecorder aRecorder)
+  {
+    final long [] aValues = aRecorder.getPercentiles (PERCENTILES);
+    final IJsonObject ret = new JsonObject ();
+    ret.add ("count", aRecorder.getTotalCount ());
+    for (int i = 0; i < PERCENTILES.length; ++i)
+      ret.add ("p" + (int) PERCENTILES[i] + "ms", aValues[i]);
+    return ret;
+  }
+
+  /**
+   * Create the status object.
+   *
+   * @return The status as JSON. Never <code>null</code>. The boolean property
+   *         "ready" contains the overall state, and if it is not ready the
+   *         array property "notReadyReasons" contains the reasons.
+   */
+  @Nonnull
+  protected IJsonObject createStatus ()
+  {
+    final IJsonArray aNotReadyReasons = new JsonArray ();
+
+    // Configuration and keystore
+    final IJsonObject aConfig = new JsonObject ();
+    aConfig.add ("read", ToopInterfaceConfig.getConfigFile ().isRead ());
+    aConfig.add ("tenants", ToopInterfaceManager.getTenantRegistry ().getAllTenants ().size ());
+    final ICommonsSortedSet <String> aKeyStoreFailedTenants = _getKeyStoreFailedTenants ();
+    aConfig.add ("keystoreLoaded", aKeyStoreFailedTenants.isEmpty ());
+    if (aKeyStoreFailedTenants.isNotEmpty ())
+    {
+      // Only the IDs - the messages were already logged
+      final IJsonArray aFailedTenants = new JsonArray ();
+      for (final String sTenantID : aKeyStoreFailedTenants)
+        aFailedTenants.add (sTenantID);
+      aConfig.add ("keystoreFailedTenants", aFailedTenants);
+      aNotReadyReasons.add ("keystore");
+    }
+
+    // Warm-up
+    final IJsonObject aWarmUp = new JsonObject ();
+    final ToopWarmUp.EState eWarmUpState = ToopWarmUp.getState ();
+    aWarmUp.add ("state", eWarmUpState.name ());
+    if (eWarmUpState == ToopWarmUp.EState.RUNNING)
+      aNotReadyReasons.add ("warmup");
+    if (eWarmUpState == ToopWarmUp.EState.DONE)
+      aWarmUp.add ("totalMillis", ToopWarmUp.getTotalMillis ());
+    final IJsonObject aWarmUpSteps = new JsonObject ();
+    for (final Map.Entry <String, Long> aEntry : ToopWarmUp.getAllStepMillis ().entrySet ())
+      aWarmUpSteps.add (aEntry.getKey (), aEntry.getValue ().longValue ());
+    aWarmUp.add ("steps", aWarmUpSteps);
+    final ICommonsOrderedMap <String, String> aWarmUpErrors = ToopWarmUp.getAllErrors ();
+    if (!aWarmUpErrors.isEmpty ())
+    {
+      // Only the names - the messages were already logged
+      final IJsonArray aFailedSteps = new JsonArray ();
+      for (final String sStep : aWarmUpErrors.keySet ())
+        aFailedSteps.add (sStep);
+      aWarmUp.add ("failedSteps", aFailedSteps);
+    }
+
+    // Received messages
+    final ToopInboundLimiter aLimiter = ToopInterfaceManager.getInboundLimiter ();
+    final IJsonObject aInbound = new JsonObject ();
+    aInbound.add ("inFlight", aLimiter.getInFlightCount ());
+    aInbound.add ("maxInFlight", aLimiter.getMaxInFlight ());
+    aInbound.add ("trackedSources", aLimiter.getTrackedSourceCount ());
+    aInbound.add ("latency", _getLatency (getReceiveLatencyRecorder ()));
+    final double dInFlightRatio = ToopInterfaceConfig.getStatusOverloadInFlightRatio ();
+    if (dInFlightRatio > 0 &&
+        aLimiter.isInFlightCapEnabled () &&
+        aLimiter.getInFlightCount () >= dInFlightRatio * aLimiter.getMaxInFlight ())
+      aNotReadyReasons.add ("inbound-inflight");
+
+    // Sent messages
+    final int nOutboundInFlight = HttpClientInvoker.getInFlightCount ();
+    final IJsonObject aOutbound = new JsonObject ();
+    aOutbound.add ("inFlight", nOutboundInFlight);
+    aOutbound.add ("pendingResponses", ToopInterfaceManager.getResponseCorrelator ().getPendingCount ());
+    aOutbound.add ("latency", _getLatency (HttpClientInvoker.getLatencyRecorder ()));
+    final int nMaxOutboundInFlight = ToopInterfaceConfig.getStatusOverloadOutboundInFlight ();
+    if (nMaxOutboundInFlight > 0 && nOutboundInFlight >= nMaxOutboundInFlight)
+      aNotReadyReasons.add ("outbound-inflight");
+
+    // HTTP connection pools per tenant
+    final int nMaxPoolPending = ToopInterfaceConfig.getStatusOverloadPoolPending ();
+    boolean bPoolSaturated = false;
+    final IJsonObject aPools = new JsonObject ();
+    for (final ToopTenant aTenant : ToopInterfaceManager.getTenantRegistry ().getAllTenants ())
+    {
+      final PoolStats aStats = aTenant.getConnectionPoolStats ();
+      if (aStats != null)
+      {
+        final IJsonObject aPool = new JsonObject ();
+        aPool.add ("leased", aStats.getLeased ());
+        aPool.add ("available", aStats.getAvailable ());
+        aPool.add ("pending", aStats.getPending ());
+        aPool.add ("max", aStats.getMax ());
+        aPools.add (aTenant.getID (), aPool);
+        if (nMaxPoolPending > 0 &&
+            aStats.getLeased () >= aStats.getMax () &&
+            aStats.getPending () >= nMaxPoolPending)
+          bPoolSaturated = true;
+      }
+    }
+    aOutbound.add ("connectionPools", aPools);
+    if (bPoolSaturated)
+      aNotReadyReasons.add ("connection-pool");
+
+    // Asynchronous callbacks and sends
+    final ExecutorService aExecutor = ToopInterfaceManager.getExecutorService ();
+    final IJsonObject aExecution = new JsonObject ();
+    aExecution.add ("mode", ToopInterfaceConfig.getExecutionMode ().getID ());
+    final int nPendingCallbacks = AbstractToopInterfaceServlet.getPendingCallbackCount ();
+    aExecution.add ("pendingCallbacks", nPendingCallbacks);
+    final int nMaxPendingCallbacks = ToopInterfaceConfig.getCallbackAsyncMaxPending ();
+    boolean bCallbacksFull = nMaxPendingCallbacks > 0 && nPendingCallbacks >= nMaxPendingCallbacks;
+    if (aExecutor instanceof ThreadPoolExecutor)
+    {
+      final ThreadPoolExecutor aTPE = (ThreadPoolExecutor) aExecutor;
+      final int nQueueDepth = aTPE.getQueue ().size ();
+      aExecution.add ("activeThreads", aTPE.getActiveCount ());
+      aExecution.add ("poolSize", aTPE.getPoolSize ());
+      aExecution.add ("queueDepth", nQueueDepth);
+      final int nMaxQueueDepth = ToopInterfaceConfig.getStatusOverloadCallbackQueue ();
+      if (nMaxQueueDepth > 0 && nQueueDepth >= nMaxQueueDepth)
+        bCallbacksFull = true;
+    }
+    if (bCallbacksFull)
+      aNotReadyReasons.add ("callback-queue");
+
+    // Signing threads
+    final ToopSigningService aSigningService = ToopInterfaceManager.getSigningService ();
+    final IJsonObject aSigning = new JsonObject ();
+    aSigning.add ("threads", aSigningService.getThreadCount ());
+    aSigning.add ("active", aSigningService.getActiveCount ());
+    aSigning.add ("queueDepth", aSigningService.getQueueDepth ());
+    aSigning.add ("latency", _getLatency (aSigningService.getSignLatencyRecorder ()));
+    aSigning.add ("wait", _getLatency (aSigningService.getWaitLatencyRecorder ()));
+
+    // Journal
+    IJsonObject aJournalStatus = null;
+    if (ToopInterfaceConfig.isJournalEnabled ())
+    {
+      aJournalStatus = new JsonObject ();
+      try
+      {
+        final ToopInboundJournal aJournal = ToopInterfaceManager.getInboundJournal ();
+        aJournalStatus.add ("pending", aJournal.getPendingCount ());
+        aJournalStatus.add ("segments", aJournal.getSegmentCount ());
+      }
+      catch (final IllegalStateException ex)
+      {
+        LOGGER.warn ("Status check: " + ex.getMessage ());
+        aNotReadyReasons.add ("journal");
+      }
+    }
+
+    // Buffers
+    final ToopBufferPool aBufferPool = ToopInterfaceManager.getBufferPool ();
+    final IJsonObject aBuffers = new JsonObject ();
+    aBuffers.add ("retainedBytes", aBufferPool.getRetainedBytes ());
+    aBuffers.add ("outstandingBytes", aBufferPool.getOutstandingBytes ());
+    aBuffers.add ("hitRate", aBufferPool.getHitRate ());
+
+    final IJsonObject ret = new JsonObject ();
+    ret.add ("ready", aNotReadyReasons.isEmpty ());
+    if (!aNotReadyReasons.isEmpty ())
+      ret.add ("notReadyReasons", aNotReadyReasons);
+    ret.add ("config", aConfig);
+    ret.add ("warmup", aWarmUp);
+    ret.add ("inbound", aInbound);
+    ret.add ("outbound", aOutbound);
+    ret.add ("execution", aExecution);
+    ret.add ("signing", aSigning);
+    if (aJournalStatus != null)
+      ret.add ("journal", aJournalStatus);
+    ret.add ("buffers", aBuffers);
+    return ret;
+  }
+
+  @Override
+  protected void doGet (@Nonnull final HttpServletRequest aReq,
+                        @Nonnull final HttpServletResponse aResp) throws ServletException, IOException
+  {
+    final IJsonObject aStatus = createStatus ();
+    final boolean bReady = !aStatus.containsKey ("notReadyReasons");
+    if (!bReady && LOGGER.isDebugEnabled ())
+      LOGGER.debug ("Reporting not ready: " + aStatus.get ("notReadyReasons").getAsJsonString ());
+
+    final byte [] aBytes = aStatus.getAsJsonString ().getBytes (StandardCharsets.UTF_8);
+    aResp.setStatus (bReady ? CHttp.HTTP_OK : CHttp.HTTP_SERVICE_UNAVAILABLE);
+    aResp.setHeader (CHttpHeader.CACHE_CONTROL, "no-store");
+    aResp.setContentType (CMimeType.APPLICATION_JSON.getAsStringWithEncoding (StandardCharsets.UTF_8));
+    aResp.setContentLength (aBytes.length);
+    aResp.getOutputStream ().write (aBytes);
+  }
+}
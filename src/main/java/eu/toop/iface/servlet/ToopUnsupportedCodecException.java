@@ -0,0 +1,35 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.servlet;
+
+import java.io.IOException;
+
+import javax.annotation.Nullable;
+
+/**
+ * Thrown if a received message uses a codec that is not accepted by the
+ * <code>toop.codec.inbound</code> setting.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+public class ToopUnsupportedCodecException extends IOException
+{
+  public ToopUnsupportedCodecException (@Nullable final String sMessage)
+  {
+    super (sMessage);
+  }
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.trace;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Exporter interface for finished {@link ToopSpan} objects. Implementations
+ * must be thread-safe, because spans are finished on arbitrary threads.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+@FunctionalInterface
+public interface IToopSpanExporter
+{
+  /**
+   * Called once for every finished span.
+   *
+   * @param aSpan
+   *        The finished span. Never <code>null</code>.
+   */
+  void export (@Nonnull ToopSpan aSpan);
+}
@@ -0,0 +1,211 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.trace;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsLinkedHashMap;
+import com.helger.commons.collection.impl.ICommonsOrderedMap;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A single timed span. Spans are created via {@link ToopTracer#startSpan(String)}
+ * and must be closed on the thread that created them, ideally in a
+ * try-with-resources block. Upon closing, the span is handed to the configured
+ * {@link IToopSpanExporter}.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+@NotThreadSafe
+public final class ToopSpan implements AutoCloseable
+{
+  private final String m_sName;
+  private final ToopTraceContext m_aContext;
+  private final String m_sParentSpanID;
+  private final ToopSpan m_aPrevious;
+  private final long m_nStartNanos;
+  private long m_nDurationNanos = -1;
+  private Throwable m_aError;
+  private ICommonsOrderedMap <String, String> m_aAttributes;
+
+  ToopSpan (@Nonnull @Nonempty final String sName,
+            @Nonnull final ToopTraceContext aContext,
+            @Nullable final String sParentSpanID,
+            @Nullable final ToopSpan aPrevious)
+  {
+    ValueEnforcer.notEmpty (sName, "Name");
+    ValueEnforcer.notNull (aContext, "Context");
+    m_sName = sName;
+    m_aContext = aContext;
+    m_sParentSpanID = sParentSpanID;
+    m_aPrevious = aPrevious;
+    m_nStartNanos = System.nanoTime ();
+  }
+
+  /**
+   * @return The span name, e.g. <code>toop.http.post</code>. Neither
+   *         <code>null</code> nor empty.
+   */
+  @Nonnull
+  @Nonempty
+  public String getName ()
+  {
+    return m_sName;
+  }
+
+  /**
+   * @return The trace context of this span. Never <code>null</code>.
+   */
+  @Nonnull
+  public ToopTraceContext getContext ()
+  {
+    return m_aContext;
+  }
+
+  /**
+   * @return The span ID of the parent span. May be <code>null</code> for root
+   *         spans.
+   */
+  @Nullable
+  public String getParentSpanID ()
+  {
+    return m_sParentSpanID;
+  }
+
+  @Nullable
+  ToopSpan getPrevious ()
+  {
+    return m_aPrevious;
+  }
+
+  /**
+   * Add a custom attribute to this span.
+   *
+   * @param sKey
+   *        Attribute key. May neither be <code>null</code> nor empty.
+   * @param sValue
+   *        Attribute value. May be <code>null</code>.
+   * @return this for chaining
+   */
+  @Nonnull
+  public ToopSpan setAttribute (@Nonnull @Nonempty final String sKey, @Nullable final String sValue)
+  {
+    ValueEnforcer.notEmpty (sKey, "Key");
+    if (m_aAttributes == null)
+      m_aAttributes = new CommonsLinkedHashMap <> ();
+    m_aAttributes.put (sKey, sValue);
+    return this;
+  }
+
+  /**
+   * @return A copy of all custom attributes. Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsOrderedMap <String, String> getAllAttributes ()
+  {
+    return m_aAttributes == null ? new CommonsLinkedHashMap <> () : m_aAttributes.getClone ();
+  }
+
+  /**
+   * Mark this span as failed.
+   *
+   * @param t
+   *        The error that occurred. May be <code>null</code>.
+   */
+  public void setError (@Nullable final Throwable t)
+  {
+    m_aError = t;
+  }
+
+  /**
+   * @return The error set via {@link #setError(Throwable)}. May be
+   *         <code>null</code>.
+   */
+  @Nullable
+  public Throwable getError ()
+  {
+    return m_aError;
+  }
+
+  public boolean isError ()
+  {
+    return m_aError != null;
+  }
+
+  public boolean isFinished ()
+  {
+    return m_nDurationNanos >= 0;
+  }
+
+  /**
+   * @return The duration of the span in nanoseconds or -1 if the span is not
+   *         yet finished.
+   */
+  public long getDurationNanos ()
+  {
+    return m_nDurationNanos;
+  }
+
+  /**
+   * @return The duration of the span in milliseconds or -1 if the span is not
+   *         yet finished.
+   */
+  public long getDurationMillis ()
+  {
+    return m_nDurationNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis (m_nDurationNanos);
+  }
+
+  @Nonnegative
+  long getStartNanos ()
+  {
+    return m_nStartNanos;
+  }
+
+  /**
+   * End this span and export it. Calling this method more than once has no
+   * effect.
+   */
+  public void close ()
+  {
+    if (!isFinished ())
+    {
+      m_nDurationNanos = System.nanoTime () - m_nStartNanos;
+      ToopTracer.onSpanClosed (this);
+    }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Name", m_sName)
+                                       .append ("Context", m_aContext)
+                                       .appendIfNotNull ("ParentSpanID", m_sParentSpanID)
+                                       .append ("DurationNanos", m_nDurationNanos)
+                                       .appendIfNotNull ("Error", m_aError)
+                                       .appendIfNotNull ("Attributes", m_aAttributes)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.trace;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+
+/**
+ * An {@link IToopSpanExporter} that keeps all finished spans in memory. This is
+ * primarily meant for testing.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+@ThreadSafe
+public class ToopSpanExporterInMemory implements IToopSpanExporter
+{
+  private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
+  private final ICommonsList <ToopSpan> m_aSpans = new CommonsArrayList <> ();
+
+  public void export (@Nonnull final ToopSpan aSpan)
+  {
+    m_aRWLock.writeLocked ( () -> m_aSpans.add (aSpan));
+  }
+
+  /**
+   * @return A copy of all spans exported so far, in the order they were
+   *         finished. Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <ToopSpan> getAllSpans ()
+  {
+    return m_aRWLock.readLocked ( () -> m_aSpans.getClone ());
+  }
+
+  /**
+   * @param sTraceID
+   *        The trace ID to search. May not be <code>null</code>.
+   * @return A copy of all spans of the provided trace. Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <ToopSpan> getAllSpansOfTrace (@Nonnull final String sTraceID)
+  {
+    return m_aRWLock.readLocked ( () -> m_aSpans.getAll (x -> x.getContext ().getTraceID ().equals (sTraceID)));
+  }
+
+  /**
+   * Remove all collected spans.
+   */
+  public void clear ()
+  {
+    m_aRWLock.writeLocked ( () -> m_aSpans.clear ());
+  }
+}
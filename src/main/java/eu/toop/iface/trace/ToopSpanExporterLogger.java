@@ -0,0 +1,60 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.trace;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An {@link IToopSpanExporter} that simply logs each finished span. Spans are
+ * logged on debug level unless they contain an error.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+@Immutable
+public class ToopSpanExporterLogger implements IToopSpanExporter
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (ToopSpanExporterLogger.class);
+
+  public void export (@Nonnull final ToopSpan aSpan)
+  {
+    if (aSpan.isError ())
+    {
+      LOGGER.warn ("[" +
+                   aSpan.getContext ().getTraceID () +
+                   "] Span '" +
+                   aSpan.getName () +
+                   "' failed after " +
+                   aSpan.getDurationMillis () +
+                   " ms: " +
+                   aSpan.getError ().getMessage ());
+    }
+    else
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("[" +
+                      aSpan.getContext ().getTraceID () +
+                      "] Span '" +
+                      aSpan.getName () +
+                      "' took " +
+                      aSpan.getDurationMillis () +
+                      " ms " +
+                      aSpan.getAllAttributes ());
+  }
+}
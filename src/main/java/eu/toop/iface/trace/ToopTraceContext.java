@@ -0,0 +1,187 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.trace;
+
+import java.io.Serializable;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.hashcode.HashCodeGenerator;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Immutable trace context consisting of a trace ID (shared by all spans of one
+ * TOOP round trip) and a span ID (unique per span). The HTTP representation
+ * follows the W3C <code>traceparent</code> header format, so that the context
+ * can be forwarded by the TOOP Connector to the receiving side.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+@Immutable
+public final class ToopTraceContext implements Serializable
+{
+  private static final String VERSION = "00";
+  private static final String FLAGS_SAMPLED = "01";
+  private static final int TRACE_ID_LEN = 32;
+  private static final int SPAN_ID_LEN = 16;
+
+  private final String m_sTraceID;
+  private final String m_sSpanID;
+
+  public ToopTraceContext (@Nonnull @Nonempty final String sTraceID, @Nonnull @Nonempty final String sSpanID)
+  {
+    ValueEnforcer.isTrue (_isHexID (sTraceID, TRACE_ID_LEN), () -> "Invalid trace ID '" + sTraceID + "'");
+    ValueEnforcer.isTrue (_isHexID (sSpanID, SPAN_ID_LEN), () -> "Invalid span ID '" + sSpanID + "'");
+    m_sTraceID = sTraceID;
+    m_sSpanID = sSpanID;
+  }
+
+  private static boolean _isHexID (@Nullable final String s, final int nLen)
+  {
+    if (s == null || s.length () != nLen)
+      return false;
+    boolean bAllZero = true;
+    for (final char c : s.toCharArray ())
+    {
+      if ((c < '0' || c > '9') && (c < 'a' || c > 'f'))
+        return false;
+      if (c != '0')
+        bAllZero = false;
+    }
+    // All zero IDs are invalid according to the W3C spec
+    return !bAllZero;
+  }
+
+  /**
+   * @return The 32 char hex trace ID. Neither <code>null</code> nor empty.
+   */
+  @Nonnull
+  @Nonempty
+  public String getTraceID ()
+  {
+    return m_sTraceID;
+  }
+
+  /**
+   * @return The 16 char hex span ID. Neither <code>null</code> nor empty.
+   */
+  @Nonnull
+  @Nonempty
+  public String getSpanID ()
+  {
+    return m_sSpanID;
+  }
+
+  /**
+   * Create a new context with the same trace ID but a new span ID.
+   *
+   * @return The child context. Never <code>null</code>.
+   */
+  @Nonnull
+  public ToopTraceContext createChild ()
+  {
+    return new ToopTraceContext (m_sTraceID, _createRandomHex (SPAN_ID_LEN));
+  }
+
+  /**
+   * @return This context in the format of the W3C <code>traceparent</code> HTTP
+   *         header.
+   */
+  @Nonnull
+  @Nonempty
+  public String getAsHeaderValue ()
+  {
+    return VERSION + '-' + m_sTraceID + '-' + m_sSpanID + '-' + FLAGS_SAMPLED;
+  }
+
+  @Override
+  public boolean equals (final Object o)
+  {
+    if (o == this)
+      return true;
+    if (o == null || !getClass ().equals (o.getClass ()))
+      return false;
+    final ToopTraceContext rhs = (ToopTraceContext) o;
+    return m_sTraceID.equals (rhs.m_sTraceID) && m_sSpanID.equals (rhs.m_sSpanID);
+  }
+
+  @Override
+  public int hashCode ()
+  {
+    return new HashCodeGenerator (this).append (m_sTraceID).append (m_sSpanID).getHashCode ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("TraceID", m_sTraceID).append ("SpanID", m_sSpanID).getToString ();
+  }
+
+  @Nonnull
+  private static String _createRandomHex (final int nLen)
+  {
+    final ThreadLocalRandom aRandom = ThreadLocalRandom.current ();
+    final StringBuilder aSB = new StringBuilder (nLen);
+    while (aSB.length () < nLen)
+    {
+      final String sPart = Long.toHexString (aRandom.nextLong ());
+      aSB.append (StringHelper.getLeadingZero (sPart, 16));
+    }
+    aSB.setLength (nLen);
+    return aSB.toString ();
+  }
+
+  /**
+   * @return A new root context with a new random trace ID and span ID. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static ToopTraceContext createNewRoot ()
+  {
+    return new ToopTraceContext (_createRandomHex (TRACE_ID_LEN), _createRandomHex (SPAN_ID_LEN));
+  }
+
+  /**
+   * Parse a W3C <code>traceparent</code> HTTP header value.
+   *
+   * @param sHeaderValue
+   *        The header value to parse. May be <code>null</code>.
+   * @return <code>null</code> if the value is <code>null</code> or cannot be
+   *         parsed.
+   */
+  @Nullable
+  public static ToopTraceContext parseHeaderValue (@Nullable final String sHeaderValue)
+  {
+    if (StringHelper.hasNoText (sHeaderValue))
+      return null;
+
+    // version-traceid-spanid-flags
+    final String [] aParts = StringHelper.getExplodedArray ('-', sHeaderValue.trim ().toLowerCase (Locale.ROOT));
+    if (aParts.length < 4 || aParts[0].length () != 2 || "ff".equals (aParts[0]))
+      return null;
+    if (!_isHexID (aParts[1], TRACE_ID_LEN) || !_isHexID (aParts[2], SPAN_ID_LEN))
+      return null;
+    return new ToopTraceContext (aParts[1], aParts[2]);
+  }
+}
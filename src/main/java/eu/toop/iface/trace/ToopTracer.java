@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.trace;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+
+/**
+ * Central entry point for tracing. The currently active span is kept per
+ * thread, so nested spans automatically become children of the enclosing
+ * span. The trace context of the active span is propagated via the
+ * {@link #HTTP_HEADER_TRACEPARENT} HTTP header on outbound calls and extracted
+ * again by the receiving servlets.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+@ThreadSafe
+public final class ToopTracer
+{
+  /** The HTTP header used to propagate the trace context */
+  public static final String HTTP_HEADER_TRACEPARENT = "traceparent";
+
+  /** Span name: load the keystore and create the signature helper */
+  public static final String SPAN_KEYSTORE = "toop.keystore";
+  /** Span name: marshal, sign and zip the ASiC container */
+  public static final String SPAN_ASIC_CREATE = "toop.asic.create";
+  /** Span name: HTTP call to the TOOP Connector */
+  public static final String SPAN_HTTP = "toop.http";
+  /** Span name: unzip, verify and unmarshal the ASiC container */
+  public static final String SPAN_ASIC_PARSE = "toop.asic.parse";
+  /** Span name: invoke the DC/DP callback */
+  public static final String SPAN_CALLBACK = "toop.callback";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (ToopTracer.class);
+
+  private static final SimpleReadWriteLock s_aRWLock = new SimpleReadWriteLock ();
+  private static IToopSpanExporter s_aExporter;
+  private static final ThreadLocal <ToopSpan> s_aCurrentSpan = new ThreadLocal <> ();
+
+  private ToopTracer ()
+  {}
+
+  /**
+   * @return The current exporter. May be <code>null</code> in which case
+   *         finished spans are discarded.
+   */
+  @Nullable
+  public static IToopSpanExporter getExporter ()
+  {
+    return s_aRWLock.readLocked ( () -> s_aExporter);
+  }
+
+  /**
+   * Set the exporter for finished spans. Should be called once upon startup.
+   *
+   * @param aExporter
+   *        The exporter to use. May be <code>null</code> to disable exporting.
+   */
+  public static void setExporter (@Nullable final IToopSpanExporter aExporter)
+  {
+    s_aRWLock.writeLocked ( () -> s_aExporter = aExporter);
+  }
+
+  /**
+   * @return The span currently active in this thread. May be
+   *         <code>null</code>.
+   */
+  @Nullable
+  public static ToopSpan getCurrentSpan ()
+  {
+    return s_aCurrentSpan.get ();
+  }
+
+  /**
+   * @return The trace context of the span currently active in this thread. May
+   *         be <code>null</code>.
+   */
+  @Nullable
+  public static ToopTraceContext getCurrentContext ()
+  {
+    final ToopSpan aSpan = s_aCurrentSpan.get ();
+    return aSpan == null ? null : aSpan.getContext ();
+  }
+
+  /**
+   * Start a new span as a child of the currently active span. If no span is
+   * active, a new trace is started.
+   *
+   * @param sName
+   *        Span name. May neither be <code>null</code> nor empty.
+   * @return The new span, that is now the active span of this thread. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static ToopSpan startSpan (@Nonnull @Nonempty final String sName)
+  {
+    return startSpan (sName, null);
+  }
+
+  /**
+   * Start a new span. If a span is active in the current thread, the new span
+   * is a child of it. Otherwise the provided remote parent context (e.g.
+   * extracted from an HTTP header) is used as parent. If neither is present, a
+   * new trace is started.
+   *
+   * @param sName
+   *        Span name. May neither be <code>null</code> nor empty.
+   * @param aRemoteParent
+   *        The remote parent context. May be <code>null</code>.
+   * @return The new span, that is now the active span of this thread. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static ToopSpan startSpan (@Nonnull @Nonempty final String sName,
+                                    @Nullable final ToopTraceContext aRemoteParent)
+  {
+    final ToopSpan aPrevious = s_aCurrentSpan.get ();
+    final ToopTraceContext aParentCtx = aPrevious != null ? aPrevious.getContext () : aRemoteParent;
+    final ToopSpan ret;
+    if (aParentCtx != null)
+      ret = new ToopSpan (sName, aParentCtx.createChild (), aParentCtx.getSpanID (), aPrevious);
+    else
+      ret = new ToopSpan (sName, ToopTraceContext.createNewRoot (), null, null);
+    s_aCurrentSpan.set (ret);
+    return ret;
+  }
+
+  static void onSpanClosed (@Nonnull final ToopSpan aSpan)
+  {
+    // Restore the previous span, if this span is the active one
+    if (s_aCurrentSpan.get () == aSpan)
+    {
+      final ToopSpan aPrevious = aSpan.getPrevious ();
+      if (aPrevious != null)
+        s_aCurrentSpan.set (aPrevious);
+      else
+        s_aCurrentSpan.remove ();
+    }
+
+    final IToopSpanExporter aExporter = getExporter ();
+    if (aExporter != null)
+      try
+      {
+        aExporter.export (aSpan);
+      }
+      catch (final RuntimeException ex)
+      {
+        LOGGER.error ("Failed to export span " + aSpan, ex);
+      }
+  }
+}
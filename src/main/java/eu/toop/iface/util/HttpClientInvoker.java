@@ -16,22 +16,46 @@
 package eu.toop.iface.util;
 
 import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.StatusLine;
+import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.helger.commons.ValueEnforcer;
-import com.helger.httpclient.HttpClientManager;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.http.CHttp;
+import com.helger.commons.http.CHttpHeader;
+import com.helger.commons.string.StringHelper;
 import com.helger.httpclient.response.ResponseHandlerByteArray;
 
+import eu.toop.iface.EToopInterfaceErrorCode;
+import eu.toop.iface.ToopDeadline;
+import eu.toop.iface.ToopInterfaceManager;
+import eu.toop.iface.ToopTenant;
+import eu.toop.iface.codec.ToopMessageBatch;
+import eu.toop.iface.trace.ToopSpan;
+import eu.toop.iface.trace.ToopTraceContext;
+import eu.toop.iface.trace.ToopTracer;
+
 /**
  * This class can be used to send something from DC or DP to the
  * MessageProcessor.
@@ -43,31 +67,236 @@ public final class HttpClientInvoker
 {
   private static final Logger LOGGER = LoggerFactory.getLogger (HttpClientInvoker.class);
 
+  /**
+   * Lazily created scheduler that aborts HTTP calls when their deadline is
+   * exceeded.
+   */
+  private static final class AbortScheduler
+  {
+    static final ScheduledThreadPoolExecutor INSTANCE;
+    static
+    {
+      INSTANCE = new ScheduledThreadPoolExecutor (1,
+                                                  new BasicThreadFactory.Builder ().setNamingPattern ("toop-http-deadline-%d")
+                                                                                   .setDaemon (true)
+                                                                                   .build ());
+      INSTANCE.setRemoveOnCancelPolicy (true);
+    }
+  }
+
+  private static final AtomicInteger s_aInFlight = new AtomicInteger ();
+  private static final ToopLatencyRecorder s_aLatency = new ToopLatencyRecorder ();
+
   private HttpClientInvoker ()
   {}
 
+  /**
+   * @return The number of HTTP calls that are currently executing.
+   * @since 0.10.9
+   */
+  @Nonnegative
+  public static int getInFlightCount ()
+  {
+    return s_aInFlight.get ();
+  }
+
+  /**
+   * @return The durations of the most recent HTTP calls. Never
+   *         <code>null</code>.
+   * @since 0.10.9
+   */
+  @Nonnull
+  public static ToopLatencyRecorder getLatencyRecorder ()
+  {
+    return s_aLatency;
+  }
+
+  private static void _addTraceHeader (@Nonnull final HttpRequestBase aRequest)
+  {
+    final ToopTraceContext aCtx = ToopTracer.getCurrentContext ();
+    if (aCtx != null)
+      aRequest.setHeader (ToopTracer.HTTP_HEADER_TRACEPARENT, aCtx.getAsHeaderValue ());
+  }
+
+  /**
+   * Wrap a response handler so that error responses are converted into a
+   * {@link ToopHttpResponseException} containing the structured error details.
+   */
+  @Nonnull
+  private static <T> ResponseHandler <T> _checkErrorResponse (@Nonnull final ResponseHandler <T> aResponseHandler)
+  {
+    return aResponse -> {
+      final StatusLine aStatusLine = aResponse.getStatusLine ();
+      if (aStatusLine.getStatusCode () >= CHttp.HTTP_MULTIPLE_CHOICES)
+      {
+        // The body is not needed
+        EntityUtils.consume (aResponse.getEntity ());
+
+        final Header aErrorCode = aResponse.getFirstHeader (EToopInterfaceErrorCode.HTTP_HEADER_ERROR_CODE);
+        final Header aRetryAfter = aResponse.getFirstHeader (CHttpHeader.RETRY_AFTER);
+        final Header aDelivered = aResponse.getFirstHeader (ToopMessageBatch.HTTP_HEADER_DELIVERED);
+        throw new ToopHttpResponseException (aStatusLine.getStatusCode (),
+                                             aStatusLine.getReasonPhrase (),
+                                             aErrorCode == null ? null : aErrorCode.getValue (),
+                                             ToopHttpResponseException.parseRetryAfterMillis (aRetryAfter == null ? null
+                                                                                                                  : aRetryAfter.getValue ()),
+                                             aDelivered == null ? -1
+                                                                : StringHelper.parseInt (StringHelper.trim (aDelivered.getValue ()),
+                                                                                         -1));
+      }
+      return aResponseHandler.handleResponse (aResponse);
+    };
+  }
+
+  @Nullable
+  private static <T> T _executeInTenant (@Nonnull final HttpRequestBase aRequest,
+                                         @Nonnull final ResponseHandler <T> aResponseHandler) throws IOException
+  {
+    // Pooled connections per tenant - the static API uses the default tenant
+    ToopTenant aTenant = ToopTenant.getCurrent ();
+    if (aTenant == null)
+      aTenant = ToopInterfaceManager.getTenantRegistry ().getDefaultTenant ();
+    return aTenant.getHttpClientManager ().execute (aRequest, aResponseHandler);
+  }
+
+  @Nullable
+  private static <T> T _execute (@Nonnull final HttpRequestBase aRequest,
+                                 @Nonnull final ResponseHandler <T> aResponseHandler,
+                                 @Nullable final ToopDeadline aCallDeadline) throws IOException
+  {
+    // The earlier of the call deadline and the configured request timeout
+    final long nRequestTimeoutMillis = ToopTenant.getCurrentConfig ().getHttpRequestTimeoutMillis ();
+    final ToopDeadline aDeadline = ToopDeadline.getEarliest (aCallDeadline,
+                                                             nRequestTimeoutMillis > 0 ? ToopDeadline.ofTimeoutMillis (nRequestTimeoutMillis)
+                                                                                       : null);
+
+    try (final ToopSpan aSpan = ToopTracer.startSpan (ToopTracer.SPAN_HTTP))
+    {
+      aSpan.setAttribute ("method", aRequest.getMethod ());
+      _addTraceHeader (aRequest);
+
+      ScheduledFuture <?> aAbortTask = null;
+      if (aDeadline != null)
+      {
+        // Don't even start if the result is no longer needed
+        if (aDeadline.isExpired ())
+        {
+          final ToopDeadlineExceededException ex = new ToopDeadlineExceededException ("Deadline exceeded before invoking " +
+                                                                                      aRequest.getURI (),
+                                                                                      null);
+          aSpan.setError (ex);
+          throw ex;
+        }
+        aRequest.setHeader (ToopDeadline.HTTP_HEADER_DEADLINE, aDeadline.getAsHeaderValue ());
+        aAbortTask = AbortScheduler.INSTANCE.schedule (aRequest::abort,
+                                                       aDeadline.getRemainingMillis (),
+                                                       TimeUnit.MILLISECONDS);
+      }
+
+      final long nStart = System.nanoTime ();
+      s_aInFlight.incrementAndGet ();
+      try
+      {
+        return _executeInTenant (aRequest, _checkErrorResponse (aResponseHandler));
+      }
+      catch (final IOException | RuntimeException ex)
+      {
+        if (aDeadline != null && aDeadline.isExpired () && !(ex instanceof HttpResponseException))
+        {
+          // Most likely aborted by the deadline
+          final ToopDeadlineExceededException ex2 = new ToopDeadlineExceededException ("Deadline exceeded while invoking " +
+                                                                                       aRequest.getURI (),
+                                                                                       ex);
+          aSpan.setError (ex2);
+          throw ex2;
+        }
+        aSpan.setError (ex);
+        throw ex;
+      }
+      finally
+      {
+        s_aInFlight.decrementAndGet ();
+        s_aLatency.recordSince (nStart);
+        if (aAbortTask != null)
+          aAbortTask.cancel (false);
+      }
+    }
+  }
+
   public static <T> void httpClientCall (@Nonnull final String sDestinationURL,
                                          @Nonnull final byte [] aDataToSend,
                                          @Nonnull final ResponseHandler <T> aResponseHandler,
                                          @Nonnull final Consumer <? super T> aResultHandler) throws IOException
   {
-    ValueEnforcer.notEmpty (sDestinationURL, "DestinationURL");
     ValueEnforcer.notNull (aDataToSend, "DataToSend");
+
+    httpClientCall (sDestinationURL, new ByteArrayEntity (aDataToSend), aResponseHandler, aResultHandler);
+  }
+
+  /**
+   * Send an HTTP POST with the provided entity.
+   *
+   * @param sDestinationURL
+   *        Destination URL. May neither be <code>null</code> nor empty.
+   * @param aEntity
+   *        The entity to send. May not be <code>null</code>.
+   * @param aResponseHandler
+   *        The response handler to use. May not be <code>null</code>.
+   * @param aResultHandler
+   *        The consumer for the response. May not be <code>null</code>.
+   * @throws IOException
+   *         On HTTP error
+   * @since 0.10.9
+   */
+  public static <T> void httpClientCall (@Nonnull final String sDestinationURL,
+                                         @Nonnull final HttpEntity aEntity,
+                                         @Nonnull final ResponseHandler <T> aResponseHandler,
+                                         @Nonnull final Consumer <? super T> aResultHandler) throws IOException
+  {
+    httpClientCall (sDestinationURL, aEntity, aResponseHandler, aResultHandler, null);
+  }
+
+  /**
+   * Send an HTTP POST with the provided entity, that is aborted when the
+   * provided deadline is exceeded. The remaining time is sent in the
+   * {@link ToopDeadline#HTTP_HEADER_DEADLINE} header.
+   *
+   * @param sDestinationURL
+   *        Destination URL. May neither be <code>null</code> nor empty.
+   * @param aEntity
+   *        The entity to send. May not be <code>null</code>.
+   * @param aResponseHandler
+   *        The response handler to use. May not be <code>null</code>.
+   * @param aResultHandler
+   *        The consumer for the response. May not be <code>null</code>.
+   * @param aDeadline
+   *        The deadline of the call. May be <code>null</code> to only use the
+   *        configured request timeout.
+   * @throws ToopDeadlineExceededException
+   *         If the deadline is exceeded
+   * @throws IOException
+   *         On HTTP error
+   * @since 0.10.9
+   */
+  public static <T> void httpClientCall (@Nonnull final String sDestinationURL,
+                                         @Nonnull final HttpEntity aEntity,
+                                         @Nonnull final ResponseHandler <T> aResponseHandler,
+                                         @Nonnull final Consumer <? super T> aResultHandler,
+                                         @Nullable final ToopDeadline aDeadline) throws IOException
+  {
+    ValueEnforcer.notEmpty (sDestinationURL, "DestinationURL");
+    ValueEnforcer.notNull (aEntity, "Entity");
     ValueEnforcer.notNull (aResponseHandler, "ResponseHandler");
     ValueEnforcer.notNull (aResultHandler, "ResultHandler");
 
     if (LOGGER.isDebugEnabled ())
       LOGGER.debug ("Invoking HTTP POST '" + sDestinationURL + "'");
 
-    // For proxy etc
-    try (final HttpClientManager aMgr = HttpClientManager.create (new TCHttpClientSettings ()))
-    {
-      final HttpPost aPost = new HttpPost (sDestinationURL);
-      aPost.setEntity (new ByteArrayEntity (aDataToSend));
+    final HttpPost aPost = new HttpPost (sDestinationURL);
+    aPost.setEntity (aEntity);
 
-      final T aResponse = aMgr.execute (aPost, aResponseHandler);
-      aResultHandler.accept (aResponse);
-    }
+    final T aResponse = _execute (aPost, aResponseHandler, aDeadline);
+    aResultHandler.accept (aResponse);
   }
 
   public static void httpClientCallNoResponse (@Nonnull final String sDestinationURL,
@@ -81,9 +310,80 @@ public final class HttpClientInvoker
     });
   }
 
+  /**
+   * Send an HTTP POST with the provided entity and ignore the response
+   * content.
+   *
+   * @param sDestinationURL
+   *        Destination URL. May neither be <code>null</code> nor empty.
+   * @param aEntity
+   *        The entity to send. May not be <code>null</code>.
+   * @throws IOException
+   *         On HTTP error
+   * @since 0.10.9
+   */
+  public static void httpClientCallNoResponse (@Nonnull final String sDestinationURL,
+                                               @Nonnull final HttpEntity aEntity) throws IOException
+  {
+    httpClientCallNoResponse (sDestinationURL, aEntity, null);
+  }
+
+  /**
+   * Send an HTTP POST with the provided entity and deadline and ignore the
+   * response content.
+   *
+   * @param sDestinationURL
+   *        Destination URL. May neither be <code>null</code> nor empty.
+   * @param aEntity
+   *        The entity to send. May not be <code>null</code>.
+   * @param aDeadline
+   *        The deadline of the call. May be <code>null</code>.
+   * @throws ToopDeadlineExceededException
+   *         If the deadline is exceeded
+   * @throws IOException
+   *         On HTTP error
+   * @since 0.10.9
+   */
+  public static void httpClientCallNoResponse (@Nonnull final String sDestinationURL,
+                                               @Nonnull final HttpEntity aEntity,
+                                               @Nullable final ToopDeadline aDeadline) throws IOException
+  {
+    httpClientCall (sDestinationURL, aEntity, new ResponseHandlerByteArray (), x -> {
+      // do nothing
+    }, aDeadline);
+  }
+
   public static <T> void httpClientCallGet (@Nonnull final String sDestinationURL,
                                             @Nonnull final ResponseHandler <T> aResponseHandler,
                                             @Nonnull final Consumer <? super T> aResultHandler) throws IOException
+  {
+    httpClientCallGet (sDestinationURL, aResponseHandler, aResultHandler, null);
+  }
+
+  /**
+   * Send an HTTP GET, that is aborted when the provided deadline is exceeded.
+   * The remaining time is sent in the
+   * {@link ToopDeadline#HTTP_HEADER_DEADLINE} header.
+   *
+   * @param sDestinationURL
+   *        Destination URL. May neither be <code>null</code> nor empty.
+   * @param aResponseHandler
+   *        The response handler to use. May not be <code>null</code>.
+   * @param aResultHandler
+   *        The consumer for the response. May not be <code>null</code>.
+   * @param aDeadline
+   *        The deadline of the call. May be <code>null</code> to only use the
+   *        configured request timeout.
+   * @throws ToopDeadlineExceededException
+   *         If the deadline is exceeded
+   * @throws IOException
+   *         On HTTP error
+   * @since 0.10.9
+   */
+  public static <T> void httpClientCallGet (@Nonnull final String sDestinationURL,
+                                            @Nonnull final ResponseHandler <T> aResponseHandler,
+                                            @Nonnull final Consumer <? super T> aResultHandler,
+                                            @Nullable final ToopDeadline aDeadline) throws IOException
   {
     ValueEnforcer.notEmpty (sDestinationURL, "DestinationURL");
     ValueEnforcer.notNull (aResponseHandler, "ResponseHandler");
@@ -92,13 +392,9 @@ public final class HttpClientInvoker
     if (LOGGER.isDebugEnabled ())
       LOGGER.debug ("Invoking HTTP GET '" + sDestinationURL + "'");
 
-    // For proxy etc
-    try (final HttpClientManager aMgr = HttpClientManager.create (new TCHttpClientSettings ()))
-    {
-      final HttpGet aGet = new HttpGet (sDestinationURL);
+    final HttpGet aGet = new HttpGet (sDestinationURL);
 
-      final T aResponse = aMgr.execute (aGet, aResponseHandler);
-      aResultHandler.accept (aResponse);
-    }
+    final T aResponse = _execute (aGet, aResponseHandler, aDeadline);
+    aResultHandler.accept (aResponse);
   }
 }
@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.util;
+
+import java.io.OutputStream;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableObject;
+
+/**
+ * An {@link OutputStream} that writes into buffers leased from a
+ * {@link ToopBufferPool}. When the stream is closed, the buffer is returned to
+ * the pool, so the content must be consumed before closing. The content can be
+ * accessed without copying via {@link #getBufferDirect()} or
+ * {@link #getAsHttpEntity()}.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+@NotThreadSafe
+public final class PooledByteArrayOutputStream extends OutputStream
+{
+  private final ToopBufferPool m_aPool;
+  private byte [] m_aBuf;
+  private int m_nCount;
+
+  /**
+   * Constructor
+   *
+   * @param aPool
+   *        The pool to lease buffers from. May not be <code>null</code>.
+   * @param nInitialSize
+   *        The initial buffer size. Must be &ge; 0.
+   */
+  public PooledByteArrayOutputStream (@Nonnull final ToopBufferPool aPool, @Nonnegative final int nInitialSize)
+  {
+    ValueEnforcer.notNull (aPool, "Pool");
+    m_aPool = aPool;
+    m_aBuf = aPool.acquire (nInitialSize);
+  }
+
+  private void _ensureOpen ()
+  {
+    if (m_aBuf == null)
+      throw new IllegalStateException ("Stream is already closed");
+  }
+
+  private void _ensureCapacity (final int nMinCapacity)
+  {
+    if (nMinCapacity < 0)
+      throw new IllegalStateException ("Buffer size overflow");
+    if (nMinCapacity > m_aBuf.length)
+    {
+      // Grow by at least doubling, so that the number of copies stays small
+      final byte [] aNewBuf = m_aPool.acquire (Math.max (nMinCapacity, m_aBuf.length << 1));
+      System.arraycopy (m_aBuf, 0, aNewBuf, 0, m_nCount);
+      m_aPool.release (m_aBuf);
+      m_aBuf = aNewBuf;
+    }
+  }
+
+  @Override
+  public void write (final int b)
+  {
+    _ensureOpen ();
+    _ensureCapacity (m_nCount + 1);
+    m_aBuf[m_nCount++] = (byte) b;
+  }
+
+  @Override
+  public void write (@Nonnull final byte [] aBuf, @Nonnegative final int nOfs, @Nonnegative final int nLen)
+  {
+    ValueEnforcer.isArrayOfsLen (aBuf, nOfs, nLen);
+    _ensureOpen ();
+    _ensureCapacity (m_nCount + nLen);
+    System.arraycopy (aBuf, nOfs, m_aBuf, m_nCount, nLen);
+    m_nCount += nLen;
+  }
+
+  /**
+   * @return The number of bytes written so far.
+   */
+  @Nonnegative
+  public int size ()
+  {
+    return m_nCount;
+  }
+
+  /**
+   * @return The internal buffer. Only the first {@link #size()} bytes are
+   *         valid. Must not be used after the stream was closed.
+   */
+  @Nonnull
+  @ReturnsMutableObject ("To avoid copying")
+  public byte [] getBufferDirect ()
+  {
+    _ensureOpen ();
+    return m_aBuf;
+  }
+
+  /**
+   * @return A copy of the written bytes. Never <code>null</code>.
+   */
+  @Nonnull
+  public byte [] toByteArray ()
+  {
+    _ensureOpen ();
+    final byte [] ret = new byte [m_nCount];
+    System.arraycopy (m_aBuf, 0, ret, 0, m_nCount);
+    return ret;
+  }
+
+  /**
+   * @return A repeatable HTTP entity that reads directly from the internal
+   *         buffer. Must not be used after the stream was closed.
+   */
+  @Nonnull
+  public HttpEntity getAsHttpEntity ()
+  {
+    return new ByteArrayEntity (getBufferDirect (), 0, m_nCount);
+  }
+
+  /**
+   * @param sContentType
+   *        The content type of the entity. May be <code>null</code>.
+   * @return A repeatable HTTP entity that reads directly from the internal
+   *         buffer. Must not be used after the stream was closed.
+   */
+  @Nonnull
+  public HttpEntity getAsHttpEntity (@Nullable final String sContentType)
+  {
+    final ByteArrayEntity ret = new ByteArrayEntity (getBufferDirect (), 0, m_nCount);
+    ret.setContentType (sContentType);
+    return ret;
+  }
+
+  /**
+   * Return the buffer to the pool. Calling this method more than once has no
+   * effect.
+   */
+  @Override
+  public void close ()
+  {
+    if (m_aBuf != null)
+    {
+      m_aPool.release (m_aBuf);
+      m_aBuf = null;
+      m_nCount = 0;
+    }
+  }
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.util.EntityUtils;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.jaxb.JAXBContextCache;
+import com.helger.pd.searchapi.v1.MatchType;
+
+/**
+ * Incremental StAX based reader for search result lists as returned by the
+ * TOOP Connector search endpoints. Instead of building the complete
+ * <code>ResultListType</code> in memory, every <code>match</code> element is
+ * unmarshalled on its own and passed to a callback as soon as it was read.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+@Immutable
+public final class SearchResultStreamReader
+{
+  private static final String ELEMENT_MATCH = "match";
+  private static final XMLInputFactory XML_INPUT_FACTORY;
+
+  static
+  {
+    XML_INPUT_FACTORY = XMLInputFactory.newInstance ();
+    // Avoid XXE
+    XML_INPUT_FACTORY.setProperty (XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    XML_INPUT_FACTORY.setProperty (XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+  }
+
+  private SearchResultStreamReader ()
+  {}
+
+  /**
+   * Read all matches from the provided input stream.
+   *
+   * @param aIS
+   *        The input stream to read from. May not be <code>null</code>. It is
+   *        not closed by this method.
+   * @param aMatchHandler
+   *        The callback for each match. If it returns <code>false</code>,
+   *        reading stops. May not be <code>null</code>.
+   * @return The number of matches passed to the handler.
+   * @throws IOException
+   *         If the XML cannot be parsed
+   */
+  @Nonnegative
+  public static int readMatches (@Nonnull final InputStream aIS,
+                                 @Nonnull final Predicate <? super MatchType> aMatchHandler) throws IOException
+  {
+    ValueEnforcer.notNull (aIS, "InputStream");
+    ValueEnforcer.notNull (aMatchHandler, "MatchHandler");
+
+    int ret = 0;
+    XMLStreamReader aReader = null;
+    try
+    {
+      final JAXBContext aCtx = JAXBContextCache.getInstance ().getFromCache (MatchType.class);
+      final Unmarshaller aUnmarshaller = aCtx.createUnmarshaller ();
+      aReader = XML_INPUT_FACTORY.createXMLStreamReader (aIS);
+      while (aReader.hasNext ())
+      {
+        if (aReader.getEventType () == XMLStreamConstants.START_ELEMENT &&
+            ELEMENT_MATCH.equals (aReader.getLocalName ()))
+        {
+          // Unmarshalling moves the reader behind the end element
+          final MatchType aMatch = aUnmarshaller.unmarshal (aReader, MatchType.class).getValue ();
+          ret++;
+          if (!aMatchHandler.test (aMatch))
+            break;
+        }
+        else
+          aReader.next ();
+      }
+    }
+    catch (final XMLStreamException | JAXBException ex)
+    {
+      throw new IOException ("Failed to read search result list", ex);
+    }
+    finally
+    {
+      if (aReader != null)
+        try
+        {
+          aReader.close ();
+        }
+        catch (final XMLStreamException ex)
+        {
+          // ignore
+        }
+    }
+    return ret;
+  }
+
+  /**
+   * Create an HTTP response handler that streams the matches of the response
+   * body to the provided handler. If the handler stops reading early, the
+   * connection is aborted instead of downloading the rest of the body, and is
+   * therefore not reused.
+   *
+   * @param aMatchHandler
+   *        The callback for each match. If it returns <code>false</code>,
+   *        reading stops. May not be <code>null</code>.
+   * @return The response handler that returns the number of matches read.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  public static ResponseHandler <Integer> createResponseHandler (@Nonnull final Predicate <? super MatchType> aMatchHandler)
+  {
+    ValueEnforcer.notNull (aMatchHandler, "MatchHandler");
+    return (final HttpResponse aHttpResponse) -> {
+      final StatusLine aStatusLine = aHttpResponse.getStatusLine ();
+      final HttpEntity aEntity = aHttpResponse.getEntity ();
+      if (aStatusLine.getStatusCode () >= 300)
+      {
+        EntityUtils.consume (aEntity);
+        throw new HttpResponseException (aStatusLine.getStatusCode (), aStatusLine.getReasonPhrase ());
+      }
+      if (aEntity == null)
+        return Integer.valueOf (0);
+      final AtomicBoolean aStopped = new AtomicBoolean (false);
+      try (final InputStream aIS = aEntity.getContent ())
+      {
+        final int ret = readMatches (aIS, x -> {
+          if (aMatchHandler.test (x))
+            return true;
+          aStopped.set (true);
+          return false;
+        });
+        if (aStopped.get () && aIS instanceof ConnectionReleaseTrigger)
+        {
+          // Closing would read the remaining body to reuse the connection
+          ((ConnectionReleaseTrigger) aIS).abortConnection ();
+        }
+        return Integer.valueOf (ret);
+      }
+    };
+  }
+}
@@ -17,12 +17,14 @@ package eu.toop.iface.util;
 
 import java.security.GeneralSecurityException;
 
+import javax.annotation.Nonnull;
+
 import org.apache.http.HttpHost;
 
 import com.helger.commons.exception.InitializationException;
 import com.helger.httpclient.HttpClientSettings;
 
-import eu.toop.iface.ToopInterfaceConfig;
+import eu.toop.iface.ToopTenantConfig;
 
 /**
  * Common TOOP Interface HTTPClient factory
@@ -33,7 +35,23 @@ public class TCHttpClientSettings extends HttpClientSettings
 {
   public TCHttpClientSettings ()
   {
-    if (ToopInterfaceConfig.isUseHttpSystemProperties ())
+    this (ToopTenantConfig.getDefault ());
+  }
+
+  /**
+   * Constructor for the HTTP settings of a specific tenant.
+   *
+   * @param aConfig
+   *        The tenant configuration to use. May not be <code>null</code>.
+   * @since 0.10.9
+   */
+  public TCHttpClientSettings (@Nonnull final ToopTenantConfig aConfig)
+  {
+    setConnectionRequestTimeoutMS (aConfig.getHttpConnectTimeoutMillis ());
+    setConnectionTimeoutMS (aConfig.getHttpConnectTimeoutMillis ());
+    setSocketTimeoutMS (aConfig.getHttpSocketTimeoutMillis ());
+
+    if (aConfig.isUseHttpSystemProperties ())
     {
       // For proxy etc
       setUseSystemProperties (true);
@@ -41,17 +59,17 @@ public class TCHttpClientSettings extends HttpClientSettings
     else
     {
       // Add settings from configuration file here centrally
-      if (ToopInterfaceConfig.isProxyServerEnabled ())
+      if (aConfig.isProxyServerEnabled ())
       {
-        setProxyHost (new HttpHost (ToopInterfaceConfig.getProxyServerAddress (),
-                                    ToopInterfaceConfig.getProxyServerPort ()));
+        setProxyHost (new HttpHost (aConfig.getProxyServerAddress (),
+                                    aConfig.getProxyServerPort ()));
 
         // Non-proxy hosts
-        addNonProxyHostsFromPipeString (ToopInterfaceConfig.getProxyServerNonProxyHosts ());
+        addNonProxyHostsFromPipeString (aConfig.getProxyServerNonProxyHosts ());
       }
 
       // Disable SSL checks?
-      if (ToopInterfaceConfig.isTLSTrustAll ())
+      if (aConfig.isTLSTrustAll ())
         try
         {
           setSSLContextTrustAll ();
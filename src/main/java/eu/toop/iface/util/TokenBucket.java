@@ -0,0 +1,168 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A simple token bucket. The bucket holds up to a configurable number of
+ * tokens (the burst size) and is refilled continuously with a fixed rate.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+@ThreadSafe
+public final class TokenBucket
+{
+  private final Lock m_aLock = new ReentrantLock ();
+  private final double m_dCapacity;
+  private final double m_dTokensPerNano;
+  private double m_dTokens;
+  private long m_nLastRefillNanos;
+
+  /**
+   * Constructor
+   *
+   * @param dTokensPerSecond
+   *        Refill rate. Must be &gt; 0.
+   * @param nCapacity
+   *        Maximum number of tokens. Must be &gt; 0. The bucket is initially
+   *        full.
+   */
+  public TokenBucket (final double dTokensPerSecond, @Nonnegative final int nCapacity)
+  {
+    ValueEnforcer.isTrue (dTokensPerSecond > 0, "TokensPerSecond must be > 0");
+    ValueEnforcer.isGT0 (nCapacity, "Capacity");
+    m_dCapacity = nCapacity;
+    m_dTokensPerNano = dTokensPerSecond / TimeUnit.SECONDS.toNanos (1);
+    m_dTokens = nCapacity;
+    m_nLastRefillNanos = System.nanoTime ();
+  }
+
+  private void _refill (final long nNowNanos)
+  {
+    final long nElapsed = nNowNanos - m_nLastRefillNanos;
+    if (nElapsed > 0)
+    {
+      m_dTokens = Math.min (m_dCapacity, m_dTokens + nElapsed * m_dTokensPerNano);
+      m_nLastRefillNanos = nNowNanos;
+    }
+  }
+
+  /**
+   * Try to take a single token.
+   *
+   * @return <code>true</code> if a token was available, <code>false</code> if
+   *         the bucket is empty.
+   */
+  public boolean tryConsume ()
+  {
+    m_aLock.lock ();
+    try
+    {
+      _refill (System.nanoTime ());
+      if (m_dTokens >= 1)
+      {
+        m_dTokens -= 1;
+        return true;
+      }
+      return false;
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  /**
+   * Take tokens even if they are not available. The bucket may become
+   * negative, so that further calls of {@link #tryConsume()} fail until the
+   * debt is refilled. This charges work that was already admitted.
+   *
+   * @param nTokens
+   *        The number of tokens to take. Must be &ge; 0.
+   */
+  public void forceConsume (@Nonnegative final int nTokens)
+  {
+    ValueEnforcer.isGE0 (nTokens, "Tokens");
+    m_aLock.lock ();
+    try
+    {
+      _refill (System.nanoTime ());
+      m_dTokens -= nTokens;
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  /**
+   * @return <code>true</code> if the bucket is completely refilled, meaning
+   *         that it is in the same state as a new bucket.
+   */
+  public boolean isFull ()
+  {
+    m_aLock.lock ();
+    try
+    {
+      _refill (System.nanoTime ());
+      return m_dTokens >= m_dCapacity;
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  /**
+   * @return The number of milliseconds until the next token is available. 0 if
+   *         a token is available now.
+   */
+  @Nonnegative
+  public long getMillisUntilNextToken ()
+  {
+    m_aLock.lock ();
+    try
+    {
+      _refill (System.nanoTime ());
+      if (m_dTokens >= 1)
+        return 0;
+      final double dNanos = (1 - m_dTokens) / m_dTokensPerNano;
+      return Math.max (1, TimeUnit.NANOSECONDS.toMillis ((long) Math.ceil (dNanos)));
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Capacity", m_dCapacity)
+                                       .append ("TokensPerNano", m_dTokensPerNano)
+                                       .getToString ();
+  }
+}
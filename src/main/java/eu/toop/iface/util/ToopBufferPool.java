@@ -0,0 +1,209 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.util;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCache;
+import com.helger.commons.statistics.StatisticsManager;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A bounded pool of reusable byte arrays, organized in power of two size
+ * classes. It is used to avoid allocating large short-lived buffers for every
+ * message that is sent. Buffers larger than the biggest size class are never
+ * pooled. The total number of bytes retained in the pool is limited.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+@ThreadSafe
+public final class ToopBufferPool
+{
+  /** The smallest size class: 4 KB */
+  public static final int MIN_SIZE_SHIFT = 12;
+  /** The largest size class: 32 MB */
+  public static final int MAX_SIZE_SHIFT = 25;
+
+  private static final IMutableStatisticsHandlerCache s_aStatsCache = StatisticsManager.getCacheHandler (ToopBufferPool.class.getName ());
+
+  private final long m_nMaxRetainedBytes;
+  private final ConcurrentLinkedDeque <byte []> [] m_aClasses;
+  private final AtomicLong m_aRetainedBytes = new AtomicLong ();
+  private final AtomicLong m_aOutstandingBytes = new AtomicLong ();
+  private final AtomicLong m_aHits = new AtomicLong ();
+  private final AtomicLong m_aMisses = new AtomicLong ();
+
+  /**
+   * Constructor
+   *
+   * @param nMaxRetainedBytes
+   *        The maximum number of bytes kept in the pool for reuse. 0 disables
+   *        pooling.
+   */
+  @SuppressWarnings ("unchecked")
+  public ToopBufferPool (@Nonnegative final long nMaxRetainedBytes)
+  {
+    ValueEnforcer.isGE0 (nMaxRetainedBytes, "MaxRetainedBytes");
+    m_nMaxRetainedBytes = nMaxRetainedBytes;
+    m_aClasses = new ConcurrentLinkedDeque [MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1];
+    for (int i = 0; i < m_aClasses.length; ++i)
+      m_aClasses[i] = new ConcurrentLinkedDeque <> ();
+  }
+
+  /**
+   * @param nSize
+   *        Requested size
+   * @return The size class index or -1 if the size is too large to be pooled
+   */
+  static int getSizeClassIndex (@Nonnegative final int nSize)
+  {
+    if (nSize <= 1 << MIN_SIZE_SHIFT)
+      return 0;
+    // Round up to the next power of two
+    final int nShift = 32 - Integer.numberOfLeadingZeros (nSize - 1);
+    return nShift > MAX_SIZE_SHIFT ? -1 : nShift - MIN_SIZE_SHIFT;
+  }
+
+  /**
+   * Lease a buffer with at least the provided size. The buffer may contain
+   * garbage from previous usages. It should be returned via
+   * {@link #release(byte[])} after usage.
+   *
+   * @param nMinSize
+   *        The minimum buffer size. Must be &ge; 0.
+   * @return The buffer. Never <code>null</code>.
+   */
+  @Nonnull
+  public byte [] acquire (@Nonnegative final int nMinSize)
+  {
+    ValueEnforcer.isGE0 (nMinSize, "MinSize");
+    final int nIndex = getSizeClassIndex (nMinSize);
+
+    byte [] ret = nIndex >= 0 ? m_aClasses[nIndex].pollFirst () : null;
+    if (ret != null)
+    {
+      m_aRetainedBytes.addAndGet (-ret.length);
+      m_aHits.incrementAndGet ();
+      s_aStatsCache.cacheHit ();
+    }
+    else
+    {
+      ret = new byte [nIndex >= 0 ? 1 << (nIndex + MIN_SIZE_SHIFT) : nMinSize];
+      m_aMisses.incrementAndGet ();
+      s_aStatsCache.cacheMiss ();
+    }
+    m_aOutstandingBytes.addAndGet (ret.length);
+    return ret;
+  }
+
+  /**
+   * Return a previously leased buffer to the pool.
+   *
+   * @param aBuffer
+   *        The buffer to return. May not be <code>null</code>. It must not be
+   *        used by the caller afterwards.
+   */
+  public void release (@Nonnull final byte [] aBuffer)
+  {
+    ValueEnforcer.notNull (aBuffer, "Buffer");
+    m_aOutstandingBytes.addAndGet (-aBuffer.length);
+
+    final int nLen = aBuffer.length;
+    // Only exact size class buffers are pooled
+    if (Integer.bitCount (nLen) == 1 && nLen >= 1 << MIN_SIZE_SHIFT && nLen <= 1 << MAX_SIZE_SHIFT)
+    {
+      if (m_aRetainedBytes.addAndGet (nLen) <= m_nMaxRetainedBytes)
+      {
+        m_aClasses[getSizeClassIndex (nLen)].offerFirst (aBuffer);
+        return;
+      }
+      // Pool is full - let the GC take care of it
+      m_aRetainedBytes.addAndGet (-nLen);
+    }
+  }
+
+  /**
+   * @return The maximum number of bytes to be retained in the pool.
+   */
+  @Nonnegative
+  public long getMaxRetainedBytes ()
+  {
+    return m_nMaxRetainedBytes;
+  }
+
+  /**
+   * @return The number of bytes currently available for reuse in the pool.
+   */
+  @Nonnegative
+  public long getRetainedBytes ()
+  {
+    return m_aRetainedBytes.get ();
+  }
+
+  /**
+   * @return The number of bytes currently leased and not yet returned.
+   */
+  public long getOutstandingBytes ()
+  {
+    return m_aOutstandingBytes.get ();
+  }
+
+  /**
+   * @return The number of acquisitions that could be served from the pool.
+   */
+  @Nonnegative
+  public long getHitCount ()
+  {
+    return m_aHits.get ();
+  }
+
+  /**
+   * @return The number of acquisitions that required a new allocation.
+   */
+  @Nonnegative
+  public long getMissCount ()
+  {
+    return m_aMisses.get ();
+  }
+
+  /**
+   * @return The share of acquisitions served from the pool, between 0 and 1.
+   */
+  public double getHitRate ()
+  {
+    final long nHits = m_aHits.get ();
+    final long nTotal = nHits + m_aMisses.get ();
+    return nTotal == 0 ? 0 : (double) nHits / nTotal;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("MaxRetainedBytes", m_nMaxRetainedBytes)
+                                       .append ("RetainedBytes", getRetainedBytes ())
+                                       .append ("OutstandingBytes", getOutstandingBytes ())
+                                       .append ("Hits", getHitCount ())
+                                       .append ("Misses", getMissCount ())
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.util;
+
+import java.io.InterruptedIOException;
+
+import javax.annotation.Nullable;
+
+/**
+ * Thrown if an HTTP call was not started or aborted because the deadline of
+ * the call was exceeded.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+public class ToopDeadlineExceededException extends InterruptedIOException
+{
+  public ToopDeadlineExceededException (@Nullable final String sMessage, @Nullable final Throwable aCause)
+  {
+    super (sMessage);
+    if (aCause != null)
+      initCause (aCause);
+  }
+}
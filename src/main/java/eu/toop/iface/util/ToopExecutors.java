@@ -0,0 +1,161 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.concurrent.BasicThreadFactory;
+
+import eu.toop.iface.EToopExecutionMode;
+
+/**
+ * Factory for the executors used for asynchronous sending and callback
+ * dispatching. Virtual threads are looked up via reflection, so that this
+ * library still runs on Java 8.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+@Immutable
+public final class ToopExecutors
+{
+  /** Default number of tasks a platform thread pool queues */
+  public static final int DEFAULT_QUEUE_CAPACITY = 10_000;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (ToopExecutors.class);
+  private static final Method VIRTUAL_FACTORY;
+
+  static
+  {
+    Method aMethod = null;
+    try
+    {
+      aMethod = Executors.class.getMethod ("newVirtualThreadPerTaskExecutor");
+    }
+    catch (final NoSuchMethodException | SecurityException ex)
+    {
+      // Runtime without virtual threads
+    }
+    VIRTUAL_FACTORY = aMethod;
+  }
+
+  private ToopExecutors ()
+  {}
+
+  /**
+   * @return <code>true</code> if the current Java runtime supports virtual
+   *         threads.
+   */
+  public static boolean isVirtualThreadSupported ()
+  {
+    return VIRTUAL_FACTORY != null;
+  }
+
+  /**
+   * Create a new executor service with a queue of
+   * {@link #DEFAULT_QUEUE_CAPACITY} tasks for platform threads.
+   *
+   * @param eMode
+   *        The execution mode to use. May not be <code>null</code>.
+   * @param nPlatformThreads
+   *        The number of threads for the platform thread pool. Must be &gt; 0.
+   * @param sThreadNamePrefix
+   *        The prefix of the thread names for platform threads. May neither be
+   *        <code>null</code> nor empty.
+   * @return A new executor service. Never <code>null</code>. Must be shutdown
+   *         by the caller.
+   * @see #createExecutor(EToopExecutionMode, int, int, String)
+   */
+  @Nonnull
+  public static ExecutorService createExecutor (@Nonnull final EToopExecutionMode eMode,
+                                                @Nonnegative final int nPlatformThreads,
+                                                @Nonnull @Nonempty final String sThreadNamePrefix)
+  {
+    return createExecutor (eMode, nPlatformThreads, DEFAULT_QUEUE_CAPACITY, sThreadNamePrefix);
+  }
+
+  /**
+   * Create a new executor service.
+   *
+   * @param eMode
+   *        The execution mode to use. May not be <code>null</code>. If
+   *        {@link EToopExecutionMode#VIRTUAL} is requested but not supported,
+   *        a platform thread pool is created instead.
+   * @param nPlatformThreads
+   *        The number of threads for the platform thread pool. Must be &gt; 0.
+   * @param nQueueCapacity
+   *        The maximum number of tasks the platform thread pool queues while
+   *        all threads are busy. Must be &gt; 0. Further tasks are rejected
+   *        with a {@link java.util.concurrent.RejectedExecutionException}, so
+   *        that a backlog cannot exhaust the memory.
+   * @param sThreadNamePrefix
+   *        The prefix of the thread names for platform threads. May neither be
+   *        <code>null</code> nor empty.
+   * @return A new executor service. Never <code>null</code>. Must be shutdown
+   *         by the caller.
+   * @since 0.10.9
+   */
+  @Nonnull
+  public static ExecutorService createExecutor (@Nonnull final EToopExecutionMode eMode,
+                                                @Nonnegative final int nPlatformThreads,
+                                                @Nonnegative final int nQueueCapacity,
+                                                @Nonnull @Nonempty final String sThreadNamePrefix)
+  {
+    ValueEnforcer.notNull (eMode, "Mode");
+    ValueEnforcer.isGT0 (nPlatformThreads, "PlatformThreads");
+    ValueEnforcer.isGT0 (nQueueCapacity, "QueueCapacity");
+    ValueEnforcer.notEmpty (sThreadNamePrefix, "ThreadNamePrefix");
+
+    if (eMode == EToopExecutionMode.VIRTUAL)
+    {
+      if (VIRTUAL_FACTORY != null)
+        try
+        {
+          return (ExecutorService) VIRTUAL_FACTORY.invoke (null);
+        }
+        catch (final ReflectiveOperationException ex)
+        {
+          LOGGER.warn ("Failed to create virtual thread executor - falling back to platform threads", ex);
+        }
+      else
+        LOGGER.warn ("Virtual threads are not supported by this Java runtime - falling back to platform threads");
+    }
+
+    // Same as Executors.newFixedThreadPool but with a bounded queue
+    return new ThreadPoolExecutor (nPlatformThreads,
+                                   nPlatformThreads,
+                                   0L,
+                                   TimeUnit.MILLISECONDS,
+                                   new LinkedBlockingQueue <> (nQueueCapacity),
+                                   new BasicThreadFactory.Builder ().setNamingPattern (sThreadNamePrefix + "-%d")
+                                                                    .setDaemon (true)
+                                                                    .build ());
+  }
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.util;
+
+import javax.annotation.CheckForSigned;
+import javax.annotation.Nullable;
+
+import org.apache.http.client.HttpResponseException;
+
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Special {@link HttpResponseException} that also contains the structured
+ * error information sent by the remote side.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+public class ToopHttpResponseException extends HttpResponseException
+{
+  private final String m_sErrorCode;
+  private final long m_nRetryAfterMillis;
+  private final int m_nBatchDeliveredCount;
+
+  public ToopHttpResponseException (final int nStatusCode,
+                                    @Nullable final String sReasonPhrase,
+                                    @Nullable final String sErrorCode,
+                                    final long nRetryAfterMillis)
+  {
+    this (nStatusCode, sReasonPhrase, sErrorCode, nRetryAfterMillis, -1);
+  }
+
+  public ToopHttpResponseException (final int nStatusCode,
+                                    @Nullable final String sReasonPhrase,
+                                    @Nullable final String sErrorCode,
+                                    final long nRetryAfterMillis,
+                                    final int nBatchDeliveredCount)
+  {
+    super (nStatusCode, sReasonPhrase);
+    m_sErrorCode = sErrorCode;
+    m_nRetryAfterMillis = nRetryAfterMillis;
+    m_nBatchDeliveredCount = nBatchDeliveredCount;
+  }
+
+  /**
+   * @return The error code ID from the response header. May be
+   *         <code>null</code>.
+   */
+  @Nullable
+  public final String getErrorCode ()
+  {
+    return m_sErrorCode;
+  }
+
+  /**
+   * @return The milliseconds to wait before retrying as requested by the
+   *         remote side or a negative value if not provided.
+   */
+  @CheckForSigned
+  public final long getRetryAfterMillis ()
+  {
+    return m_nRetryAfterMillis;
+  }
+
+  /**
+   * @return The number of leading parts of a batch that were delivered
+   *         although the batch failed, as reported by the remote side, or a
+   *         negative value if not provided.
+   * @see eu.toop.iface.codec.ToopMessageBatch#HTTP_HEADER_DELIVERED
+   */
+  @CheckForSigned
+  public final int getBatchDeliveredCount ()
+  {
+    return m_nBatchDeliveredCount;
+  }
+
+  /**
+   * Parse the value of a <code>Retry-After</code> header. Only the
+   * "delta-seconds" variant is supported.
+   *
+   * @param sValue
+   *        The header value. May be <code>null</code>.
+   * @return The value in milliseconds or -1 if not present or not parsable.
+   */
+  @CheckForSigned
+  public static long parseRetryAfterMillis (@Nullable final String sValue)
+  {
+    final long nSeconds = StringHelper.parseLong (StringHelper.trim (sValue), -1);
+    return nSeconds < 0 ? -1 : nSeconds * 1000;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("StatusCode", getStatusCode ())
+                                       .append ("Message", getMessage ())
+                                       .append ("ErrorCode", m_sErrorCode)
+                                       .append ("RetryAfterMillis", m_nRetryAfterMillis)
+                                       .append ("BatchDeliveredCount", m_nBatchDeliveredCount)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.util;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Keeps the most recent duration samples in a fixed size ring buffer, so that
+ * percentiles over the recent past can be determined cheaply. Recording is
+ * lock free; old samples are simply overwritten.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+@ThreadSafe
+public final class ToopLatencyRecorder
+{
+  /** The default number of samples retained */
+  public static final int DEFAULT_CAPACITY = 1024;
+
+  private final AtomicLongArray m_aSamples;
+  private final AtomicLong m_aCount = new AtomicLong ();
+
+  public ToopLatencyRecorder ()
+  {
+    this (DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param nCapacity
+   *        The number of recent samples to retain. Must be &gt; 0.
+   */
+  public ToopLatencyRecorder (@Nonnegative final int nCapacity)
+  {
+    ValueEnforcer.isGT0 (nCapacity, "Capacity");
+    m_aSamples = new AtomicLongArray (nCapacity);
+  }
+
+  /**
+   * @return The maximum number of retained samples.
+   */
+  @Nonnegative
+  public int getCapacity ()
+  {
+    return m_aSamples.length ();
+  }
+
+  /**
+   * @return The number of samples recorded since creation, including the ones
+   *         that were already overwritten.
+   */
+  @Nonnegative
+  public long getTotalCount ()
+  {
+    return m_aCount.get ();
+  }
+
+  /**
+   * Record a single duration.
+   *
+   * @param nMillis
+   *        The duration in milliseconds. Negative values are stored as 0.
+   */
+  public void record (final long nMillis)
+  {
+    final long nIndex = m_aCount.getAndIncrement ();
+    m_aSamples.set ((int) (nIndex % m_aSamples.length ()), Math.max (nMillis, 0));
+  }
+
+  /**
+   * Record the time elapsed since the provided start.
+   *
+   * @param nStartNanos
+   *        The start as returned by {@link System#nanoTime()}.
+   */
+  public void recordSince (final long nStartNanos)
+  {
+    record (TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - nStartNanos));
+  }
+
+  /**
+   * Determine multiple percentiles over the retained samples at once, using
+   * the nearest rank method.
+   *
+   * @param aPercentiles
+   *        The percentiles to determine, each between 0 and 100.
+   * @return An array of the same length with the durations in milliseconds.
+   *         All values are 0 if nothing was recorded yet. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public long [] getPercentiles (@Nonnull final double... aPercentiles)
+  {
+    ValueEnforcer.notNull (aPercentiles, "Percentiles");
+
+    final int nSamples = (int) Math.min (m_aCount.get (), m_aSamples.length ());
+    final long [] ret = new long [aPercentiles.length];
+    if (nSamples > 0)
+    {
+      final long [] aSorted = new long [nSamples];
+      for (int i = 0; i < nSamples; ++i)
+        aSorted[i] = m_aSamples.get (i);
+      Arrays.sort (aSorted);
+
+      for (int i = 0; i < aPercentiles.length; ++i)
+      {
+        final double dPercentile = aPercentiles[i];
+        ValueEnforcer.isBetweenInclusive (dPercentile, "Percentile", 0, 100);
+        final int nRank = (int) Math.ceil (dPercentile / 100 * nSamples);
+        ret[i] = aSorted[Math.max (nRank, 1) - 1];
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Capacity", m_aSamples.length ())
+                                       .append ("TotalCount", m_aCount.get ())
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,356 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import javax.annotation.CheckForSigned;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.FileEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableObject;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCounter;
+import com.helger.commons.statistics.StatisticsManager;
+import com.helger.commons.string.StringHelper;
+
+import eu.toop.iface.ToopInterfaceConfig;
+import eu.toop.iface.ToopInterfaceManager;
+
+/**
+ * An {@link OutputStream} that keeps small content in a buffer leased from a
+ * {@link ToopBufferPool} and switches to a temporary file as soon as the
+ * written size exceeds a threshold. This way the vast majority of messages
+ * stays on the allocation free in-memory path, while large messages don't
+ * occupy the heap. When the stream is closed, the buffer is returned to the
+ * pool and the temporary file is deleted, so the content must be consumed
+ * before closing.
+ *
+ * @author Philip Helger
+ * @since 0.10.9
+ */
+@NotThreadSafe
+public final class ToopSpoolingOutputStream extends OutputStream
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (ToopSpoolingOutputStream.class);
+  private static final IMutableStatisticsHandlerCounter s_aStatsSpooled = StatisticsManager.getCounterHandler (ToopSpoolingOutputStream.class.getName () +
+                                                                                                              "$spooled");
+
+  /** Don't trust an expected size for more than this initial buffer size */
+  private static final int MAX_PREALLOCATE = 4 * 1024 * 1024;
+
+  private final long m_nThreshold;
+  private final File m_aSpoolDirectory;
+  private PooledByteArrayOutputStream m_aMemory;
+  private File m_aFile;
+  private OutputStream m_aFileOS;
+  private long m_nCount;
+  private boolean m_bClosed = false;
+
+  /**
+   * Constructor
+   *
+   * @param aPool
+   *        The pool to lease buffers from. May not be <code>null</code>.
+   * @param nInitialSize
+   *        The initial buffer size. Must be &ge; 0.
+   * @param nThreshold
+   *        The number of bytes from which on the content is written to a
+   *        temporary file. Values &le; 0 mean to always stay in memory.
+   * @param aSpoolDirectory
+   *        The directory for the temporary file. May be <code>null</code> to
+   *        use the default temporary directory.
+   */
+  public ToopSpoolingOutputStream (@Nonnull final ToopBufferPool aPool,
+                                   @Nonnegative final int nInitialSize,
+                                   final long nThreshold,
+                                   @Nullable final File aSpoolDirectory)
+  {
+    ValueEnforcer.notNull (aPool, "Pool");
+    m_aMemory = new PooledByteArrayOutputStream (aPool,
+                                                 nThreshold > 0 ? (int) Math.min (nInitialSize, nThreshold)
+                                                                : nInitialSize);
+    m_nThreshold = nThreshold;
+    m_aSpoolDirectory = aSpoolDirectory;
+  }
+
+  private void _ensureOpen ()
+  {
+    if (m_bClosed)
+      throw new IllegalStateException ("Stream is already closed");
+  }
+
+  /**
+   * Switch to the temporary file now, e.g. because the expected size is
+   * already known to exceed the threshold. Calling this method when the
+   * content is already spooled has no effect.
+   *
+   * @throws IOException
+   *         If the temporary file cannot be created
+   */
+  public void spool () throws IOException
+  {
+    _ensureOpen ();
+    if (m_aFileOS != null)
+      return;
+
+    if (m_aSpoolDirectory != null)
+      Files.createDirectories (m_aSpoolDirectory.toPath ());
+    m_aFile = (m_aSpoolDirectory != null ? Files.createTempFile (m_aSpoolDirectory.toPath (), "toop-spool-", ".tmp")
+                                         : Files.createTempFile ("toop-spool-", ".tmp")).toFile ();
+    try
+    {
+      m_aFileOS = new BufferedOutputStream (Files.newOutputStream (m_aFile.toPath ()));
+      m_aFileOS.write (m_aMemory.getBufferDirect (), 0, m_aMemory.size ());
+    }
+    catch (final IOException ex)
+    {
+      close ();
+      throw ex;
+    }
+    m_aMemory.close ();
+    m_aMemory = null;
+    s_aStatsSpooled.increment ();
+  }
+
+  @Override
+  public void write (final int b) throws IOException
+  {
+    _ensureOpen ();
+    if (m_aFileOS == null && m_nThreshold > 0 && m_nCount + 1 > m_nThreshold)
+      spool ();
+    if (m_aFileOS != null)
+      m_aFileOS.write (b);
+    else
+      m_aMemory.write (b);
+    m_nCount++;
+  }
+
+  @Override
+  public void write (@Nonnull final byte [] aBuf, @Nonnegative final int nOfs, @Nonnegative final int nLen) throws IOException
+  {
+    ValueEnforcer.isArrayOfsLen (aBuf, nOfs, nLen);
+    _ensureOpen ();
+    if (m_aFileOS == null && m_nThreshold > 0 && m_nCount + nLen > m_nThreshold)
+      spool ();
+    if (m_aFileOS != null)
+      m_aFileOS.write (aBuf, nOfs, nLen);
+    else
+      m_aMemory.write (aBuf, nOfs, nLen);
+    m_nCount += nLen;
+  }
+
+  @Override
+  public void flush () throws IOException
+  {
+    if (m_aFileOS != null)
+      m_aFileOS.flush ();
+  }
+
+  /**
+   * @return The number of bytes written so far.
+   */
+  @Nonnegative
+  public long size ()
+  {
+    return m_nCount;
+  }
+
+  /**
+   * @return The threshold from which on the content is written to a temporary
+   *         file. Values &le; 0 mean to always stay in memory.
+   */
+  @CheckForSigned
+  public long getThreshold ()
+  {
+    return m_nThreshold;
+  }
+
+  /**
+   * @return <code>true</code> if the content is in a temporary file,
+   *         <code>false</code> if it is in memory.
+   */
+  public boolean isSpooled ()
+  {
+    return m_aFileOS != null;
+  }
+
+  /**
+   * @return The internal buffer. Only the first {@link #size()} bytes are
+   *         valid. Must not be used after the stream was closed.
+   * @throws IllegalStateException
+   *         If the content is spooled
+   */
+  @Nonnull
+  @ReturnsMutableObject ("To avoid copying")
+  public byte [] getBufferDirect ()
+  {
+    _ensureOpen ();
+    if (m_aFileOS != null)
+      throw new IllegalStateException ("The content is spooled to '" + m_aFile.getAbsolutePath () + "'");
+    return m_aMemory.getBufferDirect ();
+  }
+
+  /**
+   * @return A new stream to read the content written so far. Must be closed by
+   *         the caller and must not be used after this stream was closed.
+   * @throws IOException
+   *         If the temporary file cannot be read
+   */
+  @Nonnull
+  public InputStream openInputStream () throws IOException
+  {
+    _ensureOpen ();
+    if (m_aFileOS == null)
+      return new NonBlockingByteArrayInputStream (m_aMemory.getBufferDirect (), 0, m_aMemory.size ());
+
+    m_aFileOS.flush ();
+    return new BufferedInputStream (Files.newInputStream (m_aFile.toPath ()));
+  }
+
+  /**
+   * @return The content written so far, without copying. A spooled content is
+   *         mapped into memory read-only. Must not be used after this stream
+   *         was closed.
+   * @throws IOException
+   *         If the temporary file cannot be mapped
+   */
+  @Nonnull
+  public ByteBuffer getAsByteBuffer () throws IOException
+  {
+    _ensureOpen ();
+    if (m_aFileOS == null)
+      return ByteBuffer.wrap (m_aMemory.getBufferDirect (), 0, m_aMemory.size ());
+
+    m_aFileOS.flush ();
+    try (final FileChannel aChannel = FileChannel.open (m_aFile.toPath (), StandardOpenOption.READ))
+    {
+      return aChannel.map (FileChannel.MapMode.READ_ONLY, 0, m_nCount);
+    }
+  }
+
+  /**
+   * @param sContentType
+   *        The content type of the entity. May be <code>null</code>.
+   * @return A repeatable HTTP entity that reads directly from the internal
+   *         buffer or the temporary file. Must not be used after the stream was
+   *         closed.
+   * @throws IOException
+   *         If the temporary file cannot be flushed
+   */
+  @Nonnull
+  public HttpEntity getAsHttpEntity (@Nullable final String sContentType) throws IOException
+  {
+    _ensureOpen ();
+    final AbstractHttpEntity ret;
+    if (m_aFileOS == null)
+      ret = new ByteArrayEntity (m_aMemory.getBufferDirect (), 0, m_aMemory.size ());
+    else
+    {
+      m_aFileOS.flush ();
+      ret = new FileEntity (m_aFile);
+    }
+    ret.setContentType (sContentType);
+    return ret;
+  }
+
+  /**
+   * Return the buffer to the pool and delete the temporary file. Calling this
+   * method more than once has no effect.
+   */
+  @Override
+  public void close ()
+  {
+    if (!m_bClosed)
+    {
+      m_bClosed = true;
+      if (m_aMemory != null)
+      {
+        m_aMemory.close ();
+        m_aMemory = null;
+      }
+      StreamHelper.close (m_aFileOS);
+      m_aFileOS = null;
+      if (m_aFile != null)
+      {
+        try
+        {
+          Files.deleteIfExists (m_aFile.toPath ());
+        }
+        catch (final IOException ex)
+        {
+          LOGGER.warn ("Failed to delete spool file '" + m_aFile.getAbsolutePath () + "'", ex);
+        }
+        m_aFile = null;
+      }
+      m_nCount = 0;
+    }
+  }
+
+  /**
+   * @return A new stream based on the buffer pool from
+   *         {@link ToopInterfaceManager} and the spool settings in
+   *         {@link ToopInterfaceConfig}. Never <code>null</code>.
+   */
+  @Nonnull
+  public static ToopSpoolingOutputStream createFromConfig ()
+  {
+    return createFromConfig (-1);
+  }
+
+  /**
+   * Same as {@link #createFromConfig()} but the initial buffer is sized
+   * exactly, if the expected size is known and below the spool threshold.
+   *
+   * @param nExpectedSize
+   *        The expected size in bytes, or a negative value if unknown.
+   * @return A new stream. Never <code>null</code>.
+   */
+  @Nonnull
+  public static ToopSpoolingOutputStream createFromConfig (final long nExpectedSize)
+  {
+    final long nThreshold = ToopInterfaceConfig.getSpoolThresholdBytes ();
+    final int nInitialSize = nExpectedSize >= 0 &&
+                             (nThreshold <= 0 || nExpectedSize <= nThreshold) ? (int) Math.min (nExpectedSize,
+                                                                                                MAX_PREALLOCATE)
+                                                                              : ToopInterfaceConfig.getBufferPoolInitialSize ();
+    final String sSpoolPath = ToopInterfaceConfig.getSpoolPath ();
+    return new ToopSpoolingOutputStream (ToopInterfaceManager.getBufferPool (),
+                                         nInitialSize,
+                                         nThreshold,
+                                         StringHelper.hasText (sSpoolPath) ? new File (sSpoolPath) : null);
+  }
+}
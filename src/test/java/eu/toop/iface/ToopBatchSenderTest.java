@@ -0,0 +1,165 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.http.CHttp;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import eu.toop.iface.codec.ToopMessageBatch;
+import eu.toop.iface.mock.MockToopMessages;
+import eu.toop.iface.util.ToopHttpResponseException;
+
+/**
+ * Test class for class {@link ToopBatchSender}.
+ *
+ * @author Philip Helger
+ */
+public final class ToopBatchSenderTest
+{
+  private HttpServer m_aServer;
+  private final AtomicInteger m_aRequests = new AtomicInteger ();
+  private final AtomicInteger m_aParts = new AtomicInteger ();
+  // Number of parts the receiver processes before failing, -1 for success
+  private volatile int m_nFailAfter = -1;
+
+  private void _handle (@Nonnull final HttpExchange aExchange) throws IOException
+  {
+    try (final InputStream aIS = aExchange.getRequestBody ())
+    {
+      final int nParts = ToopMessageBatch.read (aIS, Integer.MAX_VALUE, (nIndex, sContentType, aPayload) -> {});
+      m_aRequests.incrementAndGet ();
+      m_aParts.addAndGet (nParts);
+    }
+    if (m_nFailAfter < 0)
+      aExchange.sendResponseHeaders (CHttp.HTTP_NO_CONTENT, -1);
+    else
+    {
+      aExchange.getResponseHeaders ().set (EToopInterfaceErrorCode.HTTP_HEADER_ERROR_CODE,
+                                           EToopInterfaceErrorCode.SERVER_ERROR.getID ());
+      aExchange.getResponseHeaders ().set (ToopMessageBatch.HTTP_HEADER_DELIVERED, Integer.toString (m_nFailAfter));
+      aExchange.sendResponseHeaders (CHttp.HTTP_INTERNAL_SERVER_ERROR, -1);
+    }
+    aExchange.close ();
+  }
+
+  @Before
+  public void before () throws Exception
+  {
+    m_aServer = HttpServer.create (new InetSocketAddress ("127.0.0.1", 0), 16);
+    m_aServer.createContext ("/batch", this::_handle);
+    m_aServer.start ();
+  }
+
+  @After
+  public void after ()
+  {
+    m_aServer.stop (0);
+  }
+
+  @Nonnull
+  private String _getURL ()
+  {
+    return "http://127.0.0.1:" + m_aServer.getAddress ().getPort () + "/batch";
+  }
+
+  @Nonnull
+  private static ICommonsList <CompletableFuture <Void>> _submit (@Nonnull final ToopBatchSender aSender,
+                                                                   final int nCount) throws Exception
+  {
+    final ICommonsList <CompletableFuture <Void>> ret = new CommonsArrayList <> ();
+    for (int i = 0; i < nCount; ++i)
+      ret.add (aSender.submit (MockToopMessages.createRequest (i), null));
+    return ret;
+  }
+
+  @Test
+  public void testSendWhenFull () throws Exception
+  {
+    try (final ToopBatchSender aSender = new ToopBatchSender (_getURL (), null, 3, Long.MAX_VALUE, 60_000))
+    {
+      final ICommonsList <CompletableFuture <Void>> aFutures = _submit (aSender, 2);
+      // Still lingering
+      assertEquals (2, aSender.getPendingCount ());
+      assertFalse (aFutures.get (0).isDone ());
+
+      // The third message sends the batch in this thread
+      aFutures.addAll (_submit (aSender, 1));
+      assertEquals (0, aSender.getPendingCount ());
+      for (final CompletableFuture <Void> aFuture : aFutures)
+        aFuture.get (10, TimeUnit.SECONDS);
+      assertEquals (1, m_aRequests.get ());
+      assertEquals (3, m_aParts.get ());
+
+      // Flushing sends the rest without waiting
+      final ICommonsList <CompletableFuture <Void>> aRest = _submit (aSender, 1);
+      aSender.flush ();
+      aRest.getFirst ().get (10, TimeUnit.SECONDS);
+      assertEquals (2, m_aRequests.get ());
+      assertEquals (4, m_aParts.get ());
+    }
+  }
+
+  @Test
+  public void testPartialDelivery () throws Exception
+  {
+    // The receiver processed two messages and failed on the third one
+    m_nFailAfter = 2;
+    try (final ToopBatchSender aSender = new ToopBatchSender (_getURL (), null, 4, Long.MAX_VALUE, 60_000))
+    {
+      final ICommonsList <CompletableFuture <Void>> aFutures = _submit (aSender, 4);
+      assertEquals (1, m_aRequests.get ());
+
+      // Delivered - must not be resubmitted
+      aFutures.get (0).get (10, TimeUnit.SECONDS);
+      aFutures.get (1).get (10, TimeUnit.SECONDS);
+
+      // Not delivered
+      for (int i = 2; i < 4; ++i)
+        try
+        {
+          aFutures.get (i).get (10, TimeUnit.SECONDS);
+          fail ("Message " + i + " must not be delivered");
+        }
+        catch (final ExecutionException ex)
+        {
+          assertTrue (ex.getCause () instanceof ToopHttpResponseException);
+          assertEquals (2, ((ToopHttpResponseException) ex.getCause ()).getBatchDeliveredCount ());
+        }
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import eu.toop.iface.util.ToopDeadlineExceededException;
+
+/**
+ * Test class for class {@link ToopDeadline}.
+ *
+ * @author Philip Helger
+ */
+public final class ToopDeadlineTest
+{
+  @Test
+  public void testBasic ()
+  {
+    final ToopDeadline aShort = ToopDeadline.ofTimeoutMillis (0);
+    assertTrue (aShort.isExpired ());
+    assertEquals ("0", aShort.getAsHeaderValue ());
+
+    final ToopDeadline aLong = ToopDeadline.ofTimeoutMillis (60_000);
+    assertFalse (aLong.isExpired ());
+    assertTrue (aLong.getRemainingMillis () > 50_000);
+
+    assertSame (aShort, ToopDeadline.getEarliest (aShort, aLong));
+    assertSame (aShort, ToopDeadline.getEarliest (aLong, aShort));
+    assertSame (aLong, ToopDeadline.getEarliest (null, aLong));
+    assertNull (ToopDeadline.getEarliest (null, null));
+  }
+
+  @Test
+  public void testParse ()
+  {
+    assertNull (ToopDeadline.parseHeaderValue (null));
+    assertNull (ToopDeadline.parseHeaderValue ("abc"));
+    assertNull (ToopDeadline.parseHeaderValue ("-5"));
+
+    final ToopDeadline aDeadline = ToopDeadline.parseHeaderValue (" 30000 ");
+    assertNotNull (aDeadline);
+    assertFalse (aDeadline.isExpired ());
+
+    // Round trip via header value
+    assertNotNull (ToopDeadline.parseHeaderValue (aDeadline.getAsHeaderValue ()));
+  }
+
+  @Test
+  public void testClampHugeValues ()
+  {
+    // Must not overflow into the past
+    final ToopDeadline aDeadline = ToopDeadline.ofTimeoutMillis (Long.MAX_VALUE);
+    assertFalse (aDeadline.isExpired ());
+    assertTrue (aDeadline.getRemainingMillis () <= ToopDeadline.MAX_TIMEOUT_MILLIS);
+
+    final ToopDeadline aParsed = ToopDeadline.parseHeaderValue (Long.toString (Long.MAX_VALUE));
+    assertNotNull (aParsed);
+    assertFalse (aParsed.isExpired ());
+    assertTrue (aParsed.getRemainingMillis () > ToopDeadline.MAX_TIMEOUT_MILLIS - 60_000);
+  }
+
+  @Test
+  public void testErrorCode ()
+  {
+    assertSame (EToopInterfaceErrorCode.DEADLINE_EXCEEDED,
+                ToopInterfaceClientException.create (new ToopDeadlineExceededException ("x", null)).getErrorCode ());
+    assertFalse (EToopInterfaceErrorCode.DEADLINE_EXCEEDED.isRetryable ());
+  }
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Test class for class {@link ToopDiscoveryCache}.
+ *
+ * @author Philip Helger
+ */
+public final class ToopDiscoveryCacheTest
+{
+  private static final Executor DIRECT = Runnable::run;
+
+  @Test
+  public void testPersistAndReload () throws IOException
+  {
+    final File aFile = Files.createTempFile ("toop-discovery", ".bin").toFile ();
+    try
+    {
+      Files.delete (aFile.toPath ());
+      final AtomicInteger aFetches = new AtomicInteger ();
+      final ToopDiscoveryCache.IFetcher aFetcher = sURI -> {
+        aFetches.incrementAndGet ();
+        return sURI.getBytes (StandardCharsets.UTF_8);
+      };
+
+      final ToopDiscoveryCache aCache = new ToopDiscoveryCache (aFile, 60_000, 10, DIRECT);
+      assertArrayEquals ("a".getBytes (StandardCharsets.UTF_8), aCache.get ("a", aFetcher));
+      assertArrayEquals ("a".getBytes (StandardCharsets.UTF_8), aCache.get ("a", aFetcher));
+      assertEquals (1, aFetches.get ());
+
+      // A new instance reads the persisted state
+      final ToopDiscoveryCache aCache2 = new ToopDiscoveryCache (aFile, 60_000, 10, DIRECT);
+      assertEquals (1, aCache2.getEntryCount ());
+      assertArrayEquals ("a".getBytes (StandardCharsets.UTF_8), aCache2.get ("a", sURI -> {
+        fail ("Should not be fetched");
+        return null;
+      }));
+    }
+    finally
+    {
+      Files.deleteIfExists (aFile.toPath ());
+    }
+  }
+
+  @Test
+  public void testRevalidate () throws Exception
+  {
+    final File aFile = Files.createTempFile ("toop-discovery", ".bin").toFile ();
+    try
+    {
+      final AtomicInteger aFetches = new AtomicInteger ();
+      final ToopDiscoveryCache aCache = new ToopDiscoveryCache (aFile, 1, 10, DIRECT);
+      aCache.get ("a", sURI -> new byte [] { (byte) aFetches.incrementAndGet () });
+      Thread.sleep (10);
+
+      // The outdated value is returned and replaced in the background
+      assertArrayEquals (new byte [] { 1 }, aCache.get ("a", sURI -> new byte [] { (byte) aFetches.incrementAndGet () }));
+      assertArrayEquals (new byte [] { 2 }, aCache.get ("a", sURI -> new byte [] { (byte) aFetches.incrementAndGet () }));
+    }
+    finally
+    {
+      Files.deleteIfExists (aFile.toPath ());
+    }
+  }
+
+  @Test
+  public void testMaxStale () throws Exception
+  {
+    final File aFile = Files.createTempFile ("toop-discovery", ".bin").toFile ();
+    try
+    {
+      final ToopDiscoveryCache aCache = new ToopDiscoveryCache (aFile, 1, 5, 10, DIRECT);
+      aCache.get ("a", sURI -> new byte [] { 1 });
+      Thread.sleep (20);
+
+      // Too old to be served - fetched synchronously
+      assertArrayEquals (new byte [] { 2 }, aCache.get ("a", sURI -> new byte [] { 2 }));
+      Thread.sleep (20);
+
+      // Too old and fetching fails - the entry is dropped
+      try
+      {
+        aCache.get ("a", sURI -> {
+          throw new IOException ("down");
+        });
+        fail ("Exception expected");
+      }
+      catch (final IOException ex)
+      {
+        // expected
+      }
+      assertEquals (0, aCache.getEntryCount ());
+    }
+    finally
+    {
+      Files.deleteIfExists (aFile.toPath ());
+    }
+  }
+
+  @Test
+  public void testMaxBytes () throws IOException
+  {
+    final File aFile = Files.createTempFile ("toop-discovery", ".bin").toFile ();
+    try
+    {
+      final ToopDiscoveryCache aCache = new ToopDiscoveryCache (aFile, 60_000, 60_000, 10, 10, DIRECT);
+      aCache.get ("a", sURI -> new byte [6]);
+      assertEquals (6, aCache.getByteCount ());
+
+      // The oldest entry is evicted to stay within the budget
+      aCache.get ("b", sURI -> new byte [6]);
+      assertEquals (1, aCache.getEntryCount ());
+      assertEquals (6, aCache.getByteCount ());
+
+      // Too large to be cached at all
+      assertEquals (11, aCache.get ("c", sURI -> new byte [11]).length);
+      assertEquals (1, aCache.getEntryCount ());
+      assertTrue (aCache.getByteCount () <= 10);
+    }
+    finally
+    {
+      Files.deleteIfExists (aFile.toPath ());
+    }
+  }
+
+  @Test
+  public void testInvalidLengthInFile () throws IOException
+  {
+    final File aFile = Files.createTempFile ("toop-discovery", ".bin").toFile ();
+    try
+    {
+      // Same header as written by persist, but a huge entry length
+      try (final DataOutputStream aDOS = new DataOutputStream (Files.newOutputStream (aFile.toPath ())))
+      {
+        aDOS.writeInt (0x544f4450);
+        aDOS.writeInt (1);
+        aDOS.writeInt (1);
+        aDOS.writeUTF ("a");
+        aDOS.writeLong (System.currentTimeMillis ());
+        aDOS.writeInt (Integer.MAX_VALUE);
+      }
+
+      final ToopDiscoveryCache aCache = new ToopDiscoveryCache (aFile, 60_000, 10, DIRECT);
+      assertEquals (0, aCache.getEntryCount ());
+      assertEquals (0, aCache.getByteCount ());
+    }
+    finally
+    {
+      Files.deleteIfExists (aFile.toPath ());
+    }
+  }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+
+import eu.toop.commons.dataexchange.v140.TDETOOPResponseType;
+import eu.toop.commons.exchange.ToopResponseWithAttachments140;
+
+/**
+ * Test class for class {@link ToopResponseCorrelator}.
+ *
+ * @author Philip Helger
+ */
+public final class ToopResponseCorrelatorTest
+{
+  private static ToopResponseWithAttachments140 _createResponse ()
+  {
+    return new ToopResponseWithAttachments140 (new TDETOOPResponseType (), new CommonsArrayList <> ());
+  }
+
+  @Test
+  public void testComplete () throws Exception
+  {
+    try (final ToopResponseCorrelator aCorrelator = new ToopResponseCorrelator (2, 60_000))
+    {
+      final CompletableFuture <ToopResponseWithAttachments140> aFuture = aCorrelator.register ("id1");
+      assertEquals (1, aCorrelator.getPendingCount ());
+
+      // Unknown IDs are not consumed
+      final ToopResponseWithAttachments140 aResponse = _createResponse ();
+      assertFalse (aCorrelator.complete ("id2", aResponse));
+      assertFalse (aCorrelator.complete (null, aResponse));
+
+      assertTrue (aCorrelator.complete ("id1", aResponse));
+      assertSame (aResponse, aFuture.get (1, TimeUnit.SECONDS));
+      assertEquals (0, aCorrelator.getPendingCount ());
+
+      // Second time the ID is unknown
+      assertFalse (aCorrelator.complete ("id1", aResponse));
+    }
+  }
+
+  @Test
+  public void testMaxPending ()
+  {
+    try (final ToopResponseCorrelator aCorrelator = new ToopResponseCorrelator (1, 60_000))
+    {
+      aCorrelator.register ("id1");
+      try
+      {
+        aCorrelator.register ("id2");
+        fail ();
+      }
+      catch (final IllegalStateException ex)
+      {
+        // expected
+      }
+      assertEquals (1, aCorrelator.getPendingCount ());
+    }
+  }
+
+  @Test
+  public void testTimeout () throws Exception
+  {
+    try (final ToopResponseCorrelator aCorrelator = new ToopResponseCorrelator (10, 60_000))
+    {
+      final CompletableFuture <ToopResponseWithAttachments140> aFuture = aCorrelator.register ("id1", 10);
+      try
+      {
+        aFuture.get (5, TimeUnit.SECONDS);
+        fail ();
+      }
+      catch (final ExecutionException ex)
+      {
+        assertTrue (ex.getCause () instanceof TimeoutException);
+      }
+      assertEquals (0, aCorrelator.getPendingCount ());
+    }
+  }
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import eu.toop.iface.util.ToopHttpResponseException;
+
+/**
+ * Test class for class {@link ToopRetryPolicy} and
+ * {@link ToopInterfaceClientException}.
+ *
+ * @author Philip Helger
+ */
+public final class ToopRetryPolicyTest
+{
+  @Test
+  public void testClassify ()
+  {
+    assertSame (EToopInterfaceErrorCode.TIMEOUT,
+                ToopInterfaceClientException.create (new SocketTimeoutException ()).getErrorCode ());
+    assertSame (EToopInterfaceErrorCode.NETWORK_ERROR,
+                ToopInterfaceClientException.create (new ConnectException ()).getErrorCode ());
+    assertSame (EToopInterfaceErrorCode.INVALID_RESPONSE,
+                ToopInterfaceClientException.create (new IllegalArgumentException ()).getErrorCode ());
+
+    // Explicit error code wins over the HTTP status
+    ToopInterfaceClientException ex = ToopInterfaceClientException.create (new ToopHttpResponseException (400,
+                                                                                                          "Bad",
+                                                                                                          "rate-limited",
+                                                                                                          2000));
+    assertSame (EToopInterfaceErrorCode.RATE_LIMITED, ex.getErrorCode ());
+    assertTrue (ex.isRetryable ());
+    assertEquals (2000, ex.getRetryAfterMillis ());
+
+    ex = ToopInterfaceClientException.create (new ToopHttpResponseException (404, "Not found", null, -1));
+    assertSame (EToopInterfaceErrorCode.CLIENT_ERROR, ex.getErrorCode ());
+    assertFalse (ex.isRetryable ());
+    assertFalse (ex.hasRetryAfter ());
+
+    assertSame (EToopInterfaceErrorCode.SERVER_ERROR, EToopInterfaceErrorCode.getFromHttpStatus (502));
+    assertSame (EToopInterfaceErrorCode.OVERLOADED, EToopInterfaceErrorCode.getFromHttpStatus (503));
+    assertEquals (3000, ToopHttpResponseException.parseRetryAfterMillis (" 3 "));
+    assertEquals (-1, ToopHttpResponseException.parseRetryAfterMillis ("Wed, 21 Oct 2015 07:28:00 GMT"));
+  }
+
+  @Test
+  public void testRetry ()
+  {
+    final ToopRetryPolicy aPolicy = new ToopRetryPolicy (3, 1, 10);
+
+    // Retryable errors are retried
+    final AtomicInteger aCalls = new AtomicInteger ();
+    assertEquals ("ok", aPolicy.execute ( () -> {
+      if (aCalls.incrementAndGet () < 3)
+        throw new SocketTimeoutException ();
+      return "ok";
+    }));
+    assertEquals (3, aCalls.get ());
+
+    // Non-retryable errors are not
+    aCalls.set (0);
+    try
+    {
+      aPolicy.execute ( () -> {
+        aCalls.incrementAndGet ();
+        throw new ToopHttpResponseException (400, "Bad", "invalid-message", -1);
+      });
+      fail ();
+    }
+    catch (final ToopInterfaceClientException ex)
+    {
+      assertSame (EToopInterfaceErrorCode.INVALID_MESSAGE, ex.getErrorCode ());
+    }
+    assertEquals (1, aCalls.get ());
+
+    // Retry-After longer than the max backoff fails fast
+    aCalls.set (0);
+    try
+    {
+      aPolicy.execute ( () -> {
+        aCalls.incrementAndGet ();
+        throw new ToopHttpResponseException (503, "Busy", null, 60_000);
+      });
+      fail ();
+    }
+    catch (final ToopInterfaceClientException ex)
+    {
+      assertSame (EToopInterfaceErrorCode.OVERLOADED, ex.getErrorCode ());
+    }
+    assertEquals (1, aCalls.get ());
+  }
+
+  @Test
+  public void testRetryWithDeadline ()
+  {
+    final ToopRetryPolicy aPolicy = new ToopRetryPolicy (5, 1, 10);
+
+    // No time left for a retry
+    final AtomicInteger aCalls = new AtomicInteger ();
+    try
+    {
+      aPolicy.execute ( () -> {
+        aCalls.incrementAndGet ();
+        throw new SocketTimeoutException ();
+      }, ToopDeadline.ofTimeoutMillis (0));
+      fail ();
+    }
+    catch (final ToopInterfaceClientException ex)
+    {
+      assertTrue (ex.isRetryable ());
+    }
+    assertEquals (1, aCalls.get ());
+
+    // Enough time - retried as usual
+    aCalls.set (0);
+    assertEquals ("ok", aPolicy.execute ( () -> {
+      if (aCalls.incrementAndGet () < 3)
+        throw new SocketTimeoutException ();
+      return "ok";
+    }, ToopDeadline.ofTimeoutMillis (60_000)));
+    assertEquals (3, aCalls.get ());
+  }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Test class for class {@link ToopTenantRegistry} and {@link ToopTenant}.
+ *
+ * @author Philip Helger
+ */
+public final class ToopTenantRegistryTest
+{
+  @Test
+  public void testLookup ()
+  {
+    try (final ToopTenantRegistry aRegistry = new ToopTenantRegistry ())
+    {
+      final ToopTenant aDefault = aRegistry.getDefaultTenant ();
+      assertTrue (aDefault.getConfig ().isDefaultTenant ());
+
+      final ToopTenant aAcme = new ToopTenant (new ToopTenantConfig ("acme"));
+      assertTrue (aRegistry.registerTenant (aAcme).isChanged ());
+      assertTrue (aRegistry.registerTenant (new ToopTenant (new ToopTenantConfig ("acme"))).isUnchanged ());
+
+      assertSame (aDefault, aRegistry.getTenantOfPathInfo (null));
+      assertSame (aDefault, aRegistry.getTenantOfPathInfo ("/"));
+      assertSame (aAcme, aRegistry.getTenantOfPathInfo ("/acme"));
+      assertSame (aAcme, aRegistry.getTenantOfPathInfo ("/acme/"));
+      assertNull (aRegistry.getTenantOfPathInfo ("/other"));
+
+      // The default tenant cannot be removed
+      assertTrue (aRegistry.unregisterTenant (ToopTenantConfig.DEFAULT_TENANT_ID).isUnchanged ());
+      assertTrue (aRegistry.unregisterTenant ("acme").isChanged ());
+      assertNull (aRegistry.getTenantOfID ("acme"));
+      assertEquals (1, aRegistry.getAllTenants ().size ());
+    }
+  }
+
+  @Test
+  public void testFallbackToGlobalConfig ()
+  {
+    // Nothing tenant specific is configured
+    final ToopTenantConfig aConfig = new ToopTenantConfig ("acme");
+    assertEquals (ToopInterfaceConfig.getToopConnectorDCUrl (), aConfig.getToopConnectorDCUrl ());
+    assertEquals (ToopInterfaceConfig.getHttpSocketTimeoutMillis (), aConfig.getHttpSocketTimeoutMillis ());
+    assertTrue (aConfig.getAllParticipantIDs ().isEmpty ());
+
+    // But the identity is never taken from the global configuration
+    assertNull (aConfig.getKeystorePath ());
+    assertNull (aConfig.getKeystoreKeyAlias ());
+    final ToopTenant aTenant = new ToopTenant (aConfig);
+    try
+    {
+      aTenant.getKeyMaterial ();
+      fail ();
+    }
+    catch (final IllegalStateException ex)
+    {
+      // expected
+    }
+    assertFalse (aTenant.hasInterfaceDP ());
+  }
+
+  @Test
+  public void testScope ()
+  {
+    final ToopTenant aA = new ToopTenant (new ToopTenantConfig ("a"));
+    final ToopTenant aB = new ToopTenant (new ToopTenantConfig ("b"));
+    assertNull (ToopTenant.getCurrent ());
+    assertTrue (ToopTenant.getCurrentConfig ().isDefaultTenant ());
+
+    final Runnable aCheckA;
+    try (final ToopTenant.Scope aScopeA = aA.enter ())
+    {
+      assertSame (aA, ToopTenant.getCurrent ());
+      try (final ToopTenant.Scope aScopeB = aB.enter ())
+      {
+        assertSame (aB, ToopTenant.getCurrent ());
+      }
+      assertSame (aA, ToopTenant.getCurrent ());
+      aCheckA = ToopTenant.wrapCurrent ( () -> assertSame (aA, ToopTenant.getCurrent ()));
+    }
+    assertNull (ToopTenant.getCurrent ());
+
+    // The wrapped runnable restores the tenant of its creator
+    aCheckA.run ();
+    assertNull (ToopTenant.getCurrent ());
+  }
+}
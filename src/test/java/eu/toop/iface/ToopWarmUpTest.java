@@ -0,0 +1,47 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import eu.toop.iface.codec.ToopBinaryMessageCodec;
+
+/**
+ * Test class for class {@link ToopWarmUp}.
+ *
+ * @author Philip Helger
+ */
+public final class ToopWarmUpTest
+{
+  @Test
+  public void testRun ()
+  {
+    ToopWarmUp.run ();
+    assertEquals (ToopWarmUp.EState.DONE, ToopWarmUp.getState ());
+    assertEquals (ToopWarmUp.getAllErrors ().toString (), 0, ToopWarmUp.getErrorCount ());
+    assertTrue (ToopWarmUp.getTotalMillis () >= 0);
+    assertTrue (ToopWarmUp.getAllStepMillis ().containsKey ("keystore"));
+    assertTrue (ToopWarmUp.getAllStepMillis ().containsKey ("codec:" + ToopBinaryMessageCodec.ID));
+
+    // Only once
+    assertFalse (ToopWarmUp.run ());
+    assertFalse (ToopWarmUp.runAsync ());
+  }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.codec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+
+/**
+ * Test class for class {@link ToopMessageBatch}.
+ *
+ * @author Philip Helger
+ */
+public final class ToopMessageBatchTest
+{
+  private static byte [] _createBatch (final String... aPayloads) throws Exception
+  {
+    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
+    {
+      ToopMessageBatch.writeHeader (aBAOS);
+      for (final String sPayload : aPayloads)
+      {
+        final byte [] aBytes = sPayload.getBytes (StandardCharsets.UTF_8);
+        ToopMessageBatch.writePart (aBAOS,
+                                    ToopBinaryMessageCodec.CONTENT_TYPE,
+                                    new NonBlockingByteArrayInputStream (aBytes),
+                                    aBytes.length);
+      }
+      ToopMessageBatch.writeEnd (aBAOS);
+      return aBAOS.toByteArray ();
+    }
+  }
+
+  @Test
+  public void testRoundTrip () throws Exception
+  {
+    final byte [] aBatch = _createBatch ("first", "", "third");
+    final ICommonsList <String> aRead = new CommonsArrayList <> ();
+    final int nParts = ToopMessageBatch.read (new NonBlockingByteArrayInputStream (aBatch),
+                                              aBatch.length,
+                                              (nIndex, sContentType, aPayload) -> {
+                                                assertEquals (aRead.size (), nIndex);
+                                                assertEquals (ToopBinaryMessageCodec.CONTENT_TYPE, sContentType);
+                                                aRead.add (new String (aPayload, StandardCharsets.UTF_8));
+                                              });
+    assertEquals (3, nParts);
+    assertEquals (new CommonsArrayList <> ("first", "", "third"), aRead);
+
+    // Empty batch
+    final byte [] aEmpty = _createBatch ();
+    assertEquals (0, ToopMessageBatch.read (new NonBlockingByteArrayInputStream (aEmpty), aEmpty.length, (x, y, z) -> {
+      throw new IllegalStateException ();
+    }));
+  }
+
+  @Test
+  public void testInvalid () throws Exception
+  {
+    final byte [] aBatch = _createBatch ("first", "second");
+
+    // Truncated: the first part is read, but the batch is invalid
+    final ICommonsList <byte []> aRead = new CommonsArrayList <> ();
+    assertEquals (-1,
+                  ToopMessageBatch.read (new NonBlockingByteArrayInputStream (Arrays.copyOf (aBatch, aBatch.length - 6)),
+                                         aBatch.length,
+                                         (nIndex, sContentType, aPayload) -> aRead.add (aPayload)));
+    assertEquals (1, aRead.size ());
+    assertArrayEquals ("first".getBytes (StandardCharsets.UTF_8), aRead.get (0));
+
+    // Part longer than allowed
+    assertEquals (-1, ToopMessageBatch.read (new NonBlockingByteArrayInputStream (aBatch), 3, (x, y, z) -> {}));
+
+    // Wrong magic
+    final byte [] aCorrupt = aBatch.clone ();
+    aCorrupt[0] ^= 0xff;
+    assertEquals (-1, ToopMessageBatch.read (new NonBlockingByteArrayInputStream (aCorrupt), aBatch.length, (x, y, z) -> {}));
+  }
+
+  @Test
+  public void testIsBatchContentType ()
+  {
+    assertTrue (ToopMessageBatch.isBatchContentType (ToopMessageBatch.CONTENT_TYPE));
+    assertTrue (ToopMessageBatch.isBatchContentType ("Application/X-Toop-Batch; charset=binary"));
+    assertFalse (ToopMessageBatch.isBatchContentType (null));
+    assertFalse (ToopMessageBatch.isBatchContentType (""));
+    assertFalse (ToopMessageBatch.isBatchContentType (ToopBinaryMessageCodec.CONTENT_TYPE));
+  }
+}
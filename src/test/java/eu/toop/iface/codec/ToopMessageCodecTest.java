@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.codec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.Serializable;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.timing.StopWatch;
+
+import eu.toop.commons.dataexchange.v140.TDETOOPRequestType;
+import eu.toop.commons.exchange.AsicWriteEntry;
+import eu.toop.iface.mock.MockToopMessages;
+
+/**
+ * Test class for the {@link IToopMessageCodec} implementations.
+ *
+ * @author Philip Helger
+ */
+public final class ToopMessageCodecTest
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (ToopMessageCodecTest.class);
+
+  @Nonnull
+  private static byte [] _encode (@Nonnull final IToopMessageCodec aCodec, @Nonnull final Serializable aMsg) throws Exception
+  {
+    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
+    {
+      aCodec.encode (aMsg, null, aBAOS);
+      return aBAOS.toByteArray ();
+    }
+  }
+
+  @Nullable
+  private static Serializable _decode (@Nonnull final IToopMessageCodec aCodec, @Nonnull final byte [] aBytes) throws Exception
+  {
+    return aCodec.decode (new NonBlockingByteArrayInputStream (aBytes), x -> {});
+  }
+
+  @Test
+  public void testRegistry ()
+  {
+    final ToopMessageCodecRegistry aRegistry = ToopMessageCodecRegistry.getInstance ();
+    assertTrue (aRegistry.getDefaultCodec () instanceof ToopAsicMessageCodec);
+    assertSame (aRegistry.getDefaultCodec (), aRegistry.getCodecOfContentType (null));
+    assertSame (aRegistry.getDefaultCodec (), aRegistry.getCodecOfContentType ("application/octet-stream"));
+    assertTrue (aRegistry.getCodecOfContentType ("Application/X-Toop-Binary; charset=UTF-8") instanceof ToopBinaryMessageCodec);
+    assertTrue (aRegistry.getCodecOfID (ToopBinaryMessageCodec.ID) instanceof ToopBinaryMessageCodec);
+
+    // Only accepted codecs are returned
+    final ICommonsList <String> aAsicOnly = new CommonsArrayList <> (ToopAsicMessageCodec.ID);
+    assertSame (aRegistry.getDefaultCodec (), aRegistry.getCodecOfContentType (null, aAsicOnly));
+    assertNull (aRegistry.getCodecOfContentType (ToopBinaryMessageCodec.CONTENT_TYPE, aAsicOnly));
+    assertNull (aRegistry.getCodecOfContentType (null, new CommonsArrayList <> (ToopBinaryMessageCodec.ID)));
+  }
+
+  @Test
+  public void testBinaryRoundTrip () throws Exception
+  {
+    final IToopMessageCodec aCodec = new ToopBinaryMessageCodec ();
+    final TDETOOPRequestType aRequest = MockToopMessages.createRequest (1);
+    final byte [] aBytes = _encode (aCodec, aRequest);
+
+    final Serializable aDecoded = _decode (aCodec, aBytes);
+    assertTrue (aDecoded instanceof TDETOOPRequestType);
+    assertEquals (aRequest.getDocumentUniversalUniqueIdentifier ().getValue (),
+                  ((TDETOOPRequestType) aDecoded).getDocumentUniversalUniqueIdentifier ().getValue ());
+
+    // Modify the last byte of the signature
+    aBytes[aBytes.length - 1] ^= 0x01;
+    assertNull (_decode (aCodec, aBytes));
+
+    // Truncated
+    assertNull (_decode (aCodec, new byte [] { 0x54, 0x4f }));
+  }
+
+  @Test
+  public void testBinaryNoAttachments () throws Exception
+  {
+    final IToopMessageCodec aCodec = new ToopBinaryMessageCodec ();
+    try
+    {
+      // The content of the entry does not matter
+      final CommonsArrayList <AsicWriteEntry> aAttachments = new CommonsArrayList <> ();
+      aAttachments.add (null);
+      aCodec.encode (MockToopMessages.createRequest (2), aAttachments, new NonBlockingByteArrayOutputStream ());
+      fail ();
+    }
+    catch (final IllegalArgumentException ex)
+    {
+      // expected
+    }
+  }
+
+  @Test
+  @Ignore ("Benchmark - takes too long")
+  public void testBenchmarkCodecs () throws Exception
+  {
+    final int nMessages = 500;
+    for (final IToopMessageCodec aCodec : ToopMessageCodecRegistry.getInstance ().getAllCodecs ())
+    {
+      // Warm up
+      for (int i = 0; i < 50; ++i)
+        _decode (aCodec, _encode (aCodec, MockToopMessages.createRequest (i)));
+
+      long nBytes = 0;
+      final StopWatch aSW = StopWatch.createdStarted ();
+      for (int i = 0; i < nMessages; ++i)
+      {
+        final byte [] aBytes = _encode (aCodec, MockToopMessages.createRequest (i));
+        nBytes += aBytes.length;
+        if (_decode (aCodec, aBytes) == null)
+          throw new IllegalStateException ("Failed to decode with " + aCodec.getID ());
+      }
+      aSW.stop ();
+      LOGGER.info (aCodec.getID () +
+                   ": " +
+                   nMessages +
+                   " encode/decode cycles in " +
+                   aSW.getMillis () +
+                   " ms; " +
+                   (nBytes / nMessages) +
+                   " bytes per message");
+    }
+  }
+}
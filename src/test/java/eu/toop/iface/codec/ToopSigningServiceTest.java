@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.codec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.io.Serializable;
+import java.security.Signature;
+
+import org.junit.Test;
+
+import eu.toop.commons.dataexchange.v140.TDETOOPRequestType;
+import eu.toop.iface.mock.MockToopMessages;
+import eu.toop.iface.util.ToopSpoolingOutputStream;
+
+/**
+ * Test class for class {@link ToopSigningService}.
+ *
+ * @author Philip Helger
+ */
+public final class ToopSigningServiceTest
+{
+  private static void _roundTrip (final ToopSigningService aService, final int nIndex) throws Exception
+  {
+    final IToopMessageCodec aCodec = new ToopBinaryMessageCodec ();
+    final TDETOOPRequestType aRequest = MockToopMessages.createRequest (nIndex);
+    try (final ToopSpoolingOutputStream aBAOS = aService.encode (aCodec, aRequest, null, null);
+         final InputStream aIS = aBAOS.openInputStream ())
+    {
+      final Serializable aDecoded = aCodec.decode (aIS, x -> {});
+      assertTrue (aDecoded instanceof TDETOOPRequestType);
+      assertEquals (aRequest.getDocumentUniversalUniqueIdentifier ().getValue (),
+                    ((TDETOOPRequestType) aDecoded).getDocumentUniversalUniqueIdentifier ().getValue ());
+    }
+  }
+
+  @Test
+  public void testOffloaded () throws Exception
+  {
+    try (final ToopSigningService aService = new ToopSigningService (2, 10))
+    {
+      for (int i = 0; i < 5; ++i)
+        _roundTrip (aService, i);
+      assertEquals (5, aService.getSignLatencyRecorder ().getTotalCount ());
+      assertEquals (0, aService.getQueueDepth ());
+    }
+  }
+
+  @Test
+  public void testInline () throws Exception
+  {
+    try (final ToopSigningService aService = new ToopSigningService (0, 1))
+    {
+      _roundTrip (aService, 1);
+      assertEquals (1, aService.getSignLatencyRecorder ().getTotalCount ());
+    }
+  }
+
+  @Test
+  public void testSignaturePool () throws Exception
+  {
+    final ToopKeyMaterial aKM = ToopKeyMaterial.loadFromConfig ();
+    final byte [] aData = { 1, 2, 3 };
+    final byte [] aSig1 = aKM.sign (aData);
+    assertEquals (1, aKM.getPooledSignatureCount ());
+
+    // The pooled instance is reset after signing
+    final byte [] aSig2 = aKM.sign (new byte [] { 1 }, new byte [] { 2, 3 });
+    assertEquals (1, aKM.getPooledSignatureCount ());
+
+    final Signature aVerify = Signature.getInstance (aKM.getSignatureAlgorithm ());
+    for (final byte [] aSig : new byte [] [] { aSig1, aSig2 })
+    {
+      aVerify.initVerify (aKM.getCertificate ());
+      aVerify.update (aData);
+      assertTrue (aVerify.verify (aSig));
+    }
+  }
+}
@@ -0,0 +1,212 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.journal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+
+/**
+ * Test class for class {@link ToopInboundJournal}.
+ *
+ * @author Philip Helger
+ */
+public final class ToopInboundJournalTest
+{
+  private static void _deleteRecursive (final File aDir) throws IOException
+  {
+    final File [] aFiles = aDir.listFiles ();
+    if (aFiles != null)
+      for (final File aFile : aFiles)
+        Files.deleteIfExists (aFile.toPath ());
+    Files.deleteIfExists (aDir.toPath ());
+  }
+
+  private static long _append (final ToopInboundJournal aJournal, final String sText) throws IOException
+  {
+    final byte [] aBytes = sText.getBytes (StandardCharsets.UTF_8);
+    return aJournal.append ("default", "application/test", aBytes, 0, aBytes.length);
+  }
+
+  @Test
+  public void testReplayAfterReopen () throws Exception
+  {
+    final File aDir = Files.createTempDirectory ("toop-journal").toFile ();
+    try
+    {
+      try (final ToopInboundJournal aJournal = ToopInboundJournal.open (aDir, 1024))
+      {
+        final long nSeq1 = _append (aJournal, "first");
+        _append (aJournal, "second");
+        aJournal.complete (nSeq1);
+        assertEquals (1, aJournal.getPendingCount ());
+      }
+
+      try (final ToopInboundJournal aJournal = ToopInboundJournal.open (aDir, 1024))
+      {
+        final ICommonsList <ToopInboundJournal.Entry> aEntries = aJournal.takeRecoveredEntries ();
+        assertEquals (1, aEntries.size ());
+        assertEquals ("default", aEntries.get (0).getTenantID ());
+        assertEquals ("application/test", aEntries.get (0).getContentType ());
+        assertArrayEquals ("second".getBytes (StandardCharsets.UTF_8), aEntries.get (0).getPayload ());
+
+        // Sequence numbers continue
+        assertTrue (_append (aJournal, "third") > aEntries.get (0).getSequence ());
+        aJournal.complete (aEntries.get (0).getSequence ());
+      }
+
+      try (final ToopInboundJournal aJournal = ToopInboundJournal.open (aDir, 1024))
+      {
+        final ICommonsList <ToopInboundJournal.Entry> aEntries = aJournal.takeRecoveredEntries ();
+        assertEquals (1, aEntries.size ());
+        assertArrayEquals ("third".getBytes (StandardCharsets.UTF_8), aEntries.get (0).getPayload ());
+      }
+    }
+    finally
+    {
+      _deleteRecursive (aDir);
+    }
+  }
+
+  @Test
+  public void testTornTail () throws Exception
+  {
+    final File aDir = Files.createTempDirectory ("toop-journal").toFile ();
+    try
+    {
+      try (final ToopInboundJournal aJournal = ToopInboundJournal.open (aDir, 1024 * 1024))
+      {
+        _append (aJournal, "complete");
+        _append (aJournal, "torn");
+      }
+
+      // Simulate a crash in the middle of writing the last record
+      final File [] aFiles = aDir.listFiles ();
+      assertEquals (1, aFiles.length);
+      try (final RandomAccessFile aRAF = new RandomAccessFile (aFiles[0], "rw"))
+      {
+        aRAF.setLength (aRAF.length () - 3);
+      }
+
+      try (final ToopInboundJournal aJournal = ToopInboundJournal.open (aDir, 1024 * 1024))
+      {
+        final ICommonsList <ToopInboundJournal.Entry> aEntries = aJournal.takeRecoveredEntries ();
+        assertEquals (1, aEntries.size ());
+        assertArrayEquals ("complete".getBytes (StandardCharsets.UTF_8), aEntries.get (0).getPayload ());
+      }
+    }
+    finally
+    {
+      _deleteRecursive (aDir);
+    }
+  }
+
+  @Test
+  public void testSegmentWithCompletionOfOlderMessage () throws Exception
+  {
+    final File aDir = Files.createTempDirectory ("toop-journal").toFile ();
+    try
+    {
+      // A message record is 50 bytes and a completion record 17 bytes, so two
+      // messages fit in a segment but not two messages and a completion
+      final int nMaxSegmentBytes = 110;
+      final long nSeq2;
+      final long nSeq4;
+      try (final ToopInboundJournal aJournal = ToopInboundJournal.open (aDir, nMaxSegmentBytes))
+      {
+        // Segment 1: M1, M2
+        final long nSeq1 = _append (aJournal, "m1");
+        nSeq2 = _append (aJournal, "m2");
+        // Segment 2: COMPLETE(M1), M3
+        aJournal.complete (nSeq1);
+        final long nSeq3 = _append (aJournal, "m3");
+        // Segment 3: M4
+        nSeq4 = _append (aJournal, "m4");
+        assertEquals (3, aJournal.getSegmentCount ());
+
+        // Segment 2 has no open message, but M2 keeps segment 1 alive
+        aJournal.complete (nSeq3);
+        assertEquals (3, aJournal.getSegmentCount ());
+      }
+
+      try (final ToopInboundJournal aJournal = ToopInboundJournal.open (aDir, nMaxSegmentBytes))
+      {
+        // M1 must not be resurrected
+        final ICommonsList <ToopInboundJournal.Entry> aEntries = aJournal.takeRecoveredEntries ();
+        assertEquals (2, aEntries.size ());
+        assertEquals (nSeq2, aEntries.get (0).getSequence ());
+        assertEquals (nSeq4, aEntries.get (1).getSequence ());
+
+        // Segments 1 and 2 go away together
+        aJournal.complete (nSeq2);
+        assertEquals (2, aJournal.getSegmentCount ());
+      }
+    }
+    finally
+    {
+      _deleteRecursive (aDir);
+    }
+  }
+
+  @Test
+  public void testConcurrentAppendAndSegmentCleanup () throws Exception
+  {
+    final File aDir = Files.createTempDirectory ("toop-journal").toFile ();
+    final ExecutorService aES = Executors.newFixedThreadPool (8);
+    try
+    {
+      try (final ToopInboundJournal aJournal = ToopInboundJournal.open (aDir, 256))
+      {
+        final ICommonsList <Future <Long>> aFutures = new CommonsArrayList <> ();
+        for (int i = 0; i < 100; ++i)
+        {
+          final String sText = "message " + i;
+          aFutures.add (aES.submit ( () -> Long.valueOf (_append (aJournal, sText))));
+        }
+        for (final Future <Long> aFuture : aFutures)
+          aJournal.complete (aFuture.get ().longValue ());
+
+        assertEquals (0, aJournal.getPendingCount ());
+        // Only the active segment is left
+        assertEquals (1, aJournal.getSegmentCount ());
+      }
+
+      try (final ToopInboundJournal aJournal = ToopInboundJournal.open (aDir, 256))
+      {
+        assertTrue (aJournal.takeRecoveredEntries ().isEmpty ());
+      }
+    }
+    finally
+    {
+      aES.shutdownNow ();
+      _deleteRecursive (aDir);
+    }
+  }
+}
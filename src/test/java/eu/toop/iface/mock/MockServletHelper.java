@@ -0,0 +1,260 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.mock;
+
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+
+/**
+ * Minimal, proxy based {@link HttpServletRequest} and
+ * {@link HttpServletResponse} implementations, so that the servlets can be
+ * invoked without a servlet container.
+ *
+ * @author Philip Helger
+ */
+public final class MockServletHelper
+{
+  /**
+   * The state of a mocked response.
+   */
+  public static final class MockResponse
+  {
+    private int m_nStatus = HttpServletResponse.SC_OK;
+    private final ICommonsMap <String, String> m_aHeaders = new CommonsHashMap <> ();
+    private final NonBlockingByteArrayOutputStream m_aBody = new NonBlockingByteArrayOutputStream ();
+
+    public int getStatus ()
+    {
+      return m_nStatus;
+    }
+
+    @Nonnull
+    public String getBodyAsString ()
+    {
+      return m_aBody.getAsString (StandardCharsets.UTF_8);
+    }
+
+    @Nullable
+    public String getHeader (@Nonnull final String sName)
+    {
+      return m_aHeaders.get (sName);
+    }
+  }
+
+  private static final class MockServletInputStream extends ServletInputStream
+  {
+    private final NonBlockingByteArrayInputStream m_aIS;
+
+    MockServletInputStream (@Nonnull final byte [] aBytes)
+    {
+      m_aIS = new NonBlockingByteArrayInputStream (aBytes);
+    }
+
+    @Override
+    public int read ()
+    {
+      return m_aIS.read ();
+    }
+
+    @Override
+    public int read (final byte [] aBuf, final int nOfs, final int nLen)
+    {
+      return m_aIS.read (aBuf, nOfs, nLen);
+    }
+
+    @Override
+    public boolean isFinished ()
+    {
+      return m_aIS.available () == 0;
+    }
+
+    @Override
+    public boolean isReady ()
+    {
+      return true;
+    }
+
+    @Override
+    public void setReadListener (final ReadListener aReadListener)
+    {
+      throw new UnsupportedOperationException ();
+    }
+  }
+
+  private static final class MockServletOutputStream extends ServletOutputStream
+  {
+    private final NonBlockingByteArrayOutputStream m_aOS;
+
+    MockServletOutputStream (@Nonnull final NonBlockingByteArrayOutputStream aOS)
+    {
+      m_aOS = aOS;
+    }
+
+    @Override
+    public void write (final int b)
+    {
+      m_aOS.write (b);
+    }
+
+    @Override
+    public void write (final byte [] aBuf, final int nOfs, final int nLen)
+    {
+      m_aOS.write (aBuf, nOfs, nLen);
+    }
+
+    @Override
+    public boolean isReady ()
+    {
+      return true;
+    }
+
+    @Override
+    public void setWriteListener (final WriteListener aWriteListener)
+    {
+      throw new UnsupportedOperationException ();
+    }
+  }
+
+  private MockServletHelper ()
+  {}
+
+  @Nullable
+  private static Object _getDefaultValue (@Nonnull final Class <?> aReturnType)
+  {
+    if (aReturnType == boolean.class)
+      return Boolean.FALSE;
+    if (aReturnType == int.class)
+      return Integer.valueOf (0);
+    if (aReturnType == long.class)
+      return Long.valueOf (0);
+    return null;
+  }
+
+  /**
+   * Create a new HTTP POST request.
+   *
+   * @param sServletPath
+   *        The servlet path, e.g. <code>/to-dc</code>. Everything after the
+   *        second slash is the path info, e.g. <code>/to-dc/acme</code>.
+   * @param sRemoteAddr
+   *        The remote address to simulate
+   * @param aBody
+   *        The request body
+   * @param aHeaders
+   *        Additional HTTP headers. May be <code>null</code>.
+   * @return The request and never <code>null</code>.
+   */
+  @Nonnull
+  public static HttpServletRequest createPost (@Nonnull final String sServletPath,
+                                               @Nonnull final String sRemoteAddr,
+                                               @Nonnull final byte [] aBody,
+                                               @Nullable final Map <String, String> aHeaders)
+  {
+    final Map <String, String> aRealHeaders = aHeaders != null ? aHeaders : Collections.emptyMap ();
+    final int nSlash = sServletPath.indexOf ('/', 1);
+    final String sPath = nSlash < 0 ? sServletPath : sServletPath.substring (0, nSlash);
+    final String sPathInfo = nSlash < 0 ? null : sServletPath.substring (nSlash);
+    return (HttpServletRequest) Proxy.newProxyInstance (MockServletHelper.class.getClassLoader (),
+                                                        new Class <?> [] { HttpServletRequest.class },
+                                                        (aProxy, aMethod, aArgs) -> {
+                                                          switch (aMethod.getName ())
+                                                          {
+                                                            case "getMethod":
+                                                              return "POST";
+                                                            case "getProtocol":
+                                                              return "HTTP/1.1";
+                                                            case "getServletPath":
+                                                              return sPath;
+                                                            case "getPathInfo":
+                                                              return sPathInfo;
+                                                            case "getRequestURI":
+                                                              return sServletPath;
+                                                            case "getRemoteAddr":
+                                                              return sRemoteAddr;
+                                                            case "getContentLength":
+                                                              return Integer.valueOf (aBody.length);
+                                                            case "getContentLengthLong":
+                                                              return Long.valueOf (aBody.length);
+                                                            case "getContentType":
+                                                              return aRealHeaders.get ("Content-Type");
+                                                            case "getHeader":
+                                                              return aRealHeaders.get (aArgs[0]);
+                                                            case "getInputStream":
+                                                              return new MockServletInputStream (aBody);
+                                                            default:
+                                                              return _getDefaultValue (aMethod.getReturnType ());
+                                                          }
+                                                        });
+  }
+
+  /**
+   * Create a new HTTP response.
+   *
+   * @param aState
+   *        The state object that receives status, headers and body. May not be
+   *        <code>null</code>.
+   * @return The response and never <code>null</code>.
+   */
+  @Nonnull
+  public static HttpServletResponse createResponse (@Nonnull final MockResponse aState)
+  {
+    return (HttpServletResponse) Proxy.newProxyInstance (MockServletHelper.class.getClassLoader (),
+                                                         new Class <?> [] { HttpServletResponse.class },
+                                                         (aProxy, aMethod, aArgs) -> {
+                                                           switch (aMethod.getName ())
+                                                           {
+                                                             case "setStatus":
+                                                             case "sendError":
+                                                               aState.m_nStatus = ((Integer) aArgs[0]).intValue ();
+                                                               return null;
+                                                             case "getStatus":
+                                                               return Integer.valueOf (aState.m_nStatus);
+                                                             case "setHeader":
+                                                             case "addHeader":
+                                                               aState.m_aHeaders.put ((String) aArgs[0], (String) aArgs[1]);
+                                                               return null;
+                                                             case "getHeader":
+                                                               return aState.m_aHeaders.get (aArgs[0]);
+                                                             case "getOutputStream":
+                                                               return new MockServletOutputStream (aState.m_aBody);
+                                                             case "getWriter":
+                                                               return new PrintWriter (new OutputStreamWriter (aState.m_aBody,
+                                                                                                               StandardCharsets.UTF_8),
+                                                                                       true);
+                                                             default:
+                                                               return _getDefaultValue (aMethod.getReturnType ());
+                                                           }
+                                                         });
+  }
+}
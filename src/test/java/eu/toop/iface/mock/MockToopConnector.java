@@ -0,0 +1,275 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.mock;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.http.CHttp;
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.commons.io.stream.StreamHelper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import eu.toop.iface.util.TokenBucket;
+
+/**
+ * A local stand-in for the TOOP Connector, based on the JDK HTTP server. It
+ * provides the <code>/from-dc</code>, <code>/from-dp</code>,
+ * <code>/search-dp-by-country/</code> and <code>/search-dp-by-dptype/</code>
+ * endpoints with configurable latency, error rate and throughput. Only meant
+ * for load and integration tests.
+ *
+ * @author Philip Helger
+ */
+public final class MockToopConnector implements AutoCloseable
+{
+  /** The search response returned by default */
+  public static final String DEFAULT_SEARCH_RESPONSE = "mock/resultlist.xml";
+
+  private final HttpServer m_aServer;
+  private final ExecutorService m_aExecutor;
+  private long m_nLatencyMillis;
+  private double m_dErrorRate;
+  private TokenBucket m_aThroughput;
+  private byte [] m_aSearchResponse;
+  private final AtomicLong m_aReceivedCount = new AtomicLong ();
+  private final AtomicLong m_aReceivedBytes = new AtomicLong ();
+  private final AtomicLong m_aErrorCount = new AtomicLong ();
+  private final AtomicLong m_aThrottledCount = new AtomicLong ();
+
+  /**
+   * Start a new mock connector on a free local port.
+   *
+   * @param nThreads
+   *        Number of HTTP worker threads. Must be &gt; 0.
+   * @throws IOException
+   *         If the server cannot be started
+   */
+  public MockToopConnector (@Nonnegative final int nThreads) throws IOException
+  {
+    ValueEnforcer.isGT0 (nThreads, "Threads");
+    m_aSearchResponse = StreamHelper.getAllBytes (new ClassPathResource (DEFAULT_SEARCH_RESPONSE));
+    m_aExecutor = Executors.newFixedThreadPool (nThreads,
+                                                new BasicThreadFactory.Builder ().setNamingPattern ("mock-tc-%d")
+                                                                                 .setDaemon (true)
+                                                                                 .build ());
+    m_aServer = HttpServer.create (new InetSocketAddress ("127.0.0.1", 0), 1024);
+    m_aServer.setExecutor (m_aExecutor);
+    m_aServer.createContext ("/from-dc", this::_handleMessage);
+    m_aServer.createContext ("/from-dp", this::_handleMessage);
+    m_aServer.createContext ("/search-dp-by-country/", this::_handleSearch);
+    m_aServer.createContext ("/search-dp-by-dptype/", this::_handleSearch);
+    m_aServer.start ();
+  }
+
+  /**
+   * @return The base URL of this connector, e.g.
+   *         <code>http://127.0.0.1:12345</code>. Never <code>null</code>.
+   */
+  @Nonnull
+  public String getBaseURL ()
+  {
+    return "http://127.0.0.1:" + m_aServer.getAddress ().getPort ();
+  }
+
+  /**
+   * @param nLatencyMillis
+   *        Artificial latency added to each call. Must be &ge; 0.
+   * @return this for chaining
+   */
+  @Nonnull
+  public MockToopConnector setLatencyMillis (@Nonnegative final long nLatencyMillis)
+  {
+    ValueEnforcer.isGE0 (nLatencyMillis, "LatencyMillis");
+    m_nLatencyMillis = nLatencyMillis;
+    return this;
+  }
+
+  /**
+   * @param dErrorRate
+   *        The share of calls that are answered with HTTP 500. Between 0 and
+   *        1.
+   * @return this for chaining
+   */
+  @Nonnull
+  public MockToopConnector setErrorRate (final double dErrorRate)
+  {
+    ValueEnforcer.isBetweenInclusive (dErrorRate, "ErrorRate", 0d, 1d);
+    m_dErrorRate = dErrorRate;
+    return this;
+  }
+
+  /**
+   * @param dMaxPerSecond
+   *        Maximum number of calls per second. Calls above are answered with
+   *        HTTP 503. Values &le; 0 mean unlimited.
+   * @return this for chaining
+   */
+  @Nonnull
+  public MockToopConnector setMaxThroughputPerSecond (final double dMaxPerSecond)
+  {
+    m_aThroughput = dMaxPerSecond > 0 ? new TokenBucket (dMaxPerSecond, (int) Math.ceil (dMaxPerSecond)) : null;
+    return this;
+  }
+
+  /**
+   * @param aSearchResponse
+   *        The XML to be returned by the search endpoints. May not be
+   *        <code>null</code>.
+   * @return this for chaining
+   */
+  @Nonnull
+  public MockToopConnector setSearchResponse (@Nonnull final byte [] aSearchResponse)
+  {
+    ValueEnforcer.notNull (aSearchResponse, "SearchResponse");
+    m_aSearchResponse = aSearchResponse;
+    return this;
+  }
+
+  public long getReceivedCount ()
+  {
+    return m_aReceivedCount.get ();
+  }
+
+  public long getReceivedBytes ()
+  {
+    return m_aReceivedBytes.get ();
+  }
+
+  public long getErrorCount ()
+  {
+    return m_aErrorCount.get ();
+  }
+
+  public long getThrottledCount ()
+  {
+    return m_aThrottledCount.get ();
+  }
+
+  /**
+   * Apply throughput limit, latency and error rate.
+   *
+   * @return <code>null</code> to continue or the HTTP status code to respond
+   *         with.
+   */
+  @Nullable
+  private Integer _simulate ()
+  {
+    final TokenBucket aThroughput = m_aThroughput;
+    if (aThroughput != null && !aThroughput.tryConsume ())
+    {
+      m_aThrottledCount.incrementAndGet ();
+      return Integer.valueOf (CHttp.HTTP_SERVICE_UNAVAILABLE);
+    }
+
+    if (m_nLatencyMillis > 0)
+      try
+      {
+        Thread.sleep (m_nLatencyMillis);
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+      }
+
+    if (m_dErrorRate > 0 && ThreadLocalRandom.current ().nextDouble () < m_dErrorRate)
+    {
+      m_aErrorCount.incrementAndGet ();
+      return Integer.valueOf (CHttp.HTTP_INTERNAL_SERVER_ERROR);
+    }
+    return null;
+  }
+
+  private static void _respond (@Nonnull final HttpExchange aExchange,
+                                final int nStatus,
+                                @Nullable final byte [] aBody) throws IOException
+  {
+    if (aBody == null || aBody.length == 0)
+      aExchange.sendResponseHeaders (nStatus, -1);
+    else
+    {
+      aExchange.getResponseHeaders ().set ("Content-Type", "application/xml");
+      aExchange.sendResponseHeaders (nStatus, aBody.length);
+      try (final OutputStream aOS = aExchange.getResponseBody ())
+      {
+        aOS.write (aBody);
+      }
+    }
+    aExchange.close ();
+  }
+
+  private void _handleMessage (@Nonnull final HttpExchange aExchange) throws IOException
+  {
+    if (!"POST".equals (aExchange.getRequestMethod ()))
+    {
+      _respond (aExchange, CHttp.HTTP_METHOD_NOT_ALLOWED, null);
+      return;
+    }
+
+    // Consume the body completely
+    long nBytes = 0;
+    try (final InputStream aIS = aExchange.getRequestBody ())
+    {
+      final byte [] aBuf = new byte [16 * 1024];
+      int nRead;
+      while ((nRead = aIS.read (aBuf)) >= 0)
+        nBytes += nRead;
+    }
+
+    final Integer aStatus = _simulate ();
+    if (aStatus == null)
+    {
+      m_aReceivedCount.incrementAndGet ();
+      m_aReceivedBytes.addAndGet (nBytes);
+    }
+    _respond (aExchange, aStatus != null ? aStatus.intValue () : CHttp.HTTP_NO_CONTENT, null);
+  }
+
+  private void _handleSearch (@Nonnull final HttpExchange aExchange) throws IOException
+  {
+    if (!"GET".equals (aExchange.getRequestMethod ()))
+    {
+      _respond (aExchange, CHttp.HTTP_METHOD_NOT_ALLOWED, null);
+      return;
+    }
+
+    final Integer aStatus = _simulate ();
+    if (aStatus == null)
+      _respond (aExchange, CHttp.HTTP_OK, m_aSearchResponse);
+    else
+      _respond (aExchange, aStatus.intValue (), null);
+  }
+
+  public void close ()
+  {
+    m_aServer.stop (0);
+    ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aExecutor);
+  }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.mock;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+
+import com.helger.asic.SignatureHelper;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+
+import eu.toop.commons.codelist.EPredefinedDocumentTypeIdentifier;
+import eu.toop.commons.codelist.EPredefinedProcessIdentifier;
+import eu.toop.commons.dataexchange.v140.TDEDataRequestSubjectType;
+import eu.toop.commons.dataexchange.v140.TDELegalPersonType;
+import eu.toop.commons.dataexchange.v140.TDETOOPRequestType;
+import eu.toop.commons.dataexchange.v140.TDETOOPResponseType;
+import eu.toop.commons.error.ToopErrorException;
+import eu.toop.commons.exchange.ToopMessageBuilder140;
+import eu.toop.commons.jaxb.ToopXSDHelper140;
+import eu.toop.iface.ToopInterfaceConfig;
+import oasis.names.specification.ubl.schema.xsd.unqualifieddatatypes_21.IdentifierType;
+
+/**
+ * Generator for synthetic TOOP messages and ASiC containers for tests.
+ *
+ * @author Philip Helger
+ */
+public final class MockToopMessages
+{
+  private MockToopMessages ()
+  {}
+
+  @Nonnull
+  public static SignatureHelper createSignatureHelper ()
+  {
+    return new SignatureHelper (ToopInterfaceConfig.getKeystoreType (),
+                                ToopInterfaceConfig.getKeystorePath (),
+                                ToopInterfaceConfig.getKeystorePassword (),
+                                ToopInterfaceConfig.getKeystoreKeyAlias (),
+                                ToopInterfaceConfig.getKeystoreKeyPassword ());
+  }
+
+  /**
+   * @param nIndex
+   *        Index to make the request unique
+   * @return A new mock request. Never <code>null</code>.
+   */
+  @Nonnull
+  public static TDETOOPRequestType createRequest (final int nIndex)
+  {
+    return createRequest (nIndex, "Mock company " + nIndex);
+  }
+
+  /**
+   * @param nIndex
+   *        Index to make the request unique
+   * @param sLegalName
+   *        The legal name of the company. Can be used to create requests of
+   *        different sizes.
+   * @return A new mock request. Never <code>null</code>.
+   */
+  @Nonnull
+  public static TDETOOPRequestType createRequest (final int nIndex, @Nonnull final String sLegalName)
+  {
+    final TDEDataRequestSubjectType aSubject = new TDEDataRequestSubjectType ();
+    aSubject.setDataRequestSubjectTypeCode (ToopXSDHelper140.createCode ("LE"));
+    final TDELegalPersonType aLE = new TDELegalPersonType ();
+    aLE.setLegalPersonUniqueIdentifier (ToopXSDHelper140.createIdentifierWithLOA ("SV/SV/" + (5591674170L + nIndex)));
+    aLE.setLegalName (ToopXSDHelper140.createTextWithLOA (sLegalName));
+    aSubject.setLegalPerson (aLE);
+
+    final IdentifierType aSenderID = new IdentifierType ();
+    aSenderID.setSchemeID ("iso6523-actorid-upis");
+    aSenderID.setValue ("9999:freedonia-dc");
+
+    // Any document type and process is fine for the tests
+    return ToopMessageBuilder140.createMockRequest (aSubject,
+                                                    "SV",
+                                                    "SV",
+                                                    aSenderID,
+                                                    EPredefinedDocumentTypeIdentifier.values ()[0],
+                                                    EPredefinedProcessIdentifier.values ()[0],
+                                                    null);
+  }
+
+  /**
+   * @param aRequest
+   *        The request to answer
+   * @return A new mock response to the provided request. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static TDETOOPResponseType createResponse (@Nonnull final TDETOOPRequestType aRequest)
+  {
+    return ToopMessageBuilder140.createResponse (aRequest);
+  }
+
+  /**
+   * @param aRequest
+   *        The request to wrap
+   * @return The signed ASiC container bytes. Never <code>null</code>.
+   * @throws IOException
+   *         on I/O error
+   * @throws ToopErrorException
+   *         on error
+   */
+  @Nonnull
+  public static byte [] createRequestAsic (@Nonnull final TDETOOPRequestType aRequest) throws IOException,
+                                                                                           ToopErrorException
+  {
+    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
+    {
+      ToopMessageBuilder140.createRequestMessageAsic (aRequest, aBAOS, createSignatureHelper ());
+      return aBAOS.toByteArray ();
+    }
+  }
+
+  /**
+   * @param aResponse
+   *        The response to wrap
+   * @return The signed ASiC container bytes. Never <code>null</code>.
+   * @throws IOException
+   *         on I/O error
+   * @throws ToopErrorException
+   *         on error
+   */
+  @Nonnull
+  public static byte [] createResponseAsic (@Nonnull final TDETOOPResponseType aResponse) throws IOException,
+                                                                                               ToopErrorException
+  {
+    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
+    {
+      ToopMessageBuilder140.createResponseMessageAsic (aResponse, aBAOS, createSignatureHelper (), null);
+      return aBAOS.toByteArray ();
+    }
+  }
+}
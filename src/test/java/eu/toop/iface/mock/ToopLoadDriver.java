@@ -0,0 +1,247 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.mock;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.commons.timing.StopWatch;
+
+/**
+ * A simple closed-loop load driver. It executes a task a fixed number of times
+ * with a fixed concurrency and reports latency percentiles, throughput and
+ * heap usage.
+ *
+ * @author Philip Helger
+ */
+public final class ToopLoadDriver
+{
+  /**
+   * A single unit of work. The index is the number of the execution.
+   */
+  @FunctionalInterface
+  public interface ILoadTask
+  {
+    void execute (int nIndex) throws Exception;
+  }
+
+  /**
+   * The result of a load run.
+   */
+  public static final class Result
+  {
+    private final String m_sName;
+    private final int m_nCount;
+    private final int m_nErrors;
+    private final long m_nDurationMillis;
+    private final long [] m_aSortedLatencyNanos;
+    private final long m_nPeakHeapBytes;
+    private final long m_nRetainedHeapBytes;
+
+    Result (@Nonnull final String sName,
+            final int nCount,
+            final int nErrors,
+            final long nDurationMillis,
+            @Nonnull final long [] aSortedLatencyNanos,
+            final long nPeakHeapBytes,
+            final long nRetainedHeapBytes)
+    {
+      m_sName = sName;
+      m_nCount = nCount;
+      m_nErrors = nErrors;
+      m_nDurationMillis = nDurationMillis;
+      m_aSortedLatencyNanos = aSortedLatencyNanos;
+      m_nPeakHeapBytes = nPeakHeapBytes;
+      m_nRetainedHeapBytes = nRetainedHeapBytes;
+    }
+
+    public int getCount ()
+    {
+      return m_nCount;
+    }
+
+    public int getErrors ()
+    {
+      return m_nErrors;
+    }
+
+    public double getThroughputPerSecond ()
+    {
+      return m_nDurationMillis == 0 ? 0 : m_nCount * 1000d / m_nDurationMillis;
+    }
+
+    /**
+     * @param dPercentile
+     *        Percentile between 0 and 100.
+     * @return The latency in milliseconds.
+     */
+    public double getLatencyMillis (final double dPercentile)
+    {
+      if (m_aSortedLatencyNanos.length == 0)
+        return 0;
+      final int nIndex = (int) Math.ceil (dPercentile / 100d * m_aSortedLatencyNanos.length) - 1;
+      return m_aSortedLatencyNanos[Math.max (0, Math.min (nIndex, m_aSortedLatencyNanos.length - 1))] / 1_000_000d;
+    }
+
+    public long getPeakHeapBytes ()
+    {
+      return m_nPeakHeapBytes;
+    }
+
+    public long getRetainedHeapBytes ()
+    {
+      return m_nRetainedHeapBytes;
+    }
+
+    @Nonnull
+    public String getAsReport ()
+    {
+      return String.format (Locale.ROOT,
+                            "%s: %d msgs, %d errors, %.1f msg/s, latency ms p50=%.2f p90=%.2f p99=%.2f max=%.2f, peak heap %d MB, retained heap %d KB",
+                            m_sName,
+                            Integer.valueOf (m_nCount),
+                            Integer.valueOf (m_nErrors),
+                            Double.valueOf (getThroughputPerSecond ()),
+                            Double.valueOf (getLatencyMillis (50)),
+                            Double.valueOf (getLatencyMillis (90)),
+                            Double.valueOf (getLatencyMillis (99)),
+                            Double.valueOf (getLatencyMillis (100)),
+                            Long.valueOf (m_nPeakHeapBytes / (1024 * 1024)),
+                            Long.valueOf (m_nRetainedHeapBytes / 1024));
+    }
+
+    @Override
+    public String toString ()
+    {
+      return new ToStringGenerator (this).append ("Name", m_sName)
+                                         .append ("Count", m_nCount)
+                                         .append ("Errors", m_nErrors)
+                                         .append ("DurationMillis", m_nDurationMillis)
+                                         .getToString ();
+    }
+  }
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (ToopLoadDriver.class);
+
+  private ToopLoadDriver ()
+  {}
+
+  private static long _getUsedHeap ()
+  {
+    System.gc ();
+    return ManagementFactory.getMemoryMXBean ().getHeapMemoryUsage ().getUsed ();
+  }
+
+  /**
+   * Run a load test.
+   *
+   * @param sName
+   *        Name of the scenario for reporting
+   * @param nCount
+   *        Total number of executions. Must be &gt; 0.
+   * @param nConcurrency
+   *        Number of parallel executions. Must be &gt; 0.
+   * @param aTask
+   *        The task to execute.
+   * @return The result and never <code>null</code>.
+   * @throws InterruptedException
+   *         if interrupted
+   */
+  @Nonnull
+  public static Result run (@Nonnull @Nonempty final String sName,
+                            @Nonnegative final int nCount,
+                            @Nonnegative final int nConcurrency,
+                            @Nonnull final ILoadTask aTask) throws InterruptedException
+  {
+    ValueEnforcer.notEmpty (sName, "Name");
+    ValueEnforcer.isGT0 (nCount, "Count");
+    ValueEnforcer.isGT0 (nConcurrency, "Concurrency");
+    ValueEnforcer.notNull (aTask, "Task");
+
+    final long [] aLatencies = new long [nCount];
+    final AtomicInteger aNext = new AtomicInteger ();
+    final AtomicInteger aErrors = new AtomicInteger ();
+    final AtomicReference <Exception> aFirstError = new AtomicReference <> ();
+
+    final long nHeapBefore = _getUsedHeap ();
+    for (final MemoryPoolMXBean aPool : ManagementFactory.getMemoryPoolMXBeans ())
+      if (aPool.getType () == MemoryType.HEAP)
+        aPool.resetPeakUsage ();
+
+    final ExecutorService aES = Executors.newFixedThreadPool (nConcurrency);
+    final StopWatch aSW = StopWatch.createdStarted ();
+    for (int i = 0; i < nConcurrency; ++i)
+      aES.execute ( () -> {
+        int nIndex;
+        while ((nIndex = aNext.getAndIncrement ()) < nCount)
+        {
+          final long nStart = System.nanoTime ();
+          try
+          {
+            aTask.execute (nIndex);
+          }
+          catch (final Exception ex)
+          {
+            aErrors.incrementAndGet ();
+            aFirstError.compareAndSet (null, ex);
+          }
+          aLatencies[nIndex] = System.nanoTime () - nStart;
+        }
+      });
+    aES.shutdown ();
+    aES.awaitTermination (1, TimeUnit.HOURS);
+    final long nDurationMillis = aSW.stopAndGetMillis ();
+    ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (aES);
+
+    long nPeakHeap = 0;
+    for (final MemoryPoolMXBean aPool : ManagementFactory.getMemoryPoolMXBeans ())
+      if (aPool.getType () == MemoryType.HEAP)
+        nPeakHeap += aPool.getPeakUsage ().getUsed ();
+    final long nRetainedHeap = Math.max (0, _getUsedHeap () - nHeapBefore);
+
+    if (aFirstError.get () != null)
+      LOGGER.warn ("First error of '" + sName + "'", aFirstError.get ());
+
+    Arrays.sort (aLatencies);
+    final Result ret = new Result (sName,
+                                   nCount,
+                                   aErrors.get (),
+                                   nDurationMillis,
+                                   aLatencies,
+                                   nPeakHeap,
+                                   nRetainedHeap);
+    LOGGER.info (ret.getAsReport ());
+    return ret;
+  }
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.mock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.wrapper.Wrapper;
+import com.helger.httpclient.response.ResponseHandlerByteArray;
+
+import eu.toop.commons.dataexchange.v140.TDETOOPRequestType;
+import eu.toop.commons.exchange.ToopRequestWithAttachments140;
+import eu.toop.commons.exchange.ToopResponseWithAttachments140;
+import eu.toop.iface.IToopInterfaceDC;
+import eu.toop.iface.IToopInterfaceDP;
+import eu.toop.iface.ToopInterfaceClient;
+import eu.toop.iface.ToopInterfaceManager;
+import eu.toop.iface.mock.MockServletHelper.MockResponse;
+import eu.toop.iface.servlet.ToDCServlet;
+import eu.toop.iface.servlet.ToDPServlet;
+import eu.toop.iface.util.HttpClientInvoker;
+
+/**
+ * Load tests against the {@link MockToopConnector} and the receiving servlets.
+ * The load scenarios are ignored by default and meant to be run manually
+ * before releases for capacity planning.
+ *
+ * @author Philip Helger
+ */
+public final class ToopLoadTest
+{
+  private static final int MESSAGES = 2_000;
+  private static final int CONCURRENCY = 32;
+
+  @Test
+  public void testMockConnectorSmoke () throws Exception
+  {
+    try (final MockToopConnector aTC = new MockToopConnector (2))
+    {
+      HttpClientInvoker.httpClientCallNoResponse (aTC.getBaseURL () + "/from-dc", new byte [] { 1, 2, 3 });
+      assertEquals (1, aTC.getReceivedCount ());
+      assertEquals (3, aTC.getReceivedBytes ());
+
+      final Wrapper <byte []> aResult = new Wrapper <> ();
+      HttpClientInvoker.httpClientCallGet (aTC.getBaseURL () + "/search-dp-by-country/SV",
+                                           new ResponseHandlerByteArray (),
+                                           aResult::set);
+      assertNotNull (aResult.get ());
+      assertTrue (aResult.get ().length > 0);
+    }
+  }
+
+  @Test
+  @Ignore ("Load test - run manually")
+  public void testLoadClientSend () throws Exception
+  {
+    // Pre-create the requests to measure sending only
+    final ICommonsList <TDETOOPRequestType> aRequests = new CommonsArrayList <> ();
+    for (int i = 0; i < 100; ++i)
+      aRequests.add (MockToopMessages.createRequest (i));
+
+    try (final MockToopConnector aTC = new MockToopConnector (CONCURRENCY))
+    {
+      aTC.setLatencyMillis (20).setErrorRate (0.01);
+      final String sURL = aTC.getBaseURL () + "/from-dc";
+      ToopLoadDriver.run ("client-send-request",
+                          MESSAGES,
+                          CONCURRENCY,
+                          i -> ToopInterfaceClient.sendRequestToToopConnector (aRequests.get (i % aRequests.size ()),
+                                                                               sURL));
+    }
+  }
+
+  @Test
+  @Ignore ("Load test - run manually")
+  public void testLoadServlets () throws Exception
+  {
+    final TDETOOPRequestType aRequest = MockToopMessages.createRequest (0);
+    final byte [] aRequestAsic = MockToopMessages.createRequestAsic (aRequest);
+    final byte [] aResponseAsic = MockToopMessages.createResponseAsic (MockToopMessages.createResponse (aRequest));
+
+    ToopInterfaceManager.setInterfaceDC (new IToopInterfaceDC ()
+    {
+      public void onToopResponse (final ToopResponseWithAttachments140 aResponse)
+      {}
+    });
+    ToopInterfaceManager.setInterfaceDP (new IToopInterfaceDP ()
+    {
+      public void onToopRequest (final ToopRequestWithAttachments140 aReq)
+      {}
+
+      public void onToopErrorResponse (final ToopResponseWithAttachments140 aResponse)
+      {}
+    });
+    try
+    {
+      final ToDPServlet aToDP = new ToDPServlet ();
+      ToopLoadDriver.run ("servlet-to-dp", MESSAGES, CONCURRENCY, i -> {
+        final MockResponse aState = new MockResponse ();
+        aToDP.service (MockServletHelper.createPost ("/to-dp", "127.0.0.1", aRequestAsic, (Map <String, String>) null),
+                       MockServletHelper.createResponse (aState));
+        if (aState.getStatus () >= 300)
+          throw new IllegalStateException ("HTTP " + aState.getStatus ());
+      });
+
+      final ToDCServlet aToDC = new ToDCServlet ();
+      ToopLoadDriver.run ("servlet-to-dc", MESSAGES, CONCURRENCY, i -> {
+        final MockResponse aState = new MockResponse ();
+        aToDC.service (MockServletHelper.createPost ("/to-dc", "127.0.0.1", aResponseAsic, (Map <String, String>) null),
+                       MockServletHelper.createResponse (aState));
+        if (aState.getStatus () >= 300)
+          throw new IllegalStateException ("HTTP " + aState.getStatus ());
+      });
+    }
+    finally
+    {
+      ToopInterfaceManager.setInterfaceDC (null);
+      ToopInterfaceManager.setInterfaceDP (null);
+    }
+  }
+
+  @Test
+  @Ignore ("Load test - run manually")
+  public void testLoadSearch () throws Exception
+  {
+    try (final MockToopConnector aTC = new MockToopConnector (CONCURRENCY))
+    {
+      aTC.setLatencyMillis (50);
+      final String sURL = aTC.getBaseURL () + "/search-dp-by-country/SV";
+      ToopLoadDriver.run ("search-by-country", MESSAGES, CONCURRENCY, i -> {
+        final Wrapper <byte []> aResult = new Wrapper <> ();
+        HttpClientInvoker.httpClientCallGet (sURL, new ResponseHandlerByteArray (), aResult::set);
+      });
+    }
+  }
+}
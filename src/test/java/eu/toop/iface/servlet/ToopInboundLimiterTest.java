@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import eu.toop.iface.servlet.ToopInboundLimiter.EAdmission;
+import eu.toop.iface.servlet.ToopInboundLimiter.Permit;
+
+/**
+ * Test class for class {@link ToopInboundLimiter}.
+ *
+ * @author Philip Helger
+ */
+public final class ToopInboundLimiterTest
+{
+  @Test
+  public void testRateLimitPerSource ()
+  {
+    // 1 per second with a burst of 2
+    final ToopInboundLimiter aLimiter = new ToopInboundLimiter (1, 2, 0, 100);
+    try (final Permit aPermit = aLimiter.tryAcquire ("a"))
+    {
+      assertEquals (EAdmission.ACCEPTED, aPermit.getAdmission ());
+    }
+    try (final Permit aPermit = aLimiter.tryAcquire ("a"))
+    {
+      assertEquals (EAdmission.ACCEPTED, aPermit.getAdmission ());
+    }
+    try (final Permit aPermit = aLimiter.tryAcquire ("a"))
+    {
+      assertEquals (EAdmission.RATE_LIMITED, aPermit.getAdmission ());
+      assertTrue (aPermit.getRetryAfterMillis () > 0);
+    }
+
+    // Other sources are not affected
+    try (final Permit aPermit = aLimiter.tryAcquire ("b"))
+    {
+      assertEquals (EAdmission.ACCEPTED, aPermit.getAdmission ());
+    }
+    assertEquals (2, aLimiter.getTrackedSourceCount ());
+  }
+
+  @Test
+  public void testChargeBatchParts ()
+  {
+    // 1 per second with a burst of 5
+    final ToopInboundLimiter aLimiter = new ToopInboundLimiter (1, 5, 0, 100);
+    try (final Permit aPermit = aLimiter.tryAcquire ("a"))
+    {
+      assertTrue (aPermit.isAccepted ());
+      // A batch of 10 messages uses up the burst and more
+      aPermit.chargeAdditional (9);
+    }
+    try (final Permit aPermit = aLimiter.tryAcquire ("a"))
+    {
+      assertEquals (EAdmission.RATE_LIMITED, aPermit.getAdmission ());
+      // The debt of 5 tokens must be refilled first
+      assertTrue (aPermit.getRetryAfterMillis () > 4000);
+    }
+  }
+
+  @Test
+  public void testEvictLeastRecentlySeenSource ()
+  {
+    // 1 per second with a burst of 1, at most 2 sources
+    final ToopInboundLimiter aLimiter = new ToopInboundLimiter (1, 1, 0, 2);
+    try (final Permit aPermit = aLimiter.tryAcquire ("a"))
+    {
+      assertTrue (aPermit.isAccepted ());
+    }
+    try (final Permit aPermit = aLimiter.tryAcquire ("b"))
+    {
+      assertTrue (aPermit.isAccepted ());
+    }
+    // "a" was seen more recently than "b"
+    try (final Permit aPermit = aLimiter.tryAcquire ("a"))
+    {
+      assertEquals (EAdmission.RATE_LIMITED, aPermit.getAdmission ());
+    }
+
+    // A new source evicts "b" and gets its own bucket
+    try (final Permit aPermit = aLimiter.tryAcquire ("c"))
+    {
+      assertTrue (aPermit.isAccepted ());
+    }
+    try (final Permit aPermit = aLimiter.tryAcquire ("c"))
+    {
+      assertEquals (EAdmission.RATE_LIMITED, aPermit.getAdmission ());
+    }
+    assertEquals (2, aLimiter.getTrackedSourceCount ());
+
+    // "a" is still limited
+    try (final Permit aPermit = aLimiter.tryAcquire ("a"))
+    {
+      assertEquals (EAdmission.RATE_LIMITED, aPermit.getAdmission ());
+    }
+  }
+
+  @Test
+  public void testMaxInFlight ()
+  {
+    final ToopInboundLimiter aLimiter = new ToopInboundLimiter (0, 0, 1, 100);
+    try (final Permit aPermit1 = aLimiter.tryAcquire ("a"))
+    {
+      assertTrue (aPermit1.isAccepted ());
+      assertEquals (1, aLimiter.getInFlightCount ());
+      try (final Permit aPermit2 = aLimiter.tryAcquire ("b"))
+      {
+        assertEquals (EAdmission.OVERLOADED, aPermit2.getAdmission ());
+      }
+      assertEquals (1, aLimiter.getInFlightCount ());
+    }
+    assertEquals (0, aLimiter.getInFlightCount ());
+  }
+}
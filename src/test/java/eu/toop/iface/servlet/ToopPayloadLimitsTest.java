@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.servlet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+
+import eu.toop.iface.util.PooledByteArrayOutputStream;
+import eu.toop.iface.util.ToopBufferPool;
+
+/**
+ * Test class for class {@link ToopPayloadLimits}.
+ *
+ * @author Philip Helger
+ */
+public final class ToopPayloadLimitsTest
+{
+  @Nonnull
+  private static byte [] _createZip (final int nEntries, final int nEntrySize) throws IOException
+  {
+    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+         final ZipOutputStream aZOS = new ZipOutputStream (aBAOS))
+    {
+      final byte [] aData = new byte [nEntrySize];
+      for (int i = 0; i < nEntries; ++i)
+      {
+        aZOS.putNextEntry (new ZipEntry ("entry" + i));
+        aZOS.write (aData);
+        aZOS.closeEntry ();
+      }
+      aZOS.finish ();
+      return aBAOS.toByteArray ();
+    }
+  }
+
+  private static void _assertRejected (@Nonnull final ToopPayloadLimits aLimits,
+                                       @Nonnull final byte [] aZip,
+                                       @Nonnull final ToopPayloadLimits.EViolation eExpected)
+  {
+    try
+    {
+      aLimits.checkZipArchive (aZip, 0, aZip.length);
+      fail ();
+    }
+    catch (final ToopPayloadLimitException ex)
+    {
+      assertEquals (eExpected, ex.getViolation ());
+    }
+  }
+
+  @Test
+  public void testReadBody () throws IOException
+  {
+    final ToopPayloadLimits aLimits = new ToopPayloadLimits (100, 0, 0, 0);
+    final ToopBufferPool aPool = new ToopBufferPool (1024);
+
+    final byte [] aSmall = "small enough".getBytes (StandardCharsets.UTF_8);
+    try (final PooledByteArrayOutputStream aBody = aLimits.readBody (new NonBlockingByteArrayInputStream (aSmall),
+                                                                     -1,
+                                                                     aPool,
+                                                                     16))
+    {
+      assertArrayEquals (aSmall, aBody.toByteArray ());
+    }
+
+    // Declared too large
+    try
+    {
+      aLimits.readBody (new NonBlockingByteArrayInputStream (aSmall), 101, aPool, 16);
+      fail ();
+    }
+    catch (final ToopPayloadLimitException ex)
+    {
+      assertEquals (ToopPayloadLimits.EViolation.TOTAL_BYTES, ex.getViolation ());
+    }
+
+    // Undeclared but too large
+    try
+    {
+      aLimits.readBody (new NonBlockingByteArrayInputStream (new byte [101]), -1, aPool, 16);
+      fail ();
+    }
+    catch (final ToopPayloadLimitException ex)
+    {
+      assertEquals (ToopPayloadLimits.EViolation.TOTAL_BYTES, ex.getViolation ());
+    }
+  }
+
+  @Test
+  public void testCheckZipArchive () throws IOException
+  {
+    // Regular archive
+    final byte [] aRegular = _createZip (3, 100);
+    new ToopPayloadLimits (0, 1000, 10, 100).checkZipArchive (aRegular, 0, aRegular.length);
+
+    // Too many entries
+    _assertRejected (new ToopPayloadLimits (0, 1000, 2, 100), aRegular, ToopPayloadLimits.EViolation.ENTRY_COUNT);
+
+    // Single entry too large
+    _assertRejected (new ToopPayloadLimits (0, 50, 10, 100), aRegular, ToopPayloadLimits.EViolation.ENTRY_BYTES);
+
+    // Highly compressible content
+    final byte [] aBomb = _createZip (1, 1024 * 1024);
+    _assertRejected (new ToopPayloadLimits (0, 0, 0, 100), aBomb, ToopPayloadLimits.EViolation.COMPRESSION_RATIO);
+
+    // Not a ZIP at all is left to the parser
+    final byte [] aNoZip = "no zip".getBytes (StandardCharsets.UTF_8);
+    new ToopPayloadLimits (0, 1, 1, 1).checkZipArchive (aNoZip, 0, aNoZip.length);
+  }
+}
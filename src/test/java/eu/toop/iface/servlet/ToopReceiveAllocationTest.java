@@ -0,0 +1,295 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.servlet;
+
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServlet;
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.timing.StopWatch;
+
+import eu.toop.commons.dataexchange.v140.TDETOOPRequestType;
+import eu.toop.commons.exchange.ToopRequestWithAttachments140;
+import eu.toop.commons.exchange.ToopResponseWithAttachments140;
+import eu.toop.iface.IToopInterfaceDC;
+import eu.toop.iface.IToopInterfaceDP;
+import eu.toop.iface.ToopInterfaceManager;
+import eu.toop.iface.codec.ToopAsicMessageCodec;
+import eu.toop.iface.codec.ToopMessageBatch;
+import eu.toop.iface.mock.MockServletHelper;
+import eu.toop.iface.mock.MockServletHelper.MockResponse;
+import eu.toop.iface.mock.MockToopMessages;
+
+/**
+ * Allocation benchmark and regression gate for the receive path of
+ * {@link ToDPServlet} and {@link ToDCServlet}. Synthetic ASiC bodies of
+ * different size classes are posted to the servlets with mocked request and
+ * response objects, and the bytes allocated by the receiving thread are
+ * measured via {@link com.sun.management.ThreadMXBean}. Callbacks are invoked
+ * synchronously by default, so they are part of the measurement.<br>
+ * By default the values are only logged, as the allocation depends on the JVM
+ * and the baselines below are estimates that still need to be replaced by
+ * measured values. With <code>-D{@value #SYSPROP_GATE}=true</code> the test
+ * fails if a message allocates more than the baseline of its case plus
+ * {@link #MARGIN_PERCENT} percent. Update the baseline from the logged values
+ * when a change intentionally moves the allocation. If one of the system
+ * properties {@link #SYSPROP_MAX_BASE_BYTES} and
+ * {@link #SYSPROP_MAX_BYTES_PER_BODY_BYTE} is set, the gate is enabled and the
+ * limit of all cases is <code>base + factor * body size</code> instead. The
+ * test is skipped on JVMs that cannot measure allocations per thread.
+ *
+ * @author Philip Helger
+ */
+public final class ToopReceiveAllocationTest
+{
+  /** System property to fail the test if a limit is exceeded */
+  public static final String SYSPROP_GATE = "toop.alloc.gate";
+  /** System property for the fixed number of bytes allowed per message */
+  public static final String SYSPROP_MAX_BASE_BYTES = "toop.alloc.maxbasebytes";
+  /** System property for the number of bytes allowed per byte of body */
+  public static final String SYSPROP_MAX_BYTES_PER_BODY_BYTE = "toop.alloc.maxbytesperbodybyte";
+  /** Allowed allocation above the baseline in percent */
+  public static final int MARGIN_PERCENT = 25;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (ToopReceiveAllocationTest.class);
+
+  /** Baseline per message of the batched small class */
+  private static final long BASELINE_BATCH_BYTES = 576L * 1024;
+  private static final int WARMUP_MESSAGES = 30;
+  private static final int MEASURED_MESSAGES = 50;
+  private static final int BATCH_SIZE = 10;
+
+  /**
+   * Size classes by the length of the padding in the message.
+   */
+  private enum ESizeClass
+  {
+    SMALL (0, 640L * 1024, 704L * 1024),
+    MEDIUM (16 * 1024, 896L * 1024, 1024L * 1024),
+    LARGE (256 * 1024, 4096L * 1024, 4608L * 1024);
+
+    private final int m_nPaddingChars;
+    private final long m_nToDPBaselineBytes;
+    private final long m_nToDCBaselineBytes;
+
+    ESizeClass (@Nonnegative final int nPaddingChars,
+                @Nonnegative final long nToDPBaselineBytes,
+                @Nonnegative final long nToDCBaselineBytes)
+    {
+      m_nPaddingChars = nPaddingChars;
+      m_nToDPBaselineBytes = nToDPBaselineBytes;
+      m_nToDCBaselineBytes = nToDCBaselineBytes;
+    }
+
+    @Nonnull
+    TDETOOPRequestType createRequest ()
+    {
+      // Random letters, so that the ZIP compression does not hide the size
+      final Random aRandom = new Random (m_nPaddingChars);
+      final StringBuilder aSB = new StringBuilder ("Mock company ");
+      for (int i = 0; i < m_nPaddingChars; ++i)
+        aSB.append ((char) ('a' + aRandom.nextInt (26)));
+      return MockToopMessages.createRequest (0, aSB.toString ());
+    }
+  }
+
+  private static com.sun.management.ThreadMXBean s_aThreadBean;
+
+  @BeforeClass
+  public static void beforeClass ()
+  {
+    final ThreadMXBean aBean = ManagementFactory.getThreadMXBean ();
+    if (aBean instanceof com.sun.management.ThreadMXBean)
+    {
+      final com.sun.management.ThreadMXBean aSunBean = (com.sun.management.ThreadMXBean) aBean;
+      if (aSunBean.isThreadAllocatedMemorySupported ())
+      {
+        if (!aSunBean.isThreadAllocatedMemoryEnabled ())
+          aSunBean.setThreadAllocatedMemoryEnabled (true);
+        s_aThreadBean = aSunBean;
+      }
+    }
+
+    ToopInterfaceManager.setInterfaceDC (new IToopInterfaceDC ()
+    {
+      public void onToopResponse (final ToopResponseWithAttachments140 aResponse)
+      {}
+    });
+    ToopInterfaceManager.setInterfaceDP (new IToopInterfaceDP ()
+    {
+      public void onToopRequest (final ToopRequestWithAttachments140 aRequest)
+      {}
+
+      public void onToopErrorResponse (final ToopResponseWithAttachments140 aResponse)
+      {}
+    });
+  }
+
+  @AfterClass
+  public static void afterClass ()
+  {
+    ToopInterfaceManager.setInterfaceDC (null);
+    ToopInterfaceManager.setInterfaceDP (null);
+  }
+
+  private static long _getSystemProperty (@Nonnull final String sName, final long nDefault)
+  {
+    final String sValue = System.getProperty (sName);
+    return sValue == null ? nDefault : Long.parseLong (sValue.trim ());
+  }
+
+  private static boolean _isGateEnabled ()
+  {
+    return Boolean.getBoolean (SYSPROP_GATE) ||
+           System.getProperty (SYSPROP_MAX_BASE_BYTES) != null ||
+           System.getProperty (SYSPROP_MAX_BYTES_PER_BODY_BYTE) != null;
+  }
+
+  private static long _getLimit (@Nonnegative final long nBaselineBytes, @Nonnegative final long nBodyBytes)
+  {
+    if (System.getProperty (SYSPROP_MAX_BASE_BYTES) != null ||
+        System.getProperty (SYSPROP_MAX_BYTES_PER_BODY_BYTE) != null)
+    {
+      // Explicitly overridden
+      return _getSystemProperty (SYSPROP_MAX_BASE_BYTES, 0) +
+             _getSystemProperty (SYSPROP_MAX_BYTES_PER_BODY_BYTE, 0) * nBodyBytes;
+    }
+    return nBaselineBytes * (100 + MARGIN_PERCENT) / 100;
+  }
+
+  private static void _post (@Nonnull final HttpServlet aServlet,
+                             @Nonnull final String sPath,
+                             @Nonnull final byte [] aBody,
+                             @Nullable final Map <String, String> aHeaders) throws Exception
+  {
+    final MockResponse aState = new MockResponse ();
+    aServlet.service (MockServletHelper.createPost (sPath, "127.0.0.1", aBody, aHeaders),
+                      MockServletHelper.createResponse (aState));
+    if (aState.getStatus () >= 300)
+      throw new IllegalStateException ("HTTP " + aState.getStatus () + " on " + sPath + ": " + aState.getBodyAsString ());
+  }
+
+  /**
+   * Post the body repeatedly and check the allocated bytes per message.
+   */
+  private static void _measure (@Nonnull final String sName,
+                                @Nonnull final HttpServlet aServlet,
+                                @Nonnull final String sPath,
+                                @Nonnull final byte [] aBody,
+                                @Nullable final Map <String, String> aHeaders,
+                                @Nonnegative final int nMessagesPerBody,
+                                @Nonnegative final long nBaselineBytes) throws Exception
+  {
+    // Let the JIT settle, as escape analysis changes the allocation rate
+    for (int i = 0; i < WARMUP_MESSAGES; ++i)
+      _post (aServlet, sPath, aBody, aHeaders);
+
+    final long nThreadID = Thread.currentThread ().getId ();
+    final StopWatch aSW = StopWatch.createdStarted ();
+    final long nStartBytes = s_aThreadBean.getThreadAllocatedBytes (nThreadID);
+    for (int i = 0; i < MEASURED_MESSAGES; ++i)
+      _post (aServlet, sPath, aBody, aHeaders);
+    final long nAllocated = s_aThreadBean.getThreadAllocatedBytes (nThreadID) - nStartBytes;
+    aSW.stop ();
+
+    final int nMessages = MEASURED_MESSAGES * nMessagesPerBody;
+    final long nPerMessage = nAllocated / nMessages;
+    final long nBodyPerMessage = aBody.length / nMessagesPerBody;
+    final long nLimit = _getLimit (nBaselineBytes, nBodyPerMessage);
+    LOGGER.info (String.format (Locale.ROOT,
+                                "%-16s body %8d bytes/msg; allocated %10d bytes/msg (%5.1fx body, %+4d%% of baseline); %6.2f ms/msg; limit %10d",
+                                sName,
+                                Long.valueOf (nBodyPerMessage),
+                                Long.valueOf (nPerMessage),
+                                Double.valueOf ((double) nPerMessage / Math.max (1, nBodyPerMessage)),
+                                Long.valueOf ((nPerMessage - nBaselineBytes) * 100 / nBaselineBytes),
+                                Double.valueOf ((double) aSW.getNanos () / nMessages / 1_000_000),
+                                Long.valueOf (nLimit)));
+    if (_isGateEnabled ())
+      assertTrue (sName + " allocates " + nPerMessage + " bytes per message, the limit is " + nLimit,
+                  nPerMessage <= nLimit);
+    else
+      if (nPerMessage > nLimit)
+        LOGGER.warn (sName + " allocates " + nPerMessage + " bytes per message, the limit is " + nLimit + " - not gated");
+  }
+
+  @Nonnull
+  private static byte [] _createBatch (@Nonnull final byte [] aAsic, @Nonnegative final int nCount) throws Exception
+  {
+    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
+    {
+      ToopMessageBatch.writeHeader (aBAOS);
+      for (int i = 0; i < nCount; ++i)
+        ToopMessageBatch.writePart (aBAOS,
+                                    ToopAsicMessageCodec.CONTENT_TYPE,
+                                    new NonBlockingByteArrayInputStream (aAsic),
+                                    aAsic.length);
+      ToopMessageBatch.writeEnd (aBAOS);
+      return aBAOS.toByteArray ();
+    }
+  }
+
+  @Test
+  public void testAllocationPerMessage () throws Exception
+  {
+    Assume.assumeTrue ("Allocation measurement is not supported by this JVM", s_aThreadBean != null);
+
+    final ToDPServlet aToDP = new ToDPServlet ();
+    final ToDCServlet aToDC = new ToDCServlet ();
+    for (final ESizeClass eSize : ESizeClass.values ())
+    {
+      final String sSize = eSize.name ().toLowerCase (Locale.ROOT);
+      final TDETOOPRequestType aRequest = eSize.createRequest ();
+      final byte [] aRequestAsic = MockToopMessages.createRequestAsic (aRequest);
+      final byte [] aResponseAsic = MockToopMessages.createResponseAsic (MockToopMessages.createResponse (aRequest));
+
+      _measure ("to-dp " + sSize, aToDP, "/to-dp", aRequestAsic, null, 1, eSize.m_nToDPBaselineBytes);
+      _measure ("to-dc " + sSize, aToDC, "/to-dc", aResponseAsic, null, 1, eSize.m_nToDCBaselineBytes);
+    }
+
+    // The batched form of the small class for comparison
+    final byte [] aSmallAsic = MockToopMessages.createRequestAsic (ESizeClass.SMALL.createRequest ());
+    final ICommonsMap <String, String> aBatchHeaders = new CommonsHashMap <> ();
+    aBatchHeaders.put ("Content-Type", ToopMessageBatch.CONTENT_TYPE);
+    _measure ("to-dp batch",
+              aToDP,
+              "/to-dp",
+              _createBatch (aSmallAsic, BATCH_SIZE),
+              aBatchHeaders,
+              BATCH_SIZE,
+              BASELINE_BATCH_BYTES);
+  }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.servlet;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import eu.toop.commons.exchange.ToopRequestWithAttachments140;
+import eu.toop.commons.exchange.ToopResponseWithAttachments140;
+import eu.toop.iface.EToopInterfaceErrorCode;
+import eu.toop.iface.IToopInterfaceDP;
+import eu.toop.iface.ToopInterfaceManager;
+import eu.toop.iface.ToopTenant;
+import eu.toop.iface.ToopTenantConfig;
+import eu.toop.iface.mock.MockServletHelper;
+import eu.toop.iface.mock.MockServletHelper.MockResponse;
+import eu.toop.iface.mock.MockToopMessages;
+
+/**
+ * Test that {@link ToDPServlet} routes by path info to the callbacks of the
+ * addressed tenant only.
+ *
+ * @author Philip Helger
+ */
+public final class ToopTenantRoutingTest
+{
+  private static final class CountingDP implements IToopInterfaceDP
+  {
+    private final AtomicInteger m_aRequests = new AtomicInteger (0);
+
+    public void onToopRequest (final ToopRequestWithAttachments140 aRequest)
+    {
+      m_aRequests.incrementAndGet ();
+    }
+
+    public void onToopErrorResponse (final ToopResponseWithAttachments140 aResponse)
+    {}
+
+    public int getRequestCount ()
+    {
+      return m_aRequests.get ();
+    }
+  }
+
+  private static final CountingDP s_aGlobalDP = new CountingDP ();
+  private static final CountingDP s_aDPA = new CountingDP ();
+  private static final CountingDP s_aDPB = new CountingDP ();
+
+  @BeforeClass
+  public static void beforeClass ()
+  {
+    ToopInterfaceManager.setInterfaceDP (s_aGlobalDP);
+
+    final ToopTenant aA = new ToopTenant (new ToopTenantConfig ("a"));
+    aA.setInterfaceDP (s_aDPA);
+    ToopInterfaceManager.getTenantRegistry ().registerTenant (aA);
+    final ToopTenant aB = new ToopTenant (new ToopTenantConfig ("b"));
+    aB.setInterfaceDP (s_aDPB);
+    ToopInterfaceManager.getTenantRegistry ().registerTenant (aB);
+    // Registered but without own callback
+    ToopInterfaceManager.getTenantRegistry ().registerTenant (new ToopTenant (new ToopTenantConfig ("c")));
+  }
+
+  @AfterClass
+  public static void afterClass ()
+  {
+    ToopInterfaceManager.getTenantRegistry ().unregisterTenant ("a");
+    ToopInterfaceManager.getTenantRegistry ().unregisterTenant ("b");
+    ToopInterfaceManager.getTenantRegistry ().unregisterTenant ("c");
+    ToopInterfaceManager.setInterfaceDP (null);
+  }
+
+  @Nonnull
+  private static MockResponse _post (@Nonnull final String sPath, @Nonnull final byte [] aBody) throws Exception
+  {
+    final MockResponse ret = new MockResponse ();
+    new ToDPServlet ().service (MockServletHelper.createPost (sPath, "127.0.0.1", aBody, (Map <String, String>) null),
+                                MockServletHelper.createResponse (ret));
+    return ret;
+  }
+
+  @Test
+  public void testRouteByPath () throws Exception
+  {
+    final byte [] aAsic = MockToopMessages.createRequestAsic (MockToopMessages.createRequest (0));
+
+    assertEquals (200, _post ("/to-dp/a", aAsic).getStatus ());
+    assertEquals (1, s_aDPA.getRequestCount ());
+    assertEquals (0, s_aDPB.getRequestCount ());
+
+    assertEquals (200, _post ("/to-dp/b", aAsic).getStatus ());
+    assertEquals (200, _post ("/to-dp/b", aAsic).getStatus ());
+    assertEquals (1, s_aDPA.getRequestCount ());
+    assertEquals (2, s_aDPB.getRequestCount ());
+
+    // Neither a tenant without callback nor an unknown tenant may reach the
+    // global callback
+    assertEquals (EToopInterfaceErrorCode.UNKNOWN_TENANT.getHttpStatus (), _post ("/to-dp/c", aAsic).getStatus ());
+    assertEquals (EToopInterfaceErrorCode.UNKNOWN_TENANT.getHttpStatus (), _post ("/to-dp/d", aAsic).getStatus ());
+    assertEquals (0, s_aGlobalDP.getRequestCount ());
+
+    // Only the default tenant uses the global callback
+    assertEquals (200, _post ("/to-dp", aAsic).getStatus ());
+    assertEquals (1, s_aGlobalDP.getRequestCount ());
+    assertEquals (1, s_aDPA.getRequestCount ());
+    assertEquals (2, s_aDPB.getRequestCount ());
+  }
+}
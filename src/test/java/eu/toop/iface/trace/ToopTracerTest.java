@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.trace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.ICommonsList;
+
+/**
+ * Test class for class {@link ToopTracer}.
+ *
+ * @author Philip Helger
+ */
+public final class ToopTracerTest
+{
+  @Test
+  public void testHeaderRoundTrip ()
+  {
+    final ToopTraceContext aCtx = ToopTraceContext.createNewRoot ();
+    final ToopTraceContext aParsed = ToopTraceContext.parseHeaderValue (aCtx.getAsHeaderValue ());
+    assertEquals (aCtx, aParsed);
+
+    final ToopTraceContext aChild = aCtx.createChild ();
+    assertEquals (aCtx.getTraceID (), aChild.getTraceID ());
+    assertNotEquals (aCtx.getSpanID (), aChild.getSpanID ());
+
+    assertNull (ToopTraceContext.parseHeaderValue (null));
+    assertNull (ToopTraceContext.parseHeaderValue ("bla"));
+    assertNull (ToopTraceContext.parseHeaderValue ("00-00000000000000000000000000000000-00f067aa0ba902b7-01"));
+    assertNotNull (ToopTraceContext.parseHeaderValue ("00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01"));
+  }
+
+  @Test
+  public void testNestedSpans ()
+  {
+    final ToopSpanExporterInMemory aExporter = new ToopSpanExporterInMemory ();
+    ToopTracer.setExporter (aExporter);
+    try
+    {
+      final ToopTraceContext aRemote = ToopTraceContext.createNewRoot ();
+      try (final ToopSpan aOuter = ToopTracer.startSpan ("outer", aRemote))
+      {
+        assertSame (aOuter, ToopTracer.getCurrentSpan ());
+        assertEquals (aRemote.getSpanID (), aOuter.getParentSpanID ());
+        try (final ToopSpan aInner = ToopTracer.startSpan ("inner"))
+        {
+          assertEquals (aOuter.getContext ().getSpanID (), aInner.getParentSpanID ());
+        }
+        assertSame (aOuter, ToopTracer.getCurrentSpan ());
+      }
+      assertNull (ToopTracer.getCurrentSpan ());
+
+      final ICommonsList <ToopSpan> aSpans = aExporter.getAllSpansOfTrace (aRemote.getTraceID ());
+      assertEquals (2, aSpans.size ());
+      assertEquals ("inner", aSpans.get (0).getName ());
+      assertEquals ("outer", aSpans.get (1).getName ());
+    }
+    finally
+    {
+      ToopTracer.setExporter (null);
+    }
+  }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.InputStream;
+
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.pd.searchapi.v1.MatchType;
+
+/**
+ * Test class for class {@link SearchResultStreamReader}.
+ *
+ * @author Philip Helger
+ */
+public final class SearchResultStreamReaderTest
+{
+  @Test
+  public void testReadAll () throws Exception
+  {
+    final ICommonsList <MatchType> aMatches = new CommonsArrayList <> ();
+    try (final InputStream aIS = new ClassPathResource ("mock/resultlist.xml").getInputStream ())
+    {
+      assertNotNull (aIS);
+      assertEquals (2, SearchResultStreamReader.readMatches (aIS, aMatches::add));
+    }
+    assertEquals (2, aMatches.size ());
+  }
+
+  @Test
+  public void testStopEarly () throws Exception
+  {
+    try (final InputStream aIS = new ClassPathResource ("mock/resultlist.xml").getInputStream ())
+    {
+      assertEquals (1, SearchResultStreamReader.readMatches (aIS, x -> false));
+    }
+  }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ * Test class for classes {@link ToopBufferPool} and
+ * {@link PooledByteArrayOutputStream}.
+ *
+ * @author Philip Helger
+ */
+public final class ToopBufferPoolTest
+{
+  @Test
+  public void testSizeClasses ()
+  {
+    assertEquals (0, ToopBufferPool.getSizeClassIndex (0));
+    assertEquals (0, ToopBufferPool.getSizeClassIndex (4096));
+    assertEquals (1, ToopBufferPool.getSizeClassIndex (4097));
+    assertEquals (1, ToopBufferPool.getSizeClassIndex (8192));
+    assertEquals (ToopBufferPool.MAX_SIZE_SHIFT - ToopBufferPool.MIN_SIZE_SHIFT,
+                  ToopBufferPool.getSizeClassIndex (1 << ToopBufferPool.MAX_SIZE_SHIFT));
+    assertEquals (-1, ToopBufferPool.getSizeClassIndex ((1 << ToopBufferPool.MAX_SIZE_SHIFT) + 1));
+  }
+
+  @Test
+  public void testReuse ()
+  {
+    final ToopBufferPool aPool = new ToopBufferPool (1024 * 1024);
+    final byte [] a = aPool.acquire (5000);
+    assertEquals (8192, a.length);
+    assertEquals (8192, aPool.getOutstandingBytes ());
+    aPool.release (a);
+    assertEquals (0, aPool.getOutstandingBytes ());
+    assertEquals (8192, aPool.getRetainedBytes ());
+
+    assertSame (a, aPool.acquire (8000));
+    assertEquals (1, aPool.getHitCount ());
+    assertEquals (1, aPool.getMissCount ());
+
+    // Too large for the pool
+    final ToopBufferPool aSmallPool = new ToopBufferPool (4096);
+    aSmallPool.release (new byte [8192]);
+    assertEquals (0, aSmallPool.getRetainedBytes ());
+  }
+
+  @Test
+  public void testStream ()
+  {
+    final ToopBufferPool aPool = new ToopBufferPool (1024 * 1024);
+    final byte [] aData = new byte [10_000];
+    for (int i = 0; i < aData.length; ++i)
+      aData[i] = (byte) i;
+
+    try (final PooledByteArrayOutputStream aOS = new PooledByteArrayOutputStream (aPool, 16))
+    {
+      aOS.write (aData, 0, 100);
+      aOS.write (aData, 100, aData.length - 100);
+      assertEquals (aData.length, aOS.size ());
+      assertArrayEquals (aData, aOS.toByteArray ());
+    }
+    assertEquals (0, aPool.getOutstandingBytes ());
+    // The 4 KB and the 16 KB buffer are pooled
+    assertEquals (4096 + 16384, aPool.getRetainedBytes ());
+  }
+}
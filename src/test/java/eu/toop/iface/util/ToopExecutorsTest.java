@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.timing.StopWatch;
+
+import eu.toop.iface.EToopExecutionMode;
+
+/**
+ * Test class for class {@link ToopExecutors}.
+ *
+ * @author Philip Helger
+ */
+public final class ToopExecutorsTest
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (ToopExecutorsTest.class);
+
+  @Test
+  public void testBasic () throws Exception
+  {
+    for (final EToopExecutionMode eMode : EToopExecutionMode.values ())
+    {
+      final ExecutorService aES = ToopExecutors.createExecutor (eMode, 2, "test");
+      assertNotNull (aES);
+      final AtomicInteger aCount = new AtomicInteger ();
+      for (int i = 0; i < 10; ++i)
+        aES.execute (aCount::incrementAndGet);
+      ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (aES);
+      assertEquals (10, aCount.get ());
+    }
+  }
+
+  @Test
+  public void testPlatformQueueIsBounded () throws Exception
+  {
+    final ExecutorService aES = ToopExecutors.createExecutor (EToopExecutionMode.PLATFORM, 1, 2, "test");
+    final CountDownLatch aRelease = new CountDownLatch (1);
+    final CountDownLatch aStarted = new CountDownLatch (1);
+    try
+    {
+      // Occupy the only thread
+      aES.execute ( () -> {
+        aStarted.countDown ();
+        try
+        {
+          aRelease.await ();
+        }
+        catch (final InterruptedException ex)
+        {
+          Thread.currentThread ().interrupt ();
+        }
+      });
+      aStarted.await ();
+
+      // Fill the queue
+      aES.execute ( () -> {});
+      aES.execute ( () -> {});
+      try
+      {
+        aES.execute ( () -> {});
+        fail ();
+      }
+      catch (final RejectedExecutionException ex)
+      {
+        // expected
+      }
+    }
+    finally
+    {
+      aRelease.countDown ();
+      ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (aES);
+    }
+  }
+
+  private static long _runBlockingTasks (final ExecutorService aES,
+                                         final int nInFlight,
+                                         final long nBlockMillis) throws InterruptedException
+  {
+    final CountDownLatch aLatch = new CountDownLatch (nInFlight);
+    final StopWatch aSW = StopWatch.createdStarted ();
+    for (int i = 0; i < nInFlight; ++i)
+      aES.execute ( () -> {
+        try
+        {
+          // Simulate blocking I/O like HTTP or keystore access
+          Thread.sleep (nBlockMillis);
+        }
+        catch (final InterruptedException ex)
+        {
+          Thread.currentThread ().interrupt ();
+        }
+        aLatch.countDown ();
+      });
+    aLatch.await (10, TimeUnit.MINUTES);
+    return aSW.stopAndGetMillis ();
+  }
+
+  /**
+   * Compare platform and virtual threads with 1k to 10k concurrently blocked
+   * messages. Virtual threads require running the tests on Java 21+.
+   */
+  @Test
+  @Ignore ("Benchmark - takes too long")
+  public void testBenchmarkExecutionModes () throws Exception
+  {
+    LOGGER.info ("Virtual threads supported: " + ToopExecutors.isVirtualThreadSupported ());
+    for (final int nInFlight : new int [] { 1_000, 5_000, 10_000 })
+      for (final EToopExecutionMode eMode : EToopExecutionMode.values ())
+      {
+        final ExecutorService aES = ToopExecutors.createExecutor (eMode, 200, "bench");
+        try
+        {
+          // Warm up
+          _runBlockingTasks (aES, 200, 5);
+          final long nMillis = _runBlockingTasks (aES, nInFlight, 50);
+          LOGGER.info (eMode + " with " + nInFlight + " in-flight messages: " + nMillis + " ms");
+        }
+        finally
+        {
+          ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (aES);
+        }
+      }
+  }
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Test class for class {@link ToopLatencyRecorder}.
+ *
+ * @author Philip Helger
+ */
+public final class ToopLatencyRecorderTest
+{
+  @Test
+  public void testPercentiles ()
+  {
+    final ToopLatencyRecorder aRecorder = new ToopLatencyRecorder (100);
+    assertArrayEquals (new long [] { 0, 0 }, aRecorder.getPercentiles (50, 99));
+
+    for (int i = 1; i <= 100; ++i)
+      aRecorder.record (i);
+    assertEquals (100, aRecorder.getTotalCount ());
+    assertArrayEquals (new long [] { 1, 50, 90, 99, 100 }, aRecorder.getPercentiles (0, 50, 90, 99, 100));
+  }
+
+  @Test
+  public void testOverwriteOldSamples ()
+  {
+    final ToopLatencyRecorder aRecorder = new ToopLatencyRecorder (10);
+    for (int i = 0; i < 10; ++i)
+      aRecorder.record (1000);
+    for (int i = 0; i < 10; ++i)
+      aRecorder.record (5);
+    assertEquals (20, aRecorder.getTotalCount ());
+    // Only the recent samples are considered
+    assertArrayEquals (new long [] { 5 }, aRecorder.getPercentiles (100));
+
+    // Negative durations are clamped
+    aRecorder.record (-3);
+    assertArrayEquals (new long [] { 0 }, aRecorder.getPercentiles (0));
+  }
+}
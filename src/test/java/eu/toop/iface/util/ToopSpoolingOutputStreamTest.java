@@ -0,0 +1,178 @@
+/**
+ * Copyright (C) 2018-2020 toop.eu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.toop.iface.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.timing.StopWatch;
+
+import eu.toop.iface.servlet.ToopPayloadLimits;
+
+/**
+ * Test class for class {@link ToopSpoolingOutputStream}.
+ *
+ * @author Philip Helger
+ */
+public final class ToopSpoolingOutputStreamTest
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (ToopSpoolingOutputStreamTest.class);
+
+  private static byte [] _createBytes (final int nLen)
+  {
+    final byte [] ret = new byte [nLen];
+    ThreadLocalRandom.current ().nextBytes (ret);
+    return ret;
+  }
+
+  private static byte [] _readAll (final ToopSpoolingOutputStream aOS) throws IOException
+  {
+    try (final InputStream aIS = aOS.openInputStream ())
+    {
+      return StreamHelper.getAllBytes (aIS);
+    }
+  }
+
+  @Test
+  public void testInMemory () throws Exception
+  {
+    final ToopBufferPool aPool = new ToopBufferPool (1024 * 1024);
+    final byte [] aBytes = _createBytes (1000);
+    try (final ToopSpoolingOutputStream aOS = new ToopSpoolingOutputStream (aPool, 16, 1000, null))
+    {
+      aOS.write (aBytes, 0, aBytes.length);
+      assertFalse (aOS.isSpooled ());
+      assertEquals (1000, aOS.size ());
+      assertArrayEquals (aBytes, _readAll (aOS));
+    }
+    assertEquals (0, aPool.getOutstandingBytes ());
+  }
+
+  @Test
+  public void testSpoolByRunningCount () throws Exception
+  {
+    final File aDir = Files.createTempDirectory ("toop-spool").toFile ();
+    final ToopBufferPool aPool = new ToopBufferPool (1024 * 1024);
+    final byte [] aBytes = _createBytes (5000);
+    try
+    {
+      try (final ToopSpoolingOutputStream aOS = new ToopSpoolingOutputStream (aPool, 16, 1000, aDir))
+      {
+        aOS.write (aBytes, 0, 600);
+        assertFalse (aOS.isSpooled ());
+        aOS.write (aBytes, 600, aBytes.length - 600);
+        assertTrue (aOS.isSpooled ());
+        // The memory buffer is released right away
+        assertEquals (0, aPool.getOutstandingBytes ());
+
+        assertEquals (5000, aOS.size ());
+        assertArrayEquals (aBytes, _readAll (aOS));
+
+        final ByteBuffer aBB = aOS.getAsByteBuffer ();
+        final byte [] aMapped = new byte [aBB.remaining ()];
+        aBB.get (aMapped);
+        assertArrayEquals (aBytes, aMapped);
+        assertEquals (1, aDir.listFiles ().length);
+      }
+      // Deleted on close
+      assertEquals (0, aDir.listFiles ().length);
+    }
+    finally
+    {
+      Files.deleteIfExists (aDir.toPath ());
+    }
+  }
+
+  @Test
+  public void testSpoolByContentLength () throws Exception
+  {
+    final ToopPayloadLimits aLimits = new ToopPayloadLimits (0, 0, 0, 0);
+    final byte [] aBytes = _createBytes (2000);
+    try (final ToopSpoolingOutputStream aOS = new ToopSpoolingOutputStream (new ToopBufferPool (0), 16, 1000, null))
+    {
+      aLimits.readBody (new NonBlockingByteArrayInputStream (aBytes), aBytes.length, aOS);
+      assertTrue (aOS.isSpooled ());
+      assertArrayEquals (aBytes, _readAll (aOS));
+    }
+
+    // Unknown content length
+    try (final ToopSpoolingOutputStream aOS = new ToopSpoolingOutputStream (new ToopBufferPool (0), 16, 1000, null))
+    {
+      aLimits.readBody (new NonBlockingByteArrayInputStream (aBytes, 0, 500), -1, aOS);
+      assertFalse (aOS.isSpooled ());
+    }
+  }
+
+  @Test
+  @Ignore ("Benchmark - takes too long")
+  public void testBenchmarkThreshold () throws Exception
+  {
+    // Compare both paths for typical message sizes to choose the threshold
+    final ToopPayloadLimits aLimits = new ToopPayloadLimits (0, 0, 0, 0);
+    final ToopBufferPool aPool = new ToopBufferPool (256L * 1024 * 1024);
+    for (final int nSize : new int [] { 4 * 1024, 64 * 1024, 1024 * 1024, 4 * 1024 * 1024, 16 * 1024 * 1024 })
+    {
+      final byte [] aBytes = _createBytes (nSize);
+      final int nIterations = Math.max (10, (256 * 1024 * 1024) / nSize);
+      for (final boolean bSpool : new boolean [] { false, true })
+      {
+        final long nThreshold = bSpool ? 1 : 0;
+        // Warm up
+        for (int i = 0; i < 10; ++i)
+          try (final ToopSpoolingOutputStream aOS = new ToopSpoolingOutputStream (aPool, 16 * 1024, nThreshold, null))
+          {
+            aLimits.readBody (new NonBlockingByteArrayInputStream (aBytes), nSize, aOS);
+            _readAll (aOS);
+          }
+
+        final StopWatch aSW = StopWatch.createdStarted ();
+        for (int i = 0; i < nIterations; ++i)
+          try (final ToopSpoolingOutputStream aOS = new ToopSpoolingOutputStream (aPool, 16 * 1024, nThreshold, null))
+          {
+            aLimits.readBody (new NonBlockingByteArrayInputStream (aBytes), nSize, aOS);
+            _readAll (aOS);
+          }
+        aSW.stop ();
+        LOGGER.info ((bSpool ? "spooled" : "in-memory") +
+                     " " +
+                     (nSize / 1024) +
+                     " KB: " +
+                     nIterations +
+                     " read cycles in " +
+                     aSW.getMillis () +
+                     " ms; " +
+                     (aSW.getMillis () * 1000L / nIterations) +
+                     " microseconds per message");
+      }
+    }
+  }
+}